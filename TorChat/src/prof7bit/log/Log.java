@@ -0,0 +1,337 @@
+package prof7bit.log;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Level-gated, asynchronous logging. The logging methods only check the
+ * level (a single volatile read) and if it is enabled copy the references
+ * of their arguments into a preallocated ring buffer, nothing is allocated
+ * and nothing is formatted in the calling thread. A background thread will
+ * later format the records and pass them to the LogSink, so the calling
+ * thread (usually the reactor thread) will never block on any I/O. If the
+ * ring buffer is full records are dropped and counted instead of waiting.
+ *
+ * Since the arguments are formatted later in another thread they should
+ * be immutable or it must not matter if they have changed in the meantime.
+ * There are overloads with zero, one and two arguments to avoid allocating
+ * varargs arrays, the arguments are just appended to the message separated
+ * by spaces.
+ *
+ * When the JVM shuts down the records that are still in the ring buffer
+ * are written before it exits, see flush().
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+public final class Log {
+
+	public static final int DEBUG = 0;
+	public static final int INFO = 1;
+	public static final int WARN = 2;
+	public static final int ERROR = 3;
+	public static final int OFF = 4;
+
+	private static final String[] LEVEL_NAMES = {"D", "I", "W", "E"};
+	static final int CAPACITY = 1024;
+
+	// only used by the drainer thread, SimpleDateFormat is not thread safe
+	private static final SimpleDateFormat TIME_FORMAT = new SimpleDateFormat("HH:mm:ss.SSS");
+	private static final Date date = new Date();
+
+	private static volatile int level = INFO;
+	private static volatile LogSink sink = new StdoutSink();
+
+	// the ring buffer, guarded by the lock.
+	private static final Object lock = new Object();
+	private static final Record[] ring = new Record[CAPACITY];
+	private static int head = 0;
+	private static int count = 0;
+	private static long dropped = 0;
+	private static boolean drainerWaiting = false;
+
+	// number of records that went into the ring and that have been written
+	private static long accepted = 0;
+	private static long written = 0;
+
+	static {
+		for (int i = 0; i < CAPACITY; i++){
+			ring[i] = new Record();
+		}
+		Thread t = new Drainer();
+		t.setDaemon(true);
+		t.start();
+		Runtime.getRuntime().addShutdownHook(new Thread("Log flush"){
+			@Override
+			public void run(){
+				flush(1000);
+			}
+		});
+	}
+
+	private Log(){
+		// no instances
+	}
+
+	/**
+	 * @param lvl the minimum level that will be logged, OFF to log nothing
+	 */
+	public static void setLevel(int lvl){
+		level = lvl;
+	}
+
+	public static int getLevel(){
+		return level;
+	}
+
+	/**
+	 * @param s where the formatted log lines should go
+	 */
+	public static void setSink(LogSink s){
+		sink = s;
+	}
+
+	public static boolean isEnabled(int lvl){
+		return lvl >= level;
+	}
+
+	/**
+	 * @return number of records that have been dropped because
+	 * the ring buffer was full.
+	 */
+	public static long getDropped(){
+		synchronized (lock){
+			return dropped;
+		}
+	}
+
+	/**
+	 * @return number of records that have been put into the ring buffer
+	 */
+	static long getAccepted(){
+		synchronized (lock){
+			return accepted;
+		}
+	}
+
+	/**
+	 * Wait until everything that has been logged so far has been
+	 * written to the sink. This happens automatically at shutdown.
+	 *
+	 * @param timeoutMillis give up after this time
+	 * @return true if everything has been written
+	 */
+	public static boolean flush(long timeoutMillis){
+		long end = System.currentTimeMillis() + timeoutMillis;
+		synchronized (lock){
+			long target = accepted;
+			while (written < target){
+				long wait = end - System.currentTimeMillis();
+				if (wait <= 0){
+					return false;
+				}
+				try {
+					lock.wait(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	public static void d(Object source, String msg){
+		if (DEBUG >= level) put(DEBUG, source, msg, null, null, null);
+	}
+
+	public static void d(Object source, String msg, Object arg1){
+		if (DEBUG >= level) put(DEBUG, source, msg, arg1, null, null);
+	}
+
+	public static void d(Object source, String msg, Object arg1, Object arg2){
+		if (DEBUG >= level) put(DEBUG, source, msg, arg1, arg2, null);
+	}
+
+	public static void i(Object source, String msg){
+		if (INFO >= level) put(INFO, source, msg, null, null, null);
+	}
+
+	public static void i(Object source, String msg, Object arg1){
+		if (INFO >= level) put(INFO, source, msg, arg1, null, null);
+	}
+
+	public static void i(Object source, String msg, Object arg1, Object arg2){
+		if (INFO >= level) put(INFO, source, msg, arg1, arg2, null);
+	}
+
+	public static void w(Object source, String msg){
+		if (WARN >= level) put(WARN, source, msg, null, null, null);
+	}
+
+	public static void w(Object source, String msg, Object arg1){
+		if (WARN >= level) put(WARN, source, msg, arg1, null, null);
+	}
+
+	public static void w(Object source, String msg, Throwable t){
+		if (WARN >= level) put(WARN, source, msg, null, null, t);
+	}
+
+	public static void e(Object source, String msg){
+		if (ERROR >= level) put(ERROR, source, msg, null, null, null);
+	}
+
+	public static void e(Object source, String msg, Object arg1){
+		if (ERROR >= level) put(ERROR, source, msg, arg1, null, null);
+	}
+
+	public static void e(Object source, String msg, Throwable t){
+		if (ERROR >= level) put(ERROR, source, msg, null, null, t);
+	}
+
+	private static void put(int lvl, Object source, String msg, Object arg1, Object arg2, Throwable t){
+		synchronized (lock){
+			if (count == CAPACITY){
+				dropped++;
+				return;
+			}
+			Record r = ring[(head + count) % CAPACITY];
+			r.time = System.currentTimeMillis();
+			r.level = lvl;
+			r.thread = Thread.currentThread();
+			r.source = source;
+			r.msg = msg;
+			r.arg1 = arg1;
+			r.arg2 = arg2;
+			r.throwable = t;
+			count++;
+			accepted++;
+			if (drainerWaiting){
+				// flush() might be waiting on the lock too
+				lock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * One slot in the ring buffer. The slots are allocated once and reused.
+	 */
+	private static class Record {
+		long time;
+		int level;
+		Thread thread;
+		Object source;
+		String msg;
+		Object arg1;
+		Object arg2;
+		Throwable throwable;
+
+		void copyFrom(Record r){
+			time = r.time;
+			level = r.level;
+			thread = r.thread;
+			source = r.source;
+			msg = r.msg;
+			arg1 = r.arg1;
+			arg2 = r.arg2;
+			throwable = r.throwable;
+		}
+
+		void clear(){
+			thread = null;
+			source = null;
+			msg = null;
+			arg1 = null;
+			arg2 = null;
+			throwable = null;
+		}
+
+		String format(){
+			StringBuilder sb = new StringBuilder(128);
+			date.setTime(time);
+			sb.append(TIME_FORMAT.format(date)).append(' ');
+			sb.append(LEVEL_NAMES[level]).append(' ');
+			sb.append('[').append(thread.getName()).append("] ");
+			if (source != null){
+				sb.append(source instanceof Class ? ((Class<?>) source).getSimpleName() : source.toString());
+				sb.append(' ');
+			}
+			sb.append(msg);
+			if (arg1 != null){
+				sb.append(' ').append(arg1);
+			}
+			if (arg2 != null){
+				sb.append(' ').append(arg2);
+			}
+			if (throwable != null){
+				StringWriter sw = new StringWriter();
+				throwable.printStackTrace(new PrintWriter(sw));
+				sb.append('\n').append(sw.toString().trim());
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * The background thread that takes the records out of the ring
+	 * buffer, formats them and writes them to the sink.
+	 */
+	private static class Drainer extends Thread {
+		private Record[] batch = new Record[CAPACITY];
+		private long reportedDropped = 0;
+
+		public Drainer(){
+			super("Log drainer");
+			for (int i = 0; i < CAPACITY; i++){
+				batch[i] = new Record();
+			}
+		}
+
+		@Override
+		public void run(){
+			while (true){
+				int n;
+				long totalDropped;
+				synchronized (lock){
+					while (count == 0){
+						drainerWaiting = true;
+						try {
+							lock.wait();
+						} catch (InterruptedException e) {
+							return;
+						} finally {
+							drainerWaiting = false;
+						}
+					}
+					n = count;
+					for (int i = 0; i < n; i++){
+						Record r = ring[(head + i) % CAPACITY];
+						batch[i].copyFrom(r);
+						r.clear();
+					}
+					head = (head + n) % CAPACITY;
+					count = 0;
+					totalDropped = dropped;
+				}
+				LogSink s = sink;
+				if (totalDropped > reportedDropped){
+					s.write(WARN, "W log buffer overflow, " + (totalDropped - reportedDropped) + " records dropped");
+					reportedDropped = totalDropped;
+				}
+				for (int i = 0; i < n; i++){
+					try {
+						s.write(batch[i].level, batch[i].format());
+					} catch (RuntimeException e) {
+						// a broken sink or toString() must not kill the logging
+					}
+					batch[i].clear();
+				}
+				synchronized (lock){
+					written += n;
+					lock.notifyAll();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,15 @@
+package prof7bit.log;
+
+/**
+ * The destination of the log output. The background thread of the Log
+ * class will call this for every log record, it is the only place where
+ * actual I/O happens, so it is allowed to block.
+ */
+public interface LogSink {
+
+	/**
+	 * @param level one of the Log.DEBUG ... Log.ERROR constants
+	 * @param line the completely formatted log line, without line break
+	 */
+	void write(int level, String line);
+}
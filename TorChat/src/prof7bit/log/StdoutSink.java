@@ -0,0 +1,16 @@
+package prof7bit.log;
+
+/**
+ * Default LogSink, writes to stdout and warnings and errors to stderr.
+ */
+public class StdoutSink implements LogSink {
+
+	@Override
+	public void write(int level, String line) {
+		if (level >= Log.WARN){
+			System.err.println(line);
+		}else{
+			System.out.println(line);
+		}
+	}
+}
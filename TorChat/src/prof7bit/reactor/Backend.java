@@ -0,0 +1,97 @@
+package prof7bit.reactor;
+
+import java.io.IOException;
+
+import prof7bit.log.Log;
+
+/**
+ * The two ways of doing network I/O: NIO uses the Reactor's selector for
+ * everything (one thread for all connections, this is what runs on
+ * Android), BLOCKING uses BlockingTCP and BlockingListenPort with threads
+ * per connection (virtual threads where available). The event handlers
+ * run in the reactor thread in both cases so the application does not
+ * need to care which one is used.
+ *
+ * The default is NIO, it can be changed with the system property
+ * prof7bit.reactor.backend=blocking
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+public enum Backend {
+
+	NIO {
+		@Override
+		public Handle listen(Reactor r, int port, ListenPortHandler eh) throws IOException {
+			ListenPort p = new ListenPort(r, eh);
+			p.listen(port);
+			return p;
+		}
+
+		@Override
+		public Dialer dialer(final String proxyAddr, final int proxyPort, final String proxyUser) {
+			if (proxyAddr != null){
+				return new Socks4aDialer(proxyAddr, proxyPort, proxyUser);
+			}
+			return new Dialer(){
+				@Override
+				public TCP dial(Reactor r, String address, int port, TCPHandler handler) throws IOException {
+					return new TCP(r, address, port, handler);
+				}
+			};
+		}
+	},
+
+	BLOCKING {
+		@Override
+		public Handle listen(Reactor r, int port, ListenPortHandler eh) throws IOException {
+			BlockingListenPort p = new BlockingListenPort(r, eh, null);
+			p.listen(port);
+			return p;
+		}
+
+		@Override
+		public Dialer dialer(final String proxyAddr, final int proxyPort, final String proxyUser) {
+			return new Dialer(){
+				@Override
+				public TCP dial(Reactor r, String address, int port, TCPHandler handler) throws IOException {
+					return new BlockingTCP(r, address, port, handler, proxyAddr, proxyPort, proxyUser, null);
+				}
+			};
+		}
+	};
+
+	public static final String PROPERTY = "prof7bit.reactor.backend";
+
+	/**
+	 * Open a listening port.
+	 *
+	 * @param r the reactor that should run the event handlers
+	 * @param port the port to bind
+	 * @param eh the application's event handler
+	 * @return the ListenPort, close() it to stop listening
+	 * @throws IOException socket cannot be opened or bound
+	 */
+	public abstract Handle listen(Reactor r, int port, ListenPortHandler eh) throws IOException;
+
+	/**
+	 * @param proxyAddr address of a socks4a proxy, null to connect directly
+	 * @param proxyPort port of the socks proxy
+	 * @param proxyUser user to use in socks4 authentication
+	 * @return a Dialer that makes connections with this backend
+	 */
+	public abstract Dialer dialer(String proxyAddr, int proxyPort, String proxyUser);
+
+	/**
+	 * @return the backend selected with the system property, NIO if not set
+	 */
+	public static Backend getDefault(){
+		String name = System.getProperty(PROPERTY, "nio");
+		for (Backend b : values()){
+			if (b.name().equalsIgnoreCase(name)){
+				return b;
+			}
+		}
+		Log.w(Backend.class, "unknown " + PROPERTY + ", using nio:", name);
+		return NIO;
+	}
+}
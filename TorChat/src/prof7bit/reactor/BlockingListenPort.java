@@ -0,0 +1,116 @@
+package prof7bit.reactor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadFactory;
+
+import prof7bit.log.Log;
+
+/**
+ * The ListenPort for BlockingTCP connections. One thread is blocking in
+ * accept(), the onAccept() event is fired from the reactor thread and
+ * after it has returned the new connection will start its own threads.
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+public class BlockingListenPort extends Handle {
+
+	private ListenPortHandler eventHandler;
+	private ThreadFactory threads;
+	private volatile boolean closed = false;
+	private Thread acceptor = null;
+
+	/**
+	 * @param r the reactor that should run the event handlers
+	 * @param eh the application's event handler
+	 * @param threads factory for all threads, null for BlockingTCP.defaultThreadFactory()
+	 */
+	public BlockingListenPort(Reactor r, ListenPortHandler eh, ThreadFactory threads){
+		if (r == null){
+			throw new IllegalArgumentException("ListenPort reactor must not be null");
+		}
+		if (eh == null){
+			throw new IllegalArgumentException("ListenPort event handler must not be null");
+		}
+		reactor = r;
+		eventHandler = eh;
+		this.threads = threads == null ? BlockingTCP.defaultThreadFactory() : threads;
+	}
+
+	/**
+	 * bind the port and start the accepting thread.
+	 *
+	 * @param port the port to bind
+	 * @throws IOException socket cannot be opened or bound
+	 */
+	public void listen(int port) throws IOException{
+		final ServerSocketChannel ssc = ServerSocketChannel.open();
+		ssc.socket().setReuseAddress(true);
+		ssc.socket().bind(new InetSocketAddress(port));
+		channel = ssc;
+		acceptor = threads.newThread(new Runnable(){
+			@Override
+			public void run() {
+				while (!closed){
+					try {
+						accept(ssc.accept());
+					} catch (ClosedChannelException e) {
+						return;
+					} catch (IOException e) {
+						// probably out of file descriptors, try again later
+						Log.w(BlockingListenPort.this, "accept failed", e);
+						try {
+							Thread.sleep(100);
+						} catch (InterruptedException e1) {
+							return;
+						}
+					}
+				}
+			}
+		});
+		acceptor.start();
+	}
+
+	private void accept(SocketChannel sc) throws IOException {
+		final BlockingTCP tcp = new BlockingTCP(reactor, sc, threads);
+		reactor.invokeLater(new Runnable(){
+			@Override
+			public void run() {
+				tcp.setEventHandler(eventHandler.onAccept(tcp));
+				tcp.startAccepted();
+			}
+		});
+	}
+
+	/**
+	 * Stop listening, connections that have already been accepted are
+	 * not affected. This waits for the accepting thread to end because
+	 * only then the port will be free again.
+	 */
+	@Override
+	public void close(IOException reason){
+		closed = true;
+		try {
+			if (channel != null){
+				channel.close();
+			}
+		} catch (IOException e) {
+			Log.w(this, "exception while closing", e);
+		}
+		if (acceptor != null && acceptor != Thread.currentThread()){
+			try {
+				acceptor.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	@Override
+	void doEventClose(IOException e) {
+		// ListenPort will just ignore this event
+	}
+}
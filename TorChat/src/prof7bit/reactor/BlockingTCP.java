@@ -0,0 +1,395 @@
+package prof7bit.reactor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import prof7bit.log.Log;
+
+/**
+ * A TCP connection that does blocking I/O in its own threads instead of
+ * being driven by the Reactor's selector: one thread connects (optionally
+ * through a socks4a proxy) and then reads, another one writes. The events
+ * are still fired from the reactor thread, they are passed to it with
+ * invokeLater(), so the application's event handlers run exactly like
+ * with the normal TCP and don't need to be thread safe.
+ *
+ * The threads are made by a ThreadFactory. On a JVM that has virtual
+ * threads (Java 21) virtualThreadFactory() will return a factory for them,
+ * otherwise (Android, older Java) platform threads with a small stack are
+ * used. See Backend for choosing between this and the selector.
+ *
+ * Reactor.close() does not know about these connections, they must be
+ * closed by the application.
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+public class BlockingTCP extends TCP {
+
+	/**
+	 * Maximum number of received buffers waiting for the reactor thread,
+	 * the reading thread will block when the reactor can't keep up.
+	 */
+	private static final int MAX_PENDING_READS = 16;
+
+	private static final int MAX_GATHER = 64;
+
+	private static final ThreadFactory PLATFORM_THREADS = new PlatformThreadFactory();
+
+	private TCPHandler handler;
+	private volatile SocketChannel sc;
+	private ThreadFactory threads;
+	private BlockingQueue<Outgoing> unsent = new LinkedBlockingQueue<Outgoing>();
+	private AtomicLong queuedBytes = new AtomicLong();
+	private Semaphore pendingReads = new Semaphore(MAX_PENDING_READS);
+	private AtomicBoolean closed = new AtomicBoolean(false);
+	private volatile Thread writer = null;
+
+	/**
+	 * Outgoing connection, directly or through a socks4a proxy. This will
+	 * not block, connecting happens in the new thread. Data can be sent
+	 * immediately, it will be queued until the connection is established.
+	 *
+	 * @param r the reactor that should run the event handler
+	 * @param addr the server to connect to
+	 * @param port the port of the server to connect to
+	 * @param eh the event handler of the application
+	 * @param proxyAddr address of the socks proxy or null for a direct connection
+	 * @param proxyPort port of the socks proxy
+	 * @param proxyUser user to use in socks4 authentication
+	 * @param threads factory for the reading and writing thread, null for default
+	 */
+	public BlockingTCP(Reactor r, final String addr, final int port, TCPHandler eh,
+			final String proxyAddr, final int proxyPort, final String proxyUser,
+			ThreadFactory threads){
+		super(r);
+		setEventHandler(eh);
+		this.threads = threads == null ? defaultThreadFactory() : threads;
+		captureOpen("out " + addr + ":" + port);
+		this.threads.newThread(new Runnable(){
+			@Override
+			public void run() {
+				try {
+					sc = SocketChannel.open();
+					if (closed.get()){
+						sc.close();
+						return;
+					}
+					sc.socket().setTcpNoDelay(true);
+					if (proxyAddr == null){
+						sc.connect(new InetSocketAddress(addr, port));
+					}else{
+						sc.connect(new InetSocketAddress(proxyAddr, proxyPort));
+						socks4a(addr, port, proxyUser);
+					}
+				} catch (IOException e) {
+					close(e);
+					return;
+				}
+				fireConnect();
+				readLoop();
+			}
+		}).start();
+	}
+
+	/**
+	 * Incoming connection, made by BlockingListenPort. The reading thread
+	 * is started when the event handler has been set.
+	 */
+	BlockingTCP(Reactor r, SocketChannel sc, ThreadFactory threads) throws IOException {
+		super(r);
+		this.sc = sc;
+		this.threads = threads;
+		sc.socket().setTcpNoDelay(true);
+		captureOpen("in " + sc.socket().getRemoteSocketAddress());
+	}
+
+	/**
+	 * A factory for virtual threads if this JVM has them (Java 21 and
+	 * later). This uses reflection so it compiles with older Java.
+	 *
+	 * @return the factory or null if not available
+	 */
+	public static ThreadFactory virtualThreadFactory(){
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return virtual threads if available, otherwise platform threads
+	 */
+	public static ThreadFactory defaultThreadFactory(){
+		ThreadFactory f = virtualThreadFactory();
+		return f == null ? PLATFORM_THREADS : f;
+	}
+
+	@Override
+	public void setEventHandler(TCPHandler eventHandler) {
+		super.setEventHandler(eventHandler);
+		handler = eventHandler;
+	}
+
+	/**
+	 * called by BlockingListenPort after onAccept() has returned
+	 */
+	void startAccepted(){
+		startWriter();
+		threads.newThread(new Runnable(){
+			@Override
+			public void run() {
+				readLoop();
+			}
+		}).start();
+	}
+
+	@Override
+	public void send(ByteBuffer buf, Runnable onWritten){
+		if (closed.get()){
+			return;
+		}
+		buf.position(0);
+		captureData(Capture.OUT, buf);
+		queuedBytes.addAndGet(buf.limit());
+		unsent.offer(new Outgoing(buf, onWritten));
+	}
+
+	@Override
+	public List<ByteBuffer> removeUnsent(){
+		List<Outgoing> list = new ArrayList<Outgoing>();
+		unsent.drainTo(list);
+		List<ByteBuffer> result = new ArrayList<ByteBuffer>();
+		for (Outgoing o : list){
+			queuedBytes.addAndGet(-o.buf.limit());
+			o.buf.position(0);
+			result.add(o.buf);
+		}
+		return result;
+	}
+
+	@Override
+	public int getQueueDepth(){
+		return unsent.size();
+	}
+
+	@Override
+	public long getQueuedBytes(){
+		return queuedBytes.get();
+	}
+
+	/**
+	 * Close the socket, this will also wake up the blocked threads. The
+	 * onDisconnect() event is fired from the reactor thread.
+	 */
+	@Override
+	public void close(final IOException reason){
+		if (!closed.compareAndSet(false, true)){
+			return;
+		}
+		Thread w = writer;
+		if (w != null){
+			w.interrupt();
+		}
+		try {
+			if (sc != null){
+				sc.close();
+			}
+		} catch (IOException e) {
+			Log.w(this, "exception while closing", e);
+		}
+		reactor.invokeLater(new Runnable(){
+			@Override
+			public void run() {
+				doEventClose(reason);
+			}
+		});
+	}
+
+	private void fireConnect(){
+		startWriter();
+		reactor.invokeLater(new Runnable(){
+			@Override
+			public void run() {
+				if (!closed.get()){
+					handler.onConnect();
+				}
+			}
+		});
+	}
+
+	/**
+	 * runs in the reading thread until the connection is closed
+	 */
+	private void readLoop(){
+		try {
+			while (!closed.get()){
+				final ByteBuffer buf = ByteBuffer.allocate(2048);
+				int numRead = sc.read(buf);
+				if (numRead == -1){
+					close(new XConnectionClosedRemote("closed by foreign host"));
+					return;
+				}
+				buf.flip();
+				captureData(Capture.IN, buf);
+				pendingReads.acquire();
+				reactor.invokeLater(new Runnable(){
+					@Override
+					public void run() {
+						pendingReads.release();
+						if (!closed.get()){
+							handler.onReceive(buf);
+						}
+					}
+				});
+			}
+		} catch (IOException e) {
+			close(e);
+		} catch (InterruptedException e) {
+			close(new XConnectionClosedHere("interrupted"));
+		}
+	}
+
+	private void startWriter(){
+		writer = threads.newThread(new Runnable(){
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		});
+		writer.start();
+		if (closed.get()){
+			writer.interrupt();
+		}
+	}
+
+	/**
+	 * runs in the writing thread until the connection is closed. It
+	 * gathers everything that is queued into one write() call.
+	 */
+	private void writeLoop(){
+		List<Outgoing> batch = new ArrayList<Outgoing>();
+		ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+		try {
+			while (!closed.get()){
+				batch.add(unsent.take());
+				unsent.drainTo(batch, MAX_GATHER - 1);
+				int n = 0;
+				for (Outgoing o : batch){
+					gather[n++] = o.buf;
+				}
+				long remaining = 0;
+				for (int i = 0; i < n; i++){
+					remaining += gather[i].remaining();
+				}
+				while (remaining > 0){
+					remaining -= sc.write(gather, 0, n);
+				}
+				for (final Outgoing o : batch){
+					queuedBytes.addAndGet(-o.buf.limit());
+					if (o.onWritten != null){
+						reactor.invokeLater(new Runnable(){
+							@Override
+							public void run() {
+								if (!closed.get()){
+									o.onWritten.run();
+								}
+							}
+						});
+					}
+				}
+				batch.clear();
+				for (int i = 0; i < n; i++){
+					gather[i] = null;
+				}
+			}
+		} catch (IOException e) {
+			close(e);
+		} catch (InterruptedException e) {
+			// close() wakes us up this way
+			close(new XConnectionClosedHere("interrupted"));
+		}
+	}
+
+	/**
+	 * the socks4a handshake, done in blocking mode before anything else.
+	 * See TCP.Socks4aHandler for the non-blocking version.
+	 */
+	private void socks4a(String addr, int port, String user) throws IOException {
+		ByteArrayOutputStream req = new ByteArrayOutputStream(64);
+		req.write(0x04); // socks version 4
+		req.write(0x01); // request TCP stream connection
+		req.write((byte) ((port & 0xff00) >> 8));
+		req.write((byte) (port & 0x00ff));
+		// invalid IP address 0.0.0.1 means socks 4a (proxy resolves the name)
+		req.write(0x00);
+		req.write(0x00);
+		req.write(0x00);
+		req.write(0x01);
+		byte[] buser = user.getBytes();
+		req.write(buser, 0, buser.length);
+		req.write(0x00);
+		byte[] baddr = addr.getBytes();
+		req.write(baddr, 0, baddr.length);
+		req.write(0x00);
+		ByteBuffer out = ByteBuffer.wrap(req.toByteArray());
+		while (out.hasRemaining()){
+			sc.write(out);
+		}
+
+		ByteBuffer reply = ByteBuffer.allocate(8);
+		while (reply.hasRemaining()){
+			if (sc.read(reply) == -1){
+				throw new XSocksHandshakeError("malformed reply from socks proxy");
+			}
+		}
+		byte status = reply.array()[1];
+		if (status != 0x5a){
+			String msg = String.format(Locale.ENGLISH, "socks4a error %d while connecting %s:%s", status, addr, port);
+			throw new XSocksConnectionError(msg, status);
+		}
+	}
+
+	/**
+	 * An entry in the send queue.
+	 */
+	private static class Outgoing {
+		final ByteBuffer buf;
+		final Runnable onWritten;
+
+		Outgoing(ByteBuffer buf, Runnable onWritten){
+			this.buf = buf;
+			this.onWritten = onWritten;
+		}
+	}
+
+	/**
+	 * daemon threads with a small stack, so that there can be many of them
+	 */
+	private static class PlatformThreadFactory implements ThreadFactory {
+		private AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(null, r, "BlockingTCP-" + count.incrementAndGet(), 256 * 1024);
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
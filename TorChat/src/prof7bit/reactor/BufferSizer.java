@@ -0,0 +1,200 @@
+package prof7bit.reactor;
+
+import java.io.IOException;
+import java.net.Socket;
+
+import prof7bit.log.Log;
+
+/**
+ * Adapts SO_SNDBUF and SO_RCVBUF of one TCP connection to its traffic.
+ * Most connections are chats that only ever see a few hundred bytes at a
+ * time, they start with small buffers so that thousands of them don't tie
+ * up kernel memory. Throughput is measured in windows of one second, if a
+ * connection has moved at least as many bytes as its buffer can hold within
+ * one window (and for sending: the socket was congested and there is still
+ * data queued) then this is a bulk transfer and the buffer is doubled, up
+ * to the limit. After a connection has been idle for a while its buffers
+ * are set back to the minimum.
+ *
+ * Note that setting SO_RCVBUF explicitly disables the receive buffer auto
+ * tuning of the Linux kernel for this socket, this is intended here. But
+ * the kernel also chooses the TCP window scale from the receive buffer at
+ * the time of the SYN and never changes it later. If SO_RCVBUF were set to
+ * the minimum before connecting, the scale would only allow a window of
+ * at most 64 KB and growing the buffer later would be useless. So for
+ * outgoing connections SO_RCVBUF is only set once they are connected.
+ * Accepted connections get their window scale from the listening socket,
+ * which is never made smaller.
+ *
+ * This is only ever used from the reactor thread, the sizes can be read
+ * from any thread.
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+class BufferSizer implements Runnable {
+
+	static final int MIN_BUFFER = 16 * 1024;
+	static final int DEFAULT_MAX_BUFFER = 1024 * 1024;
+
+	private static volatile int maxBuffer = DEFAULT_MAX_BUFFER;
+	private static volatile long window = 1000;
+	private static volatile long idle = 10000;
+
+	private TCP tcp;
+	private Socket socket;
+	private volatile int sndBuf = 0;
+	private volatile int rcvBuf = 0;
+	private int sndRequested = MIN_BUFFER;
+	private int rcvRequested = MIN_BUFFER;
+
+	/**
+	 * false until the connection is established, SO_RCVBUF is left alone
+	 */
+	private boolean rcvEnabled;
+
+	private long windowStart;
+	private long bytesRead = 0;
+	private long bytesWritten = 0;
+	private boolean congested = false;
+
+	/**
+	 * checks for idleness while the buffers are bigger than the minimum
+	 */
+	private Timer idleTimer = null;
+
+	/**
+	 * @param tcp the connection
+	 * @param socket its socket, the buffers will be set to the minimum now,
+	 * SO_RCVBUF only if it is already connected, else in onConnect().
+	 */
+	BufferSizer(TCP tcp, Socket socket){
+		this.tcp = tcp;
+		this.socket = socket;
+		this.rcvEnabled = socket.isConnected();
+		windowStart = tcp.getReactor().cachedNow();
+		apply();
+	}
+
+	/**
+	 * @param bytes upper limit for the buffer sizes of new bulk transfers
+	 */
+	static void setMaxBuffer(int bytes){
+		maxBuffer = Math.max(MIN_BUFFER, bytes);
+	}
+
+	/**
+	 * change the measuring window and the idle time, only used by tests
+	 */
+	static void setTiming(long windowMillis, long idleMillis){
+		window = windowMillis;
+		idle = idleMillis;
+	}
+
+	/**
+	 * @param n number of bytes that have just been read
+	 */
+	void onRead(int n){
+		bytesRead += n;
+		check();
+	}
+
+	/**
+	 * @param n number of bytes that have just been written
+	 * @param full true if the socket could not take everything
+	 */
+	void onWrite(long n, boolean full){
+		bytesWritten += n;
+		congested |= full;
+		check();
+	}
+
+	/**
+	 * the connection has been established, now SO_RCVBUF can be set
+	 */
+	void onConnect(){
+		if (!rcvEnabled){
+			rcvEnabled = true;
+			apply();
+		}
+	}
+
+	/**
+	 * the connection is closed, stop the idle timer
+	 */
+	void stop(){
+		if (idleTimer != null){
+			idleTimer.cancel();
+			idleTimer = null;
+		}
+	}
+
+	int getSendBufferSize(){
+		return sndBuf;
+	}
+
+	int getReceiveBufferSize(){
+		return rcvBuf;
+	}
+
+	/**
+	 * at the end of every window decide whether to grow
+	 */
+	private void check(){
+		long now = tcp.getReactor().cachedNow();
+		if (now - windowStart < window){
+			return;
+		}
+		int max = maxBuffer;
+		boolean grow = false;
+		if (congested && bytesWritten >= sndRequested && tcp.getQueuedBytes() > 0 && sndRequested < max){
+			sndRequested = Math.min(max, sndRequested * 2);
+			grow = true;
+		}
+		if (bytesRead >= rcvRequested && rcvRequested < max){
+			rcvRequested = Math.min(max, rcvRequested * 2);
+			grow = true;
+		}
+		if (grow){
+			apply();
+			if (idleTimer == null){
+				idleTimer = tcp.getReactor().schedule(idle, this);
+			}
+		}
+		windowStart = now;
+		bytesRead = 0;
+		bytesWritten = 0;
+		congested = false;
+	}
+
+	/**
+	 * the idle check, runs periodically while the buffers are grown
+	 */
+	@Override
+	public void run() {
+		idleTimer = null;
+		if (tcp.getReactor().cachedNow() - tcp.getLastActivity() >= idle){
+			sndRequested = MIN_BUFFER;
+			rcvRequested = MIN_BUFFER;
+			apply();
+		}else{
+			idleTimer = tcp.getReactor().schedule(idle, this);
+		}
+	}
+
+	/**
+	 * set the requested sizes and read back what the kernel has made of them
+	 */
+	private void apply(){
+		try {
+			socket.setSendBufferSize(sndRequested);
+			if (rcvEnabled){
+				socket.setReceiveBufferSize(rcvRequested);
+			}
+			sndBuf = socket.getSendBufferSize();
+			rcvBuf = socket.getReceiveBufferSize();
+		} catch (IOException e) {
+			// socket is already closed, nothing to do
+			Log.d(this, "could not set buffer size", e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package prof7bit.reactor;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import prof7bit.log.Log;
+
+/**
+ * Records the raw bytes of all TCP connections into a capture file, see
+ * TCP.setCapture(). The reactor thread only copies the data and puts it
+ * into a queue, a background thread writes it to the file. If the writer
+ * can't keep up then records are dropped (and counted) rather than ever
+ * blocking the reactor. Captures can be read with CaptureReader.
+ *
+ * File format: the magic "TCAP" and a version byte, followed by records:
+ * type (1 byte), connection id, microseconds since the previous record
+ * and data length as unsigned varints, then the data. For OPEN records
+ * the data is a description of the connection in UTF-8.
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+public class Capture {
+
+	public static final byte[] MAGIC = {'T', 'C', 'A', 'P'};
+	public static final int VERSION = 1;
+
+	public static final int OPEN = 1;
+	public static final int IN = 2;
+	public static final int OUT = 3;
+	public static final int CLOSE = 4;
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int QUEUE_SIZE = 4096;
+	private static final byte[] EMPTY = new byte[0];
+
+	private BlockingQueue<Record> queue = new ArrayBlockingQueue<Record>(QUEUE_SIZE);
+	private AtomicLong dropped = new AtomicLong();
+	private OutputStream out;
+	private Writer writer;
+	private volatile boolean closing = false;
+
+	/**
+	 * Create (or overwrite) the capture file and start the writer thread.
+	 * Nothing is captured until it is passed to TCP.setCapture().
+	 *
+	 * @param file the capture file
+	 * @throws IOException if the file can not be created
+	 */
+	public Capture(File file) throws IOException {
+		out = new BufferedOutputStream(new FileOutputStream(file), 65536);
+		out.write(MAGIC);
+		out.write(VERSION);
+		writer = new Writer();
+		writer.start();
+	}
+
+	/**
+	 * Write all queued records and close the file. Call TCP.setCapture(null)
+	 * before this, records that arrive after close() are dropped.
+	 *
+	 * @throws InterruptedException if interrupted while waiting for the writer
+	 */
+	public void close() throws InterruptedException {
+		closing = true;
+		writer.interrupt();
+		writer.join();
+	}
+
+	/**
+	 * @return number of records that have been dropped because the
+	 * writer thread could not keep up.
+	 */
+	public long getDropped(){
+		return dropped.get();
+	}
+
+	/**
+	 * Called by TCP, this copies the data so the caller can reuse the buffer.
+	 */
+	void record(int type, long conn, byte[] data, int offset, int length){
+		if (closing){
+			dropped.incrementAndGet();
+			return;
+		}
+		byte[] copy = EMPTY;
+		if (length > 0){
+			copy = new byte[length];
+			System.arraycopy(data, offset, copy, 0, length);
+		}
+		if (!queue.offer(new Record(type, conn, System.nanoTime(), copy))){
+			dropped.incrementAndGet();
+		}
+	}
+
+	private static class Record {
+		final int type;
+		final long conn;
+		final long time;
+		final byte[] data;
+
+		Record(int type, long conn, long time, byte[] data){
+			this.type = type;
+			this.conn = conn;
+			this.time = time;
+			this.data = data;
+		}
+	}
+
+	static void writeVarint(OutputStream out, long value) throws IOException {
+		while ((value & ~0x7fL) != 0){
+			out.write((int) (value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	/**
+	 * takes the records from the queue and writes them to the file,
+	 * flushes whenever the queue runs empty.
+	 */
+	private class Writer extends Thread {
+		private long lastTime = 0;
+
+		Writer(){
+			setName("Capture writer");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run(){
+			try {
+				while (true){
+					Record r = queue.poll();
+					if (r == null){
+						out.flush();
+						if (closing){
+							break;
+						}
+						try {
+							r = queue.take();
+						} catch (InterruptedException e) {
+							continue;
+						}
+					}
+					write(r);
+				}
+			} catch (IOException e) {
+				Log.e(this, "could not write capture file", e);
+				closing = true;
+			} finally {
+				try {
+					out.close();
+				} catch (IOException e) {
+					Log.e(this, "could not close capture file", e);
+				}
+			}
+		}
+
+		private void write(Record r) throws IOException {
+			if (lastTime == 0){
+				lastTime = r.time;
+			}
+			long delta = Math.max(0, (r.time - lastTime) / 1000);
+			lastTime += delta * 1000;
+			out.write(r.type);
+			writeVarint(out, r.conn);
+			writeVarint(out, delta);
+			writeVarint(out, r.data.length);
+			out.write(r.data);
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package prof7bit.reactor;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a capture file that has been written by Capture.
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+public class CaptureReader {
+
+	private InputStream in;
+	private long time = 0;
+
+	/**
+	 * @param file the capture file
+	 * @throws IOException if it can not be opened or is not a capture file
+	 */
+	public CaptureReader(File file) throws IOException {
+		in = new BufferedInputStream(new FileInputStream(file), 65536);
+		byte[] magic = new byte[Capture.MAGIC.length];
+		for (int i = 0; i < magic.length; i++){
+			magic[i] = (byte) in.read();
+			if (magic[i] != Capture.MAGIC[i]){
+				in.close();
+				throw new IOException("not a capture file: " + file);
+			}
+		}
+		int version = in.read();
+		if (version != Capture.VERSION){
+			in.close();
+			throw new IOException("unsupported capture version: " + version);
+		}
+	}
+
+	/**
+	 * Read the next record. A record that has been cut off at the end of
+	 * the file (capture was not closed properly) is treated as the end.
+	 *
+	 * @return the next record or null at the end of the file
+	 * @throws IOException if the file can not be read
+	 */
+	public Record next() throws IOException {
+		int type = in.read();
+		if (type == -1){
+			return null;
+		}
+		try {
+			long conn = readVarint();
+			time += readVarint();
+			int len = (int) readVarint();
+			byte[] data = new byte[len];
+			int pos = 0;
+			while (pos < len){
+				int n = in.read(data, pos, len - pos);
+				if (n == -1){
+					throw new EOFException();
+				}
+				pos += n;
+			}
+			return new Record(type, conn, time, data);
+		} catch (EOFException e) {
+			return null;
+		}
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+
+	private long readVarint() throws IOException {
+		long value = 0;
+		int shift = 0;
+		while (true){
+			int b = in.read();
+			if (b == -1){
+				throw new EOFException();
+			}
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0){
+				return value;
+			}
+			shift += 7;
+		}
+	}
+
+	/**
+	 * One captured event
+	 */
+	public static class Record {
+		private final int type;
+		private final long conn;
+		private final long time;
+		private final byte[] data;
+
+		Record(int type, long conn, long time, byte[] data){
+			this.type = type;
+			this.conn = conn;
+			this.time = time;
+			this.data = data;
+		}
+
+		/**
+		 * @return Capture.OPEN, IN, OUT or CLOSE
+		 */
+		public int getType(){
+			return type;
+		}
+
+		/**
+		 * @return the number of the connection, unique within the capture
+		 */
+		public long getConnection(){
+			return conn;
+		}
+
+		/**
+		 * @return microseconds since the first record
+		 */
+		public long getTime(){
+			return time;
+		}
+
+		public byte[] getData(){
+			return data;
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package prof7bit.reactor;
+
+import java.io.IOException;
+
+/**
+ * Creates outgoing TCP connections. The application can use this to
+ * choose how to connect (directly, through a proxy or in a simulated
+ * network) without having to know about it where connections are made.
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+public interface Dialer {
+
+	/**
+	 * Create a new outgoing connection. This must not block, the handler
+	 * will later receive onConnect() or onDisconnect() like with the TCP
+	 * constructors. Like there the handler may also receive them from
+	 * inside this method, before it has returned the TCP object.
+	 *
+	 * @param r the reactor that should manage the connection
+	 * @param address the host to connect to
+	 * @param port the port to connect to
+	 * @param handler the event handler for the connection
+	 * @return the new TCP object
+	 * @throws IOException problems opening the local socket
+	 */
+	TCP dial(Reactor r, String address, int port, TCPHandler handler) throws IOException;
+}
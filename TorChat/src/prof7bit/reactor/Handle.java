@@ -17,6 +17,42 @@ public abstract class Handle {
 	protected SelectableChannel channel;
 	protected Reactor reactor;
 	
+	/**
+	 * Time of the last read and write event in milliseconds of the 
+	 * reactor's cached clock (see Reactor.cachedNow()), maintained by 
+	 * the reactor. Creating the handle also counts as activity.
+	 */
+	volatile long lastRead = 0;
+	volatile long lastWrite = 0;
+	
+	/**
+	 * @return the reactor that is managing this handle
+	 */
+	public Reactor getReactor(){
+		return reactor;
+	}
+	
+	/**
+	 * @return time of the last read event, see Reactor.cachedNow()
+	 */
+	public long getLastRead(){
+		return lastRead;
+	}
+	
+	/**
+	 * @return time of the last write event, see Reactor.cachedNow()
+	 */
+	public long getLastWrite(){
+		return lastWrite;
+	}
+	
+	/**
+	 * @return time of the last read or write event
+	 */
+	public long getLastActivity(){
+		return Math.max(lastRead, lastWrite);
+	}
+	
 	protected void registerWithReactor(int ops){
 		reactor.register(this, ops);
 	}
@@ -0,0 +1,138 @@
+package prof7bit.reactor;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram with logarithmic buckets, similar to HdrHistogram. Values
+ * below 32 are counted exactly, above this every power of two is split into
+ * 16 linear sub-buckets, so the relative error of the reported values is
+ * at most 1/16 over the entire range of long, with a fixed memory usage
+ * of less than 8 KiB.
+ *
+ * Recording is meant to be done by one single thread (the reactor thread)
+ * and is cheap enough to be left on in production, it never allocates and
+ * never locks. Any other thread may take a snapshot at any time.
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+public class Histogram {
+
+	private static final int SUB_BITS = 5;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int HALF_COUNT = SUB_COUNT / 2;
+	private static final int BUCKETS = (64 - SUB_BITS + 1) * HALF_COUNT + HALF_COUNT;
+
+	private AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private volatile long count = 0;
+	private volatile long sum = 0;
+	private volatile long max = 0;
+
+	/**
+	 * Record a value. Negative values are recorded as 0. This must
+	 * always be called from the same thread.
+	 *
+	 * @param value the value to record
+	 */
+	public void record(long value){
+		if (value < 0){
+			value = 0;
+		}
+		int i = index(value);
+		counts.lazySet(i, counts.get(i) + 1);
+		sum += value;
+		if (value > max){
+			max = value;
+		}
+		count++;
+	}
+
+	/**
+	 * @return an immutable copy of the current state
+	 */
+	public Snapshot snapshot(){
+		long[] c = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++){
+			c[i] = counts.get(i);
+		}
+		return new Snapshot(c, count, sum, max);
+	}
+
+	static int index(long value){
+		if (value < SUB_COUNT){
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BITS + 1;
+		int sub = (int) (value >>> shift); // between HALF_COUNT and SUB_COUNT-1
+		return shift * HALF_COUNT + sub;
+	}
+
+	/**
+	 * @return the highest value that would fall into bucket i
+	 */
+	static long highestValue(int i){
+		if (i < SUB_COUNT){
+			return i;
+		}
+		int shift = i / HALF_COUNT - 1;
+		long sub = i % HALF_COUNT + HALF_COUNT;
+		return ((sub + 1) << shift) - 1;
+	}
+
+	/**
+	 * An immutable copy of a histogram.
+	 */
+	public static class Snapshot {
+		private final long[] counts;
+		private final long count;
+		private final long sum;
+		private final long max;
+
+		Snapshot(long[] counts, long count, long sum, long max){
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		public long getCount(){
+			return count;
+		}
+
+		public long getMax(){
+			return max;
+		}
+
+		public double getMean(){
+			return count == 0 ? 0 : (double) sum / count;
+		}
+
+		/**
+		 * @param percentile between 0 and 100
+		 * @return the value below or equal to which the given percentage of
+		 * all recorded values are (within the precision of the buckets)
+		 */
+		public long getPercentile(double percentile){
+			long total = 0;
+			for (long c : counts){
+				total += c;
+			}
+			long wanted = (long) Math.ceil(total * percentile / 100.0);
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++){
+				seen += counts[i];
+				if (seen >= wanted && seen > 0){
+					return Math.min(highestValue(i), max);
+				}
+			}
+			return 0;
+		}
+
+		@Override
+		public String toString(){
+			return String.format("n=%d mean=%.1f p50=%d p90=%d p99=%d p99.9=%d max=%d",
+				count, getMean(), getPercentile(50), getPercentile(90),
+				getPercentile(99), getPercentile(99.9), max);
+		}
+	}
+}
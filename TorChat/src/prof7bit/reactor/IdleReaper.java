@@ -0,0 +1,112 @@
+package prof7bit.reactor;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Closes TCP connections that have not had any read or write event for
+ * longer than the idle timeout, see Reactor.setIdleTimeout(). The handles
+ * are kept in an access ordered LinkedHashMap, every event moves its handle
+ * to the end, so the handles are always ordered by their last activity and
+ * a sweep only needs to look at the expired ones at the beginning, no
+ * matter how many connections there are.
+ *
+ * This is only ever used from the reactor thread.
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+class IdleReaper implements Runnable {
+
+	private Reactor reactor;
+	private long timeout;
+	private Timer timer;
+	private long reaped = 0;
+
+	/**
+	 * the values are unused, get() and put() move the key to the end
+	 */
+	private LinkedHashMap<Handle, Handle> handles = new LinkedHashMap<Handle, Handle>(256, 0.75f, true);
+
+	/**
+	 * @param reactor the reactor whose connections should be watched
+	 * @param timeout idle timeout in milliseconds
+	 */
+	IdleReaper(Reactor reactor, long timeout){
+		this.reactor = reactor;
+		this.timeout = timeout;
+		timer = reactor.schedule(interval(), this);
+	}
+
+	/**
+	 * check four times per timeout, so a connection will be
+	 * closed at most 25% later than its idle timeout.
+	 */
+	private long interval(){
+		return Math.max(10, timeout / 4);
+	}
+
+	/**
+	 * there was activity on this handle
+	 */
+	void touch(Handle h){
+		if (handles.get(h) == null){
+			handles.put(h, h);
+		}
+	}
+	
+	/**
+	 * start watching this handle if it is not yet watched, this does
+	 * not count as activity and won't change the order. It is appended
+	 * at the end, so handles that already exist must be added in the
+	 * order of their last activity, otherwise a sweep could stop at an
+	 * active one while expired ones are waiting behind it.
+	 */
+	void add(Handle h){
+		if (!handles.containsKey(h)){
+			handles.put(h, h);
+		}
+	}
+
+	/**
+	 * the handle has been closed
+	 */
+	void remove(Handle h){
+		handles.remove(h);
+	}
+
+	/**
+	 * stop watching and forget all handles
+	 */
+	void stop(){
+		timer.cancel();
+		handles.clear();
+	}
+
+	/**
+	 * @return number of connections that have been closed so far
+	 */
+	long getReaped(){
+		return reaped;
+	}
+
+	/**
+	 * the periodic sweep, close all expired handles at the beginning
+	 * of the map and stop at the first one that is not yet expired.
+	 */
+	@Override
+	public void run() {
+		long now = reactor.cachedNow();
+		Iterator<Handle> it = handles.keySet().iterator();
+		while (it.hasNext()){
+			Handle h = it.next();
+			long idle = now - h.getLastActivity();
+			if (idle < timeout){
+				break;
+			}
+			it.remove();
+			reaped++;
+			reactor.requestCloseHandle(h, new XConnectionIdleTimeout("idle for " + idle + " ms"));
+		}
+		timer = reactor.schedule(interval(), this);
+	}
+}
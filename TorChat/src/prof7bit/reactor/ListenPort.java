@@ -1,10 +1,16 @@
 package prof7bit.reactor;
 
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import prof7bit.log.Log;
 
 /**
  * This class represents a network port listening for incoming TCP connections.
@@ -12,6 +18,12 @@ import java.nio.channels.SocketChannel;
  * implemented by the application and will be fired when an incoming TCP
  * connection is accepted.
  * 
+ * When a lot of connections come in at once (all buddies reconnecting 
+ * after a restart) it will accept up to a budget of connections per event
+ * and it can hand them to worker reactors, see setWorkers(). Alternatively
+ * listenSharded() binds one listening socket per reactor with SO_REUSEPORT
+ * and lets the kernel distribute the incoming connections.
+ * 
  * @author Bernd Kreuss <prof7bit@gmail.com>
  */
 public class ListenPort extends Handle{
@@ -20,6 +32,24 @@ public class ListenPort extends Handle{
 	 * The application's event handler will be assigned here 
 	 */
 	private ListenPortHandler eventHandler;
+	
+	/**
+	 * backlog of the listening socket if not specified otherwise
+	 */
+	public static final int DEFAULT_BACKLOG = 128;
+	
+	/**
+	 * max. number of connections accepted in one OP_ACCEPT event
+	 */
+	public static final int DEFAULT_ACCEPT_BUDGET = 64;
+	
+	private int acceptBudget = DEFAULT_ACCEPT_BUDGET;
+	
+	/**
+	 * reactors for the accepted connections, null means our own
+	 */
+	private Reactor[] workers = null;
+	private int nextWorker = 0;
 
 	public ListenPort(Reactor r, ListenPortHandler eh){
 		checkReactor(r);
@@ -40,6 +70,28 @@ public class ListenPort extends Handle{
 		}
 	}
 
+	/**
+	 * Set the maximum number of connections that will be accepted in one
+	 * go before the reactor is allowed to do other things again.
+	 * 
+	 * @param budget max. number of accepts per event, at least 1
+	 */
+	public void setAcceptBudget(int budget){
+		acceptBudget = Math.max(1, budget);
+	}
+	
+	/**
+	 * Hand the accepted connections to these reactors in round robin order,
+	 * the TCP objects will belong to them and onAccept() will be called from
+	 * the worker's thread. The listening reactor will then only accept. This
+	 * must be called before listen().
+	 * 
+	 * @param workers the reactors for the connections, null or empty for our own
+	 */
+	public void setWorkers(Reactor... workers){
+		this.workers = (workers == null || workers.length == 0) ? null : workers.clone();
+	}
+
 	/**
 	 * bind the port and start listening for incoming TCP connections.
 	 * Every incoming TCP connection will now be automatically accepted and 
@@ -50,24 +102,153 @@ public class ListenPort extends Handle{
 	 * @throws IOException socket cannot be opened or bound
 	 */
 	public void listen(int port) throws IOException{
+		listen(port, DEFAULT_BACKLOG, false);
+	}
+	
+	/**
+	 * Like listen(port) but with a configurable backlog and optionally with
+	 * SO_REUSEPORT, so that more than one socket can listen on this port.
+	 *  
+	 * @param port the port to bind
+	 * @param backlog max. number of pending connections in the kernel
+	 * @param reusePort set SO_REUSEPORT before binding
+	 * @throws IOException socket cannot be opened or bound or SO_REUSEPORT 
+	 * was requested and is not supported
+	 */
+	public void listen(int port, int backlog, boolean reusePort) throws IOException{
 		ServerSocketChannel ssc = ServerSocketChannel.open();
-		ssc.socket().setReuseAddress(true);
-		ssc.socket().bind(new InetSocketAddress(port));
-		ssc.configureBlocking(false); 
+		try {
+			ssc.socket().setReuseAddress(true);
+			if (reusePort){
+				setReusePort(ssc);
+			}
+			ssc.socket().bind(new InetSocketAddress(port), backlog);
+			ssc.configureBlocking(false); 
+		} catch (IOException e) {
+			ssc.close();
+			throw e;
+		}
 		channel = ssc;
 		registerWithReactor(SelectionKey.OP_ACCEPT);
 	}
+	
+	/**
+	 * Listen on the same port once for every reactor, with SO_REUSEPORT, so
+	 * the kernel will spread the incoming connections over all of them and
+	 * every reactor accepts and handles its own share. If SO_REUSEPORT is
+	 * not available (older Java, Windows) there will be only one ListenPort
+	 * on the first reactor which hands the connections to all reactors.
+	 * 
+	 * @param reactors the reactors
+	 * @param eh the application's event handler
+	 * @param port the port to bind
+	 * @param backlog backlog for every socket
+	 * @return all ListenPorts that have been created
+	 * @throws IOException socket cannot be opened or bound
+	 */
+	public static List<ListenPort> listenSharded(Reactor[] reactors, ListenPortHandler eh, int port, int backlog) throws IOException{
+		List<ListenPort> ports = new ArrayList<ListenPort>();
+		try {
+			for (Reactor r : reactors){
+				ListenPort p = new ListenPort(r, eh);
+				p.listen(port, backlog, true);
+				ports.add(p);
+			}
+		} catch (XReusePortUnsupported e) {
+			Log.w(ListenPort.class, "accepting on one reactor only:", e.getMessage());
+			for (ListenPort p : ports){
+				p.close("SO_REUSEPORT not supported");
+			}
+			ports.clear();
+			ListenPort p = new ListenPort(reactors[0], eh);
+			p.setWorkers(reactors);
+			p.listen(port, backlog, false);
+			ports.add(p);
+		}
+		return ports;
+	}
+	
+	/**
+	 * Set SO_REUSEPORT, through reflection because it needs Java 9.
+	 */
+	private static void setReusePort(ServerSocketChannel ssc) throws IOException{
+		try {
+			Class<?> optionClass = Class.forName("java.net.SocketOption");
+			Object option = Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+			Method setOption = Class.forName("java.nio.channels.NetworkChannel").getMethod("setOption", optionClass, Object.class);
+			setOption.invoke(ssc, option, Boolean.TRUE);
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof IOException){
+				throw (IOException) e.getCause();
+			}
+			throw new XReusePortUnsupported(String.valueOf(e.getCause()));
+		} catch (Exception e) {
+			throw new XReusePortUnsupported(e.toString());
+		}
+	}
 
 	/**
 	 * called by the reactor.
 	 */
 	protected void doEventAccept() throws IOException{
 		ServerSocketChannel ssc = (ServerSocketChannel) channel;
-		SocketChannel sc = ssc.accept();
-		TCP tcp = new TCP(reactor, sc);
+		for (int i = 0; i < acceptBudget; i++){
+			SocketChannel sc = ssc.accept();
+			if (sc == null){
+				break; // backlog is empty
+			}
+			if (workers == null){
+				// one bad connection must not take down the listener
+				acceptOrClose(reactor, sc);
+			}else{
+				dispatch(workers[nextWorker], sc);
+				nextWorker = (nextWorker + 1) % workers.length;
+			}
+		}
+	}
+	
+	private void accept(Reactor r, SocketChannel sc) throws IOException{
+		TCP tcp = newTCP(r, sc);
 		TCPHandler eh = eventHandler.onAccept(tcp);
 		tcp.setEventHandler(eh);
 	}
+	
+	/**
+	 * accept the connection, if that fails (the peer might already have
+	 * reset it) then only this one connection is closed.
+	 */
+	private void acceptOrClose(Reactor r, SocketChannel sc){
+		try {
+			accept(r, sc);
+		} catch (IOException e) {
+			Log.w(this, "could not accept connection", e);
+			try {
+				sc.close();
+			} catch (IOException e1) {
+				// ignore
+			}
+		}
+	}
+	
+	/**
+	 * wrap the accepted channel, tests override this to make it fail
+	 */
+	TCP newTCP(Reactor r, SocketChannel sc) throws IOException{
+		return new TCP(r, sc);
+	}
+	
+	/**
+	 * accept the connection in the worker's thread, this way the TCP 
+	 * won't see any event before it has got its event handler.
+	 */
+	private void dispatch(final Reactor worker, final SocketChannel sc){
+		worker.invokeLater(new Runnable(){
+			@Override
+			public void run() {
+				acceptOrClose(worker, sc);
+			}
+		});
+	}
 
 	/**
 	 * called by the reactor when the listening socket is shut down (normally
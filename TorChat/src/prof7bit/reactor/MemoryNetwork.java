@@ -0,0 +1,93 @@
+package prof7bit.reactor;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-process connections between reactors without any sockets, for tests,
+ * benchmarks and embedded use. Listeners are registered under any address
+ * together with the reactor that should run the accepted connections, and
+ * connections can be made to them with the Dialer interface, so protocol
+ * code that gets its connections from a Dialer runs unchanged. Both ends
+ * may belong to the same reactor or to different reactors. See MemoryTCP.
+ *
+ * All methods are thread safe.
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+public class MemoryNetwork implements Dialer {
+
+	private Map<String, Listener> listeners = new ConcurrentHashMap<String, Listener>();
+
+	/**
+	 * Accept incoming connections for this address from now on.
+	 *
+	 * @param r the reactor that should manage the accepted connections
+	 * @param address the address
+	 * @param handler will be called for every incoming connection
+	 */
+	public void listen(Reactor r, String address, ListenPortHandler handler){
+		listeners.put(address, new Listener(r, handler));
+	}
+
+	/**
+	 * Stop accepting connections for this address, connections
+	 * that have already been accepted are not affected.
+	 *
+	 * @param address the address
+	 */
+	public void unlisten(String address){
+		listeners.remove(address);
+	}
+
+	/**
+	 * @return true if something is listening on this address
+	 */
+	public boolean isListening(String address){
+		return listeners.containsKey(address);
+	}
+
+	/**
+	 * Connect to a listener, the port is ignored. If nobody is listening on
+	 * this address the handler's onDisconnect() will be fired. This never
+	 * throws.
+	 */
+	@Override
+	public TCP dial(final Reactor r, String address, int port, TCPHandler handler) throws IOException {
+		final MemoryTCP client = new MemoryTCP(r, handler);
+		client.captureOpen("out " + address + ":" + port);
+		final Listener listener = listeners.get(address);
+		if (listener == null){
+			client.refused(new XConnectionClosedRemote("connection refused"));
+			return client;
+		}
+		final MemoryTCP server = new MemoryTCP(listener.reactor, null);
+		server.captureOpen("in " + address + ":" + port);
+		MemoryTCP.link(client, server);
+		listener.reactor.invokeLater(new Runnable(){
+			@Override
+			public void run() {
+				server.setEventHandler(listener.handler.onAccept(server));
+				server.accepted();
+				r.invokeLater(new Runnable(){
+					@Override
+					public void run() {
+						client.established();
+					}
+				});
+			}
+		});
+		return client;
+	}
+
+	private static class Listener {
+		final Reactor reactor;
+		final ListenPortHandler handler;
+
+		Listener(Reactor reactor, ListenPortHandler handler){
+			this.reactor = reactor;
+			this.handler = handler;
+		}
+	}
+}
@@ -0,0 +1,249 @@
+package prof7bit.reactor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One end of an in-memory connection, see MemoryNetwork. There is no
+ * socket and no system call involved, send() puts the buffer into a
+ * lock-free queue of the other end and then the other end's reactor is
+ * asked to run its event handler. Towards the application this behaves
+ * like a TCP: all events are fired from the reactor thread, data arrives
+ * in order and only after onConnect(), data can be sent before the
+ * connection is established, and closing one end makes the other end
+ * see a remote close after all data that was sent before has arrived.
+ *
+ * The buffers are handed over without copying (unless they are a slice
+ * of a larger array), the sender must not modify a buffer after it has
+ * been sent, which is the same rule as with the normal TCP send queue.
+ * Reactor.close() does not know about memory connections, they must be
+ * closed by the application.
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+public class MemoryTCP extends TCP {
+
+	/**
+	 * Maximum number of chunks passed to the event handler in one go, then
+	 * the reactor gets a chance to do other things before we continue.
+	 */
+	private static final int MAX_BATCH = 256;
+
+	/**
+	 * the application's event handler
+	 */
+	private TCPHandler handler;
+
+	/**
+	 * the other end, null if there was nobody listening
+	 */
+	private MemoryTCP peer;
+
+	/**
+	 * Received buffers, the peer is writing into this queue. A chunk
+	 * with a null buffer means the peer has closed its end.
+	 */
+	private Queue<Chunk> inbox = new ConcurrentLinkedQueue<Chunk>();
+
+	/**
+	 * true while a drain task is enqueued in our reactor
+	 */
+	private AtomicBoolean drainScheduled = new AtomicBoolean(false);
+
+	/**
+	 * No data is delivered before this is true, it is set from our
+	 * reactor thread right before onConnect() or after onAccept().
+	 */
+	private volatile boolean connected = false;
+
+	private AtomicBoolean closed = new AtomicBoolean(false);
+
+	private Runnable drain = new Runnable(){
+		@Override
+		public void run() {
+			drainInbox();
+		}
+	};
+
+	MemoryTCP(Reactor r, TCPHandler handler){
+		super(r);
+		if (handler != null){
+			setEventHandler(handler);
+		}
+	}
+
+	/**
+	 * connect the two ends with each other
+	 */
+	static void link(MemoryTCP a, MemoryTCP b){
+		a.peer = b;
+		b.peer = a;
+	}
+
+	@Override
+	public void setEventHandler(TCPHandler eventHandler) {
+		super.setEventHandler(eventHandler);
+		handler = eventHandler;
+	}
+
+	@Override
+	public void send(ByteBuffer buf, Runnable onWritten){
+		if (closed.get() || peer == null){
+			return;
+		}
+		buf.position(0);
+		if (buf.arrayOffset() != 0){
+			ByteBuffer copy = ByteBuffer.allocate(buf.limit());
+			copy.put(buf);
+			copy.flip();
+			buf = copy;
+		}
+		captureData(Capture.OUT, buf);
+		peer.deliver(new Chunk(buf, onWritten, this));
+	}
+
+	@Override
+	public void close(IOException reason){
+		if (closed.compareAndSet(false, true)){
+			if (peer != null){
+				peer.deliver(new Chunk(null, null, this));
+			}
+			fireClose(reason);
+		}
+	}
+
+	/**
+	 * There is no send queue, everything is handed to the peer immediately.
+	 */
+	@Override
+	public int getQueueDepth(){
+		return 0;
+	}
+
+	@Override
+	public long getQueuedBytes(){
+		return 0;
+	}
+
+	/**
+	 * The connection has been established (or accepted), from now on
+	 * received data will be passed to the event handler.
+	 */
+	void established(){
+		if (closed.get()){
+			return;
+		}
+		connected = true;
+		handler.onConnect();
+		scheduleDrain();
+	}
+
+	/**
+	 * The incoming end has been given its event handler.
+	 */
+	void accepted(){
+		connected = true;
+		scheduleDrain();
+	}
+
+	/**
+	 * Connecting has failed, this can only happen before the peer has been
+	 * linked, so there is nobody to notify.
+	 */
+	void refused(IOException reason){
+		if (closed.compareAndSet(false, true)){
+			fireClose(reason);
+		}
+	}
+
+	/**
+	 * called by the peer from any thread
+	 */
+	private void deliver(Chunk c){
+		inbox.offer(c);
+		scheduleDrain();
+	}
+
+	private void scheduleDrain(){
+		if (drainScheduled.compareAndSet(false, true)){
+			reactor.invokeLater(drain);
+		}
+	}
+
+	/**
+	 * runs in our reactor thread, pass everything in the inbox to the
+	 * event handler, fire the write callbacks in the sender's reactor.
+	 */
+	private void drainInbox(){
+		drainScheduled.set(false);
+		if (!connected){
+			// will be scheduled again by established() or accepted()
+			return;
+		}
+		Chunk c;
+		int n = 0;
+		while ((c = inbox.poll()) != null){
+			if (c.buf == null){
+				if (closed.compareAndSet(false, true)){
+					doEventClose(new XConnectionClosedRemote("closed by foreign host"));
+				}
+				inbox.clear();
+				return;
+			}
+			if (closed.get()){
+				continue;
+			}
+			captureData(Capture.IN, c.buf);
+			handler.onReceive(c.buf);
+			if (c.onWritten != null){
+				c.sender.fireWritten(c.onWritten);
+			}
+			if (++n == MAX_BATCH){
+				scheduleDrain();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * The data has been taken from the peer's queue, this is
+	 * as good as being written to the socket for a real TCP.
+	 */
+	private void fireWritten(final Runnable onWritten){
+		reactor.invokeLater(new Runnable(){
+			@Override
+			public void run() {
+				if (!closed.get()){
+					onWritten.run();
+				}
+			}
+		});
+	}
+
+	private void fireClose(final IOException reason){
+		reactor.invokeLater(new Runnable(){
+			@Override
+			public void run() {
+				doEventClose(reason);
+			}
+		});
+	}
+
+	/**
+	 * An entry in the inbox.
+	 */
+	private static class Chunk {
+		final ByteBuffer buf;
+		final Runnable onWritten;
+		final MemoryTCP sender;
+
+		Chunk(ByteBuffer buf, Runnable onWritten, MemoryTCP sender){
+			this.buf = buf;
+			this.onWritten = onWritten;
+			this.sender = sender;
+		}
+	}
+}
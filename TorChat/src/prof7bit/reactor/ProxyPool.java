@@ -0,0 +1,442 @@
+package prof7bit.reactor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import prof7bit.log.Log;
+
+/**
+ * A Dialer that spreads the outgoing connections over several socks4a
+ * proxies (several Tor processes) so that one Tor process is not the
+ * bottleneck for all circuits.
+ *
+ * The addresses are assigned to the proxies by consistent hashing: every
+ * proxy has VNODES points on a hash ring and an address goes to the first
+ * proxy clockwise from its own hash. This way the same buddy always goes
+ * through the same proxy (its circuits stay with one Tor process), and
+ * when a proxy is added or removed only the buddies of that one proxy
+ * move. If the proxy of an address is not healthy the next healthy proxy
+ * on the ring is used instead, and it goes back as soon as it is healthy
+ * again.
+ *
+ * The health of a proxy is tracked from the outcome of the connections:
+ * a socks reply (success or the proxy telling us the destination can't be
+ * reached) means the proxy is alive, not being able to connect to the
+ * proxy or not getting a valid reply counts as failure. If we give up
+ * waiting for the reply ourselves then the time we have waited is at least
+ * a lower bound for the latency, if it was longer than the max. latency
+ * then it counts as failure. There are moving averages of the success
+ * rate and of the time to establish a connection. After FAIL_THRESHOLD
+ * failures in a row the proxy is considered dead for COOLDOWN
+ * milliseconds, after that it is tried again. A proxy that is unhealthy
+ * because of its averages gets one connection every COOLDOWN milliseconds
+ * as a probe, otherwise its averages could never recover.
+ *
+ * All methods are thread safe.
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+public class ProxyPool implements Dialer {
+
+	static final int VNODES = 64;
+	static final int FAIL_THRESHOLD = 3;
+	static final long COOLDOWN = 30000;
+	static final double MIN_SUCCESS_RATE = 0.2;
+	static final long DEFAULT_MAX_LATENCY = 60000;
+
+	/**
+	 * weight of a new sample in the moving averages
+	 */
+	private static final double ALPHA = 0.2;
+
+	private Backend backend;
+	private String proxyUser;
+	private long maxLatency = DEFAULT_MAX_LATENCY;
+	private List<Endpoint> endpoints = new ArrayList<Endpoint>();
+	private TreeMap<Long, Endpoint> ring = new TreeMap<Long, Endpoint>();
+
+	/**
+	 * @param backend the backend for the connections to the proxies
+	 * @param proxyUser user for the socks4 authentication
+	 */
+	public ProxyPool(Backend backend, String proxyUser){
+		this.backend = backend;
+		this.proxyUser = proxyUser;
+	}
+
+	/**
+	 * Add a socks4a proxy to the pool.
+	 *
+	 * @param host address of the proxy
+	 * @param port port of the proxy
+	 * @return the new endpoint
+	 */
+	public Endpoint addProxy(String host, int port){
+		return add(new Endpoint(host + ":" + port, backend.dialer(host, port, proxyUser)));
+	}
+
+	/**
+	 * Add an endpoint that makes its connections with any dialer.
+	 *
+	 * @param e the endpoint
+	 * @return the same endpoint
+	 */
+	public synchronized Endpoint add(Endpoint e){
+		endpoints.add(e);
+		for (int i = 0; i < VNODES; i++){
+			ring.put(hash(e.name + "#" + i), e);
+		}
+		return e;
+	}
+
+	/**
+	 * Remove a proxy, its addresses will move to the other proxies.
+	 * Connections that have already been made are not affected.
+	 *
+	 * @param e the endpoint
+	 */
+	public synchronized void remove(Endpoint e){
+		endpoints.remove(e);
+		for (int i = 0; i < VNODES; i++){
+			ring.remove(hash(e.name + "#" + i));
+		}
+	}
+
+	/**
+	 * @param millis a proxy that needs longer than this on average to
+	 * establish a connection is considered unhealthy
+	 */
+	public synchronized void setMaxLatency(long millis){
+		maxLatency = millis;
+	}
+
+	/**
+	 * @return the max. average latency of a healthy proxy in milliseconds
+	 */
+	public synchronized long getMaxLatency(){
+		return maxLatency;
+	}
+
+	/**
+	 * @return all endpoints in the order they have been added
+	 */
+	public synchronized List<Endpoint> getEndpoints(){
+		return new ArrayList<Endpoint>(endpoints);
+	}
+
+	/**
+	 * The endpoint that would be used for this address right now: the first
+	 * healthy one on the ring, if none is healthy then the first one that is
+	 * at least not dead and if all are dead then the one the address
+	 * belongs to, there is nothing else we could do.
+	 *
+	 * @param address the destination address
+	 * @param now the current time in milliseconds
+	 * @return the endpoint or null if the pool is empty
+	 */
+	public synchronized Endpoint select(String address, long now){
+		if (ring.isEmpty()){
+			return null;
+		}
+		long h = hash(address);
+		Endpoint primary = null;
+		Endpoint alive = null;
+		List<Endpoint> seen = new ArrayList<Endpoint>(endpoints.size());
+		for (Endpoint e : ring.tailMap(h).values()){
+			if (visit(e, seen, now)){
+				return e;
+			}
+		}
+		for (Endpoint e : ring.headMap(h).values()){
+			if (visit(e, seen, now)){
+				return e;
+			}
+		}
+		for (Endpoint e : seen){
+			if (primary == null){
+				primary = e;
+			}
+			if (alive == null && !e.isDown(now)){
+				alive = e;
+			}
+		}
+		return alive != null ? alive : primary;
+	}
+
+	/**
+	 * remember each endpoint once in ring order
+	 *
+	 * @return true if this is a healthy endpoint
+	 */
+	private boolean visit(Endpoint e, List<Endpoint> seen, long now){
+		if (seen.contains(e)){
+			return false;
+		}
+		seen.add(e);
+		return e.isHealthy(now, maxLatency);
+	}
+
+	@Override
+	public TCP dial(Reactor r, String address, int port, TCPHandler handler) throws IOException {
+		long now = r.now();
+		Endpoint e = select(address, now);
+		if (e == null){
+			throw new IOException("proxy pool is empty");
+		}
+		Log.d(this, "dial via", e.name, address);
+		e.dialStarted(now);
+		Tracker t = new Tracker(r, e, handler, now, getMaxLatency());
+		try {
+			TCP tcp = e.dialer.dial(r, address, port, t);
+			t.tcp = tcp;
+			return tcp;
+		} catch (IOException ex) {
+			e.onAbort();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Create a pool from a comma separated list of host:port
+	 *
+	 * @param backend the backend for the connections to the proxies
+	 * @param proxies for example "127.0.0.1:9050,127.0.0.1:9052"
+	 * @param proxyUser user for the socks4 authentication
+	 * @return the new pool
+	 * @throws IllegalArgumentException if the list is malformed
+	 */
+	public static ProxyPool parse(Backend backend, String proxies, String proxyUser){
+		ProxyPool pool = new ProxyPool(backend, proxyUser);
+		for (String p : proxies.split(",")){
+			String[] hp = p.trim().split(":");
+			if (hp.length != 2){
+				throw new IllegalArgumentException("proxy must be host:port: " + p);
+			}
+			pool.addProxy(hp[0], Integer.parseInt(hp[1]));
+		}
+		return pool;
+	}
+
+	/**
+	 * 64 bit position on the ring
+	 */
+	static long hash(String s){
+		try {
+			byte[] d = MessageDigest.getInstance("MD5").digest(s.getBytes("UTF-8"));
+			return ByteBuffer.wrap(d).getLong();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * One proxy and its health statistics.
+	 */
+	public static class Endpoint {
+		private final String name;
+		private final Dialer dialer;
+		private double successRate = 1.0;
+		private double latency = 0;
+		private int consecutiveFailures = 0;
+		private long downUntil = 0;
+		private long lastDial = Long.MIN_VALUE / 2;
+		private long dials = 0;
+		private long failures = 0;
+		private int active = 0;
+
+		/**
+		 * @param name a unique name, it determines the position on the ring
+		 * @param dialer makes the connections through this proxy
+		 */
+		public Endpoint(String name, Dialer dialer){
+			this.name = name;
+			this.dialer = dialer;
+		}
+
+		synchronized void dialStarted(long now){
+			lastDial = now;
+			dials++;
+			active++;
+		}
+
+		/**
+		 * the proxy has answered
+		 *
+		 * @param millis time until the connection was established, -1 if
+		 * the proxy could not reach the destination (no latency sample)
+		 */
+		synchronized void onSuccess(long millis){
+			active--;
+			consecutiveFailures = 0;
+			downUntil = 0;
+			successRate += ALPHA * (1.0 - successRate);
+			if (millis >= 0){
+				latency = latency == 0 ? millis : latency + ALPHA * (millis - latency);
+			}
+		}
+
+		/**
+		 * the proxy could not be reached or did not answer properly
+		 */
+		synchronized void onFailure(long now){
+			active--;
+			failures++;
+			consecutiveFailures++;
+			successRate -= ALPHA * successRate;
+			if (consecutiveFailures >= FAIL_THRESHOLD){
+				downUntil = now + COOLDOWN;
+			}
+		}
+
+		/**
+		 * we gave up ourselves, this says nothing about the proxy
+		 */
+		synchronized void onAbort(){
+			active--;
+		}
+
+		/**
+		 * we gave up waiting for the answer after this time, so the
+		 * latency is at least this, it can only raise the average.
+		 */
+		synchronized void onAbort(long millis){
+			active--;
+			if (millis > latency){
+				latency = latency == 0 ? millis : latency + ALPHA * (millis - latency);
+			}
+		}
+
+		synchronized boolean isDown(long now){
+			return now < downUntil;
+		}
+
+		/**
+		 * @return true if not down and the averages are good or if
+		 * it is time for the next probe of an unhealthy proxy
+		 */
+		synchronized boolean isHealthy(long now, long maxLatency){
+			if (isDown(now)){
+				return false;
+			}
+			if (successRate >= MIN_SUCCESS_RATE && latency <= maxLatency){
+				return true;
+			}
+			return now - lastDial >= COOLDOWN;
+		}
+
+		public String getName(){
+			return name;
+		}
+
+		/**
+		 * @return moving average of the success rate, 0..1
+		 */
+		public synchronized double getSuccessRate(){
+			return successRate;
+		}
+
+		/**
+		 * @return moving average of the connect time in milliseconds
+		 */
+		public synchronized long getLatency(){
+			return (long) latency;
+		}
+
+		/**
+		 * @return number of connections made through this proxy
+		 */
+		public synchronized long getDials(){
+			return dials;
+		}
+
+		/**
+		 * @return number of connections that failed because of the proxy
+		 */
+		public synchronized long getFailures(){
+			return failures;
+		}
+
+		/**
+		 * @return number of connections still waiting for the proxy's answer
+		 */
+		public synchronized int getConnecting(){
+			return active;
+		}
+
+		@Override
+		public synchronized String toString(){
+			return String.format("%s rate=%.2f latency=%d dials=%d failures=%d",
+					name, successRate, (long) latency, dials, failures);
+		}
+	}
+
+	/**
+	 * Sits between the connection and the application's handler until the
+	 * connection is established or has failed, to update the health of the
+	 * proxy, then it gets out of the way.
+	 */
+	private static class Tracker implements TCPHandler {
+		private Reactor reactor;
+		private Endpoint endpoint;
+		private TCPHandler handler;
+		private long started;
+		private long maxLatency;
+		private volatile TCP tcp = null;
+		private boolean done = false;
+
+		Tracker(Reactor reactor, Endpoint endpoint, TCPHandler handler, long started, long maxLatency){
+			this.reactor = reactor;
+			this.endpoint = endpoint;
+			this.handler = handler;
+			this.started = started;
+			this.maxLatency = maxLatency;
+		}
+
+		@Override
+		public void onConnect() {
+			if (!done){
+				done = true;
+				endpoint.onSuccess(reactor.now() - started);
+			}
+			TCP t = tcp;
+			if (t != null){
+				t.setEventHandler(handler);
+			}
+			handler.onConnect();
+		}
+
+		@Override
+		public void onDisconnect(Exception e) {
+			if (!done){
+				done = true;
+				if (e instanceof XSocksConnectionError){
+					// the proxy is fine, the destination is not
+					endpoint.onSuccess(-1);
+				}else if (e instanceof XConnectionClosedHere){
+					// closed by us, for example the connect deadline
+					long waited = reactor.now() - started;
+					if (waited >= maxLatency){
+						endpoint.onFailure(reactor.now());
+					}else{
+						endpoint.onAbort(waited);
+					}
+				}else{
+					endpoint.onFailure(reactor.now());
+				}
+			}
+			handler.onDisconnect(e);
+		}
+
+		@Override
+		public void onReceive(ByteBuffer buf) {
+			handler.onReceive(buf);
+		}
+	}
+}
@@ -5,9 +5,17 @@ import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import prof7bit.log.Log;
 
 
 
@@ -19,9 +27,26 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 public class Reactor extends Thread{	
 	
 	/**
-	 * The underlying java.nio.Selector used by this reactor.
+	 * The underlying java.nio.Selector used by this reactor. It is only
+	 * ever replaced by the reactor thread, see rebuildSelector().
 	 */
-	private Selector selector;	
+	private volatile Selector selector;	
+	
+	/**
+	 * After this many consecutive premature returns from select() the
+	 * selector is considered broken and will be replaced.
+	 */
+	static final int SPIN_THRESHOLD = 512;
+	
+	/**
+	 * number of consecutive premature returns from select()
+	 */
+	private int spinCount = 0;
+	
+	/**
+	 * value of stats.wakeups when select() returned the last time
+	 */
+	private long wakeupsSeen = 0;
 	
 	/**
 	 * tasks that need to be run between two selector.select() calls
@@ -29,6 +54,45 @@ public class Reactor extends Thread{
 	 * are enqueued here and will be run immediately before select()
 	 */
 	private Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<Runnable>();
+	
+	/**
+	 * scheduled tasks, ordered by their deadline. This 
+	 * is only ever accessed from the reactor thread.
+	 */
+	private PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+	
+	/**
+	 * used to keep timers with equal deadlines in FIFO order
+	 */
+	private AtomicLong timerSequence = new AtomicLong();
+	
+	/**
+	 * instrumentation, recorded by the reactor thread itself
+	 */
+	private ReactorStats stats = new ReactorStats();
+	
+	/**
+	 * Heartbeat for the Watchdog, this is incremented at the start of every
+	 * dispatch. The other fields describe the dispatch that is currently
+	 * running, dispatchStart is System.nanoTime() or 0 while not dispatching.
+	 */
+	volatile long heartbeat = 0;
+	volatile long dispatchStart = 0;
+	volatile Object dispatchTarget = null;
+	volatile String dispatchEvent = null;
+
+	/**
+	 * The clock in milliseconds, updated once per loop when select() returns.
+	 * This is used for the activity time stamps of the handles, so there is
+	 * no need to read the system clock for every event.
+	 */
+	private volatile long clock = now();
+	
+	/**
+	 * closes idle connections, null if disabled. Only ever
+	 * accessed from the reactor thread.
+	 */
+	private IdleReaper reaper = null;
 
 	/**
 	 * Internal flag to signal thread termination request.
@@ -49,6 +113,13 @@ public class Reactor extends Thread{
 		start();
 	}
 	
+	/**
+	 * Constructor for SimReactor, there is no selector and no thread.
+	 */
+	Reactor(boolean simulated){
+		// nothing
+	}
+	
 	/**
 	 * Request the Reactor thread and all associated network activity to 
 	 * be shut down in an orderly manner and terminated as soon as possible. 
@@ -72,7 +143,7 @@ public class Reactor extends Thread{
 	public void run(){
 		try {
 			while(!terminating){
-				select(0);
+				select();
 			}
 		} catch (Exception e) {
 			System.err.println("WTF??? BUG: fatal error in select loop");
@@ -89,24 +160,79 @@ public class Reactor extends Thread{
 		}
 	}
 
+	/**
+	 * Run all timers that are due and return the time until the next one.
+	 * 
+	 * @return milliseconds until the next timer is due, 0 if there is none
+	 */
+	private long runTimers(){
+		while (!timers.isEmpty()){
+			Timer t = timers.peek();
+			long remaining = t.deadline - now();
+			if (remaining > 0){
+				return remaining;
+			}
+			timers.poll();
+			if (!t.isCancelled()){
+				beginDispatch(t.task, "timer");
+				t.task.run();
+				endDispatch();
+			}
+		}
+		return 0;
+	}
+
 	/**
 	 * This method is called in an infinite loop to wait for events and 
 	 * dispatch them. It will perform all pending registration requests, then 
 	 * block until an event on one of the registered Handle objects happens 
 	 * and then dispatch them one after the other to their event handlers. 
-	 * After this it will return and has to be called again. 
+	 * After this it will return and has to be called again. It will not block
+	 * longer than until the next timer is due.
 	 * 
-	 * @param timeout maximum milliseconds to block, 0 means infinite time.
 	 * @throws IOException shouldn't ever happen if used correctly. 
 	 */
-	private void select(long timeout) throws IOException {
+	private void select() throws IOException {
 		
 		// perform any pending registration or cancellation requests
+		int numTasks = 0;
 		while (!pendingTasks.isEmpty()){
-			pendingTasks.poll().run();
+			Runnable task = pendingTasks.poll();
+			beginDispatch(task, "task");
+			task.run();
+			numTasks++;
 		}
+		endDispatch();
+		stats.tasks.record(numTasks);
 		
-		selector.select(timeout);
+		// run all timers that are due, find out how long we may block
+		long timeout = runTimers();
+		
+		long t0 = System.nanoTime();
+		int numKeys;
+		boolean blocking = pendingTasks.isEmpty();
+		if (blocking){
+			numKeys = selector.select(timeout);
+		}else{
+			// timers have enqueued new tasks, don't block
+			numKeys = selector.selectNow();
+		}
+		long t1 = System.nanoTime();
+		clock = t1 / 1000000;
+		stats.selectNanos.record(t1 - t0);
+		stats.readyKeys.record(numKeys);
+		stats.loops++;
+		
+		// a wakeup() may also have happened before select() was called,
+		// while we were still running the tasks, that makes it return early
+		long wakeups = stats.wakeups.get();
+		boolean woken = wakeups != wakeupsSeen;
+		wakeupsSeen = wakeups;
+		if (blocking && numKeys == 0 && !woken){
+			checkSpinning(timeout, t1 - t0);
+		}else{
+			spinCount = 0;
+		}
 		
 		for (Iterator<SelectionKey> iter = selector.selectedKeys().iterator(); iter.hasNext();) { 
 			SelectionKey key = iter.next(); 
@@ -115,18 +241,37 @@ public class Reactor extends Thread{
 				if (key.isConnectable()) {
 					// outgoing connection established or connection failed.
 					// (either finishConnect throws or it succeeds)
+					beginDispatch(key.attachment(), "connect");
 					((SocketChannel) key.channel()).finishConnect();
-					((TCP) key.attachment()).doEventConnect();
+					TCP tcp = (TCP) key.attachment();
+					tcp.lastRead = clock;
+					tcp.lastWrite = clock;
+					touch(tcp);
+					tcp.doEventConnect();
+					t0 = t1;
+					t1 = System.nanoTime();
+					stats.connectNanos.record(t1 - t0);
 				}
 				
 				if (key.isAcceptable()) { 
 					// new incoming connection 
+					beginDispatch(key.attachment(), "accept");
 					((ListenPort) key.attachment()).doEventAccept();
+					t0 = t1;
+					t1 = System.nanoTime();
+					stats.acceptNanos.record(t1 - t0);
 				} 
 				
 				if (key.isReadable()) { 
 					// bytes received or disconnect.
-					((TCP) key.attachment()).doEventRead();
+					beginDispatch(key.attachment(), "read");
+					TCP tcp = (TCP) key.attachment();
+					tcp.lastRead = clock;
+					touch(tcp);
+					tcp.doEventRead();
+					t0 = t1;
+					t1 = System.nanoTime();
+					stats.readNanos.record(t1 - t0);
 				}
 				
 				if (key.isWritable()) {
@@ -134,15 +279,97 @@ public class Reactor extends Thread{
 					// Only connections that currently have anything queued will 
 					// temporarily register for this operation and they will 
 					// unregister themselves once their queue becomes empty.
-					((TCP) key.attachment()).doEventWrite();
+					beginDispatch(key.attachment(), "write");
+					TCP tcp = (TCP) key.attachment();
+					tcp.lastWrite = clock;
+					touch(tcp);
+					tcp.doEventWrite();
+					t0 = t1;
+					t1 = System.nanoTime();
+					stats.writeNanos.record(t1 - t0);
 				}
 				
 			} catch (IOException e) {
 				// on any IO exception we simply close the Handle
 				// which will make it fire its onDisconnect() event.
 				requestCloseHandle((Handle) key.attachment(), e);
+				t1 = System.nanoTime();
 			}
 		}
+		endDispatch();
+	}
+	
+	/**
+	 * select() has returned without any ready keys and without wakeup().
+	 * This is normal when a timer is due or the thread was interrupted,
+	 * otherwise it is premature. Some epoll bugs can make the selector
+	 * return prematurely forever, this would spin the reactor thread at
+	 * 100% CPU, so after too many of them in a row we replace the selector.
+	 * 
+	 * @param timeout the timeout that was passed to select()
+	 * @param nanos how long select() has actually blocked
+	 */
+	private void checkSpinning(long timeout, long nanos) throws IOException {
+		boolean interrupted = Thread.interrupted();
+		// select(timeout) has millisecond granularity, half of it is good enough
+		boolean timedOut = timeout > 0 && nanos >= timeout * 500000L;
+		if (interrupted || timedOut){
+			spinCount = 0;
+			return;
+		}
+		stats.prematureSelects++;
+		if (++spinCount >= SPIN_THRESHOLD){
+			Log.w(this, "selector is spinning, rebuilding it after premature selects:", spinCount);
+			rebuildSelector();
+			spinCount = 0;
+		}
+	}
+	
+	/**
+	 * Replace the selector with a new one and register all channels with it
+	 * again with the same interest ops and attachments. Cancelled keys and 
+	 * closed channels are dropped. This must only run in the reactor thread.
+	 */
+	void rebuildSelector() throws IOException {
+		Selector oldSelector = selector;
+		Selector newSelector = Selector.open();
+		for (SelectionKey key : oldSelector.keys()){
+			if (!key.isValid()){
+				continue;
+			}
+			try {
+				int ops = key.interestOps();
+				Object att = key.attachment();
+				key.cancel();
+				key.channel().register(newSelector, ops, att);
+			} catch (Exception e) {
+				// the channel has been closed meanwhile, nothing we can do
+				Log.w(key.attachment(), "could not register with new selector", e);
+			}
+		}
+		selector = newSelector;
+		try {
+			oldSelector.close();
+		} catch (IOException e) {
+			Log.w(this, "exception while closing old selector", e);
+		}
+		stats.selectorRebuilds++;
+	}
+	
+	/**
+	 * Remember what is being dispatched now, so that the Watchdog can tell
+	 * who is to blame when the reactor thread does not come back in time.
+	 */
+	private void beginDispatch(Object target, String event){
+		dispatchTarget = target;
+		dispatchEvent = event;
+		dispatchStart = System.nanoTime();
+		heartbeat++;
+	}
+	
+	private void endDispatch(){
+		dispatchStart = 0;
+		dispatchTarget = null;
 	}
 	
 	/**
@@ -172,6 +399,165 @@ public class Reactor extends Thread{
 		addTask(new CloseRequest(h, reason));
 	}
 	
+	/**
+	 * Run the task once from the reactor thread after the delay has elapsed.
+	 * This method is thread safe and will not block. The returned Timer can
+	 * be used to cancel the task before it runs. Tasks that are due at the
+	 * same time will run in the order they have been scheduled.
+	 * 
+	 * @param delay milliseconds to wait before running the task
+	 * @param task the code to run
+	 * @return Timer object that can be used to cancel it
+	 */
+	public Timer schedule(long delay, Runnable task){
+		final Timer t = new Timer(now() + Math.max(0, delay), timerSequence.getAndIncrement(), task);
+		if (Thread.currentThread() == this){
+			timers.add(t);
+		}else{
+			addTask(new Runnable(){
+				@Override
+				public void run() {
+					timers.add(t);
+				}
+			});
+		}
+		return t;
+	}
+	
+	/**
+	 * Run the task once from the reactor thread as soon as possible. This
+	 * method is thread safe and will not block.
+	 * 
+	 * @param task the code to run
+	 */
+	public void invokeLater(Runnable task){
+		addTask(task);
+	}
+	
+	/**
+	 * @return true if called from the reactor thread
+	 */
+	public boolean isReactorThread(){
+		return Thread.currentThread() == this;
+	}
+	
+	/**
+	 * The clock that is used for all timers.
+	 * 
+	 * @return the current time in milliseconds (arbitrary origin)
+	 */
+	public long now(){
+		return System.nanoTime() / 1000000;
+	}
+	
+	/**
+	 * The clock of the current loop iteration, it is updated once per loop
+	 * so it can lag behind now() by the time the event handlers need. This
+	 * is cheap enough to be called for every event.
+	 * 
+	 * @return the time in milliseconds, same origin as now()
+	 */
+	public long cachedNow(){
+		return clock;
+	}
+	
+	/**
+	 * Close TCP connections that have had no read or write event for this 
+	 * long. Their onDisconnect() will receive an XConnectionIdleTimeout. 
+	 * Connections that are not driven by the selector (MemoryTCP, etc.) are
+	 * not affected, except the simulated connections of a SimReactor. This
+	 * method is thread safe and will not block.
+	 * 
+	 * @param millis idle timeout in milliseconds, 0 to disable
+	 */
+	public void setIdleTimeout(final long millis){
+		invokeLater(new Runnable(){
+			@Override
+			public void run() {
+				if (reaper != null){
+					reaper.stop();
+					reaper = null;
+				}
+				if (millis > 0){
+					reaper = new IdleReaper(Reactor.this, millis);
+					// the least recently active first, the sweep relies on this
+					List<Handle> existing = getIdleCandidates();
+					Collections.sort(existing, new Comparator<Handle>(){
+						@Override
+						public int compare(Handle a, Handle b) {
+							long d = a.getLastActivity() - b.getLastActivity();
+							return d < 0 ? -1 : d > 0 ? 1 : 0;
+						}
+					});
+					for (Handle h : existing){
+						reaper.add(h);
+					}
+				}
+			}
+		});
+	}
+	
+	/**
+	 * @return number of connections that have been closed by the idle timeout
+	 */
+	public long getIdleReaped(){
+		IdleReaper r = reaper;
+		return r == null ? 0 : r.getReaped();
+	}
+	
+	/**
+	 * @return all open handles that are subject to the idle timeout
+	 */
+	protected List<Handle> getIdleCandidates(){
+		List<Handle> result = new ArrayList<Handle>();
+		for (SelectionKey key : selector.keys()){
+			if (key.isValid() && key.attachment() instanceof TCP){
+				result.add((Handle) key.attachment());
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * there was a read or write event on this handle
+	 */
+	void touch(Handle h){
+		if (reaper != null){
+			reaper.touch(h);
+		}
+	}
+	
+	/**
+	 * a new handle is subject to the idle timeout
+	 */
+	void watch(Handle h){
+		if (reaper != null){
+			reaper.add(h);
+		}
+	}
+	
+	/**
+	 * the handle has been closed
+	 */
+	void unwatch(Handle h){
+		if (reaper != null){
+			reaper.remove(h);
+		}
+	}
+	
+	/**
+	 * Statistics about the reactor thread: time spent blocking in select(),
+	 * number of ready keys and pending tasks per loop, number of wakeups and
+	 * the time spent in the event handlers, separately for each event type.
+	 * This is cheap enough to be called often and may be called from any
+	 * thread, the values are only loosely consistent with each other.
+	 * 
+	 * @return an immutable snapshot of the current statistics
+	 */
+	public ReactorStats.Snapshot getStats(){
+		return stats.snapshot();
+	}
+	
 	/**
 	 * enqueue additional code to be run (once) before the next select() call
 	 *   
@@ -179,6 +565,7 @@ public class Reactor extends Thread{
 	 */
 	private void addTask(Runnable r){
 		pendingTasks.offer(r);
+		stats.wakeups.incrementAndGet();
 		selector.wakeup();
 	}
 
@@ -199,9 +586,12 @@ public class Reactor extends Thread{
 		public void run(){
 			try {
 				handle.channel.register(handle.reactor.selector, operations, handle);
+				if (handle instanceof TCP){
+					watch(handle);
+				}
 			} catch (ClosedChannelException e) {
-				e.printStackTrace();
 				// nothing we can do here, just ignore it 
+				Log.w(handle, "register on closed channel", e);
 			}
 		}
 	}
@@ -224,12 +614,13 @@ public class Reactor extends Thread{
 		
 		@Override
 		public void run(){
+			unwatch(handle);
 			try {
 				handle.channel.close();
 				handle.doEventClose(reason);
 			} catch (IOException e) {
-				e.printStackTrace();
 				// ignore
+				Log.w(handle, "exception while closing", e);
 			}
 		}
 	}
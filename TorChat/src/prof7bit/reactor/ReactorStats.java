@@ -0,0 +1,98 @@
+package prof7bit.reactor;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and histograms that tell what the reactor thread is busy with.
+ * They are recorded by the reactor thread itself and can be read by any
+ * thread through Reactor.getStats() which returns an immutable Snapshot.
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+public class ReactorStats {
+
+	/** nanoseconds spent blocking in select() per loop */
+	final Histogram selectNanos = new Histogram();
+
+	/** number of ready keys per loop */
+	final Histogram readyKeys = new Histogram();
+
+	/** number of pending tasks run per loop */
+	final Histogram tasks = new Histogram();
+
+	/** nanoseconds per read event, including the application's handler */
+	final Histogram readNanos = new Histogram();
+
+	/** nanoseconds per write event */
+	final Histogram writeNanos = new Histogram();
+
+	/** nanoseconds per connect event, including the application's handler */
+	final Histogram connectNanos = new Histogram();
+
+	/** nanoseconds per accept event, including the application's handler */
+	final Histogram acceptNanos = new Histogram();
+
+	/** number of times selector.wakeup() has been called (from any thread) */
+	final AtomicLong wakeups = new AtomicLong();
+
+	/** number of iterations of the select loop */
+	volatile long loops = 0;
+
+	/** number of times select() returned early without any reason */
+	volatile long prematureSelects = 0;
+
+	/** number of times the selector had to be replaced, see Reactor.rebuildSelector() */
+	volatile long selectorRebuilds = 0;
+
+	Snapshot snapshot(){
+		return new Snapshot(this);
+	}
+
+	/**
+	 * An immutable copy of the reactor statistics
+	 */
+	public static class Snapshot {
+		public final long loops;
+		public final long wakeups;
+		public final long prematureSelects;
+		public final long selectorRebuilds;
+		public final Histogram.Snapshot selectNanos;
+		public final Histogram.Snapshot readyKeys;
+		public final Histogram.Snapshot tasks;
+		public final Histogram.Snapshot readNanos;
+		public final Histogram.Snapshot writeNanos;
+		public final Histogram.Snapshot connectNanos;
+		public final Histogram.Snapshot acceptNanos;
+
+		Snapshot(ReactorStats s){
+			loops = s.loops;
+			wakeups = s.wakeups.get();
+			prematureSelects = s.prematureSelects;
+			selectorRebuilds = s.selectorRebuilds;
+			selectNanos = s.selectNanos.snapshot();
+			readyKeys = s.readyKeys.snapshot();
+			tasks = s.tasks.snapshot();
+			readNanos = s.readNanos.snapshot();
+			writeNanos = s.writeNanos.snapshot();
+			connectNanos = s.connectNanos.snapshot();
+			acceptNanos = s.acceptNanos.snapshot();
+		}
+
+		@Override
+		public String toString(){
+			StringBuilder sb = new StringBuilder();
+			sb.append("loops: ").append(loops).append('\n');
+			sb.append("wakeups: ").append(wakeups).append('\n');
+			sb.append("premature selects: ").append(prematureSelects).append('\n');
+			sb.append("selector rebuilds: ").append(selectorRebuilds).append('\n');
+			sb.append("select ns: ").append(selectNanos).append('\n');
+			sb.append("ready keys: ").append(readyKeys).append('\n');
+			sb.append("tasks: ").append(tasks).append('\n');
+			sb.append("read ns: ").append(readNanos).append('\n');
+			sb.append("write ns: ").append(writeNanos).append('\n');
+			sb.append("connect ns: ").append(connectNanos).append('\n');
+			sb.append("accept ns: ").append(acceptNanos);
+			return sb.toString();
+		}
+	}
+}
@@ -0,0 +1,192 @@
+package prof7bit.reactor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A simulated network for a SimReactor. Listeners can be registered under
+ * any address and connections can be made to them with the Dialer
+ * interface, so everything that gets its connections from a Dialer can be
+ * tested with thousands of simulated peers. All connections have the same
+ * one-way latency and bandwidth (per direction). Connecting takes one round
+ * trip, connecting to an address where nobody listens fails after one
+ * round trip. Peers can go offline (unlisten) which will also close all
+ * connections they have accepted.
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+public class SimNetwork implements Dialer {
+
+	private SimReactor sim;
+	private long latency;
+	private long bandwidth;
+	private Map<String, ListenPortHandler> listeners = new HashMap<String, ListenPortHandler>();
+	private Map<String, List<SimTCP>> accepted = new HashMap<String, List<SimTCP>>();
+
+	private long attempts = 0;
+	private long failures = 0;
+	private long connecting = 0;
+	private long maxConnecting = 0;
+	private long bytes = 0;
+	private long chunks = 0;
+
+	/**
+	 * @param sim the reactor that runs the simulation
+	 * @param latency one-way latency in milliseconds
+	 * @param bandwidth bytes per second in each direction, 0 means unlimited
+	 */
+	public SimNetwork(SimReactor sim, long latency, long bandwidth){
+		this.sim = sim;
+		this.latency = latency;
+		this.bandwidth = bandwidth;
+	}
+
+	public long getLatency(){
+		return latency;
+	}
+
+	public long getBandwidth(){
+		return bandwidth;
+	}
+
+	/**
+	 * Accept incoming connections for this address from now on.
+	 *
+	 * @param address the address
+	 * @param handler will be called for every incoming connection
+	 */
+	public void listen(String address, ListenPortHandler handler){
+		listeners.put(address, handler);
+	}
+
+	/**
+	 * Stop accepting connections for this address and
+	 * close all connections that have been accepted.
+	 *
+	 * @param address the address
+	 */
+	public void unlisten(String address){
+		listeners.remove(address);
+		List<SimTCP> list = accepted.remove(address);
+		if (list != null){
+			for (SimTCP tcp : list){
+				tcp.close("went offline");
+			}
+		}
+	}
+
+	/**
+	 * @return true if something is listening on this address
+	 */
+	public boolean isListening(String address){
+		return listeners.containsKey(address);
+	}
+
+	@Override
+	public TCP dial(Reactor r, final String address, int port, TCPHandler handler) throws IOException {
+		final SimTCP client = new SimTCP(this, sim, address, handler);
+		attempts++;
+		connecting++;
+		maxConnecting = Math.max(maxConnecting, connecting);
+		sim.schedule(latency, new Runnable(){
+			@Override
+			public void run() {
+				ListenPortHandler listener = listeners.get(address);
+				if (client.closed || listener == null){
+					refuse(client);
+				}else{
+					accept(client, listener);
+				}
+			}
+		});
+		return client;
+	}
+
+	private void refuse(final SimTCP client){
+		sim.schedule(latency, new Runnable(){
+			@Override
+			public void run() {
+				connecting--;
+				failures++;
+				client.failed(new XConnectionClosedRemote("connection refused"));
+			}
+		});
+	}
+
+	private void accept(final SimTCP client, ListenPortHandler listener){
+		final SimTCP server = new SimTCP(this, sim, client.getAddress(), null);
+		server.peer = client;
+		client.peer = server;
+		server.connected = true;
+		server.setEventHandler(listener.onAccept(server));
+		List<SimTCP> list = accepted.get(client.getAddress());
+		if (list == null){
+			list = new ArrayList<SimTCP>();
+			accepted.put(client.getAddress(), list);
+		}
+		for (int i = list.size() - 1; i >= 0; i--){
+			if (list.get(i).closed){
+				list.remove(i);
+			}
+		}
+		list.add(server);
+		sim.schedule(latency, new Runnable(){
+			@Override
+			public void run() {
+				connecting--;
+				if (client.closed){
+					server.close(new XConnectionClosedRemote("closed by foreign host"));
+				}else{
+					client.established();
+				}
+			}
+		});
+	}
+
+	/**
+	 * called by SimTCP for every chunk of data that arrives
+	 */
+	void delivered(int length){
+		chunks++;
+		bytes += length;
+	}
+
+	/**
+	 * @return total number of connect attempts
+	 */
+	public long getAttempts(){
+		return attempts;
+	}
+
+	/**
+	 * @return number of connect attempts that have failed
+	 */
+	public long getFailures(){
+		return failures;
+	}
+
+	/**
+	 * @return highest number of connect attempts that were in progress
+	 * at the same time
+	 */
+	public long getMaxConnecting(){
+		return maxConnecting;
+	}
+
+	/**
+	 * @return number of chunks (send() calls) that have been delivered
+	 */
+	public long getChunks(){
+		return chunks;
+	}
+
+	/**
+	 * @return number of bytes that have been delivered
+	 */
+	public long getBytes(){
+		return bytes;
+	}
+}
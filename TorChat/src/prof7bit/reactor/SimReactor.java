@@ -0,0 +1,161 @@
+package prof7bit.reactor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * A Reactor for simulations and tests. It has no thread and no selector,
+ * instead it has a virtual clock that only advances when runFor() is
+ * called, then all timers and tasks that are due within this time are run
+ * in the calling thread, in exactly the same order every time. Together
+ * with SimNetwork a whole day of network activity of thousands of
+ * connections can be simulated within seconds and deterministically.
+ *
+ * Everything that uses a SimReactor must be driven from one single thread,
+ * the same thread that is calling runFor().
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+public class SimReactor extends Reactor {
+
+	private long time = 0;
+	private long sequence = 0;
+	private long executed = 0;
+	private PriorityQueue<Timer> events = new PriorityQueue<Timer>();
+
+	/**
+	 * connections that have not yet fired their close event, in the
+	 * order of their creation to keep everything deterministic.
+	 */
+	private Set<SimTCP> handles = new LinkedHashSet<SimTCP>();
+
+	public SimReactor(){
+		super(true);
+		setName("SimReactor");
+	}
+
+	/**
+	 * Advance the virtual clock and run everything that is due. Tasks
+	 * that are scheduled while this runs will also be run if they are
+	 * due before the end of this time span.
+	 *
+	 * @param millis milliseconds to advance the clock
+	 */
+	public void runFor(long millis){
+		long end = time + millis;
+		while (!events.isEmpty() && events.peek().deadline <= end){
+			Timer t = events.poll();
+			time = t.deadline;
+			if (!t.isCancelled()){
+				executed++;
+				t.task.run();
+			}
+		}
+		time = end;
+	}
+
+	/**
+	 * @return number of tasks and timers that have been run so far
+	 */
+	public long getExecuted(){
+		return executed;
+	}
+
+	/**
+	 * @return number of tasks and timers waiting to be run
+	 */
+	public int getPending(){
+		return events.size();
+	}
+
+	@Override
+	public Timer schedule(long delay, Runnable task){
+		Timer t = new Timer(time + Math.max(0, delay), sequence++, task);
+		events.add(t);
+		return t;
+	}
+
+	@Override
+	public void invokeLater(Runnable task){
+		schedule(0, task);
+	}
+
+	@Override
+	public boolean isReactorThread(){
+		return true;
+	}
+
+	/**
+	 * @return the virtual time in milliseconds, it starts at 0
+	 */
+	@Override
+	public long now(){
+		return time;
+	}
+
+	@Override
+	public long cachedNow(){
+		return time;
+	}
+
+	/**
+	 * Close all connections that are still open (their onDisconnect() is
+	 * called right away) and then discard everything that is still pending.
+	 */
+	@Override
+	public void close(){
+		// an onDisconnect() might open new connections, close them too
+		while (!handles.isEmpty()){
+			for (SimTCP h : new ArrayList<SimTCP>(handles)){
+				h.closed = true;
+				h.doEventClose(new XConnectionClosedHere("reactor shutdown"));
+			}
+		}
+		events.clear();
+	}
+
+	void addHandle(SimTCP h){
+		handles.add(h);
+		watch(h);
+	}
+
+	void removeHandle(SimTCP h){
+		handles.remove(h);
+		unwatch(h);
+	}
+
+	@Override
+	protected List<Handle> getIdleCandidates(){
+		List<Handle> result = new ArrayList<Handle>();
+		for (SimTCP h : handles){
+			if (!h.closed){
+				result.add(h);
+			}
+		}
+		return result;
+	}
+
+	@Override
+	protected void register(Handle h, int ops){
+		// simulated handles don't have a channel
+	}
+
+	@Override
+	protected void requestCloseHandle(final Handle h, final IOException reason){
+		if (h instanceof SimTCP){
+			// also tells the other end, like closing a real socket
+			((SimTCP) h).close(reason);
+			return;
+		}
+		invokeLater(new Runnable(){
+			@Override
+			public void run() {
+				h.doEventClose(reason);
+			}
+		});
+	}
+}
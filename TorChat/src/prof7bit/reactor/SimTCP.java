@@ -0,0 +1,178 @@
+package prof7bit.reactor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One end of a simulated connection in a SimNetwork. Towards the
+ * application it behaves like a TCP: it can send before it is connected,
+ * data arrives in order after the network's latency, limited by its
+ * bandwidth, and closing one end makes the other end see a remote close
+ * after all data that was still in flight has arrived.
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+public class SimTCP extends TCP {
+
+	private SimNetwork network;
+	private SimReactor sim;
+	private TCPHandler handler;
+	SimTCP peer = null;
+	private String address;
+	boolean connected = false;
+	boolean closed = false;
+
+	/**
+	 * data sent before the connection was established
+	 */
+	private List<byte[]> pending = new ArrayList<byte[]>();
+	private List<Runnable> pendingCallbacks = new ArrayList<Runnable>();
+
+	/**
+	 * when our direction of the link is free again, in microseconds
+	 */
+	private long linkFreeAt = 0;
+
+	/**
+	 * when the last data we have sent arrives at the peer, in milliseconds
+	 */
+	private long lastArrival = 0;
+
+	SimTCP(SimNetwork network, SimReactor sim, String address, TCPHandler handler){
+		super(sim);
+		this.network = network;
+		this.sim = sim;
+		this.address = address;
+		if (handler != null){
+			setEventHandler(handler);
+		}
+		sim.addHandle(this);
+	}
+
+	/**
+	 * @return the address this connection was made to (for both ends)
+	 */
+	public String getAddress(){
+		return address;
+	}
+
+	@Override
+	public void setEventHandler(TCPHandler eventHandler) {
+		super.setEventHandler(eventHandler);
+		handler = eventHandler;
+	}
+
+	@Override
+	public void send(ByteBuffer buf, Runnable onWritten){
+		if (closed){
+			return;
+		}
+		byte[] data = new byte[buf.limit()];
+		System.arraycopy(buf.array(), buf.arrayOffset(), data, 0, data.length);
+		if (connected){
+			transmit(data, onWritten);
+		}else{
+			pending.add(data);
+			pendingCallbacks.add(onWritten);
+		}
+	}
+
+	@Override
+	public void close(IOException reason){
+		if (closed){
+			return;
+		}
+		closed = true;
+		fireClose(reason);
+		if (peer != null && !peer.closed){
+			long delay = Math.max(lastArrival - sim.now(), network.getLatency());
+			sim.schedule(delay, new Runnable(){
+				@Override
+				public void run() {
+					if (!peer.closed){
+						peer.closed = true;
+						peer.doEventClose(new XConnectionClosedRemote("closed by foreign host"));
+					}
+				}
+			});
+		}
+	}
+
+	@Override
+	protected void doEventClose(IOException e){
+		sim.removeHandle(this);
+		super.doEventClose(e);
+	}
+
+	/**
+	 * the connect attempt has succeeded
+	 */
+	void established(){
+		connected = true;
+		handler.onConnect();
+		for (int i = 0; i < pending.size() && !closed; i++){
+			transmit(pending.get(i), pendingCallbacks.get(i));
+		}
+		pending.clear();
+		pendingCallbacks.clear();
+	}
+
+	/**
+	 * the connect attempt has failed
+	 */
+	void failed(IOException reason){
+		if (!closed){
+			closed = true;
+			doEventClose(reason);
+		}
+	}
+
+	private void fireClose(final IOException reason){
+		sim.invokeLater(new Runnable(){
+			@Override
+			public void run() {
+				doEventClose(reason);
+			}
+		});
+	}
+
+	/**
+	 * put the data on the wire, it will arrive at the peer after
+	 * it has been transmitted with the bandwidth of the network
+	 * (one after the other) and after the latency.
+	 */
+	private void transmit(final byte[] data, final Runnable onWritten){
+		long now = sim.now();
+		long start = Math.max(now * 1000, linkFreeAt);
+		long bandwidth = network.getBandwidth();
+		linkFreeAt = start + (bandwidth > 0 ? data.length * 1000000L / bandwidth : 0);
+		long written = (linkFreeAt + 999) / 1000;
+		lastArrival = written + network.getLatency();
+		lastWrite = now;
+		sim.touch(this);
+		if (onWritten != null){
+			sim.schedule(written - now, new Runnable(){
+				@Override
+				public void run() {
+					if (!closed){
+						onWritten.run();
+					}
+				}
+			});
+		}
+		final SimTCP receiver = peer;
+		sim.schedule(lastArrival - now, new Runnable(){
+			@Override
+			public void run() {
+				if (!receiver.closed){
+					receiver.lastRead = sim.now();
+					sim.touch(receiver);
+					network.delivered(data.length);
+					receiver.handler.onReceive(ByteBuffer.wrap(data));
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,31 @@
+package prof7bit.reactor;
+
+import java.io.IOException;
+
+/**
+ * Connects through a socks4a proxy, for example Tor.
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+public class Socks4aDialer implements Dialer {
+
+	private String proxyAddress;
+	private int proxyPort;
+	private String proxyUser;
+
+	/**
+	 * @param proxyAddress address of the socks proxy
+	 * @param proxyPort port of the socks proxy
+	 * @param proxyUser user to use in socks4 authentication
+	 */
+	public Socks4aDialer(String proxyAddress, int proxyPort, String proxyUser){
+		this.proxyAddress = proxyAddress;
+		this.proxyPort = proxyPort;
+		this.proxyUser = proxyUser;
+	}
+
+	@Override
+	public TCP dial(Reactor r, String address, int port, TCPHandler handler) throws IOException {
+		return new TCP(r, address, port, handler, proxyAddress, proxyPort, proxyUser);
+	}
+}
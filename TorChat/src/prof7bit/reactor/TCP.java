@@ -7,9 +7,15 @@ import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import prof7bit.log.Log;
 
 /**
  * An Instance of this class represents a TCP connection. The application
@@ -29,12 +35,37 @@ public class TCP extends Handle {
 	 */
 	private TCPHandler eventHandler;
 	
+	/**
+	 * Maximum number of queued buffers that will be handed to the socket
+	 * in one single gathering write() call.
+	 */
+	private static final int MAX_GATHER = 64;
+	
 	/**
 	 * This holds a queue of unsent or partially sent ByteBuffers if more
 	 * data has been attempted to send than the underlying network socket 
 	 * could handle at once.
 	 */
-	private Queue<ByteBuffer> unsent = new ConcurrentLinkedQueue<ByteBuffer>();
+	private Queue<Outgoing> unsent = new ConcurrentLinkedQueue<Outgoing>();
+	
+	/**
+	 * number of buffers and bytes in the unsent queue, maintained separately
+	 * because ConcurrentLinkedQueue.size() would have to walk the queue.
+	 */
+	private AtomicInteger queuedBuffers = new AtomicInteger();
+	private AtomicLong queuedBytes = new AtomicLong();
+	
+	/**
+	 * Used by doEventWrite() to gather the queued buffers, only ever
+	 * accessed from the reactor thread.
+	 */
+	private ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+	
+	/**
+	 * While corked send() will only enqueue and not yet subscribe OP_WRITE,
+	 * see cork() and uncork().
+	 */
+	private volatile boolean corked = false;
 	
 	/**
 	 * This signals that we may not yet subscribe to OP_WRITE and not yet send 
@@ -42,6 +73,23 @@ public class TCP extends Handle {
 	 * connection handler itself does not use the send queue at all.  
 	 */
 	private boolean insideSocksHandshake = false;
+	
+	/**
+	 * adapts the socket buffers to the traffic, null if there is no socket
+	 */
+	private BufferSizer sizer = null;
+	
+	/**
+	 * If this is not null then all traffic of all TCP connections will be
+	 * recorded, see setCapture(). When null this costs one volatile read.
+	 */
+	private static volatile Capture capture = null;
+	
+	/**
+	 * used to give every TCP a unique number in the capture files
+	 */
+	private static AtomicLong nextCaptureId = new AtomicLong();
+	private final long captureId = nextCaptureId.incrementAndGet();
 		
 	/**
 	 * Construct a new incoming TCP. 
@@ -55,11 +103,24 @@ public class TCP extends Handle {
 	 * @throws IOException if I/O error occurs
 	 */
 	public TCP(Reactor r, SocketChannel sc) throws IOException {
-		System.out.println(this.toString() + " incoming constructor");
+		Log.d(this, "incoming constructor");
 		initMembers(sc, r);
+		captureOpen("in " + sc.socket().getRemoteSocketAddress());
 		registerWithReactor(SelectionKey.OP_READ);
 	}
 
+	/**
+	 * Construct a TCP without a socket. This is meant for subclasses that
+	 * feed the event handler from somewhere else, like a capture replay.
+	 * Such a subclass must override send() and close() because there is 
+	 * no channel to write to or to close.
+	 * 
+	 * @param r the reactor that should run the event handlers
+	 */
+	protected TCP(Reactor r){
+		reactor = r;
+	}
+
 	/**
 	 * Construct a new outgoing connection.
 	 * This will create the Handle object and initiate the connect. It will
@@ -75,7 +136,8 @@ public class TCP extends Handle {
 	 * @throws IOException if I/O error occurs
 	 */
 	public TCP(Reactor r, String addr, int port, TCPHandler eh) throws IOException{
-		System.out.println(this.toString() + " outgoing constructor");
+		Log.d(this, "outgoing constructor");
+		captureOpen("out " + addr + ":" + port);
 		connect(r, addr, port, eh);
 	}
 
@@ -100,9 +162,40 @@ public class TCP extends Handle {
 		// the socks handler will upon successful connection replace itself 
 		// with the event handler that was provided by the application.
 		Socks4aHandler sockshandler = new Socks4aHandler(this, addr, port, proxy_user, eh);
+		captureOpen("out " + addr + ":" + port);
 		connect(r, proxy_addr, proxy_port, sockshandler);
 	}
 	
+	/**
+	 * Start or stop recording the traffic of all TCP connections. Inbound
+	 * data is recorded as it is received (except the socks handshake),
+	 * outbound data as it is passed to send(). 
+	 * 
+	 * @param c the capture to write to or null to stop capturing
+	 */
+	public static void setCapture(Capture c){
+		capture = c;
+	}
+	
+	void captureOpen(String description){
+		Capture c = capture;
+		if (c != null){
+			byte[] d = description.getBytes(Capture.UTF8);
+			c.record(Capture.OPEN, captureId, d, 0, d.length);
+		}
+	}
+	
+	/**
+	 * record one chunk of data, for subclasses that don't use
+	 * the send queue or don't read from a channel.
+	 */
+	void captureData(int type, ByteBuffer buf){
+		Capture c = capture;
+		if (c != null){
+			c.record(type, captureId, buf.array(), buf.arrayOffset(), buf.limit());
+		}
+	}
+	
 	/**
 	 * this is only meant to be used from inside the constructor
 	 */
@@ -130,6 +223,36 @@ public class TCP extends Handle {
 		sc.socket().setTcpNoDelay(true);
 		channel = sc;
 		reactor = r;
+		lastRead = r.cachedNow();
+		lastWrite = lastRead;
+		sizer = new BufferSizer(this, sc.socket());
+	}
+	
+	/**
+	 * Set the upper limit for SO_SNDBUF and SO_RCVBUF. All connections start
+	 * with small buffers which will only grow towards this limit while
+	 * there is a sustained bulk transfer, and shrink again when idle.
+	 * 
+	 * @param bytes the limit for all connections
+	 */
+	public static void setMaxSocketBuffer(int bytes){
+		BufferSizer.setMaxBuffer(bytes);
+	}
+	
+	/**
+	 * @return the current SO_SNDBUF as reported by the kernel 
+	 * or 0 if there is no socket
+	 */
+	public int getSendBufferSize(){
+		return sizer == null ? 0 : sizer.getSendBufferSize();
+	}
+	
+	/**
+	 * @return the current SO_RCVBUF as reported by the kernel 
+	 * or 0 if there is no socket
+	 */
+	public int getReceiveBufferSize(){
+		return sizer == null ? 0 : sizer.getReceiveBufferSize();
 	}
 
 	/**
@@ -160,9 +283,28 @@ public class TCP extends Handle {
 	 * @param buf the ByteBuffer containing the bytes to be sent.
 	 */
 	public void send(ByteBuffer buf){
+		send(buf, null);
+	}
+	
+	/**
+	 * Send the bytes in the buffer asynchronously like send(buf) and then 
+	 * run the callback from the reactor thread once the last byte of this
+	 * buffer has actually been written to the socket. The callback will not
+	 * run at all if the connection is closed before this happens. 
+	 * 
+	 * @param buf the ByteBuffer containing the bytes to be sent.
+	 * @param onWritten callback to run after the buffer is written, may be null
+	 */
+	public void send(ByteBuffer buf, Runnable onWritten){
 		buf.position(0);
-		unsent.offer(buf);
-		if (insideSocksHandshake){
+		Capture c = capture;
+		if (c != null){
+			c.record(Capture.OUT, captureId, buf.array(), buf.arrayOffset(), buf.limit());
+		}
+		queuedBuffers.incrementAndGet();
+		queuedBytes.addAndGet(buf.limit());
+		unsent.offer(new Outgoing(buf, onWritten));
+		if (insideSocksHandshake | corked){
 			return;
 		}
 		if (((SocketChannel) channel).isConnected()){
@@ -173,6 +315,65 @@ public class TCP extends Handle {
 		// The Socks handler itself will bypass the queue and write directly.
 	}
 	
+	/**
+	 * Hold back all following send() calls until uncork() is called. The 
+	 * data will be queued but nothing will be written, this can be used 
+	 * when sending a burst of many small buffers which will then all be 
+	 * written together with as few system calls as possible.
+	 */
+	public void cork(){
+		corked = true;
+	}
+	
+	/**
+	 * Release the data that has been queued since cork() was called.
+	 */
+	public void uncork(){
+		corked = false;
+		if (insideSocksHandshake | unsent.isEmpty()){
+			return;
+		}
+		if (((SocketChannel) channel).isConnected()){
+			registerWithReactor(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	}
+	
+	/**
+	 * Remove and return all buffers that have not yet been written completely.
+	 * This is meant to be used after the connection has been closed to rescue
+	 * the data that could not be sent anymore. Partially sent buffers will be
+	 * returned in their entirety. Their callbacks will never be called.
+	 * 
+	 * @return list of all buffers that were still in the send queue
+	 */
+	public List<ByteBuffer> removeUnsent(){
+		List<ByteBuffer> result = new ArrayList<ByteBuffer>();
+		Outgoing o;
+		while ((o = unsent.poll()) != null){
+			queuedBuffers.decrementAndGet();
+			queuedBytes.addAndGet(-o.buf.limit());
+			o.buf.position(0);
+			result.add(o.buf);
+		}
+		return result;
+	}
+	
+	/**
+	 * @return number of buffers in the send queue that have not 
+	 * yet been written completely.
+	 */
+	public int getQueueDepth(){
+		return queuedBuffers.get();
+	}
+	
+	/**
+	 * @return total size of all buffers in the send queue, including
+	 * the already written part of a partially written buffer.
+	 */
+	public long getQueuedBytes(){
+		return queuedBytes.get();
+	}
+	
 	/**
 	 * this is used only during socks connect, here don't want to use the
 	 * send queue because the queue contains data sent from the application 
@@ -196,7 +397,7 @@ public class TCP extends Handle {
 	 * connection and fire the onDisconnect() event.
 	 */
 	protected void doEventRead() throws IOException{
-		System.out.println(this.toString() + " doEventRead()");
+		Log.d(this, "doEventRead()");
 		ByteBuffer buf = ByteBuffer.allocate(2048);
 		SocketChannel sc = (SocketChannel)channel;
 		int numRead = sc.read(buf);
@@ -207,6 +408,13 @@ public class TCP extends Handle {
 		}else{
 			buf.position(0);
 			buf.limit(numRead);
+			if (sizer != null){
+				sizer.onRead(numRead);
+			}
+			Capture c = capture;
+			if (c != null && !insideSocksHandshake){
+				c.record(Capture.IN, captureId, buf.array(), 0, numRead);
+			}
 			eventHandler.onReceive(buf);
 		}
 	}
@@ -218,7 +426,14 @@ public class TCP extends Handle {
 	 */
 	@Override
 	protected void doEventClose(IOException e){
-		System.out.println(this.toString() + " doEventClose() " + e.getMessage());
+		Log.d(this, "doEventClose()", e.getMessage());
+		Capture c = capture;
+		if (c != null){
+			c.record(Capture.CLOSE, captureId, null, 0, 0);
+		}
+		if (sizer != null){
+			sizer.stop();
+		}
 		eventHandler.onDisconnect(e);
 	}
 	
@@ -232,9 +447,12 @@ public class TCP extends Handle {
 	 * will be back to normal and the app will receive the connect event.
 	 */
 	protected void doEventConnect() {
-		System.out.println(this.toString() + " doEventConnect()");
+		Log.d(this, "doEventConnect()");
+		if (sizer != null){
+			sizer.onConnect();
+		}
 		
-		if (unsent.isEmpty() | insideSocksHandshake){
+		if (unsent.isEmpty() | insideSocksHandshake | corked){
 			registerWithReactor(SelectionKey.OP_READ);
 		}else{
 			registerWithReactor(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
@@ -253,26 +471,68 @@ public class TCP extends Handle {
 	 * @throws IOException
 	 */
 	protected void doEventWrite() throws IOException{
-		System.out.println(this.toString() + " doEventWrite()");
+		Log.d(this, "doEventWrite()");
 		SocketChannel sc = (SocketChannel)channel;
 
-		// we will try to write as many buffers as possible in one event
-		// we break on the first sign of congestion (partial buffer) 
+		// we will try to write as many buffers as possible in one event,
+		// gathering them into one write() call. We break on the first 
+		// sign of congestion (not everything could be written) 
+		long total = 0;
+		boolean full = false;
 		while(true){
-			ByteBuffer buf = unsent.peek();
-			if (buf == null){
+			int n = 0;
+			long requested = 0;
+			for (Outgoing o : unsent){
+				if (n == MAX_GATHER){
+					break;
+				}
+				gather[n++] = o.buf;
+				requested += o.buf.remaining();
+			}
+			if (n == 0){
 				// we are done, queue is empty, re-register without OP_WRITE
 				registerWithReactor(SelectionKey.OP_READ);
 				break;
 			}
 			
-			sc.write(buf);
-			if (buf.hasRemaining()){
+			long written = sc.write(gather, 0, n);
+			total += written;
+			for (int i=0; i<n; i++){
+				gather[i] = null;
+			}
+			
+			// remove all completely written buffers from the queue
+			Outgoing o;
+			while ((o = unsent.peek()) != null && !o.buf.hasRemaining()){
+				unsent.remove();
+				queuedBuffers.decrementAndGet();
+				queuedBytes.addAndGet(-o.buf.limit());
+				if (o.onWritten != null){
+					o.onWritten.run();
+				}
+			}
+			
+			if (written < requested){
+				full = true;
 				break; // congestion --> enough for the moment
-			}else{
-				unsent.remove(); // ok --> try next buffer
 			}
 		}
+		if (sizer != null){
+			sizer.onWrite(total, full);
+		}
+	}
+	
+	/**
+	 * An entry in the send queue.
+	 */
+	private static class Outgoing {
+		final ByteBuffer buf;
+		final Runnable onWritten;
+		
+		Outgoing(ByteBuffer buf, Runnable onWritten){
+			this.buf = buf;
+			this.onWritten = onWritten;
+		}
 	}
 	
 	/**
@@ -309,7 +569,7 @@ public class TCP extends Handle {
 
 		@Override
 		public void onConnect() {
-			System.out.println("socks4a onConnect()");
+			Log.d(tcp, "socks4a onConnect()");
 			ByteArrayOutputStream req = new ByteArrayOutputStream(64);
 			req.write(0x04); // socks version 4
 			req.write(0x01); // request TCP stream connection
@@ -341,20 +601,20 @@ public class TCP extends Handle {
 			try {
 				sendNow(ByteBuffer.wrap(req.toByteArray()));
 			} catch (IOException e) {
-				e.printStackTrace();
+				Log.w(tcp, "socks4a request failed", e);
 				tcp.close(e);
 			}
 		}
 
 		@Override
 		public void onDisconnect(Exception e) {
-			System.out.println("socks4a onDisconnect()");
+			Log.d(tcp, "socks4a onDisconnect()");
 			appHandler.onDisconnect(e);
 		}
 
 		@Override
 		public void onReceive(ByteBuffer buf) {
-			System.out.println("socks4a onReceive()");
+			Log.d(tcp, "socks4a onReceive()");
 			if (buf.limit() != 8){
 				tcp.close(new XSocksHandshakeError("malformed reply from socks proxy"));
 				return;
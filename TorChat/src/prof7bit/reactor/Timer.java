@@ -0,0 +1,55 @@
+package prof7bit.reactor;
+
+/**
+ * A task that has been scheduled with Reactor.schedule(). It will be run
+ * once from the reactor thread when its time has come, unless it has been
+ * cancelled before.
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+public class Timer implements Comparable<Timer> {
+
+	final long deadline;
+	final long sequence;
+	final Runnable task;
+	private volatile boolean cancelled = false;
+
+	Timer(long deadline, long sequence, Runnable task){
+		this.deadline = deadline;
+		this.sequence = sequence;
+		this.task = task;
+	}
+
+	/**
+	 * Prevent the task from running. This has no effect if it already has
+	 * been run. It can be called from any thread but if it is called from
+	 * another thread then it might just be running right now.
+	 */
+	public void cancel(){
+		cancelled = true;
+	}
+
+	public boolean isCancelled(){
+		return cancelled;
+	}
+
+	/**
+	 * @return the time (in milliseconds of the reactor's clock)
+	 * when this task is due.
+	 */
+	public long getDeadline(){
+		return deadline;
+	}
+
+	/**
+	 * Timers are ordered by their deadline, timers with
+	 * the same deadline in the order they were scheduled.
+	 */
+	@Override
+	public int compareTo(Timer other) {
+		if (deadline != other.deadline){
+			return deadline < other.deadline ? -1 : 1;
+		}
+		return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+	}
+}
@@ -0,0 +1,201 @@
+package prof7bit.reactor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import prof7bit.log.Log;
+
+/**
+ * Optional watchdog thread that detects stalls of a Reactor. A single
+ * blocking event handler (onReceive(), a Msg.execute() called from there,
+ * a timer task, etc.) will freeze every other connection of this reactor,
+ * so whenever one single dispatch takes longer than the threshold the
+ * watchdog will capture the stack trace of the reactor thread together with
+ * the Handle (or task) and the event that was being dispatched and store it
+ * in a bounded ring of stall reports. Each stalled dispatch is reported only
+ * once, no matter how long it takes.
+ *
+ * The reactor thread itself only writes a few volatile fields per dispatch,
+ * all the work is done in the watchdog thread.
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+public class Watchdog extends Thread {
+
+	public static final int DEFAULT_CAPACITY = 32;
+
+	private Reactor reactor;
+	private long thresholdNanos;
+	private long checkInterval;
+	private Stall[] ring;
+	private int ringPos = 0;
+	private long stallCount = 0;
+	private long lastReported = -1;
+	private volatile boolean terminating = false;
+
+	/**
+	 * Create and start a watchdog for the reactor. It will terminate when
+	 * the reactor terminates or when shutdown() is called.
+	 *
+	 * @param reactor the Reactor to watch
+	 * @param thresholdMillis dispatches taking longer are reported
+	 */
+	public Watchdog(Reactor reactor, long thresholdMillis){
+		this(reactor, thresholdMillis, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param reactor the Reactor to watch
+	 * @param thresholdMillis dispatches taking longer are reported
+	 * @param capacity how many of the most recent stall reports to keep
+	 */
+	public Watchdog(Reactor reactor, long thresholdMillis, int capacity){
+		this.reactor = reactor;
+		this.thresholdNanos = thresholdMillis * 1000000;
+		this.checkInterval = Math.max(1, thresholdMillis / 4);
+		this.ring = new Stall[capacity];
+		setName("Reactor watchdog");
+		setDaemon(true);
+		start();
+	}
+
+	/**
+	 * Stop the watchdog thread and wait until it has terminated.
+	 *
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void shutdown() throws InterruptedException{
+		terminating = true;
+		interrupt();
+		join();
+	}
+
+	@Override
+	public void run(){
+		while (!terminating && reactor.isAlive()){
+			try {
+				Thread.sleep(checkInterval);
+			} catch (InterruptedException e) {
+				continue;
+			}
+			check();
+		}
+	}
+
+	/**
+	 * look at the reactor's heartbeat and capture a stall report if
+	 * the current dispatch has been running for too long already.
+	 */
+	private void check(){
+		long beat = reactor.heartbeat;
+		long start = reactor.dispatchStart;
+		Object target = reactor.dispatchTarget;
+		String event = reactor.dispatchEvent;
+		if (start == 0 || beat == lastReported){
+			return;
+		}
+		long duration = System.nanoTime() - start;
+		if (duration < thresholdNanos){
+			return;
+		}
+		StackTraceElement[] stack = reactor.getStackTrace();
+		if (reactor.heartbeat != beat || reactor.dispatchStart != start){
+			// it came back while we were looking, the stack would be wrong
+			return;
+		}
+		lastReported = beat;
+		Stall stall = new Stall(System.currentTimeMillis(), duration / 1000000,
+				String.valueOf(target), event, stack);
+		synchronized (this){
+			ring[ringPos] = stall;
+			ringPos = (ringPos + 1) % ring.length;
+			stallCount++;
+		}
+		Log.w(this, "reactor", stall);
+	}
+
+	/**
+	 * @return the most recent stall reports, oldest first
+	 */
+	public synchronized List<Stall> getStalls(){
+		List<Stall> result = new ArrayList<Stall>();
+		for (int i = 0; i < ring.length; i++){
+			Stall s = ring[(ringPos + i) % ring.length];
+			if (s != null){
+				result.add(s);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return total number of stalls detected, including the ones that
+	 * have already been dropped from the ring.
+	 */
+	public synchronized long getStallCount(){
+		return stallCount;
+	}
+
+	/**
+	 * A single stall report
+	 */
+	public static class Stall {
+		private long time;
+		private long duration;
+		private String target;
+		private String event;
+		private StackTraceElement[] stack;
+
+		Stall(long time, long duration, String target, String event, StackTraceElement[] stack){
+			this.time = time;
+			this.duration = duration;
+			this.target = target;
+			this.event = event;
+			this.stack = stack;
+		}
+
+		/**
+		 * @return wall clock time of the detection (System.currentTimeMillis())
+		 */
+		public long getTime(){
+			return time;
+		}
+
+		/**
+		 * @return milliseconds the dispatch had been running when it was
+		 * detected, it may have taken much longer in total.
+		 */
+		public long getDuration(){
+			return duration;
+		}
+
+		/**
+		 * @return the Handle or task that was being dispatched (its toString())
+		 */
+		public String getTarget(){
+			return target;
+		}
+
+		/**
+		 * @return one of "connect", "accept", "read", "write", "task", "timer"
+		 */
+		public String getEvent(){
+			return event;
+		}
+
+		public StackTraceElement[] getStackTrace(){
+			return stack;
+		}
+
+		@Override
+		public String toString(){
+			StringBuilder sb = new StringBuilder();
+			sb.append("stalled ").append(duration).append(" ms in ");
+			sb.append(event).append(" ").append(target);
+			for (StackTraceElement e : stack){
+				sb.append("\n\tat ").append(e);
+			}
+			return sb.toString();
+		}
+	}
+}
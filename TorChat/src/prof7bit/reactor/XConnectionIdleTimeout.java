@@ -0,0 +1,9 @@
+package prof7bit.reactor;
+
+public class XConnectionIdleTimeout extends XConnectionClosedHere {
+	private static final long serialVersionUID = 6412096520887374127L;
+
+	public XConnectionIdleTimeout(String detailMessage) {
+		super(detailMessage);
+	}
+}
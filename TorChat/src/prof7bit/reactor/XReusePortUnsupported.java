@@ -0,0 +1,11 @@
+package prof7bit.reactor;
+
+import java.io.IOException;
+
+public class XReusePortUnsupported extends IOException {
+	private static final long serialVersionUID = -2838471162097625105L;
+
+	public XReusePortUnsupported(String detailMessage) {
+		super(detailMessage);
+	}
+}
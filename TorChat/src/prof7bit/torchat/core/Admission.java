@@ -0,0 +1,184 @@
+package prof7bit.torchat.core;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control for incoming connections. An incoming connection is
+ * unauthenticated until it has sent a valid ping that tells us which buddy
+ * it claims to be. All incoming connections come from the local Tor
+ * process (127.0.0.1), so limits per IP address are useless, instead there
+ * is a global limit on the number of unauthenticated connections, a
+ * deadline for the ping and a small limit on how much data may be received
+ * before the ping. Connections over the limit are closed right away in
+ * onAccept() before a Connection object is even created.
+ *
+ * If an RttEstimator is set then the deadline for the ping adapts to the
+ * measured round trip times, the configured handshake timeout is then only
+ * the upper limit. On a fast network a stuck handshake is dropped early,
+ * on a slow one the configured limit still applies.
+ *
+ * All methods are thread safe.
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+public class Admission {
+
+	public static final int DEFAULT_MAX_UNAUTHENTICATED = 64;
+	public static final long DEFAULT_HANDSHAKE_TIMEOUT = 60 * 1000;
+	public static final int DEFAULT_PREAUTH_LIMIT = 4096;
+
+	/**
+	 * the adaptive handshake timeout is this many RTOs but not less
+	 * than MIN_HANDSHAKE_TIMEOUT
+	 */
+	static final int HANDSHAKE_RTTS = 4;
+	static final long MIN_HANDSHAKE_TIMEOUT = 10000;
+
+	private volatile int maxUnauthenticated;
+	private volatile long handshakeTimeout;
+	private volatile int preAuthLimit;
+	private volatile RttEstimator rtt = null;
+
+	private AtomicInteger unauthenticated = new AtomicInteger();
+	private AtomicLong shed = new AtomicLong();
+	private AtomicLong timedOut = new AtomicLong();
+	private AtomicLong overflowed = new AtomicLong();
+	private AtomicLong violations = new AtomicLong();
+
+	public Admission(){
+		this(DEFAULT_MAX_UNAUTHENTICATED, DEFAULT_HANDSHAKE_TIMEOUT, DEFAULT_PREAUTH_LIMIT);
+	}
+
+	/**
+	 * @param maxUnauthenticated max. number of connections waiting for their ping
+	 * @param handshakeTimeout milliseconds until the ping must have been received
+	 * @param preAuthLimit max. number of bytes that may be received before the ping
+	 */
+	public Admission(int maxUnauthenticated, long handshakeTimeout, int preAuthLimit){
+		this.maxUnauthenticated = maxUnauthenticated;
+		this.handshakeTimeout = handshakeTimeout;
+		this.preAuthLimit = preAuthLimit;
+	}
+
+	/**
+	 * Try to admit a new incoming connection, if this returns true then
+	 * release() must be called exactly once when it has authenticated or
+	 * has been closed.
+	 *
+	 * @return false if there are too many unauthenticated connections
+	 */
+	public boolean tryAdmit(){
+		while (true){
+			int n = unauthenticated.get();
+			if (n >= maxUnauthenticated){
+				shed.incrementAndGet();
+				return false;
+			}
+			if (unauthenticated.compareAndSet(n, n + 1)){
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * the connection is not unauthenticated anymore
+	 */
+	public void release(){
+		unauthenticated.decrementAndGet();
+	}
+
+	void countTimeout(){
+		timedOut.incrementAndGet();
+	}
+
+	void countOverflow(){
+		overflowed.incrementAndGet();
+	}
+
+	void countViolation(){
+		violations.incrementAndGet();
+	}
+
+	public void setMaxUnauthenticated(int max){
+		maxUnauthenticated = max;
+	}
+
+	public void setHandshakeTimeout(long millis){
+		handshakeTimeout = millis;
+	}
+
+	public void setPreAuthLimit(int bytes){
+		preAuthLimit = bytes;
+	}
+
+	/**
+	 * Let the handshake timeout adapt to this estimate, the buddy of
+	 * an incoming connection is not known before the ping, so this would
+	 * be an estimate over all buddies, see PingTracker.getOverall()
+	 *
+	 * @param rtt the estimate or null for the fixed timeout
+	 */
+	public void setRttEstimator(RttEstimator rtt){
+		this.rtt = rtt;
+	}
+
+	/**
+	 * @return the time in milliseconds a new connection has for its ping,
+	 * the adaptive timeout or the configured one if there is no estimate.
+	 */
+	public long getEffectiveHandshakeTimeout(){
+		RttEstimator r = rtt;
+		if (r == null){
+			return handshakeTimeout;
+		}
+		return r.timeout(HANDSHAKE_RTTS, MIN_HANDSHAKE_TIMEOUT, handshakeTimeout);
+	}
+
+	public int getMaxUnauthenticated(){
+		return maxUnauthenticated;
+	}
+
+	public long getHandshakeTimeout(){
+		return handshakeTimeout;
+	}
+
+	public int getPreAuthLimit(){
+		return preAuthLimit;
+	}
+
+	/**
+	 * @return number of connections currently waiting for their ping
+	 */
+	public int getUnauthenticated(){
+		return unauthenticated.get();
+	}
+
+	/**
+	 * @return number of connections that were closed in onAccept()
+	 */
+	public long getShed(){
+		return shed.get();
+	}
+
+	/**
+	 * @return number of connections that did not send the ping in time
+	 */
+	public long getTimedOut(){
+		return timedOut.get();
+	}
+
+	/**
+	 * @return number of connections that sent too much before the ping
+	 */
+	public long getOverflowed(){
+		return overflowed.get();
+	}
+
+	/**
+	 * @return number of connections that sent something else than a ping first
+	 */
+	public long getViolations(){
+		return violations.get();
+	}
+}
@@ -1,32 +1,231 @@
 package prof7bit.torchat.core;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
-import prof7bit.reactor.ListenPort;
+import prof7bit.reactor.Backend;
+import prof7bit.reactor.Handle;
 import prof7bit.reactor.ListenPortHandler;
 import prof7bit.reactor.Reactor;
 import prof7bit.reactor.TCP;
 import prof7bit.reactor.TCPHandler;
 
+/**
+ * One TorChat identity: the listen port for the incoming connections and
+ * everything that belongs to it. Several clients can share the reactor
+ * threads of one ClientRuntime.
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
 public class Client implements ListenPortHandler {
 	private ClientHandler clientHandler;
+	private ClientRuntime runtime;
+	private boolean ownsRuntime;
+	private volatile boolean closed = false;
 	private Reactor reactor;
-	private ListenPort listenPort;
+	private Handle listenPort;
+	private ConnectionStats stats;
+	private Admission admission = new Admission();
+	private PingTracker pings = new PingTracker();
+	private volatile ConnectionManager manager = null;
+	
+	/**
+	 * the incoming connections that are currently open
+	 */
+	private Set<Connection> incoming = Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
 
 	public Client(ClientHandler clientHandler, int port) throws IOException {
+		this(clientHandler, port, Backend.getDefault());
+	}
+	
+	public Client(ClientHandler clientHandler, int port, Backend backend) throws IOException {
+		this(clientHandler, port, new ClientRuntime(1, backend), true);
+	}
+	
+	/**
+	 * Create a client that shares the reactors of a runtime with other 
+	 * clients. Closing this client will not close the runtime.
+	 * 
+	 * @param clientHandler the application's event handler
+	 * @param port the port for incoming connections
+	 * @param runtime the runtime
+	 * @throws IOException if the port can not be opened
+	 */
+	public Client(ClientHandler clientHandler, int port, ClientRuntime runtime) throws IOException {
+		this(clientHandler, port, runtime, false);
+	}
+	
+	private Client(ClientHandler clientHandler, int port, ClientRuntime runtime, boolean ownsRuntime) throws IOException {
 		this.clientHandler = clientHandler;
-		this.reactor = new Reactor();
-		this.listenPort = new ListenPort(reactor, this);
-		this.listenPort.listen(port);
+		this.runtime = runtime;
+		this.ownsRuntime = ownsRuntime;
+		this.reactor = runtime.nextReactor();
+		this.stats = ConnectionStats.group("client:" + port);
+		try {
+			this.listenPort = runtime.getBackend().listen(reactor, port, this);
+		} catch (IOException e) {
+			if (ownsRuntime){
+				closeRuntime();
+			}
+			throw e;
+		}
+		admission.setRttEstimator(pings.getOverall());
+		runtime.attach(this);
 	}
 	
+	/**
+	 * Stop listening, close the connection manager (if any) and all incoming
+	 * connections. If this client has its own runtime then this will also 
+	 * close its reactor, a shared runtime keeps running for the others.
+	 * 
+	 * @throws InterruptedException if interrupted while waiting for the reactor
+	 */
 	public void close() throws InterruptedException {
-		this.reactor.close();
+		synchronized (this){
+			if (closed){
+				return;
+			}
+			closed = true;
+		}
+		this.listenPort.close("client closed");
+		ConnectionManager m = manager;
+		if (m != null){
+			m.close();
+		}
+		// onAccept() runs on the reactor, after this has run there 
+		// can not be any new incoming connection anymore.
+		reactor.invokeLater(new Runnable(){
+			@Override
+			public void run() {
+				for (Connection c : incoming){
+					c.close("client closed");
+				}
+			}
+		});
+		runtime.detach(this);
+		if (ownsRuntime){
+			runtime.close();
+		}
+	}
+	
+	private void closeRuntime(){
+		try {
+			runtime.close();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Create a ConnectionManager for the outgoing connections of this
+	 * client. It runs on the client's reactor, connects with the runtime's
+	 * dialer, counts its traffic in this client's statistics and answers
+	 * the pings that arrive at this client.
+	 * 
+	 * @param outbox the outbox for the connections, may be null
+	 * @return the new manager
+	 */
+	public ConnectionManager createConnectionManager(Outbox outbox){
+		ConnectionManager m = new ConnectionManager(reactor, outbox);
+		m.setDialer(runtime.getDialer());
+		m.setStatsGroup(stats);
+		setConnectionManager(m);
+		return m;
+	}
+	
+	/**
+	 * @return the reactor that runs this client's connections and timers
+	 */
+	public Reactor getReactor(){
+		return reactor;
+	}
+	
+	/**
+	 * @return the runtime this client belongs to
+	 */
+	public ClientRuntime getRuntime(){
+		return runtime;
+	}
+	
+	/**
+	 * @return the traffic of all connections of this client together,
+	 * see also ConnectionStats.getTop()
+	 */
+	public ConnectionStats getStats(){
+		return stats;
+	}
+
+	/**
+	 * @return the admission control for incoming connections
+	 */
+	public Admission getAdmission(){
+		return admission;
+	}
+
+	/**
+	 * @return the round trip times measured with our pings, this should 
+	 * be shared with the ConnectionManager that sends the pings.
+	 */
+	public PingTracker getPingTracker(){
+		return pings;
+	}
+
+	/**
+	 * Pings from buddies will be answered over the connections of this 
+	 * manager, it should use our ping tracker (see getPingTracker()).
+	 * 
+	 * @param manager the manager of the outgoing connections
+	 */
+	public void setConnectionManager(ConnectionManager manager){
+		this.manager = manager;
+	}
+
+	/**
+	 * Called by an incoming connection when it has been closed
+	 */
+	void onDisconnected(Connection c){
+		incoming.remove(c);
 	}
 
 	@Override
 	public TCPHandler onAccept(TCP tcp) {
-		Connection c = new Connection(tcp);
+		if (closed){
+			tcp.close("client closed");
+			return SHED;
+		}
+		if (!admission.tryAdmit()){
+			// shed it as cheaply as possible
+			tcp.close("too many unauthenticated connections");
+			return SHED;
+		}
+		Connection c = new Connection(tcp, admission, stats);
+		c.setPingTracker(pings);
+		c.setPonger(manager);
+		c.setClient(this);
+		incoming.add(c);
 		return c;
 	}
+	
+	/**
+	 * handler for connections that are closed right away in onAccept()
+	 */
+	private static final TCPHandler SHED = new TCPHandler(){
+		@Override
+		public void onConnect() {
+			// nothing
+		}
+
+		@Override
+		public void onDisconnect(Exception e) {
+			// nothing
+		}
+
+		@Override
+		public void onReceive(ByteBuffer buf) {
+			// nothing
+		}
+	};
 }
@@ -0,0 +1,134 @@
+package prof7bit.torchat.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import prof7bit.reactor.Backend;
+import prof7bit.reactor.Dialer;
+import prof7bit.reactor.Reactor;
+
+/**
+ * Everything that several TorChat identities in the same process can share:
+ * the reactor threads (and with them all timers), the backend and the
+ * dialer for outgoing connections (for example one ProxyPool for all of
+ * them). Every Client that is created with a runtime gets one of its
+ * reactors assigned (round robin) and still has its own listen port, its
+ * own admission control, ping tracker and connection statistics, so fifty
+ * identities need only as many threads as the runtime has reactors.
+ *
+ * A Client created without a runtime gets a private runtime with one
+ * reactor that is closed together with the Client.
+ *
+ * All methods are thread safe.
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+public class ClientRuntime {
+
+	private Reactor[] reactors;
+	private Backend backend;
+	private volatile Dialer dialer = Connection.TOR;
+	private int next = 0;
+	private boolean closed = false;
+	private List<Client> clients = new CopyOnWriteArrayList<Client>();
+
+	/**
+	 * A runtime with one reactor and the default backend
+	 *
+	 * @throws IOException if the reactor can not be started
+	 */
+	public ClientRuntime() throws IOException {
+		this(1, Backend.getDefault());
+	}
+
+	/**
+	 * @param threads number of reactor threads
+	 * @param backend the backend for the listen ports
+	 * @throws IOException if the reactors can not be started
+	 */
+	public ClientRuntime(int threads, Backend backend) throws IOException {
+		if (threads < 1){
+			throw new IllegalArgumentException("runtime needs at least one reactor");
+		}
+		this.backend = backend;
+		reactors = new Reactor[threads];
+		for (int i = 0; i < threads; i++){
+			reactors[i] = new Reactor();
+		}
+	}
+
+	/**
+	 * Use a different dialer for the outgoing connections of all
+	 * clients, the default is the local Tor proxy (Connection.TOR).
+	 *
+	 * @param dialer the dialer
+	 */
+	public void setDialer(Dialer dialer){
+		this.dialer = dialer;
+	}
+
+	public Dialer getDialer(){
+		return dialer;
+	}
+
+	public Backend getBackend(){
+		return backend;
+	}
+
+	/**
+	 * @return a copy of the list of reactors
+	 */
+	public Reactor[] getReactors(){
+		return reactors.clone();
+	}
+
+	/**
+	 * @return the clients that are currently attached
+	 */
+	public List<Client> getClients(){
+		return new ArrayList<Client>(clients);
+	}
+
+	/**
+	 * @return the reactor for the next client
+	 */
+	synchronized Reactor nextReactor(){
+		if (closed){
+			throw new IllegalStateException("runtime is closed");
+		}
+		Reactor r = reactors[next];
+		next = (next + 1) % reactors.length;
+		return r;
+	}
+
+	void attach(Client c){
+		clients.add(c);
+	}
+
+	void detach(Client c){
+		clients.remove(c);
+	}
+
+	/**
+	 * Close all clients that are still attached and then stop all
+	 * reactors. This blocks until all reactor threads have ended.
+	 *
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void close() throws InterruptedException {
+		synchronized (this){
+			if (closed){
+				return;
+			}
+			closed = true;
+		}
+		for (Client c : clients){
+			c.close();
+		}
+		for (Reactor r : reactors){
+			r.close();
+		}
+	}
+}
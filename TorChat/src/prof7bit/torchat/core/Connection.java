@@ -3,10 +3,18 @@ package prof7bit.torchat.core;
 import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
 
+import prof7bit.log.Log;
+import prof7bit.reactor.Backend;
+import prof7bit.reactor.Dialer;
+import prof7bit.reactor.ProxyPool;
 import prof7bit.reactor.TCPHandler;
 import prof7bit.reactor.Reactor;
 import prof7bit.reactor.TCP;
+import prof7bit.reactor.Timer;
 
 /**
  * This class represents an established TorChat p2p connection, it can either 
@@ -16,11 +24,109 @@ import prof7bit.reactor.TCP;
  *
  */
 public class Connection implements TCPHandler{
+	public static final String SOCKS_PROPERTY = "prof7bit.torchat.socks";
+	
+	/**
+	 * connects through the local Tor socks proxy, with the default backend.
+	 * The system property prof7bit.torchat.socks can list other proxies
+	 * (host:port,host:port,...), they will be used as a ProxyPool.
+	 */
+	static final Dialer TOR = torDialer();
+	
 	private TCP tcp;
+	private Reactor reactor = null;
 	private byte[] bufIncomplete = new byte[0];
 	
+	/**
+	 * the buddy we are connecting to, for incoming connections
+	 * this is only known after the ping has been received.
+	 */
+	private String buddy = null;
+	
+	/**
+	 * Admission control for incoming connections, null if there is none.
+	 * While preAuth is true the connection has not yet sent a valid ping
+	 * and only counts against the admission's limits. Once rejected it will
+	 * ignore everything it receives until onDisconnect(). All of this is
+	 * only accessed from the reactor thread.
+	 */
+	private Admission admission = null;
+	private boolean preAuth = false;
+	private boolean rejected = false;
+	private long preAuthBytes = 0;
+	private Timer handshakeDeadline = null;
+	
+	/**
+	 * messages sent while not connected go here, may be null
+	 */
+	private Outbox outbox = null;
+	private boolean connected = false;
+	
+	/**
+	 * the manager that has created this outgoing connection, may be null
+	 */
+	private ConnectionManager manager = null;
+	
+	/**
+	 * true while the dialer of this outgoing connection is running, see
+	 * deferWhileDialing()
+	 */
+	private volatile boolean dialing = false;
+	
+	/**
+	 * matches pongs to our pings, may be null
+	 */
+	private PingTracker pings = null;
+	
+	/**
+	 * answers the pings that arrive on this incoming connection, may be null
+	 */
+	private ConnectionManager ponger = null;
+	
+	/**
+	 * the client that has accepted this incoming connection, may be null
+	 */
+	private Client client = null;
+	
+	/**
+	 * buffers from the outbox that are currently in the TCP send queue,
+	 * only accessed from the reactor thread.
+	 */
+	private Set<ByteBuffer> replaying = Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+	
+	/**
+	 * time of the last send() in milliseconds of the reactor's clock
+	 */
+	private volatile long lastSent = 0;
+	
+	/**
+	 * traffic counters of this connection
+	 */
+	private ConnectionStats stats;
+	
+	/**
+	 * Send a message. If this connection has an outbox and is not connected
+	 * then the message will be stored in the outbox and sent after the
+	 * connection has been established, otherwise it will be sent directly. 
+	 * 
+	 * @param b the message to send
+	 */
 	public void send(MessageBuffer b){
-		tcp.send(b.encodeForSending());
+		ByteBuffer buf = b.encodeForSending();
+		stats.addMessageOut(ConnectionStats.commandIndex(b), b.size(), buf.limit());
+		lastSent = tcp.getReactor().now();
+		synchronized (this){
+			if (outbox != null && !connected){
+				try {
+					outbox.add(buddy, buf.array());
+					return;
+				} catch (IOException e) {
+					// can't store it, try to send it the normal way
+					Log.e(this, "could not store message in outbox", e);
+				}
+			}
+			tcp.send(buf);
+		}
 	}
 	
 	/**
@@ -31,7 +137,51 @@ public class Connection implements TCPHandler{
 	 * @param c an already connected Handle object 
 	 */
 	public Connection(TCP c){
+		this(c, (ConnectionStats) null);
+	}
+	
+	/**
+	 * An incoming connection whose traffic counts towards a group
+	 * 
+	 * @param c an already connected Handle object
+	 * @param group the statistics group or null
+	 */
+	Connection(TCP c, ConnectionStats group){
 		tcp = c;
+		stats = ConnectionStats.open("incoming", c, group);
+	}
+	
+	/**
+	 * An incoming connection that is subject to admission control. The
+	 * caller must already have been admitted with admission.tryAdmit(), this
+	 * connection will release it again when it has received a valid ping or
+	 * when it is closed. If the ping does not come in time or too much
+	 * data or anything else arrives before it then it will be closed.
+	 * 
+	 * @param c an already connected Handle object
+	 * @param admission the admission that has admitted this connection
+	 */
+	public Connection(TCP c, Admission admission){
+		this(c, admission, null);
+	}
+	
+	/**
+	 * Same as Connection(c, admission) for a connection whose
+	 * traffic counts towards a statistics group 
+	 */
+	Connection(TCP c, Admission admission, ConnectionStats group){
+		this(c, group);
+		this.admission = admission;
+		this.preAuth = true;
+		handshakeDeadline = c.getReactor().schedule(admission.getEffectiveHandshakeTimeout(), new Runnable(){
+			@Override
+			public void run() {
+				if (preAuth){
+					Connection.this.admission.countTimeout();
+					reject("no ping within handshake timeout");
+				}
+			}
+		});
 	}
 	
 	/**
@@ -47,25 +197,326 @@ public class Connection implements TCPHandler{
 	 * @throws IOException problems opening the local socket (not the connection itself)  
 	 */
 	public Connection(Reactor r, String addr, int port) throws IOException{
-		tcp = new TCP(r, addr, port, this, "127.0.0.1", 9050, "TorChat");
+		this(r, addr, port, null);
+	}
+	
+	/**
+	 * Create a new outgoing connection through the Tor proxy (Socks4a) that
+	 * will use an outbox. Messages sent while the connection is not yet
+	 * established go into the outbox and everything that is in the outbox
+	 * will be sent in one burst once the connection is established. Messages
+	 * that are still unsent when the connection drops will be rescued into
+	 * the outbox.
+	 * 
+	 * @param r the reactor that should monitor this connection
+	 * @param addr IP-address or host name to connect to
+	 * @param port Port to connect to
+	 * @param outbox the outbox, may be null
+	 * @throws IOException problems opening the local socket (not the connection itself)  
+	 */
+	public Connection(Reactor r, String addr, int port, Outbox outbox) throws IOException{
+		this(r, addr, port, outbox, null, TOR, null);
+	}
+	
+	/**
+	 * Outgoing connection that is owned by a ConnectionManager, the manager
+	 * will be notified when the connection is established or closed. The
+	 * dialer decides how the connection is made, the traffic counts towards
+	 * the statistics group (may be null).
+	 */
+	Connection(Reactor r, String addr, int port, Outbox outbox, ConnectionManager manager, Dialer dialer, ConnectionStats group) throws IOException{
+		this.buddy = addr;
+		this.outbox = outbox;
+		this.manager = manager;
+		this.reactor = r;
+		// a dialer may fire onConnect() or onDisconnect() before dial() has
+		// returned, the stats must exist then and the events are deferred.
+		stats = ConnectionStats.open(addr, null, group);
+		dialing = true;
+		try {
+			tcp = dialer.dial(r, addr, port, this);
+		} catch (IOException e) {
+			stats.close();
+			throw e;
+		} finally {
+			dialing = false;
+		}
+		stats.setTCP(tcp);
+	}
+	
+	/**
+	 * Pongs that arrive on this connection will be passed to this tracker
+	 * 
+	 * @param pings the tracker of our pings
+	 */
+	void setPingTracker(PingTracker pings){
+		this.pings = pings;
+	}
+	
+	/**
+	 * Pings that arrive on this connection will be answered with a 
+	 * pong over the manager's connection to the same buddy.
+	 * 
+	 * @param manager the manager of our outgoing connections
+	 */
+	void setPonger(ConnectionManager manager){
+		this.ponger = manager;
+	}
+	
+	/**
+	 * The client will be notified when this incoming connection is closed
+	 * 
+	 * @param client the client that has accepted this connection
+	 */
+	void setClient(Client client){
+		this.client = client;
+	}
+	
+	/**
+	 * Send a ping, its round trip will be measured when the pong
+	 * arrives (on the buddy's connection to us).
+	 * 
+	 * @param ownAddress our own onion address
+	 */
+	void sendPing(String ownAddress){
+		String cookie = pings.ping(buddy, tcp.getReactor().now());
+		send(new Msg_ping(this, ownAddress, cookie).serialize());
+	}
+	
+	private static Dialer torDialer(){
+		String socks = System.getProperty(SOCKS_PROPERTY);
+		if (socks == null){
+			return Backend.getDefault().dialer("127.0.0.1", 9050, "TorChat");
+		}
+		return ProxyPool.parse(Backend.getDefault(), socks, "TorChat");
+	}
+	
+	/**
+	 * @return the address of the buddy for outgoing connections, for 
+	 * incoming connections the address from the ping or null before.
+	 */
+	public String getBuddyAddress(){
+		return buddy;
+	}
+	
+	/**
+	 * @return the time of the last send() in milliseconds of the reactor's 
+	 * clock (see Reactor.now()) or 0 if nothing has been sent yet.
+	 */
+	public long getLastSent(){
+		return lastSent;
+	}
+	
+	/**
+	 * @return the traffic counters of this connection
+	 */
+	public ConnectionStats getStats(){
+		return stats;
+	}
+	
+	/**
+	 * @return true if the connection is established
+	 */
+	public synchronized boolean isConnected(){
+		return connected;
+	}
+	
+	/**
+	 * Close the connection. onDisconnect() will be called afterwards.
+	 * 
+	 * @param reason the reason, this will be passed to onDisconnect()
+	 */
+	public void close(String reason){
+		tcp.close(reason);
 	}
 
 	@Override
 	public void onConnect() {
-		// TODO Auto-generated method stub
+		if (deferWhileDialing(new Runnable(){
+			@Override
+			public void run() {
+				onConnect();
+			}
+		})){
+			return;
+		}
+		synchronized (this){
+			connected = true;
+			replayOutbox();
+		}
+		if (manager != null){
+			manager.onConnected(this);
+		}
 	}
 
 	@Override
-	public void onDisconnect(Exception e) {
-		System.out.println("Connection.onDisconnect: " + e.toString());
-		// TODO Auto-generated method stub
+	public void onDisconnect(final Exception e) {
+		if (deferWhileDialing(new Runnable(){
+			@Override
+			public void run() {
+				onDisconnect(e);
+			}
+		})){
+			return;
+		}
+		Log.i(this, "onDisconnect", e);
+		endPreAuth();
+		synchronized (this){
+			connected = false;
+			rescueUnsent();
+		}
+		stats.close();
+		if (manager != null){
+			manager.onDisconnected(this);
+		}
+		if (client != null){
+			client.onDisconnected(this);
+		}
+	}
+	
+	/**
+	 * A dialer can fire the events from inside dial() (a direct connect
+	 * can succeed immediately), then neither do we have our TCP yet nor
+	 * does the manager know about this connection. Such an event is run
+	 * again later from the reactor, after the dial has returned.
+	 * 
+	 * @param event the event handler to run again
+	 * @return true if the event has been deferred
+	 */
+	private boolean deferWhileDialing(Runnable event){
+		if (!dialing){
+			return false;
+		}
+		reactor.invokeLater(event);
+		return true;
+	}
+	
+	/**
+	 * send everything from the outbox in one corked burst. Entries
+	 * are only removed from the outbox after they have been written.
+	 */
+	private void replayOutbox(){
+		if (outbox == null){
+			return;
+		}
+		try {
+			tcp.cork();
+			for (Outbox.Entry entry : outbox.getPending(buddy)){
+				ByteBuffer buf = ByteBuffer.wrap(entry.getData());
+				replaying.add(buf);
+				tcp.send(buf, new OutboxEntryWritten(buf, entry.getSeq()));
+			}
+		} catch (IOException e) {
+			Log.e(this, "could not read outbox", e);
+		} finally {
+			tcp.uncork();
+		}
+	}
+	
+	/**
+	 * move whatever is still in the TCP send queue into the outbox, except
+	 * the buffers that came from the outbox and are still in there anyways.
+	 */
+	private void rescueUnsent(){
+		if (outbox == null || tcp == null){
+			return;
+		}
+		for (ByteBuffer buf : tcp.removeUnsent()){
+			if (!replaying.contains(buf)){
+				try {
+					outbox.add(buddy, buf.array());
+				} catch (IOException e) {
+					Log.e(this, "could not store unsent message in outbox", e);
+				}
+			}
+		}
+		replaying.clear();
+	}
+
+	/**
+	 * Called by Msg_ping, for incoming connections under admission
+	 * control this is the end of the handshake.
+	 * 
+	 * @param address the address the peer claims to be
+	 * @param cookie the cookie that must be sent back in the pong
+	 */
+	void onPing(String address, String cookie){
+		if (preAuth){
+			buddy = address;
+			endPreAuth();
+		}
+		if (ponger != null){
+			ponger.pong(address, cookie);
+		}
+	}
+	
+	/**
+	 * Called by Msg_pong, this completes the round trip of one of our pings
+	 * 
+	 * @param cookie the cookie from our ping
+	 */
+	void onPong(String cookie){
+		if (pings != null){
+			String from = pings.pong(cookie, tcp.getReactor().now());
+			if (from != null && !from.equals(buddy)){
+				Log.w(this, "pong for a ping to another buddy", from);
+			}
+		}
+	}
+	
+	/**
+	 * not unauthenticated anymore, either authenticated or closed
+	 */
+	private void endPreAuth(){
+		if (preAuth){
+			preAuth = false;
+			handshakeDeadline.cancel();
+			admission.release();
+		}
+	}
+	
+	/**
+	 * close an unauthenticated connection and ignore everything it
+	 * sends until onDisconnect() arrives.
+	 */
+	private void reject(String reason){
+		if (!rejected){
+			rejected = true;
+			bufIncomplete = new byte[0];
+			tcp.close(reason);
+		}
+	}
+
+	/**
+	 * the peer has violated the protocol, unauthenticated connections
+	 * are rejected so that they won't process anything after this.
+	 */
+	private void closeProtocolError(String reason){
+		if (preAuth){
+			admission.countViolation();
+			reject(reason);
+		}else{
+			tcp.close(reason);
+		}
 	}
 
 	@Override
 	public void onReceive(ByteBuffer bufReceived){
+		if (rejected){
+			return;
+		}
 		
 		// bufTotal = existing data + new data
 		int lenReceived = bufReceived.limit();
+		stats.addReceived(lenReceived);
+		if (preAuth){
+			preAuthBytes += lenReceived;
+			if (preAuthBytes > admission.getPreAuthLimit()){
+				admission.countOverflow();
+				reject("too much data before ping");
+				return;
+			}
+		}
 		int lenIncomplete = 0;
 		lenIncomplete = bufIncomplete.length;
 		int lenTotal = lenIncomplete + lenReceived;
@@ -83,6 +534,9 @@ public class Connection implements TCPHandler{
 					byte[] msg = new byte[lenMsg];
 					System.arraycopy(bufTotal, posMsgStart, msg, 0, lenMsg);
 					onCompleteMessage(msg);
+					if (rejected){
+						return;
+					}
 				}
 				posMsgStart = posDelimiter + 1;
 				posDelimiter = posMsgStart - 1;
@@ -100,6 +554,7 @@ public class Connection implements TCPHandler{
 				bufIncomplete = new byte[0];
 			}
 		}
+		stats.setFramingSize(bufIncomplete.length);
 	}
 
 	/**
@@ -115,24 +570,52 @@ public class Connection implements TCPHandler{
 		MessageBuffer buf = new MessageBuffer(bytes);
 		try {
 			String command = buf.readCommand();
+			stats.addMessageIn(ConnectionStats.commandIndex(command), buf.size());
+			if (preAuth && !command.equals("ping")){
+				admission.countViolation();
+				reject("peer has sent " + command + " before ping");
+				return;
+			}
 			Msg msg = getMsgInstanceFromCommand(command);
 			msg.parse(buf);
 			msg.execute(); // TODO: should enqueue it for executing in separate thread
 		} catch (EOFException e) {
 			// this would be thrown by readCommand()
-			this.tcp.close("peer has sent empty message");
+			closeProtocolError("peer has sent empty message");
 		} catch (XMessageParseException e) {
 			// this would be thrown by parse()
-			this.tcp.close("peer has sent malformed message: " + e.getMessage());
+			closeProtocolError("peer has sent malformed message: " + e.getMessage());
 		} catch (Exception e) {
 			// This would be thrown by getMsgInstanceFromCommand()
 			// this should never happen and would be a bug in TorChat itself.
-			System.err.println("Houston, we have a problem!");
-			e.printStackTrace();
+			Log.e(this, "Houston, we have a problem!", e);
 			this.tcp.close("internal protocol error");
 		}
 	}
 	
+	/**
+	 * Callback that runs when an outbox entry has been written to the socket
+	 */
+	private class OutboxEntryWritten implements Runnable {
+		private ByteBuffer buf;
+		private long seq;
+		
+		public OutboxEntryWritten(ByteBuffer buf, long seq){
+			this.buf = buf;
+			this.seq = seq;
+		}
+		
+		@Override
+		public void run(){
+			replaying.remove(buf);
+			try {
+				outbox.remove(buddy, seq);
+			} catch (IOException e) {
+				Log.e(Connection.this, "could not remove entry from outbox", e);
+			}
+		}
+	}
+	
 	/**
 	 * Instantiate and return the correct message for this command.
 	 * If the command can not be found then instantiate MsgUnknown.
@@ -144,7 +627,7 @@ public class Connection implements TCPHandler{
 	 * implemented message classes. This would be a bug in TorChat
 	 * itself or one of the Msg_xxxx classes and is not supposed to happen.
 	 */
-	private Msg getMsgInstanceFromCommand(String command) throws Exception{
+	Msg getMsgInstanceFromCommand(String command) throws Exception{
 		try {
 			String packageName = this.getClass().getPackage().getName();
 			Class<?> C = Class.forName(packageName + ".Msg_" + command);
@@ -0,0 +1,595 @@
+package prof7bit.torchat.core;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import prof7bit.log.Log;
+import prof7bit.reactor.Dialer;
+import prof7bit.reactor.Reactor;
+import prof7bit.reactor.Timer;
+
+/**
+ * This class owns the outgoing connections to all buddies. The application
+ * adds the buddies it wants to be connected to and the manager will then
+ * try to connect them and reconnect them whenever they drop.
+ *
+ * Failed attempts are retried with exponential backoff plus random jitter
+ * so that hundreds of offline buddies don't all retry at the same moment.
+ * There is a global limit on the number of connections that can be in the
+ * middle of connecting (the socks handshake with Tor) at the same time,
+ * buddies that are ready to be connected wait in a queue in which recently
+ * active buddies come first.
+ *
+ * Every connect attempt has a deadline. If there is a PingTracker then a
+ * ping is sent over every new connection and the deadline adapts to the
+ * measured round trip times of that buddy: a buddy with a fast circuit is
+ * given up quickly and retried, a buddy behind a slow circuit is given
+ * enough time. Without any measurements the deadline is CONNECT_TIMEOUT.
+ *
+ * With waitForTor() the manager listens to the Tor control port: it does
+ * not dial at all before Tor has bootstrapped and it starts dialing the
+ * moment Tor becomes ready, and when Tor has fetched the descriptor of a
+ * buddy that is waiting for its next retry then it is retried right away.
+ *
+ * All state is only ever touched from the reactor thread, the public
+ * methods are thread safe and will just enqueue their work there. No
+ * additional threads are used, all waiting is done with reactor timers.
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+public class ConnectionManager {
+
+	public static final int DEFAULT_MAX_CONNECTING = 8;
+	public static final int TORCHAT_PORT = 11009;
+
+	static final long BACKOFF_MIN = 5000;
+	static final long BACKOFF_MAX = 15 * 60 * 1000;
+
+	/**
+	 * The connect deadline is CONNECT_RTTS times the RTO of the buddy,
+	 * connecting to a hidden service takes several round trips.
+	 */
+	static final long CONNECT_TIMEOUT = 120000;
+	static final long MIN_CONNECT_TIMEOUT = 15000;
+	static final int CONNECT_RTTS = 8;
+
+	private Reactor reactor;
+	private Outbox outbox;
+	private int maxConnecting;
+	private Random random;
+	private KeepaliveService keepalive = null;
+	private Dialer dialer = Connection.TOR;
+	private PingTracker pings = null;
+	private String ownAddress = null;
+	private ConnectionStats statsGroup = null;
+
+	private Map<String, BuddyState> buddies = new ConcurrentHashMap<String, BuddyState>();
+
+	/**
+	 * buddies that may be connected now, most recently active first
+	 */
+	private PriorityQueue<BuddyState> ready = new PriorityQueue<BuddyState>(64, new RecentFirst());
+
+	/**
+	 * number of connections currently in the middle of connecting
+	 */
+	private int connecting = 0;
+
+	/**
+	 * false while Tor is known to be unable to build circuits
+	 */
+	private boolean torReady = true;
+
+	/**
+	 * set by close(), after that nothing is dialed anymore
+	 */
+	private boolean closed = false;
+
+	/**
+	 * Create a new connection manager with default settings.
+	 *
+	 * @param reactor the reactor for the connections and timers
+	 * @param outbox outbox for the connections, may be null
+	 */
+	public ConnectionManager(Reactor reactor, Outbox outbox){
+		this(reactor, outbox, DEFAULT_MAX_CONNECTING, new Random());
+	}
+
+	/**
+	 * Create a new connection manager.
+	 *
+	 * @param reactor the reactor for the connections and timers
+	 * @param outbox outbox for the connections, may be null
+	 * @param maxConnecting max. number of simultaneous connect attempts
+	 * @param random random generator for the backoff jitter
+	 */
+	public ConnectionManager(Reactor reactor, Outbox outbox, int maxConnecting, Random random){
+		this.reactor = reactor;
+		this.outbox = outbox;
+		this.maxConnecting = maxConnecting;
+		this.random = random;
+	}
+
+	/**
+	 * Let the keepalive service take care of all established connections.
+	 * This must be set before any buddies are added.
+	 *
+	 * @param keepalive the keepalive service
+	 */
+	public void setKeepaliveService(KeepaliveService keepalive){
+		this.keepalive = keepalive;
+	}
+
+	/**
+	 * Use a different way of making connections, the default is to connect
+	 * through the local Tor proxy. This must be set before any buddies are
+	 * added.
+	 *
+	 * @param dialer the dialer for all outgoing connections
+	 */
+	public void setDialer(Dialer dialer){
+		this.dialer = dialer;
+	}
+
+	/**
+	 * Count the traffic of all connections towards this group, for
+	 * example the statistics of one identity. This must be set before
+	 * any buddies are added.
+	 *
+	 * @param group the statistics group
+	 */
+	public void setStatsGroup(ConnectionStats group){
+		this.statsGroup = group;
+	}
+
+	/**
+	 * Send a ping over every new connection and measure the round trip
+	 * times. This must be the same tracker that the incoming connections 
+	 * use (see Client.getPingTracker()) because that's where the pongs
+	 * arrive. This must be set before any buddies are added.
+	 *
+	 * @param pings the ping tracker
+	 * @param ownAddress our own onion address for the pings
+	 */
+	public void setPingTracker(PingTracker pings, String ownAddress){
+		this.pings = pings;
+		this.ownAddress = ownAddress;
+	}
+
+	/**
+	 * Don't dial before Tor is ready, see setTorReady(). If the control
+	 * connection fails the manager falls back to dialing blindly. This
+	 * must be called before any buddies are added.
+	 *
+	 * @param control the control port client, not yet connected
+	 */
+	public void waitForTor(TorControl control){
+		setTorReady(false);
+		control.addHandler(new TorReadiness());
+	}
+
+	/**
+	 * Tell the manager whether Tor can make connections now. While not
+	 * ready no connection attempts are made. When it becomes ready all
+	 * buddies that are waiting for a retry are dialed right away, their
+	 * failures were most likely caused by Tor not being ready.
+	 *
+	 * @param ready true if Tor is ready
+	 */
+	public void setTorReady(final boolean ready){
+		reactor.invokeLater(new Runnable(){
+			@Override
+			public void run() {
+				if (ready == torReady){
+					return;
+				}
+				torReady = ready;
+				if (ready){
+					for (BuddyState b : buddies.values()){
+						if (b.retry != null){
+							retryNow(b);
+						}
+					}
+					dial();
+				}
+			}
+		});
+	}
+
+	/**
+	 * There is a sign that this buddy is online (Tor has fetched its
+	 * descriptor), if it is waiting for its next retry then dial now.
+	 *
+	 * @param address the onion address of the buddy, with or without .onion
+	 */
+	public void wakeUp(final String address){
+		reactor.invokeLater(new Runnable(){
+			@Override
+			public void run() {
+				BuddyState b = buddies.get(address);
+				if (b == null){
+					b = buddies.get(address + ".onion");
+				}
+				if (b != null && b.retry != null){
+					retryNow(b);
+					dial();
+				}
+			}
+		});
+	}
+
+	private void retryNow(BuddyState b){
+		b.retry.cancel();
+		b.retry = null;
+		b.failures = 0;
+		ready.add(b);
+	}
+
+	/**
+	 * Start managing the connection to this buddy. It will be
+	 * connected as soon as there is a free slot.
+	 *
+	 * @param address the onion address of the buddy
+	 */
+	public void addBuddy(final String address){
+		reactor.invokeLater(new Runnable(){
+			@Override
+			public void run() {
+				if (!closed && !buddies.containsKey(address)){
+					BuddyState b = new BuddyState(address);
+					buddies.put(address, b);
+					ready.add(b);
+					dial();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stop managing this buddy and close its connection.
+	 *
+	 * @param address the onion address of the buddy
+	 */
+	public void removeBuddy(final String address){
+		reactor.invokeLater(new Runnable(){
+			@Override
+			public void run() {
+				BuddyState b = buddies.remove(address);
+				if (b != null){
+					ready.remove(b);
+					if (b.retry != null){
+						b.retry.cancel();
+					}
+					if (b.deadline != null){
+						b.deadline.cancel();
+					}
+					if (pings != null){
+						pings.remove(address);
+					}
+					if (b.connection != null){
+						if (!b.connected){
+							connecting--;
+						}
+						if (keepalive != null){
+							keepalive.remove(b.connection);
+						}
+						b.connection.close("buddy removed");
+						dial();
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stop managing all buddies: cancel all timers, close all connections
+	 * and ignore all further requests. The outbox is not closed, it may
+	 * be shared. This will not block, the work is done on the reactor.
+	 */
+	public void close(){
+		reactor.invokeLater(new Runnable(){
+			@Override
+			public void run() {
+				if (closed){
+					return;
+				}
+				closed = true;
+				ready.clear();
+				for (BuddyState b : buddies.values()){
+					if (b.retry != null){
+						b.retry.cancel();
+						b.retry = null;
+					}
+					if (b.deadline != null){
+						b.deadline.cancel();
+						b.deadline = null;
+					}
+					Connection c = b.connection;
+					if (c != null){
+						if (keepalive != null){
+							keepalive.remove(c);
+						}
+						c.close("connection manager closed");
+					}
+				}
+				// their onDisconnected() will now find nothing to do
+				buddies.clear();
+				connecting = 0;
+			}
+		});
+	}
+
+	/**
+	 * Tell the manager that there has been activity with this buddy (a
+	 * message has been sent or received). Recently active buddies will
+	 * be connected first.
+	 *
+	 * @param address the onion address of the buddy
+	 */
+	public void touch(final String address){
+		reactor.invokeLater(new Runnable(){
+			@Override
+			public void run() {
+				BuddyState b = buddies.get(address);
+				if (b != null){
+					// re-insert to restore the heap order
+					boolean wasReady = ready.remove(b);
+					b.lastActive = reactor.now();
+					if (wasReady){
+						ready.add(b);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Send a ping to measure the round trip time, nothing
+	 * happens if the buddy is not connected.
+	 *
+	 * @param address the onion address of the buddy
+	 */
+	public void ping(final String address){
+		reactor.invokeLater(new Runnable(){
+			@Override
+			public void run() {
+				BuddyState b = buddies.get(address);
+				if (pings != null && b != null && b.connected){
+					b.connection.sendPing(ownAddress);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Answer a ping that has arrived on an incoming connection, the
+	 * pong goes back over our connection to that buddy. It is dropped
+	 * if that connection is not established.
+	 *
+	 * @param address the onion address of the buddy
+	 * @param cookie the cookie from the buddy's ping
+	 */
+	public void pong(String address, String cookie){
+		BuddyState b = buddies.get(address);
+		Connection c = b == null ? null : b.connection;
+		if (c != null && c.isConnected()){
+			c.send(new Msg_pong(c, cookie).serialize());
+		}
+	}
+
+	/**
+	 * Send a message to a buddy. If there is no connection it will go
+	 * directly into the outbox (if there is one) or otherwise be dropped.
+	 *
+	 * @param address the onion address of the buddy
+	 * @param msg the message
+	 * @return false if the message had to be dropped
+	 */
+	public boolean send(String address, MessageBuffer msg){
+		BuddyState b = buddies.get(address);
+		Connection c = b == null ? null : b.connection;
+		if (c != null){
+			c.send(msg);
+			return true;
+		}
+		if (outbox != null){
+			try {
+				outbox.add(address, msg.encodeForSending().array());
+				return true;
+			} catch (IOException e) {
+				Log.e(this, "could not store message in outbox", e);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param address the onion address of the buddy
+	 * @return the outgoing connection to this buddy or null
+	 */
+	public Connection getConnection(String address){
+		BuddyState b = buddies.get(address);
+		return b == null ? null : b.connection;
+	}
+
+	/**
+	 * Called by the Connection when the connection (including the
+	 * socks handshake) has been established.
+	 */
+	void onConnected(Connection c){
+		BuddyState b = buddies.get(c.getBuddyAddress());
+		if (b == null || b.connection != c){
+			return;
+		}
+		b.connected = true;
+		b.failures = 0;
+		b.deadline.cancel();
+		b.deadline = null;
+		connecting--;
+		if (pings != null){
+			c.sendPing(ownAddress);
+		}
+		if (keepalive != null){
+			keepalive.add(c);
+		}
+		dial();
+	}
+
+	/**
+	 * Called by the Connection when it has been closed or when
+	 * the connect attempt has failed.
+	 */
+	void onDisconnected(Connection c){
+		BuddyState b = buddies.get(c.getBuddyAddress());
+		if (b == null || b.connection != c){
+			return;
+		}
+		b.connection = null;
+		if (b.deadline != null){
+			b.deadline.cancel();
+			b.deadline = null;
+		}
+		if (keepalive != null){
+			keepalive.remove(c);
+		}
+		if (b.connected){
+			// it was up and running, try again soon
+			b.connected = false;
+		}else{
+			connecting--;
+			b.failures++;
+		}
+		scheduleRetry(b);
+		dial();
+	}
+
+	/**
+	 * Compute the delay before the next attempt: exponential backoff with
+	 * "equal jitter", a random value between half and the full delay. The
+	 * delay doubles with every failure, starting at twice BACKOFF_MIN, so
+	 * the result is always between BACKOFF_MIN and BACKOFF_MAX.
+	 */
+	long backoff(int failures){
+		long delay = BACKOFF_MAX;
+		if (failures < 20){
+			delay = Math.min(BACKOFF_MAX, BACKOFF_MIN << (Math.max(0, failures) + 1));
+		}
+		return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+	}
+
+	/**
+	 * @return the connect deadline for this buddy in milliseconds
+	 */
+	long connectTimeout(String address){
+		if (pings == null){
+			return CONNECT_TIMEOUT;
+		}
+		return pings.getEstimator(address).timeout(CONNECT_RTTS, MIN_CONNECT_TIMEOUT, CONNECT_TIMEOUT);
+	}
+
+	private void scheduleRetry(final BuddyState b){
+		b.retry = reactor.schedule(backoff(b.failures), new Runnable(){
+			@Override
+			public void run() {
+				b.retry = null;
+				if (buddies.get(b.address) == b){
+					ready.add(b);
+					dial();
+				}
+			}
+		});
+	}
+
+	/**
+	 * start as many connect attempts as allowed
+	 */
+	private void dial(){
+		if (closed || !torReady){
+			return;
+		}
+		while (connecting < maxConnecting && !ready.isEmpty()){
+			BuddyState b = ready.poll();
+			connecting++;
+			try {
+				final Connection c = new Connection(reactor, b.address, TORCHAT_PORT, outbox, this, dialer, statsGroup);
+				c.setPingTracker(pings);
+				b.connection = c;
+				b.deadline = reactor.schedule(connectTimeout(b.address), new Runnable(){
+					@Override
+					public void run() {
+						c.close("connect timeout");
+					}
+				});
+			} catch (IOException e) {
+				Log.e(this, "could not create connection", e);
+				connecting--;
+				b.failures++;
+				scheduleRetry(b);
+			}
+		}
+	}
+
+	/**
+	 * Follows the Tor control port
+	 */
+	private class TorReadiness implements TorControlHandler {
+		@Override
+		public void onBootstrap(int progress, String summary) {
+			Log.i(ConnectionManager.this, "tor bootstrap", progress, summary);
+		}
+
+		@Override
+		public void onReady(boolean ready) {
+			setTorReady(ready);
+		}
+
+		@Override
+		public void onHsDesc(String action, String address, String reason) {
+			if (action.equals("RECEIVED")){
+				wakeUp(address);
+			}
+		}
+
+		@Override
+		public void onCircuitBuilt(String id, String address, long millis) {
+			// nothing
+		}
+
+		@Override
+		public void onDisconnect(Exception e) {
+			// without the control port we can only try blindly
+			setTorReady(true);
+		}
+	}
+
+	/**
+	 * Everything we know about one buddy
+	 */
+	private static class BuddyState {
+		final String address;
+		volatile Connection connection = null;
+		boolean connected = false;
+		int failures = 0;
+		long lastActive = 0;
+		Timer retry = null;
+		Timer deadline = null;
+
+		BuddyState(String address){
+			this.address = address;
+		}
+	}
+
+	private static class RecentFirst implements Comparator<BuddyState> {
+		@Override
+		public int compare(BuddyState a, BuddyState b) {
+			if (a.lastActive == b.lastActive){
+				return 0;
+			}
+			return a.lastActive > b.lastActive ? -1 : 1;
+		}
+	}
+}
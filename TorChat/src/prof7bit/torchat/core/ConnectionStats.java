@@ -0,0 +1,375 @@
+package prof7bit.torchat.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import prof7bit.reactor.TCP;
+
+/**
+ * Traffic counters of a single Connection. Bytes are counted both raw (the
+ * message content before transfer-encoding) and as they go over the wire
+ * (escaped and with the delimiter), messages are counted per command. All
+ * counters are lock-free and every update is also added to a process-wide
+ * aggregate, see getTotal(). Statistics of all open connections can be
+ * listed with top() to find the peers that cause the most traffic.
+ *
+ * Connections can also belong to a group (one TorChat identity when several
+ * of them run in the same process, see ClientRuntime), the updates then go
+ * to the group and from there to the total.
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+public class ConnectionStats {
+
+	/**
+	 * the commands that are counted separately, everything else is
+	 * counted as "other".
+	 */
+	public static final String[] COMMANDS = {
+		"ping", "pong", "client", "version", "status", "profile_name",
+		"profile_text", "profile_avatar_alpha", "profile_avatar", "add_me",
+		"remove_me", "message", "filename", "filedata", "filedata_ok",
+		"filedata_error", "file_stop_sending", "file_stop_receiving",
+		"not_implemented", "other"
+	};
+	private static final int OTHER = COMMANDS.length - 1;
+	private static final byte[][] COMMAND_BYTES = new byte[COMMANDS.length][];
+	private static final Map<String, Integer> COMMAND_INDEX = new HashMap<String, Integer>();
+	static {
+		for (int i = 0; i < OTHER; i++){
+			COMMAND_BYTES[i] = COMMANDS[i].getBytes();
+			COMMAND_INDEX.put(COMMANDS[i], i);
+		}
+	}
+
+	private static final ConnectionStats total = new ConnectionStats("total", null, null, false);
+	private static final Set<ConnectionStats> open = Collections.newSetFromMap(new ConcurrentHashMap<ConnectionStats, Boolean>());
+
+	private final String name;
+	private volatile TCP tcp;
+	private final ConnectionStats parent;
+	private final boolean connection;
+	private final AtomicLong bytesInRaw = new AtomicLong();
+	private final AtomicLong bytesInWire = new AtomicLong();
+	private final AtomicLong bytesOutRaw = new AtomicLong();
+	private final AtomicLong bytesOutWire = new AtomicLong();
+	private final AtomicLongArray messagesIn = new AtomicLongArray(COMMANDS.length);
+	private final AtomicLongArray messagesOut = new AtomicLongArray(COMMANDS.length);
+	private volatile int framingSize = 0;
+	private volatile int framingMax = 0;
+
+	private ConnectionStats(String name, TCP tcp, ConnectionStats parent, boolean connection){
+		this.name = name;
+		this.tcp = tcp;
+		this.parent = parent;
+		this.connection = connection;
+	}
+
+	/**
+	 * Create the statistics for a new connection and add them to the list
+	 * of open connections, they will stay there until close() is called.
+	 */
+	static ConnectionStats open(String name, TCP tcp){
+		return open(name, tcp, null);
+	}
+
+	/**
+	 * Same as open(name, tcp) for a connection that belongs to a group
+	 *
+	 * @param group the group or null
+	 */
+	static ConnectionStats open(String name, TCP tcp, ConnectionStats group){
+		ConnectionStats s = new ConnectionStats(name, tcp, group == null ? total : group, true);
+		open.add(s);
+		return s;
+	}
+
+	/**
+	 * Create the statistics for a group of connections, all connections
+	 * opened with this group will count towards it and towards the total.
+	 *
+	 * @param name the name of the group
+	 * @return the new group
+	 */
+	public static ConnectionStats group(String name){
+		return new ConnectionStats(name, null, total, false);
+	}
+
+	/**
+	 * Set the TCP of a connection that has been opened with a null TCP
+	 * because its statistics had to exist before it could be created.
+	 */
+	void setTCP(TCP tcp){
+		this.tcp = tcp;
+	}
+
+	/**
+	 * remove this from the list of open connections
+	 */
+	void close(){
+		open.remove(this);
+	}
+
+	/**
+	 * @return statistics of all connections together
+	 */
+	public static ConnectionStats getTotal(){
+		return total;
+	}
+
+	/**
+	 * @param n maximum number of connections to return
+	 * @return the n open connections with the most traffic, biggest first
+	 */
+	public static List<ConnectionStats> top(int n){
+		return total.getTop(n);
+	}
+
+	/**
+	 * @param n maximum number of connections to return
+	 * @return the n open connections of this group with the most
+	 * traffic, biggest first
+	 */
+	public List<ConnectionStats> getTop(int n){
+		List<ConnectionStats> all = new ArrayList<ConnectionStats>();
+		for (ConnectionStats s : open){
+			if (isMember(s)){
+				all.add(s);
+			}
+		}
+		final Map<ConnectionStats, Long> traffic = new HashMap<ConnectionStats, Long>();
+		for (ConnectionStats s : all){
+			traffic.put(s, s.getBytesInWire() + s.getBytesOutWire());
+		}
+		Collections.sort(all, new Comparator<ConnectionStats>(){
+			@Override
+			public int compare(ConnectionStats a, ConnectionStats b) {
+				return traffic.get(b).compareTo(traffic.get(a));
+			}
+		});
+		return all.subList(0, Math.min(n, all.size()));
+	}
+
+	/**
+	 * @param n maximum number of connections to list
+	 * @return human readable dump of the total and the top n connections
+	 */
+	public static String dump(int n){
+		StringBuilder sb = new StringBuilder();
+		sb.append(total);
+		for (ConnectionStats s : top(n)){
+			sb.append('\n').append(s);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @param command the command of a received message
+	 * @return index into COMMANDS
+	 */
+	static int commandIndex(String command){
+		Integer i = COMMAND_INDEX.get(command);
+		return i == null ? OTHER : i;
+	}
+
+	/**
+	 * Find the command of an outgoing message without decoding it
+	 *
+	 * @param b serialized (not yet transfer-encoded) message
+	 * @return index into COMMANDS
+	 */
+	static int commandIndex(MessageBuffer b){
+		for (int i = 0; i < OTHER; i++){
+			if (b.hasCommand(COMMAND_BYTES[i])){
+				return i;
+			}
+		}
+		return OTHER;
+	}
+
+	/**
+	 * bytes have been received from the socket
+	 */
+	void addReceived(int wire){
+		bytesInWire.addAndGet(wire);
+		if (parent != null){
+			parent.addReceived(wire);
+		}
+	}
+
+	/**
+	 * a complete message has been received and decoded
+	 */
+	void addMessageIn(int command, int raw){
+		bytesInRaw.addAndGet(raw);
+		messagesIn.incrementAndGet(command);
+		if (parent != null){
+			parent.addMessageIn(command, raw);
+		}
+	}
+
+	/**
+	 * a message has been sent
+	 */
+	void addMessageOut(int command, int raw, int wire){
+		bytesOutRaw.addAndGet(raw);
+		bytesOutWire.addAndGet(wire);
+		messagesOut.incrementAndGet(command);
+		if (parent != null){
+			parent.addMessageOut(command, raw, wire);
+		}
+	}
+
+	/**
+	 * the buffer that holds the incomplete last message has changed size,
+	 * this is only ever called from the reactor thread.
+	 */
+	void setFramingSize(int size){
+		framingSize = size;
+		if (size > framingMax){
+			framingMax = size;
+		}
+	}
+
+	public String getName(){
+		return name;
+	}
+
+	public long getBytesInRaw(){
+		return bytesInRaw.get();
+	}
+
+	public long getBytesInWire(){
+		return bytesInWire.get();
+	}
+
+	public long getBytesOutRaw(){
+		return bytesOutRaw.get();
+	}
+
+	public long getBytesOutWire(){
+		return bytesOutWire.get();
+	}
+
+	/**
+	 * @param command one of COMMANDS
+	 * @return number of received messages with this command
+	 */
+	public long getMessagesIn(String command){
+		return messagesIn.get(commandIndex(command));
+	}
+
+	/**
+	 * @param command one of COMMANDS
+	 * @return number of sent messages with this command
+	 */
+	public long getMessagesOut(String command){
+		return messagesOut.get(commandIndex(command));
+	}
+
+	/**
+	 * @return number of buffers waiting in the send queue, for the
+	 * total or a group this is the sum over its open connections.
+	 */
+	public int getQueueDepth(){
+		if (connection){
+			return tcp == null ? 0 : tcp.getQueueDepth();
+		}
+		int depth = 0;
+		for (ConnectionStats s : open){
+			if (isMember(s)){
+				depth += s.getQueueDepth();
+			}
+		}
+		return depth;
+	}
+
+	/**
+	 * @return true if s is an open connection of this group, every
+	 * connection is a member of the total.
+	 */
+	private boolean isMember(ConnectionStats s){
+		return this == total || s.parent == this;
+	}
+
+	/**
+	 * @return current SO_SNDBUF of the socket, for the total or
+	 * a group this is the sum over its open connections.
+	 */
+	public long getSendBufferSize(){
+		if (connection){
+			return tcp == null ? 0 : tcp.getSendBufferSize();
+		}
+		long sum = 0;
+		for (ConnectionStats s : open){
+			if (isMember(s)){
+				sum += s.getSendBufferSize();
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * @return current SO_RCVBUF of the socket, for the total or
+	 * a group this is the sum over its open connections.
+	 */
+	public long getReceiveBufferSize(){
+		if (connection){
+			return tcp == null ? 0 : tcp.getReceiveBufferSize();
+		}
+		long sum = 0;
+		for (ConnectionStats s : open){
+			if (isMember(s)){
+				sum += s.getReceiveBufferSize();
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * @return current size of the buffer holding an incomplete message
+	 */
+	public int getFramingSize(){
+		return framingSize;
+	}
+
+	/**
+	 * @return biggest size the buffer holding an incomplete message ever had
+	 */
+	public int getFramingMax(){
+		return framingMax;
+	}
+
+	@Override
+	public String toString(){
+		StringBuilder sb = new StringBuilder();
+		sb.append(name);
+		sb.append(" in=").append(getBytesInWire()).append('/').append(getBytesInRaw());
+		sb.append(" out=").append(getBytesOutWire()).append('/').append(getBytesOutRaw());
+		sb.append(" queue=").append(getQueueDepth());
+		sb.append(" sockbuf=").append(getSendBufferSize()).append('/').append(getReceiveBufferSize());
+		if (connection){
+			sb.append(" framing=").append(framingSize).append('/').append(framingMax);
+		}
+		long[] in = new long[COMMANDS.length];
+		long[] out = new long[COMMANDS.length];
+		for (int i = 0; i < COMMANDS.length; i++){
+			in[i] = messagesIn.get(i);
+			out[i] = messagesOut.get(i);
+		}
+		for (int i = 0; i < COMMANDS.length; i++){
+			if (in[i] > 0 || out[i] > 0){
+				sb.append(' ').append(COMMANDS[i]).append('=').append(in[i]).append('/').append(out[i]);
+			}
+		}
+		return sb.toString();
+	}
+}
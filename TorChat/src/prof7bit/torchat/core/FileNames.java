@@ -0,0 +1,31 @@
+package prof7bit.torchat.core;
+
+/**
+ * Buddy names are used in the names of the files in which things are
+ * stored per buddy (outbox, history index), this maps them to something
+ * that is safe to use as a file name on every platform.
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+public class FileNames {
+
+	/**
+	 * Letters, digits, '.' and '-' are kept, everything else is replaced
+	 * by '_' and its 4 digit hex code, so the mapping can not collide.
+	 *
+	 * @param name the buddy name
+	 * @return the name without any characters that could cause trouble
+	 */
+	public static String escape(String name){
+		StringBuilder sb = new StringBuilder(name.length());
+		for (int i = 0; i < name.length(); i++){
+			char c = name.charAt(i);
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '.' || c == '-'){
+				sb.append(c);
+			}else{
+				sb.append(String.format("_%04x", (int) c));
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,210 @@
+package prof7bit.torchat.core;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import prof7bit.reactor.Reactor;
+import prof7bit.reactor.Timer;
+
+/**
+ * Sends the periodic status message that TorChat peers expect to receive
+ * from every buddy. Connections that have sent anything else recently are
+ * skipped, they have been heard of anyways.
+ *
+ * Normally the deadlines of the connections are spread evenly over the
+ * interval so that there will be no burst of keepalives in one moment,
+ * every new connection gets the next phase offset of a golden ratio
+ * sequence which stays evenly distributed no matter how many connections
+ * are added or removed. In battery saver mode it is the other way round,
+ * all keepalives are aligned to the same moment, so that the radio only
+ * needs to wake up once per interval.
+ *
+ * All state is only ever touched from the reactor thread, the public
+ * methods are thread safe and will just enqueue their work there.
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+public class KeepaliveService {
+
+	public static final long DEFAULT_INTERVAL = 120000;
+
+	private static final double GOLDEN_RATIO = 0.6180339887498949;
+
+	private Reactor reactor;
+	private long interval;
+	private boolean batterySaver = false;
+	private String status = Msg_status.AVAILABLE;
+
+	private Map<Connection, Entry> entries = new HashMap<Connection, Entry>();
+	private long sequence = 0;
+
+	/**
+	 * the one timer for all connections in battery saver mode
+	 */
+	private Timer windowTimer = null;
+
+	public KeepaliveService(Reactor reactor){
+		this(reactor, DEFAULT_INTERVAL);
+	}
+
+	/**
+	 * @param reactor the reactor that is managing the connections
+	 * @param interval keepalive interval in milliseconds
+	 */
+	public KeepaliveService(Reactor reactor, long interval){
+		this.reactor = reactor;
+		this.interval = interval;
+	}
+
+	/**
+	 * Start sending keepalives over this connection.
+	 *
+	 * @param c an established connection
+	 */
+	public void add(final Connection c){
+		reactor.invokeLater(new Runnable(){
+			@Override
+			public void run() {
+				if (!entries.containsKey(c)){
+					Entry e = new Entry(c);
+					entries.put(c, e);
+					if (!batterySaver){
+						schedule(e, reactor.now() + phase());
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stop sending keepalives over this connection.
+	 *
+	 * @param c the connection
+	 */
+	public void remove(final Connection c){
+		reactor.invokeLater(new Runnable(){
+			@Override
+			public void run() {
+				Entry e = entries.remove(c);
+				if (e != null && e.timer != null){
+					e.timer.cancel();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Set the status that will be sent, this is also immediately
+	 * sent to all connections.
+	 *
+	 * @param status one of the Msg_status constants
+	 */
+	public void setStatus(final String status){
+		reactor.invokeLater(new Runnable(){
+			@Override
+			public void run() {
+				KeepaliveService.this.status = status;
+				for (Entry e : entries.values()){
+					send(e.connection);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Switch between spreading the keepalives evenly (normal operation)
+	 * and sending them all together in one burst (battery saver).
+	 *
+	 * @param enabled true to enable battery saver mode
+	 */
+	public void setBatterySaver(final boolean enabled){
+		reactor.invokeLater(new Runnable(){
+			@Override
+			public void run() {
+				if (enabled == batterySaver){
+					return;
+				}
+				batterySaver = enabled;
+				long now = reactor.now();
+				for (Entry e : entries.values()){
+					if (e.timer != null){
+						e.timer.cancel();
+						e.timer = null;
+					}
+					if (!enabled){
+						schedule(e, now + phase());
+					}
+				}
+				if (enabled){
+					scheduleWindow();
+				}else if (windowTimer != null){
+					windowTimer.cancel();
+					windowTimer = null;
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return the next offset of the golden ratio sequence, scaled to the interval
+	 */
+	private long phase(){
+		double frac = (sequence++ * GOLDEN_RATIO) % 1.0;
+		return (long) (frac * interval);
+	}
+
+	private void schedule(final Entry e, final long deadline){
+		e.timer = reactor.schedule(deadline - reactor.now(), new Runnable(){
+			@Override
+			public void run() {
+				e.timer = null;
+				keepalive(e.connection);
+				// keep the phase, don't let it drift
+				schedule(e, deadline + interval);
+			}
+		});
+	}
+
+	/**
+	 * schedule the timer for the next window boundary in battery saver mode
+	 */
+	private void scheduleWindow(){
+		long now = reactor.now();
+		long boundary = (now / interval + 1) * interval;
+		windowTimer = reactor.schedule(boundary - now, new Runnable(){
+			@Override
+			public void run() {
+				for (Entry e : entries.values()){
+					keepalive(e.connection);
+				}
+				scheduleWindow();
+			}
+		});
+	}
+
+	/**
+	 * send a keepalive unless something has been sent recently anyways
+	 */
+	private void keepalive(Connection c){
+		long last = c.getLastSent();
+		if (last != 0 && reactor.now() - last < interval / 2){
+			return;
+		}
+		send(c);
+	}
+
+	private void send(Connection c){
+		if (c.isConnected()){
+			c.send(new Msg_status(c, status).serialize());
+		}
+	}
+
+	private static class Entry {
+		final Connection connection;
+		Timer timer = null;
+
+		Entry(Connection connection){
+			this.connection = connection;
+		}
+	}
+}
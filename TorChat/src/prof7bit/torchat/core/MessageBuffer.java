@@ -165,6 +165,26 @@ public class MessageBuffer extends ByteArrayOutputStream{
 		posRead = 0;
 	}
 	
+	/**
+	 * Check whether the (not transfer-encoded) message starts with this 
+	 * command without reading or allocating anything.
+	 * 
+	 * @param command the command as ASCII bytes
+	 * @return true if the first word of the message equals the command
+	 */
+	boolean hasCommand(byte[] command){
+		int len = command.length;
+		if (count < len || (count > len && buf[len] != ' ')){
+			return false;
+		}
+		for (int i=0; i<len; i++){
+			if (buf[i] != command[i]){
+				return false;
+			}
+		}
+		return true;
+	}
+	
 	/**
 	 * Apply the TorChat binary encoding to the message and append the message
 	 * delimiter 0x0a. The returned ByteBuffer can be used for writing to a
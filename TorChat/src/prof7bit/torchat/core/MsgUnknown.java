@@ -1,5 +1,7 @@
 package prof7bit.torchat.core;
 
+import prof7bit.log.Log;
+
 /**
  * This class handles all incoming protocol messages with unknown command.
  * It will answer with "not_implemented" and otherwise do nothing. 
@@ -28,7 +30,7 @@ public class MsgUnknown extends Msg {
 
 	@Override
 	public void execute() {
-		System.out.println("MsgUnknown.execute()");
+		Log.d(this, "execute()");
 		// TODO Auto-generated method stub
 	}
 
@@ -1,5 +1,7 @@
 package prof7bit.torchat.core;
 
+import prof7bit.log.Log;
+
 /**
  * This class handles the protocol message "not_implemented".
  *
@@ -27,7 +29,7 @@ public class Msg_not_implemented extends Msg {
 
 	@Override
 	public void execute() {
-		System.out.println("Msg_not_implemented.execute()");
+		Log.d(this, "execute()");
 		// don't do anything, just eat and ignore.
 		// TODO maybe should log it
 	}
@@ -1,34 +1,92 @@
 package prof7bit.torchat.core;
 
+import java.io.EOFException;
+
+import prof7bit.log.Log;
+
 /**
- * This class handles the protocol message "ping".
+ * This class handles the protocol message "ping". The ping is the first
+ * message on every connection, it tells the receiver which buddy is
+ * connecting: "ping &lt;onion address&gt; &lt;cookie&gt;"
  *
  * @author Bernd Kreuss <prof7bit@gmail.com>
  *
  */
 public class Msg_ping extends Msg {
+	
+	private String address;
+	private String cookie;
 
 	public Msg_ping(Connection connection) {
 		super(connection);
 	}
+	
+	/**
+	 * Create a new outgoing ping message
+	 * 
+	 * @param connection the connection to send it over
+	 * @param address our own onion address (without .onion)
+	 * @param cookie the random cookie the buddy must send back in the pong
+	 */
+	public Msg_ping(Connection connection, String address, String cookie) {
+		super(connection);
+		this.address = address;
+		this.cookie = cookie;
+	}
 
 	@Override
 	public void parse(MessageBuffer buf) throws XMessageParseException {
-		// TODO Auto-generated method stub
-		
+		try {
+			address = buf.readString();
+			cookie = buf.readString();
+		} catch (EOFException e) {
+			throw new XMessageParseException("ping without address or cookie");
+		}
+		if (!isValidAddress(address)){
+			throw new XMessageParseException("ping with invalid address");
+		}
+		if (cookie.length() == 0){
+			throw new XMessageParseException("ping with empty cookie");
+		}
 	}
 
 	@Override
 	public MessageBuffer serialize() {
 		MessageBuffer mb = new MessageBuffer();
-		// TODO Auto-generated method stub
+		mb.writeString("ping");
+		mb.writeString(address);
+		mb.writeString(cookie);
 		return mb;
 	}
 
 	@Override
 	public void execute() {
-		System.out.println("Msg_ping.execute()");
-		// TODO Auto-generated method stub
+		Log.d(this, "execute()", address);
+		connection.onPing(address, cookie);
+	}
+	
+	public String getAddress(){
+		return address;
+	}
+	
+	public String getCookie(){
+		return cookie;
+	}
+	
+	/**
+	 * @return true if this is an onion address without .onion, 16 (v2) 
+	 * or 56 (v3) characters of lower case base32.
+	 */
+	static boolean isValidAddress(String a){
+		if (a.length() != 16 && a.length() != 56){
+			return false;
+		}
+		for (int i = 0; i < a.length(); i++){
+			char c = a.charAt(i);
+			if (!((c >= 'a' && c <= 'z') || (c >= '2' && c <= '7'))){
+				return false;
+			}
+		}
+		return true;
 	}
-
 }
@@ -1,33 +1,64 @@
 package prof7bit.torchat.core;
 
+import java.io.EOFException;
+
+import prof7bit.log.Log;
+
 /**
- * This class handles the protocol message "pong".
+ * This class handles the protocol message "pong". It is the answer to our
+ * ping and it comes back over the buddy's connection to us (our incoming 
+ * connection): "pong &lt;cookie&gt;" with the cookie from our ping.
  *
  * @author Bernd Kreuss <prof7bit@gmail.com>
  *
  */
 public class Msg_pong extends Msg {
 
+	private String cookie;
+
 	public Msg_pong(Connection connection) {
 		super(connection);
 	}
+	
+	/**
+	 * Create a new outgoing pong message
+	 * 
+	 * @param connection the connection to send it over
+	 * @param cookie the cookie from the buddy's ping
+	 */
+	public Msg_pong(Connection connection, String cookie) {
+		super(connection);
+		this.cookie = cookie;
+	}
 
 	@Override
 	public void parse(MessageBuffer buf) throws XMessageParseException {
-		// TODO Auto-generated method stub
+		try {
+			cookie = buf.readString();
+		} catch (EOFException e) {
+			throw new XMessageParseException("pong without cookie");
+		}
+		if (cookie.length() == 0){
+			throw new XMessageParseException("pong with empty cookie");
+		}
 	}
 
 	@Override
 	public MessageBuffer serialize() {
 		MessageBuffer mb = new MessageBuffer();
-		// TODO Auto-generated method stub
+		mb.writeString("pong");
+		mb.writeString(cookie);
 		return mb;
 	}
 
 	@Override
 	public void execute() {
-		System.out.println("Msg_pong.execute()");
-		// TODO Auto-generated method stub
+		Log.d(this, "execute()", cookie);
+		connection.onPong(cookie);
+	}
+	
+	public String getCookie(){
+		return cookie;
 	}
 
 }
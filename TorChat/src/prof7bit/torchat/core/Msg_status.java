@@ -0,0 +1,61 @@
+package prof7bit.torchat.core;
+
+import java.io.EOFException;
+
+import prof7bit.log.Log;
+
+/**
+ * This class handles the protocol message "status".
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ *
+ */
+public class Msg_status extends Msg {
+	
+	public static final String AVAILABLE = "available";
+	public static final String AWAY = "away";
+	public static final String XA = "xa";
+	
+	private String status = AVAILABLE;
+
+	public Msg_status(Connection connection) {
+		super(connection);
+	}
+	
+	/**
+	 * Create a new outgoing status message
+	 * 
+	 * @param connection the connection to send it over
+	 * @param status one of AVAILABLE, AWAY or XA
+	 */
+	public Msg_status(Connection connection, String status) {
+		super(connection);
+		this.status = status;
+	}
+
+	@Override
+	public void parse(MessageBuffer buf) throws XMessageParseException {
+		try {
+			status = buf.readString();
+		} catch (EOFException e) {
+			throw new XMessageParseException("status message without status");
+		}
+	}
+
+	@Override
+	public MessageBuffer serialize() {
+		MessageBuffer mb = new MessageBuffer();
+		mb.writeString("status");
+		mb.writeString(status);
+		return mb;
+	}
+
+	@Override
+	public void execute() {
+		Log.d(this, "execute()", status);
+	}
+	
+	public String getStatus(){
+		return status;
+	}
+}
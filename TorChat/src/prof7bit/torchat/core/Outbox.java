@@ -0,0 +1,408 @@
+package prof7bit.torchat.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+import prof7bit.log.Log;
+
+/**
+ * Persistent queue of outgoing messages for buddies that are not connected.
+ * Every buddy has its own append-only log file in which new messages are
+ * recorded (and synced to disk) and in which it is also recorded when they
+ * have been written to the buddy's connection. Once all messages in a log
+ * have been written the file is truncated to zero again.
+ *
+ * Messages are always removed in the same order as they were added, so the
+ * log only needs to remember the sequence number of the last removed one.
+ *
+ * The methods are called from the reactor thread, so they never touch the
+ * disk, they only change the entries in memory and enqueue the records. A
+ * background thread takes everything that has accumulated in the queue,
+ * writes it with one open file per buddy and then syncs every file with
+ * new messages only once (group commit), use sync() to wait for this. All
+ * existing logs are read when the outbox is opened.
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+public class Outbox {
+
+	private static final byte TYPE_ADD = 1;
+	private static final byte TYPE_REMOVE = 2;
+
+	/**
+	 * not a record in the file, the log is cut to zero
+	 */
+	private static final byte TYPE_TRUNCATE = 3;
+
+	/**
+	 * record header: length, CRC32, type, sequence number
+	 */
+	private static final int HEADER_SIZE = 4 + 4 + 1 + 8;
+
+	private static final String SUFFIX = ".out";
+
+	private File dir;
+
+	/**
+	 * the logs of all buddies by their file name, guarded by this
+	 */
+	private Map<String, BuddyLog> logs = new HashMap<String, BuddyLog>();
+
+	private BlockingQueue<Object> queue = new LinkedBlockingQueue<Object>();
+	private Writer writer;
+	private boolean closed = false;
+
+	/**
+	 * Open the outbox in the given directory, it will be created if needed.
+	 * All existing logs are read and the background writer is started.
+	 *
+	 * @param dir directory where the outbox keeps its log files
+	 * @throws IOException if the directory can not be created or read
+	 */
+	public Outbox(File dir) throws IOException{
+		this.dir = dir;
+		if (!dir.isDirectory() && !dir.mkdirs()){
+			throw new IOException("could not create directory " + dir);
+		}
+		for (String name : dir.list()){
+			if (name.endsWith(SUFFIX)){
+				String key = name.substring(0, name.length() - SUFFIX.length());
+				BuddyLog log = new BuddyLog(new File(dir, name));
+				log.replay();
+				logs.put(key, log);
+			}
+		}
+		writer = new Writer();
+		writer.start();
+	}
+
+	/**
+	 * Add a message to the outbox of a buddy. This will not block, the
+	 * message will be synced to disk shortly after, use sync() to wait.
+	 *
+	 * @param buddy the buddy who should receive the message
+	 * @param data the transfer-encoded message, ready for sending
+	 * @throws IOException if the outbox has been closed
+	 */
+	public synchronized void add(String buddy, byte[] data) throws IOException{
+		if (closed){
+			throw new IOException("outbox is closed");
+		}
+		BuddyLog log = getLog(buddy);
+		long seq = log.nextSeq++;
+		log.pending.add(new Entry(seq, data));
+		queue.offer(new Record(log, TYPE_ADD, seq, data));
+	}
+
+	/**
+	 * Get all messages of a buddy that have not yet been removed.
+	 *
+	 * @param buddy the buddy
+	 * @return list of entries, the oldest first
+	 * @throws IOException never, all logs have already been read
+	 */
+	public synchronized List<Entry> getPending(String buddy) throws IOException{
+		return new ArrayList<Entry>(getLog(buddy).pending);
+	}
+
+	/**
+	 * Remove a message (and all older ones) after it has been written to the
+	 * buddy's connection. The removal is not synced to disk, after a crash it
+	 * can happen that a message will be sent twice but never that it is lost.
+	 *
+	 * @param buddy the buddy
+	 * @param seq sequence number of the entry
+	 * @throws IOException never, the removal is recorded in the background
+	 */
+	public synchronized void remove(String buddy, long seq) throws IOException{
+		BuddyLog log = getLog(buddy);
+		boolean found = false;
+		while (!log.pending.isEmpty() && log.pending.getFirst().seq <= seq){
+			log.pending.removeFirst();
+			found = true;
+		}
+		if (!found){
+			return;
+		}
+		if (log.pending.isEmpty()){
+			queue.offer(new Record(log, TYPE_TRUNCATE, seq, null));
+		}else{
+			queue.offer(new Record(log, TYPE_REMOVE, seq, new byte[0]));
+		}
+	}
+
+	/**
+	 * Block until everything that has been added or removed so far
+	 * has been written, the added messages are synced to disk.
+	 *
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void sync() throws InterruptedException{
+		CountDownLatch latch = new CountDownLatch(1);
+		queue.offer(latch);
+		if (writer.isAlive()){
+			latch.await();
+		}
+	}
+
+	/**
+	 * Write everything that is still queued and stop the background
+	 * writer. After this add() will throw.
+	 *
+	 * @throws InterruptedException if interrupted while waiting for the writer
+	 */
+	public void close() throws InterruptedException{
+		synchronized (this){
+			closed = true;
+		}
+		queue.offer(Shutdown.INSTANCE);
+		writer.join();
+	}
+
+	private BuddyLog getLog(String buddy){
+		String key = FileNames.escape(buddy);
+		BuddyLog log = logs.get(key);
+		if (log == null){
+			log = new BuddyLog(new File(dir, key + SUFFIX));
+			logs.put(key, log);
+		}
+		return log;
+	}
+
+	/**
+	 * This is the background thread that does all the file I/O. It takes
+	 * everything that is in the queue, appends the records of every log
+	 * with one open file and syncs each file with new messages once.
+	 */
+	private class Writer extends Thread {
+
+		public Writer(){
+			super("Outbox writer");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run(){
+			List<Object> batch = new ArrayList<Object>();
+			Map<BuddyLog, List<Record>> records = new LinkedHashMap<BuddyLog, List<Record>>();
+			List<CountDownLatch> waiting = new ArrayList<CountDownLatch>();
+			boolean terminating = false;
+			while (!terminating){
+				try {
+					batch.add(queue.take());
+				} catch (InterruptedException e) {
+					break;
+				}
+				queue.drainTo(batch);
+				for (Object item : batch){
+					if (item instanceof Record){
+						Record r = (Record) item;
+						List<Record> list = records.get(r.log);
+						if (list == null){
+							list = new ArrayList<Record>();
+							records.put(r.log, list);
+						}
+						list.add(r);
+					}
+					if (item instanceof CountDownLatch){
+						waiting.add((CountDownLatch) item);
+					}
+					if (item == Shutdown.INSTANCE){
+						terminating = true;
+					}
+				}
+				batch.clear();
+				for (Map.Entry<BuddyLog, List<Record>> e : records.entrySet()){
+					try {
+						e.getKey().write(e.getValue());
+					} catch (Exception ex) {
+						// the entries are still in memory and will be
+						// sent, they are only not safe from a crash.
+						Log.e(Outbox.this, "could not write outbox", ex);
+					}
+				}
+				records.clear();
+				for (CountDownLatch latch : waiting){
+					latch.countDown();
+				}
+				waiting.clear();
+			}
+		}
+	}
+
+	/**
+	 * A record that is waiting to be written to a log
+	 */
+	private static class Record {
+		final BuddyLog log;
+		final byte type;
+		final long seq;
+		final byte[] data;
+
+		Record(BuddyLog log, byte type, long seq, byte[] data){
+			this.log = log;
+			this.type = type;
+			this.seq = seq;
+			this.data = data;
+		}
+	}
+
+	private enum Shutdown {
+		INSTANCE
+	}
+
+	/**
+	 * A message in the outbox
+	 */
+	public static class Entry {
+		private final long seq;
+		private final byte[] data;
+
+		Entry(long seq, byte[] data){
+			this.seq = seq;
+			this.data = data;
+		}
+
+		public long getSeq(){
+			return seq;
+		}
+
+		/**
+		 * @return the transfer-encoded message, ready for sending
+		 */
+		public byte[] getData(){
+			return data;
+		}
+	}
+
+	/**
+	 * The log file of one buddy and the entries it currently contains. The
+	 * entries are guarded by the Outbox, the file is only ever touched by
+	 * the constructor and then only by the writer thread.
+	 */
+	private static class BuddyLog {
+		private File file;
+		private long length = 0;
+		long nextSeq = 0;
+		LinkedList<Entry> pending = new LinkedList<Entry>();
+
+		BuddyLog(File file){
+			this.file = file;
+		}
+
+		/**
+		 * Replay the log file to find the pending entries. A torn
+		 * record at the end (crash during write) will be cut off.
+		 */
+		void replay() throws IOException{
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				byte[] content = new byte[(int) raf.length()];
+				raf.readFully(content);
+				ByteBuffer b = ByteBuffer.wrap(content);
+				while (b.remaining() >= HEADER_SIZE){
+					int start = b.position();
+					int len = b.getInt();
+					int crc = b.getInt();
+					if (len < HEADER_SIZE || len > content.length - start){
+						break;
+					}
+					if (crc != checksum(content, start + 8, len - 8)){
+						break;
+					}
+					byte type = b.get();
+					long seq = b.getLong();
+					byte[] data = new byte[len - HEADER_SIZE];
+					b.get(data);
+					if (type == TYPE_ADD){
+						pending.add(new Entry(seq, data));
+					}
+					if (type == TYPE_REMOVE){
+						while (!pending.isEmpty() && pending.getFirst().seq <= seq){
+							pending.removeFirst();
+						}
+					}
+					nextSeq = Math.max(nextSeq, seq + 1);
+					length = b.position();
+				}
+				if (length != content.length){
+					raf.setLength(length);
+				}
+			} finally {
+				raf.close();
+			}
+		}
+
+		/**
+		 * Write a batch of records with a single write and sync it if it
+		 * contains new messages. Everything before the last truncation in
+		 * the batch would be cut off again anyways, so it is skipped.
+		 * Only called from the writer thread.
+		 */
+		void write(List<Record> records) throws IOException{
+			int first = 0;
+			int size = 0;
+			boolean sync = false;
+			for (int i = 0; i < records.size(); i++){
+				Record r = records.get(i);
+				if (r.type == TYPE_TRUNCATE){
+					first = i;
+					size = 0;
+					sync = false;
+				}else{
+					size += HEADER_SIZE + r.data.length;
+					sync |= r.type == TYPE_ADD;
+				}
+			}
+			ByteBuffer b = ByteBuffer.allocate(size);
+			for (int i = first; i < records.size(); i++){
+				Record r = records.get(i);
+				if (r.type != TYPE_TRUNCATE){
+					int start = b.position();
+					int len = HEADER_SIZE + r.data.length;
+					b.putInt(len);
+					b.putInt(0); // placeholder for the checksum
+					b.put(r.type);
+					b.putLong(r.seq);
+					b.put(r.data);
+					b.putInt(start + 4, checksum(b.array(), start + 8, len - 8));
+				}
+			}
+			b.flip();
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				if (records.get(first).type == TYPE_TRUNCATE){
+					raf.setLength(0);
+					length = 0;
+				}
+				while (b.hasRemaining()){
+					raf.getChannel().write(b, length + b.position());
+				}
+				if (sync){
+					raf.getChannel().force(false);
+				}
+			} finally {
+				raf.close();
+			}
+			length += size;
+		}
+
+		private static int checksum(byte[] b, int off, int len){
+			CRC32 crc = new CRC32();
+			crc.update(b, off, len);
+			return (int) crc.getValue();
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package prof7bit.torchat.core;
+
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Matches the pongs we receive to the pings we have sent and keeps an
+ * RttEstimator for every buddy. The ping goes out over our connection to
+ * the buddy and the pong with the same cookie comes back over the buddy's
+ * connection to us, so this is shared between the outgoing connections
+ * (ConnectionManager) and the incoming connections (Client).
+ *
+ * The pings that are waiting for their pong are also kept in the order of
+ * their deadlines (the time sent plus the RTO of their buddy at that time,
+ * every buddy has its own RTO). Whenever a ping is sent or a pong arrives
+ * all pings whose deadline has passed are removed, the RTO of their buddy
+ * is backed off and a late pong will not be sampled (Karn's algorithm).
+ *
+ * There is also one estimator that takes the samples of all buddies, it
+ * can be used for timeouts when the buddy is not yet known.
+ *
+ * All methods are thread safe.
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+public class PingTracker {
+
+	private static final char[] BASE32 = "abcdefghijklmnopqrstuvwxyz234567".toCharArray();
+	private static final int COOKIE_LENGTH = 16;
+
+	private SecureRandom random = new SecureRandom();
+	private ConcurrentHashMap<String, RttEstimator> estimators = new ConcurrentHashMap<String, RttEstimator>();
+	private RttEstimator all = new RttEstimator();
+
+	/**
+	 * outstanding pings by cookie
+	 */
+	private Map<String, Pending> pending = new HashMap<String, Pending>();
+
+	/**
+	 * outstanding pings by deadline, earliest first. Answered pings are
+	 * not removed from here, they are skipped when their deadline comes.
+	 */
+	private PriorityQueue<Pending> deadlines = new PriorityQueue<Pending>();
+	private long sequence = 0;
+
+	/**
+	 * Register a new outgoing ping.
+	 *
+	 * @param buddy the address of the buddy the ping will be sent to
+	 * @param now the current time in milliseconds
+	 * @return the cookie that must be sent with the ping
+	 */
+	public synchronized String ping(String buddy, long now){
+		expire(now);
+		String cookie = newCookie();
+		Pending p = new Pending(cookie, buddy, now, getEstimator(buddy).getRto(), sequence++);
+		pending.put(cookie, p);
+		deadlines.add(p);
+		return cookie;
+	}
+
+	/**
+	 * A pong has been received, if it answers one of our pings then its
+	 * round trip time is added to the estimate of the buddy, unless the
+	 * ping has already timed out.
+	 *
+	 * @param cookie the cookie from the pong
+	 * @param now the current time in milliseconds
+	 * @return the buddy that has answered or null if the cookie is unknown
+	 * or its ping has timed out
+	 */
+	public synchronized String pong(String cookie, long now){
+		expire(now);
+		Pending p = pending.remove(cookie);
+		if (p == null){
+			return null;
+		}
+		long rtt = now - p.sent;
+		getEstimator(p.buddy).sample(rtt);
+		all.sample(rtt);
+		return p.buddy;
+	}
+
+	/**
+	 * @param buddy the address of the buddy
+	 * @return the RTT estimate of this buddy, a new one if not yet known
+	 */
+	public RttEstimator getEstimator(String buddy){
+		RttEstimator e = estimators.get(buddy);
+		if (e == null){
+			e = new RttEstimator();
+			RttEstimator old = estimators.putIfAbsent(buddy, e);
+			if (old != null){
+				e = old;
+			}
+		}
+		return e;
+	}
+
+	/**
+	 * @return an estimate over the samples of all buddies
+	 */
+	public RttEstimator getOverall(){
+		return all;
+	}
+
+	/**
+	 * Forget the estimate of a buddy that is no longer needed
+	 *
+	 * @param buddy the address of the buddy
+	 */
+	public void remove(String buddy){
+		estimators.remove(buddy);
+	}
+
+	/**
+	 * @return number of pings that are still waiting for their pong
+	 */
+	public synchronized int getPending(){
+		return pending.size();
+	}
+
+	/**
+	 * remove all pings whose deadline has passed
+	 */
+	private void expire(long now){
+		Pending p;
+		while ((p = deadlines.peek()) != null && now >= p.deadline){
+			deadlines.poll();
+			if (pending.remove(p.cookie) != null){
+				getEstimator(p.buddy).backoff();
+			}
+		}
+	}
+
+	private String newCookie(){
+		char[] c = new char[COOKIE_LENGTH];
+		for (int i = 0; i < COOKIE_LENGTH; i++){
+			c[i] = BASE32[random.nextInt(BASE32.length)];
+		}
+		return new String(c);
+	}
+
+	private static class Pending implements Comparable<Pending> {
+		final String cookie;
+		final String buddy;
+		final long sent;
+		final long deadline;
+		final long seq;
+
+		Pending(String cookie, String buddy, long sent, long rto, long seq){
+			this.cookie = cookie;
+			this.buddy = buddy;
+			this.sent = sent;
+			this.deadline = sent + rto;
+			this.seq = seq;
+		}
+
+		@Override
+		public int compareTo(Pending o) {
+			if (deadline != o.deadline){
+				return deadline < o.deadline ? -1 : 1;
+			}
+			return seq < o.seq ? -1 : (seq == o.seq ? 0 : 1);
+		}
+	}
+}
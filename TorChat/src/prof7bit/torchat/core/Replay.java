@@ -0,0 +1,247 @@
+package prof7bit.torchat.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import prof7bit.log.Log;
+import prof7bit.reactor.Capture;
+import prof7bit.reactor.CaptureReader;
+import prof7bit.reactor.Reactor;
+import prof7bit.reactor.TCP;
+
+/**
+ * Feeds the inbound traffic of a capture file (see TCP.setCapture()) back
+ * through Connection.onReceive() on the reactor thread, with exactly the
+ * same chunks as they have been received originally. This can happen with
+ * the recorded timing or as fast as possible. Every captured connection gets
+ * its own Connection object, everything these connections send is counted
+ * and thrown away.
+ *
+ * java prof7bit.torchat.core.Replay capture.tcap [fast]
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+public class Replay implements Runnable {
+
+	/**
+	 * number of records to process in one go when replaying as fast as
+	 * possible, before giving other tasks of the reactor a chance to run.
+	 */
+	private static final int BATCH = 1000;
+
+	private Reactor reactor;
+	private CaptureReader reader;
+	private boolean realtime;
+	private Map<Long, Connection> connections = new HashMap<Long, Connection>();
+
+	/**
+	 * captured connections that our Connection has closed by itself before
+	 * the end of the captured connection, their remaining input is dropped.
+	 */
+	private Set<Long> closedEarly = new HashSet<Long>();
+	private CaptureReader.Record pending = null;
+	private long startNanos;
+	private CountDownLatch done = new CountDownLatch(1);
+
+	private volatile long records = 0;
+	private volatile long bytesIn = 0;
+	private volatile long bytesOut = 0;
+	private volatile long connectionCount = 0;
+
+	/**
+	 * @param reactor the reactor to run the replay on
+	 * @param file the capture file
+	 * @param realtime true to keep the recorded timing, false for as fast as possible
+	 * @throws IOException if the capture file can not be opened
+	 */
+	public Replay(Reactor reactor, File file, boolean realtime) throws IOException {
+		this.reactor = reactor;
+		this.reader = new CaptureReader(file);
+		this.realtime = realtime;
+	}
+
+	/**
+	 * start replaying, this returns immediately.
+	 */
+	public void start(){
+		reactor.invokeLater(new Runnable(){
+			@Override
+			public void run() {
+				startNanos = System.nanoTime();
+				Replay.this.run();
+			}
+		});
+	}
+
+	/**
+	 * wait until the whole capture has been replayed
+	 *
+	 * @param timeout milliseconds
+	 * @return true if finished, false if the timeout has elapsed
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean await(long timeout) throws InterruptedException {
+		return done.await(timeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * process the next records, this is always run on the reactor thread
+	 * and will schedule itself again until the end of the capture.
+	 */
+	@Override
+	public void run(){
+		try {
+			for (int i = 0; i < BATCH; i++){
+				if (pending == null){
+					pending = reader.next();
+					if (pending == null){
+						finish();
+						return;
+					}
+				}
+				if (realtime){
+					long due = pending.getTime() / 1000 - (System.nanoTime() - startNanos) / 1000000;
+					if (due > 0){
+						reactor.schedule(due, this);
+						return;
+					}
+				}
+				process(pending);
+				pending = null;
+			}
+			reactor.invokeLater(this);
+		} catch (IOException e) {
+			Log.e(this, "could not read capture", e);
+			finish();
+		}
+	}
+
+	private void process(CaptureReader.Record r){
+		records++;
+		Long id = r.getConnection();
+		Connection c = connections.get(id);
+		switch (r.getType()){
+		case Capture.IN:
+			if (closedEarly.contains(id)){
+				break;
+			}
+			if (c == null){
+				c = open(id);
+			}
+			bytesIn += r.getData().length;
+			c.onReceive(ByteBuffer.wrap(r.getData()));
+			break;
+		case Capture.CLOSE:
+			closedEarly.remove(id);
+			if (c != null){
+				connections.remove(id);
+				c.close("end of captured connection");
+			}
+			break;
+		default:
+			// OPEN and OUT are not needed, the connection will be
+			// created on the first IN and we produce our own OUT.
+		}
+	}
+
+	private Connection open(Long id){
+		ReplayTCP tcp = new ReplayTCP(reactor, id);
+		Connection c = new Connection(tcp);
+		tcp.setEventHandler(c);
+		connections.put(id, c);
+		connectionCount++;
+		return c;
+	}
+
+	private void finish(){
+		for (Connection c : new ArrayList<Connection>(connections.values())){
+			c.close("end of capture");
+		}
+		closedEarly.clear();
+		try {
+			reader.close();
+		} catch (IOException e) {
+			Log.w(this, "could not close capture", e);
+		}
+		done.countDown();
+	}
+
+	public long getRecords(){
+		return records;
+	}
+
+	public long getBytesIn(){
+		return bytesIn;
+	}
+
+	public long getBytesOut(){
+		return bytesOut;
+	}
+
+	public long getConnectionCount(){
+		return connectionCount;
+	}
+
+	/**
+	 * A TCP without socket, sending only counts the bytes and closing
+	 * fires the disconnect event directly, only the first time. It also
+	 * removes the connection from the replay.
+	 */
+	private class ReplayTCP extends TCP {
+		private Long id;
+		private boolean closed = false;
+
+		ReplayTCP(Reactor r, Long id){
+			super(r);
+			this.id = id;
+		}
+
+		@Override
+		public void send(ByteBuffer buf, Runnable onWritten){
+			if (!closed){
+				bytesOut += buf.limit();
+			}
+		}
+
+		@Override
+		public void close(IOException reason){
+			if (closed){
+				return;
+			}
+			closed = true;
+			if (connections.remove(id) != null){
+				// still in the map, so this is not the end of the capture
+				closedEarly.add(id);
+			}
+			doEventClose(reason);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1){
+			System.err.println("usage: Replay <capture file> [fast]");
+			System.exit(1);
+		}
+		boolean fast = args.length > 1 && args[1].equals("fast");
+		Reactor reactor = new Reactor();
+		Replay replay = new Replay(reactor, new File(args[0]), !fast);
+		long t0 = System.nanoTime();
+		replay.start();
+		replay.await(Long.MAX_VALUE);
+		double seconds = (System.nanoTime() - t0) / 1e9;
+		reactor.close();
+		System.out.println(String.format("%d records, %d connections, %d bytes in, %d bytes out in %.3f s",
+				replay.getRecords(), replay.getConnectionCount(), replay.getBytesIn(),
+				replay.getBytesOut(), seconds));
+		System.out.println(ConnectionStats.dump(10));
+		System.out.println(reactor.getStats());
+	}
+}
@@ -0,0 +1,122 @@
+package prof7bit.torchat.core;
+
+/**
+ * Round trip time estimate of the path to one buddy, computed the same way
+ * as TCP computes its retransmission timeout (RFC 6298): a smoothed RTT and
+ * the mean deviation, both exponentially weighted moving averages, and the
+ * timeout RTO = SRTT + 4 * RTTVAR. The samples come from ping/pong round
+ * trips which go through two Tor circuits (our connection to the buddy and
+ * its connection back to us), so they are in the range of seconds, not
+ * milliseconds, and the limits are chosen accordingly.
+ *
+ * All methods are thread safe.
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+public class RttEstimator {
+
+	/**
+	 * RTO before the first sample has been taken
+	 */
+	public static final long INITIAL_RTO = 30000;
+	public static final long MIN_RTO = 1000;
+	public static final long MAX_RTO = 120000;
+
+	private long srtt = 0;
+	private long rttvar = 0;
+	private long rto = INITIAL_RTO;
+	private long samples = 0;
+	private long timeouts = 0;
+
+	/**
+	 * Add a measured round trip. Round trips of pings that have
+	 * timed out must not be sampled (Karn's algorithm).
+	 *
+	 * @param rtt the round trip time in milliseconds
+	 */
+	public synchronized void sample(long rtt){
+		if (rtt < 0){
+			return;
+		}
+		if (samples == 0){
+			srtt = rtt;
+			rttvar = rtt / 2;
+		}else{
+			// beta = 1/4, alpha = 1/8
+			rttvar = rttvar - rttvar / 4 + Math.abs(srtt - rtt) / 4;
+			srtt = srtt - srtt / 8 + rtt / 8;
+		}
+		samples++;
+		rto = clamp(srtt + Math.max(1, 4 * rttvar));
+	}
+
+	/**
+	 * A ping has not been answered within the RTO, double the RTO
+	 * until the next sample arrives.
+	 */
+	public synchronized void backoff(){
+		timeouts++;
+		rto = clamp(rto * 2);
+	}
+
+	/**
+	 * A timeout that adapts to the path: n times the RTO, limited to the
+	 * range min..max (max wins if min is larger). Without any samples this
+	 * is always max, we know nothing and should be patient.
+	 *
+	 * @param n how many round trips the operation needs
+	 * @param min lower limit in milliseconds
+	 * @param max upper limit and default in milliseconds
+	 * @return timeout in milliseconds
+	 */
+	public synchronized long timeout(int n, long min, long max){
+		if (samples == 0){
+			return max;
+		}
+		return Math.min(max, Math.max(min, n * rto));
+	}
+
+	private static long clamp(long value){
+		return Math.max(MIN_RTO, Math.min(MAX_RTO, value));
+	}
+
+	/**
+	 * @return the current retransmission timeout in milliseconds
+	 */
+	public synchronized long getRto(){
+		return rto;
+	}
+
+	/**
+	 * @return the smoothed round trip time in milliseconds, 0 without samples
+	 */
+	public synchronized long getSrtt(){
+		return srtt;
+	}
+
+	/**
+	 * @return the mean deviation of the round trip time in milliseconds
+	 */
+	public synchronized long getRttvar(){
+		return rttvar;
+	}
+
+	/**
+	 * @return number of round trips that have been measured
+	 */
+	public synchronized long getSamples(){
+		return samples;
+	}
+
+	/**
+	 * @return number of pings that have not been answered in time
+	 */
+	public synchronized long getTimeouts(){
+		return timeouts;
+	}
+
+	@Override
+	public synchronized String toString(){
+		return "srtt=" + srtt + " rttvar=" + rttvar + " rto=" + rto + " samples=" + samples;
+	}
+}
@@ -0,0 +1,370 @@
+package prof7bit.torchat.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import prof7bit.log.Log;
+import prof7bit.reactor.Histogram;
+import prof7bit.reactor.Reactor;
+import prof7bit.reactor.TCP;
+import prof7bit.reactor.TCPHandler;
+
+/**
+ * A minimal client for the Tor control port protocol, it runs on the
+ * reactor like every other connection and never blocks. After connecting
+ * it authenticates (no auth, password or cookie), subscribes to the events
+ * STATUS_CLIENT, HS_DESC and CIRC and asks for the current bootstrap phase.
+ * From then on it only listens to the events and passes them on to its
+ * handlers: the bootstrap progress, whether Tor is ready to build circuits,
+ * hidden service descriptor fetches and the circuits that have been built
+ * together with the time it took to build them.
+ *
+ * The replies of the control port come in the same order as the commands,
+ * so there is simply a queue of reply callbacks, asynchronous events (650)
+ * are recognized by their status code.
+ *
+ * The public methods are thread safe, everything else happens in the
+ * reactor thread.
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+public class TorControl implements TCPHandler {
+
+	public static final int DEFAULT_PORT = 9051;
+
+	static final int MAX_LINE = 64 * 1024;
+	private static final int EVENT = 650;
+	private static final int OK = 250;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private Reactor reactor;
+	private volatile TCP tcp = null;
+	private List<TorControlHandler> handlers = new CopyOnWriteArrayList<TorControlHandler>();
+	private volatile String password = null;
+	private volatile byte[] cookie = null;
+
+	private volatile boolean ready = false;
+	private volatile int progress = 0;
+
+	private StringBuilder line = new StringBuilder();
+	private List<String> reply = new ArrayList<String>();
+	private boolean inData = false;
+	private Queue<Reply> pending = new LinkedList<Reply>();
+
+	/**
+	 * launch times of the circuits that are currently being built
+	 */
+	private Map<String, Long> launched = new HashMap<String, Long>();
+	private Histogram buildTimes = new Histogram();
+
+	/**
+	 * @param r the reactor for the control connection
+	 */
+	public TorControl(Reactor r){
+		reactor = r;
+	}
+
+	/**
+	 * @param h will receive the events, there can be any number of handlers
+	 */
+	public void addHandler(TorControlHandler h){
+		handlers.add(h);
+	}
+
+	/**
+	 * Authenticate with HashedControlPassword, this must be set before
+	 * connect(). Without password and cookie no authentication is used.
+	 */
+	public void setPassword(String password){
+		this.password = password;
+	}
+
+	/**
+	 * Authenticate with CookieAuthentication, this must be set before
+	 * connect(). The cookie is the content of Tor's control_auth_cookie.
+	 */
+	public void setCookie(byte[] cookie){
+		this.cookie = cookie;
+	}
+
+	/**
+	 * Connect to the control port, this will not block. If anything goes
+	 * wrong the handlers' onDisconnect() will be called.
+	 *
+	 * @param host usually 127.0.0.1
+	 * @param port usually DEFAULT_PORT
+	 * @throws IOException problems opening the local socket
+	 */
+	public void connect(String host, int port) throws IOException {
+		tcp = new TCP(reactor, host, port, this);
+	}
+
+	public void close(){
+		TCP t = tcp;
+		if (t != null){
+			t.close("control connection closed");
+		}
+	}
+
+	/**
+	 * @return true if Tor has finished bootstrapping and can build circuits
+	 */
+	public boolean isReady(){
+		return ready;
+	}
+
+	/**
+	 * @return the last reported bootstrap progress in percent
+	 */
+	public int getProgress(){
+		return progress;
+	}
+
+	/**
+	 * @return the distribution of the times from LAUNCHED to BUILT of
+	 * all circuits since the control connection has been established.
+	 */
+	public Histogram.Snapshot getCircuitBuildTimes(){
+		return buildTimes.snapshot();
+	}
+
+	@Override
+	public void onConnect() {
+		command("AUTHENTICATE" + authArgument(), new Reply(){
+			@Override
+			public void onReply(List<String> lines) {
+				command("SETEVENTS STATUS_CLIENT HS_DESC CIRC", new Reply(){
+					@Override
+					public void onReply(List<String> lines) {
+						command("GETINFO status/bootstrap-phase", new Reply(){
+							@Override
+							public void onReply(List<String> lines) {
+								for (String l : lines){
+									if (l.startsWith("status/bootstrap-phase=")){
+										onBootstrap(l);
+									}
+								}
+							}
+						});
+					}
+				});
+			}
+		});
+	}
+
+	@Override
+	public void onDisconnect(Exception e) {
+		Log.i(this, "control connection closed", e.getMessage());
+		pending.clear();
+		launched.clear();
+		ready = false;
+		progress = 0;
+		for (TorControlHandler h : handlers){
+			h.onDisconnect(e);
+		}
+	}
+
+	@Override
+	public void onReceive(ByteBuffer buf) {
+		byte[] b = buf.array();
+		int end = buf.limit();
+		for (int i = buf.position(); i < end; i++){
+			if (b[i] == '\n'){
+				int len = line.length();
+				if (len > 0 && line.charAt(len - 1) == '\r'){
+					line.setLength(len - 1);
+				}
+				String l = line.toString();
+				line.setLength(0);
+				if (!onLine(l)){
+					return;
+				}
+			}else{
+				line.append((char) (b[i] & 0xff));
+				if (line.length() > MAX_LINE){
+					tcp.close("control line too long");
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * process one line of a reply
+	 *
+	 * @return false if the connection has been closed
+	 */
+	private boolean onLine(String l){
+		if (inData){
+			if (l.equals(".")){
+				inData = false;
+			}else{
+				reply.add(l.startsWith(".") ? l.substring(1) : l);
+			}
+			return true;
+		}
+		int code;
+		try {
+			code = Integer.parseInt(l.substring(0, 3));
+		} catch (RuntimeException e) {
+			tcp.close("malformed control reply: " + l);
+			return false;
+		}
+		char sep = l.length() > 3 ? l.charAt(3) : ' ';
+		reply.add(l.length() > 4 ? l.substring(4) : "");
+		if (sep == '+'){
+			inData = true;
+			return true;
+		}
+		if (sep == '-'){
+			return true;
+		}
+		List<String> lines = reply;
+		reply = new ArrayList<String>();
+		if (code == EVENT){
+			onEvent(lines);
+			return true;
+		}
+		Reply r = pending.poll();
+		if (code != OK){
+			tcp.close(new XTorControlError("control port error " + code + " " + lines.get(0), code));
+			return false;
+		}
+		if (r != null){
+			r.onReply(lines);
+		}
+		return true;
+	}
+
+	private void onEvent(List<String> lines){
+		String first = lines.get(0);
+		String[] w = first.split(" ");
+		if (w[0].equals("STATUS_CLIENT") && w.length > 2){
+			if (w[2].equals("BOOTSTRAP")){
+				onBootstrap(first);
+			}else if (w[2].equals("CIRCUIT_ESTABLISHED")){
+				setReady(true);
+			}else if (w[2].equals("CIRCUIT_NOT_ESTABLISHED")){
+				setReady(false);
+			}
+		}else if (w[0].equals("HS_DESC") && w.length > 2){
+			String reason = keyword(first, "REASON");
+			for (TorControlHandler h : handlers){
+				h.onHsDesc(w[1], w[2], reason);
+			}
+		}else if (w[0].equals("CIRC") && w.length > 2){
+			onCirc(w[1], w[2], first);
+		}
+	}
+
+	private void onBootstrap(String l){
+		String p = keyword(l, "PROGRESS");
+		if (p == null){
+			return;
+		}
+		try {
+			progress = Integer.parseInt(p);
+		} catch (NumberFormatException e) {
+			return;
+		}
+		String summary = keyword(l, "SUMMARY");
+		for (TorControlHandler h : handlers){
+			h.onBootstrap(progress, summary);
+		}
+		if (progress == 100){
+			setReady(true);
+		}
+	}
+
+	private void onCirc(String id, String status, String l){
+		if (status.equals("LAUNCHED")){
+			launched.put(id, reactor.now());
+		}else if (status.equals("BUILT")){
+			Long t = launched.remove(id);
+			if (t != null){
+				long millis = reactor.now() - t;
+				buildTimes.record(millis);
+				String address = keyword(l, "REND_QUERY");
+				for (TorControlHandler h : handlers){
+					h.onCircuitBuilt(id, address, millis);
+				}
+			}
+		}else if (status.equals("FAILED") || status.equals("CLOSED")){
+			launched.remove(id);
+		}
+	}
+
+	private void setReady(boolean r){
+		if (r != ready){
+			ready = r;
+			for (TorControlHandler h : handlers){
+				h.onReady(r);
+			}
+		}
+	}
+
+	private void command(String cmd, Reply r){
+		pending.add(r);
+		tcp.send(ByteBuffer.wrap((cmd + "\r\n").getBytes(UTF8)));
+	}
+
+	private String authArgument(){
+		byte[] c = cookie;
+		if (c != null){
+			StringBuilder sb = new StringBuilder(" ");
+			for (byte b : c){
+				sb.append(String.format("%02x", b & 0xff));
+			}
+			return sb.toString();
+		}
+		String p = password;
+		if (p != null){
+			return " \"" + p.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+		}
+		return "";
+	}
+
+	/**
+	 * Find the value of KEY=value or KEY="quoted value" in a line
+	 *
+	 * @return the value without quotes or null if not found
+	 */
+	static String keyword(String l, String key){
+		int i = l.indexOf(" " + key + "=");
+		if (i == -1){
+			return null;
+		}
+		int start = i + key.length() + 2;
+		if (start < l.length() && l.charAt(start) == '"'){
+			StringBuilder sb = new StringBuilder();
+			for (int j = start + 1; j < l.length(); j++){
+				char c = l.charAt(j);
+				if (c == '\\' && j + 1 < l.length()){
+					sb.append(l.charAt(++j));
+				}else if (c == '"'){
+					break;
+				}else{
+					sb.append(c);
+				}
+			}
+			return sb.toString();
+		}
+		int end = l.indexOf(' ', start);
+		return end == -1 ? l.substring(start) : l.substring(start, end);
+	}
+
+	/**
+	 * callback for the successful reply to a command
+	 */
+	private interface Reply {
+		void onReply(List<String> lines);
+	}
+}
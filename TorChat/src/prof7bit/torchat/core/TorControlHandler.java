@@ -0,0 +1,50 @@
+package prof7bit.torchat.core;
+
+/**
+ * Events from the Tor control port, see TorControl. All of them are
+ * fired from the reactor thread.
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+public interface TorControlHandler {
+
+	/**
+	 * Tor has reported its bootstrap progress
+	 *
+	 * @param progress percent, 100 means done
+	 * @param summary human readable description of the current phase
+	 */
+	void onBootstrap(int progress, String summary);
+
+	/**
+	 * Tor has become ready to build circuits or has lost this ability
+	 *
+	 * @param ready true if outgoing connections can be made now
+	 */
+	void onReady(boolean ready);
+
+	/**
+	 * A hidden service descriptor event (HS_DESC)
+	 *
+	 * @param action REQUESTED, RECEIVED, FAILED, etc.
+	 * @param address the onion address without .onion
+	 * @param reason the reason for FAILED or null
+	 */
+	void onHsDesc(String action, String address, String reason);
+
+	/**
+	 * A circuit has been built
+	 *
+	 * @param id the circuit id
+	 * @param address the onion address for rendezvous circuits, otherwise null
+	 * @param millis time from LAUNCHED to BUILT
+	 */
+	void onCircuitBuilt(String id, String address, long millis);
+
+	/**
+	 * The control connection has failed or has been closed.
+	 *
+	 * @param e the reason
+	 */
+	void onDisconnect(Exception e);
+}
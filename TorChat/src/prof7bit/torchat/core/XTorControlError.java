@@ -0,0 +1,22 @@
+package prof7bit.torchat.core;
+
+import java.io.IOException;
+
+/**
+ * The Tor control port has answered a command with an error
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+public class XTorControlError extends IOException {
+	private static final long serialVersionUID = 1L;
+	private int statusCode;
+
+	public XTorControlError(String detail, int statusCode){
+		super(detail);
+		this.statusCode = statusCode;
+	}
+
+	public int getStatusCode(){
+		return statusCode;
+	}
+}
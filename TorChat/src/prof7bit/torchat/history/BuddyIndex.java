@@ -0,0 +1,117 @@
+package prof7bit.torchat.history;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * The offset index of one buddy. This is a flat file containing the
+ * positions of all history records of this buddy in chronological order,
+ * 8 bytes per record. Entry number n is therefore always at offset n*8 and
+ * any page of the history can be located without scanning anything.
+ *
+ * This class is not thread safe, the HistoryStore will synchronize all
+ * access to its BuddyIndex objects.
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+class BuddyIndex {
+
+	private static final int ENTRY_SIZE = 8;
+
+	private File file;
+
+	/**
+	 * number of entries in the index file
+	 */
+	int count = 0;
+
+	/**
+	 * position of the last indexed record or -1 if empty
+	 */
+	long last = -1;
+
+	/**
+	 * Load the index of one buddy. Entries that point to records which don't
+	 * exist anymore (lost during a crash) and a partially written last entry
+	 * will be cut off.
+	 *
+	 * @param file the index file, it need not exist yet
+	 * @param store used to validate the positions
+	 * @throws IOException if the existing file can not be read
+	 */
+	BuddyIndex(File file, HistoryStore store) throws IOException{
+		this.file = file;
+		if (!file.exists()){
+			return;
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			int n = (int) (raf.length() / ENTRY_SIZE);
+			while (n > 0){
+				raf.seek((long) (n - 1) * ENTRY_SIZE);
+				long pos = raf.readLong();
+				if (store.isCommitted(pos)){
+					last = pos;
+					break;
+				}
+				n--;
+			}
+			count = n;
+			if (raf.length() != (long) n * ENTRY_SIZE){
+				raf.setLength((long) n * ENTRY_SIZE);
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Append positions to the end of the index and flush them to disk.
+	 */
+	void append(List<Long> positions) throws IOException{
+		ByteBuffer b = ByteBuffer.allocate(positions.size() * ENTRY_SIZE);
+		for (long pos : positions){
+			b.putLong(pos);
+		}
+		b.flip();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.getChannel().write(b, (long) count * ENTRY_SIZE);
+			raf.getChannel().force(false);
+		} finally {
+			raf.close();
+		}
+		count += positions.size();
+		last = positions.get(positions.size() - 1);
+	}
+
+	/**
+	 * Read the positions of the entries [from, to).
+	 */
+	long[] read(int from, int to) throws IOException{
+		long[] result = new long[to - from];
+		if (result.length == 0){
+			return result;
+		}
+		ByteBuffer b = ByteBuffer.allocate(result.length * ENTRY_SIZE);
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long pos = (long) from * ENTRY_SIZE;
+			while (b.hasRemaining()){
+				if (raf.getChannel().read(b, pos + b.position()) < 0){
+					throw new IOException("unexpected end of index file " + file);
+				}
+			}
+		} finally {
+			raf.close();
+		}
+		b.flip();
+		for (int i = 0; i < result.length; i++){
+			result[i] = b.getLong();
+		}
+		return result;
+	}
+}
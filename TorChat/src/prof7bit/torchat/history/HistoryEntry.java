@@ -0,0 +1,113 @@
+package prof7bit.torchat.history;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * One chat message as it is stored in the history. Instances are immutable,
+ * they are created by the HistoryStore when reading records back from the
+ * memory mapped segment files.
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+public class HistoryEntry {
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * size of the fixed part of the payload: time, flags, buddy length
+	 */
+	static final int FIXED_SIZE = 8 + 1 + 2;
+
+	private static final int FLAG_OUTGOING = 0x01;
+
+	private final long position;
+	private final String buddy;
+	private final long time;
+	private final boolean outgoing;
+	private final String text;
+
+	HistoryEntry(long position, String buddy, long time, boolean outgoing, String text){
+		this.position = position;
+		this.buddy = buddy;
+		this.time = time;
+		this.outgoing = outgoing;
+		this.text = text;
+	}
+
+	/**
+	 * @return the position of this record in the store, this can be used to
+	 * read the same entry again with HistoryStore.read()
+	 */
+	public long getPosition(){
+		return position;
+	}
+
+	public String getBuddy(){
+		return buddy;
+	}
+
+	/**
+	 * @return time stamp in milliseconds since the epoch
+	 */
+	public long getTime(){
+		return time;
+	}
+
+	/**
+	 * @return true if we have sent this message, false if we received it
+	 */
+	public boolean isOutgoing(){
+		return outgoing;
+	}
+
+	public String getText(){
+		return text;
+	}
+
+	/**
+	 * Serialize the record payload, this is what will be written into the
+	 * segment file (after the length and the checksum).
+	 */
+	static byte[] encode(String buddy, long time, boolean outgoing, String text){
+		byte[] bbuddy = buddy.getBytes(UTF8);
+		byte[] btext = text.getBytes(UTF8);
+		if (bbuddy.length > 0xffff){
+			throw new IllegalArgumentException("buddy name too long");
+		}
+		ByteBuffer b = ByteBuffer.allocate(FIXED_SIZE + bbuddy.length + btext.length);
+		b.putLong(time);
+		b.put((byte) (outgoing ? FLAG_OUTGOING : 0));
+		b.putShort((short) bbuddy.length);
+		b.put(bbuddy);
+		b.put(btext);
+		return b.array();
+	}
+
+	/**
+	 * Deserialize a record payload.
+	 *
+	 * @param position the position of the record in the store
+	 * @param b buffer positioned at the start of the payload
+	 * @param len length of the payload
+	 */
+	static HistoryEntry decode(long position, ByteBuffer b, int len){
+		long time = b.getLong();
+		boolean outgoing = (b.get() & FLAG_OUTGOING) != 0;
+		int lenBuddy = b.getShort() & 0xffff;
+		byte[] bbuddy = new byte[lenBuddy];
+		b.get(bbuddy);
+		byte[] btext = new byte[len - FIXED_SIZE - lenBuddy];
+		b.get(btext);
+		return new HistoryEntry(position, new String(bbuddy, UTF8), time, outgoing, new String(btext, UTF8));
+	}
+
+	/**
+	 * Read only the buddy name from a record payload. This is used during
+	 * recovery where we don't need to decode the entire message.
+	 */
+	static String decodeBuddy(byte[] payload){
+		int lenBuddy = ((payload[9] & 0xff) << 8) | (payload[10] & 0xff);
+		return new String(payload, FIXED_SIZE, lenBuddy, UTF8);
+	}
+}
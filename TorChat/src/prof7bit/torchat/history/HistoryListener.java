@@ -0,0 +1,17 @@
+package prof7bit.torchat.history;
+
+/**
+ * Implement this interface to be notified about new entries in the
+ * HistoryStore. See HistoryStore.addListener().
+ */
+public interface HistoryListener {
+
+	/**
+	 * Called from the writer thread of the HistoryStore for every entry
+	 * after it has been committed, in the order of their positions. This
+	 * must not block for a long time, it would hold up all other writes.
+	 *
+	 * @param entry the new entry
+	 */
+	void onCommitted(HistoryEntry entry);
+}
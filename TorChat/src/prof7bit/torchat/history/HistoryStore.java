@@ -0,0 +1,672 @@
+package prof7bit.torchat.history;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import prof7bit.log.Log;
+import prof7bit.torchat.core.FileNames;
+
+/**
+ * Append-only storage for the chat history of all buddies. Messages are
+ * appended to memory mapped segment files of fixed size and the position
+ * of every message is additionally recorded in a small per-buddy offset
+ * index (see BuddyIndex) so that any page of any buddy's history can be
+ * found immediately, no matter how many years of messages there are.
+ *
+ * append() will never block, it only enqueues the message. A background
+ * thread will write everything that has accumulated in the queue in one
+ * go and then flush it to disk with a single sync (group commit). Messages
+ * become visible to the reading methods after they have been committed.
+ *
+ * HistoryListener objects can be registered to be notified about every
+ * committed message, this is used to maintain secondary data such as the
+ * SearchIndex incrementally.
+ *
+ * If a record can not be written (no new segment can be created) it is
+ * kept and tried again with the next batch, sync() will throw until it
+ * has been written. Exceptions thrown by listeners are logged and do not
+ * affect the writer. After close() append(), sync() and read() will throw
+ * and the segment files are unmapped.
+ *
+ * After a crash the last segments will be scanned and any torn record at
+ * the end will be wiped out, index entries that have been lost will be
+ * re-created from the segment data.
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+public class HistoryStore {
+
+	public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final String INDEX_SUFFIX = ".idx";
+
+	private File dir;
+	private File indexDir;
+	private int segmentSize;
+
+	/**
+	 * all segments, the list index is equal to the segment number. The
+	 * last one is the active segment. Guarded by itself.
+	 */
+	private List<Segment> segments = new ArrayList<Segment>();
+
+	/**
+	 * offset of the end of the committed data in the active segment
+	 */
+	private volatile long committed = 0;
+
+	/**
+	 * all indexes that have been loaded so far, guarded by itself
+	 */
+	private Map<String, BuddyIndex> indexes = new HashMap<String, BuddyIndex>();
+
+	private BlockingQueue<Object> queue = new LinkedBlockingQueue<Object>();
+	private Writer writer;
+
+	/**
+	 * set when the writer thread has terminated
+	 */
+	private volatile boolean dead = false;
+
+	/**
+	 * set by close(), guarded by queue. append() checks it and enqueues
+	 * while holding the same lock, so every record that has been accepted
+	 * is in the queue before the shutdown request and will be written.
+	 */
+	private boolean closed = false;
+
+	/**
+	 * set after the writer has terminated and the segments are unmapped,
+	 * guarded by segments.
+	 */
+	private boolean unmapped = false;
+
+	/**
+	 * listeners, only ever modified from the writer thread
+	 */
+	private List<HistoryListener> listeners = new CopyOnWriteArrayList<HistoryListener>();
+
+	/**
+	 * Open the history store in the given directory with the default
+	 * segment size. The directory will be created if needed.
+	 *
+	 * @param dir directory where the store keeps all its files
+	 * @throws IOException if the files can not be opened
+	 */
+	public HistoryStore(File dir) throws IOException{
+		this(dir, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Open the history store in the given directory. Existing data will be
+	 * recovered if necessary and the background writer will be started.
+	 *
+	 * @param dir directory where the store keeps all its files
+	 * @param segmentSize size in bytes of new segment files
+	 * @throws IOException if the files can not be opened
+	 */
+	public HistoryStore(File dir, int segmentSize) throws IOException{
+		this.dir = dir;
+		this.indexDir = new File(dir, "index");
+		this.segmentSize = segmentSize;
+		if (!indexDir.isDirectory() && !indexDir.mkdirs()){
+			throw new IOException("could not create directory " + indexDir);
+		}
+		openSegments();
+		recover();
+		writer = new Writer();
+		writer.start();
+	}
+
+	/**
+	 * Append a message to the history of a buddy. This method will not block,
+	 * the message will be written by the background thread and it will become
+	 * visible to readers shortly after. Use sync() to wait for this.
+	 *
+	 * @param buddy the buddy this message belongs to
+	 * @param time time stamp in milliseconds
+	 * @param outgoing true if we have sent it, false if we received it
+	 * @param text the message text
+	 * @throws IllegalStateException if the store has been closed
+	 */
+	public void append(String buddy, long time, boolean outgoing, String text){
+		byte[] payload = HistoryEntry.encode(buddy, time, outgoing, text);
+		if (payload.length + Segment.HEADER_SIZE > segmentSize){
+			throw new IllegalArgumentException("message too large for history segment");
+		}
+		PendingRecord r = new PendingRecord(new HistoryEntry(-1, buddy, time, outgoing, text), payload);
+		synchronized (queue){
+			if (closed || dead){
+				throw new IllegalStateException("history store is closed");
+			}
+			queue.offer(r);
+		}
+	}
+
+	/**
+	 * Register a listener that will be notified from the writer thread about
+	 * every committed entry. Before this happens the listener will first be
+	 * fed with all entries that have already been committed after the given
+	 * position, so that it can catch up with whatever it has missed since
+	 * the last time. This method does not block, the catching up will happen
+	 * in the writer thread.
+	 *
+	 * @param listener the listener
+	 * @param after position of the last entry the listener already knows
+	 * about, it will receive all entries after this, -1 means all entries.
+	 */
+	public void addListener(HistoryListener listener, long after){
+		queue.offer(new ListenerRequest(listener, after, true));
+	}
+
+	/**
+	 * Unregister a listener. After this method returns the listener will
+	 * not be called anymore.
+	 *
+	 * @param listener the listener
+	 * @throws InterruptedException if interrupted while waiting for the writer
+	 */
+	public void removeListener(HistoryListener listener) throws InterruptedException{
+		queue.offer(new ListenerRequest(listener, 0, false));
+		requestSync().latch.await();
+	}
+
+	/**
+	 * Block until everything that has been appended so far is committed to
+	 * disk and visible to readers.
+	 *
+	 * @throws InterruptedException if interrupted while waiting
+	 * @throws IOException if something could not be written (it will be
+	 * tried again) or if the store has been closed
+	 */
+	public void sync() throws InterruptedException, IOException{
+		SyncRequest r = requestSync();
+		r.latch.await();
+		if (r.error != null){
+			throw r.error;
+		}
+	}
+
+	private SyncRequest requestSync(){
+		SyncRequest r = new SyncRequest();
+		queue.offer(r);
+		if (dead){
+			// the writer might have terminated before it could see it
+			r.release(new IOException("history store is closed"));
+		}
+		return r;
+	}
+
+	/**
+	 * Close the store. All messages that have been appended so far will be
+	 * committed before the background thread terminates, then the segment
+	 * files are unmapped.
+	 *
+	 * @throws InterruptedException if interrupted while waiting for the writer
+	 */
+	public void close() throws InterruptedException{
+		synchronized (queue){
+			if (!closed){
+				closed = true;
+				queue.offer(Shutdown.INSTANCE);
+			}
+		}
+		writer.join();
+		synchronized (segments){
+			if (!unmapped){
+				unmapped = true;
+				for (Segment seg : segments){
+					seg.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param buddy the buddy
+	 * @return the number of committed history entries of this buddy
+	 * @throws IOException if the index can not be read
+	 */
+	public int count(String buddy) throws IOException{
+		synchronized (indexes){
+			return getIndex(buddy).count;
+		}
+	}
+
+	/**
+	 * Read a page of the history of a buddy. The entries are numbered from
+	 * 0 (the oldest) to count()-1 (the newest). To page backwards from the
+	 * newest messages start with end = count() and then repeatedly subtract
+	 * the number of returned entries.
+	 *
+	 * @param buddy the buddy
+	 * @param end number of the entry after the last one to return
+	 * @param max maximum number of entries to return
+	 * @return list of entries, the oldest first
+	 * @throws IOException if the index can not be read
+	 */
+	public List<HistoryEntry> getPage(String buddy, int end, int max) throws IOException{
+		long[] positions;
+		synchronized (indexes){
+			BuddyIndex index = getIndex(buddy);
+			end = Math.min(end, index.count);
+			positions = index.read(Math.max(0, end - max), Math.max(0, end));
+		}
+		List<HistoryEntry> result = new ArrayList<HistoryEntry>(positions.length);
+		for (long pos : positions){
+			result.add(read(pos));
+		}
+		return result;
+	}
+
+	/**
+	 * Read the entry at the given position.
+	 *
+	 * @param position position of a committed entry (see HistoryEntry.getPosition())
+	 * @return the entry
+	 * @throws IllegalStateException if the store has been closed
+	 */
+	public HistoryEntry read(long position){
+		if (!isCommitted(position)){
+			throw new IllegalArgumentException("no history entry at position " + position);
+		}
+		synchronized (segments){
+			// an unmapped buffer must never be touched, it would crash the VM
+			if (unmapped){
+				throw new IllegalStateException("history store is closed");
+			}
+			return segments.get(segmentOf(position)).read(offsetOf(position));
+		}
+	}
+
+	/**
+	 * Feed all committed entries after the given position to the listener.
+	 * Only called from the writer thread, so nothing will be committed
+	 * while this is running.
+	 */
+	private void scan(HistoryListener listener, long after){
+		int first = after < 0 ? 0 : segmentOf(after);
+		int count;
+		synchronized (segments){
+			count = segments.size();
+		}
+		for (int i = first; i < count; i++){
+			Segment seg = getSegment(i);
+			int offset = 0;
+			while (seg.readPayload(offset) != null){
+				long pos = position(seg.number, offset);
+				if (!isCommitted(pos)){
+					return;
+				}
+				if (pos > after){
+					listener.onCommitted(seg.read(offset));
+				}
+				offset = seg.next(offset);
+			}
+		}
+	}
+
+	static long position(int segment, int offset){
+		return ((long) segment << 32) | offset;
+	}
+
+	static int segmentOf(long position){
+		return (int) (position >>> 32);
+	}
+
+	static int offsetOf(long position){
+		return (int) position;
+	}
+
+	/**
+	 * @return true if the position points to a record that has already
+	 * been committed to disk.
+	 */
+	boolean isCommitted(long position){
+		return position >= 0 && position < committed;
+	}
+
+	private Segment getSegment(int number){
+		synchronized (segments){
+			return segments.get(number);
+		}
+	}
+
+	private Segment getActiveSegment(){
+		synchronized (segments){
+			return segments.get(segments.size() - 1);
+		}
+	}
+
+	/**
+	 * get the index of this buddy, load it if it is not yet loaded.
+	 * Must be called while holding the lock on indexes.
+	 */
+	private BuddyIndex getIndex(String buddy) throws IOException{
+		BuddyIndex index = indexes.get(buddy);
+		if (index == null){
+			index = new BuddyIndex(new File(indexDir, FileNames.escape(buddy) + INDEX_SUFFIX), this);
+			indexes.put(buddy, index);
+		}
+		return index;
+	}
+
+	private File segmentFile(int number){
+		return new File(dir, String.format("%08d", number) + SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * map all existing segment files or create the first one.
+	 */
+	private void openSegments() throws IOException{
+		String[] names = dir.list();
+		Arrays.sort(names);
+		for (String name : names){
+			if (name.endsWith(SEGMENT_SUFFIX)){
+				int number = segments.size();
+				if (!name.equals(segmentFile(number).getName())){
+					throw new IOException("missing history segment " + segmentFile(number));
+				}
+				segments.add(new Segment(segmentFile(number), number, segmentSize));
+			}
+		}
+		if (segments.isEmpty()){
+			segments.add(new Segment(segmentFile(0), 0, segmentSize));
+		}
+	}
+
+	/**
+	 * Find the end of the valid data and cut off torn records in the active
+	 * segment and the one before it (a crash might have happened right after
+	 * rolling over to a new segment), then add all records from these two
+	 * segments that are missing in the indexes.
+	 */
+	private void recover() throws IOException{
+		int first = Math.max(0, segments.size() - 2);
+		for (int i = first; i < segments.size(); i++){
+			segments.get(i).recover();
+		}
+		Segment active = getActiveSegment();
+		committed = position(active.number, active.end);
+
+		Map<String, List<Long>> missing = new HashMap<String, List<Long>>();
+		synchronized (indexes){
+			for (int i = first; i < segments.size(); i++){
+				Segment seg = segments.get(i);
+				for (int offset = 0; offset < seg.end; offset = seg.next(offset)){
+					String buddy = HistoryEntry.decodeBuddy(seg.readPayload(offset));
+					long pos = position(seg.number, offset);
+					if (pos > getIndex(buddy).last){
+						addPosition(missing, buddy, pos);
+					}
+				}
+			}
+			appendIndexes(missing);
+		}
+	}
+
+	private void addPosition(Map<String, List<Long>> positions, String buddy, long pos){
+		List<Long> list = positions.get(buddy);
+		if (list == null){
+			list = new ArrayList<Long>();
+			positions.put(buddy, list);
+		}
+		list.add(pos);
+	}
+
+	/**
+	 * Must be called while holding the lock on indexes.
+	 */
+	private void appendIndexes(Map<String, List<Long>> positions) throws IOException{
+		for (Map.Entry<String, List<Long>> e : positions.entrySet()){
+			getIndex(e.getKey()).append(e.getValue());
+		}
+	}
+
+	/**
+	 * This is the background thread that is doing all the writing. It will
+	 * always take everything that is currently in the queue, write it and
+	 * then flush it with a single sync to the disk.
+	 */
+	private class Writer extends Thread {
+
+		private Map<String, List<Long>> positions = new HashMap<String, List<Long>>();
+		private List<HistoryEntry> written = new ArrayList<HistoryEntry>();
+		private List<SyncRequest> waiting = new ArrayList<SyncRequest>();
+
+		/**
+		 * records that could not be written yet, in their original order
+		 */
+		private List<PendingRecord> deferred = new ArrayList<PendingRecord>();
+
+		/**
+		 * the reason why the records in deferred could not be written
+		 */
+		private IOException error = null;
+
+		/**
+		 * an unexpected exception in the current batch
+		 */
+		private IOException failure = null;
+
+		public Writer(){
+			super("HistoryStore writer");
+		}
+
+		@Override
+		public void run(){
+			try {
+				loop();
+			} finally {
+				dead = true;
+				List<Object> rest = new ArrayList<Object>();
+				queue.drainTo(rest);
+				int lost = deferred.size();
+				for (Object item : rest){
+					if (item instanceof PendingRecord){
+						lost++;
+					}
+					if (item instanceof SyncRequest){
+						((SyncRequest) item).release(new IOException("history store is closed"));
+					}
+				}
+				if (lost > 0){
+					Log.e(HistoryStore.this, "history writer terminated, messages lost", lost);
+				}
+			}
+		}
+
+		private void loop(){
+			List<Object> batch = new ArrayList<Object>();
+			boolean terminating = false;
+			while (!terminating){
+				try {
+					batch.add(queue.take());
+				} catch (InterruptedException e) {
+					break;
+				}
+				queue.drainTo(batch);
+				writeDeferred();
+				for (Object item : batch){
+					try {
+						if (process(item)){
+							terminating = true;
+						}
+					} catch (RuntimeException e) {
+						// a bug, but the others must not wait forever
+						Log.e(HistoryStore.this, "history writer failed", e);
+						failure = new IOException("history writer failed", e);
+					}
+				}
+				batch.clear();
+				commit();
+				failure = null;
+			}
+		}
+
+		/**
+		 * @return true if it was the shutdown request
+		 */
+		private boolean process(Object item){
+			if (item instanceof PendingRecord){
+				if (deferred.isEmpty()){
+					write((PendingRecord) item);
+				}else{
+					// keep the order
+					deferred.add((PendingRecord) item);
+				}
+			}
+			if (item instanceof SyncRequest){
+				waiting.add((SyncRequest) item);
+			}
+			if (item instanceof ListenerRequest){
+				// commit first, the listener must only see committed data
+				commit();
+				changeListeners((ListenerRequest) item);
+			}
+			return item == Shutdown.INSTANCE;
+		}
+
+		/**
+		 * try again to write the records that have failed before
+		 */
+		private void writeDeferred(){
+			List<PendingRecord> retry = deferred;
+			deferred = new ArrayList<PendingRecord>();
+			for (PendingRecord r : retry){
+				if (deferred.isEmpty()){
+					write(r);
+				}else{
+					deferred.add(r);
+				}
+			}
+			if (deferred.isEmpty()){
+				error = null;
+			}
+		}
+
+		/**
+		 * write one record, if this fails it goes to deferred
+		 */
+		private void write(PendingRecord r){
+			Segment active = getActiveSegment();
+			if (!active.fits(r.payload.length)){
+				active.force();
+				try {
+					active = new Segment(segmentFile(active.number + 1), active.number + 1, segmentSize);
+				} catch (IOException e) {
+					Log.e(HistoryStore.this, "could not create new segment, will try again", e);
+					error = e;
+					deferred.add(r);
+					return;
+				}
+				synchronized (segments){
+					segments.add(active);
+				}
+			}
+			int offset = active.append(r.payload);
+			long pos = position(active.number, offset);
+			addPosition(positions, r.entry.getBuddy(), pos);
+			if (!listeners.isEmpty()){
+				HistoryEntry e = r.entry;
+				written.add(new HistoryEntry(pos, e.getBuddy(), e.getTime(), e.isOutgoing(), e.getText()));
+			}
+		}
+
+		private void changeListeners(ListenerRequest r){
+			if (r.add){
+				try {
+					scan(r.listener, r.after);
+				} catch (RuntimeException e) {
+					Log.e(HistoryStore.this, "listener failed while catching up", e);
+				}
+				listeners.add(r.listener);
+			}else{
+				listeners.remove(r.listener);
+			}
+		}
+
+		private void commit(){
+			if (!positions.isEmpty()){
+				Segment active = getActiveSegment();
+				active.force();
+				committed = position(active.number, active.end);
+				try {
+					synchronized (indexes){
+						appendIndexes(positions);
+					}
+				} catch (IOException e) {
+					// the records are safe in the segment, the
+					// missing entries will be re-created on next start.
+					Log.e(HistoryStore.this, "could not write index", e);
+				}
+				positions.clear();
+			}
+			for (HistoryEntry e : written){
+				for (HistoryListener l : listeners){
+					try {
+						l.onCommitted(e);
+					} catch (RuntimeException ex) {
+						Log.e(HistoryStore.this, "history listener failed", ex);
+					}
+				}
+			}
+			written.clear();
+			for (SyncRequest r : waiting){
+				r.release(error != null ? error : failure);
+			}
+			waiting.clear();
+		}
+	}
+
+	/**
+	 * sync() is waiting for this, error is set if something is not written
+	 */
+	private static class SyncRequest {
+		final CountDownLatch latch = new CountDownLatch(1);
+		volatile IOException error = null;
+
+		void release(IOException e){
+			if (latch.getCount() > 0){
+				error = e;
+				latch.countDown();
+			}
+		}
+	}
+
+	private static class PendingRecord {
+		final HistoryEntry entry;
+		final byte[] payload;
+
+		PendingRecord(HistoryEntry entry, byte[] payload){
+			this.entry = entry;
+			this.payload = payload;
+		}
+	}
+
+	private static class ListenerRequest {
+		final HistoryListener listener;
+		final long after;
+		final boolean add;
+
+		ListenerRequest(HistoryListener listener, long after, boolean add){
+			this.listener = listener;
+			this.after = after;
+			this.add = add;
+		}
+	}
+
+	private enum Shutdown {
+		INSTANCE
+	}
+}
@@ -0,0 +1,296 @@
+package prof7bit.torchat.history;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * One immutable, memory mapped run file of the SearchIndex. It contains a
+ * sorted dictionary of terms and for every term the sorted list of history
+ * positions of the entries that contain this term. The file layout is:
+ *
+ * <pre>
+ * int    magic
+ * int    number of terms n
+ * long   watermark (highest history position contained in this run)
+ * int[n+1] offsets of the terms in the term area
+ * int[n+1] index of the first posting of every term in the posting area
+ * byte[] term area (UTF-8, sorted by unsigned byte order)
+ * long[] posting area
+ * </pre>
+ *
+ * Nothing of this will be loaded into the heap, lookups are done with a
+ * binary search directly in the mapped file.
+ *
+ * The mapping is reference counted: the SearchIndex holds one reference
+ * as long as the run is part of the index and every search holds one while
+ * it is reading. When the last one is released the file is unmapped, and
+ * deleted if it has been merged into another run.
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+class IndexRun {
+
+	private static final int MAGIC = 0x54434958; // "TCIX"
+	private static final int HEADER_SIZE = 16;
+
+	final File file;
+	final long watermark;
+	private final long size;
+	private MappedByteBuffer map;
+	private int termCount;
+	private int baseTermOffsets;
+	private int basePostOffsets;
+	private int baseTerms;
+	private int basePostings;
+	private int refs = 1;
+	private boolean obsolete = false;
+
+	IndexRun(File file) throws IOException{
+		this.file = file;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+		if (map.capacity() < HEADER_SIZE || map.getInt(0) != MAGIC){
+			throw new IOException("not a search index file: " + file);
+		}
+		size = map.capacity();
+		termCount = map.getInt(4);
+		watermark = map.getLong(8);
+		baseTermOffsets = HEADER_SIZE;
+		basePostOffsets = baseTermOffsets + 4 * (termCount + 1);
+		baseTerms = basePostOffsets + 4 * (termCount + 1);
+		basePostings = baseTerms + map.getInt(baseTermOffsets + 4 * termCount);
+	}
+
+	/**
+	 * @return the size of the file in bytes
+	 */
+	long size(){
+		return size;
+	}
+
+	synchronized void acquire(){
+		refs++;
+	}
+
+	/**
+	 * release one reference, unmap it if it was the last one
+	 */
+	synchronized void release(){
+		if (--refs == 0){
+			unmap(map);
+			map = null;
+			if (obsolete){
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * The run has been merged into another one, release the reference of
+	 * the index, the file will be deleted when nobody is reading it anymore.
+	 */
+	synchronized void discard(){
+		obsolete = true;
+		release();
+	}
+
+	/**
+	 * Unmap the file right now instead of waiting for the garbage
+	 * collector, the JDK has no official API for this. This must only
+	 * be called when nobody can access the buffer anymore.
+	 */
+	static void unmap(MappedByteBuffer b){
+		try {
+			// Java 9 and later
+			Class<?> c = Class.forName("sun.misc.Unsafe");
+			Field f = c.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			Method m = c.getMethod("invokeCleaner", ByteBuffer.class);
+			m.invoke(f.get(null), b);
+		} catch (Exception e) {
+			try {
+				// Java 8 and before
+				Method m = b.getClass().getMethod("cleaner");
+				m.setAccessible(true);
+				Object cleaner = m.invoke(b);
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+			} catch (Exception e2) {
+				// the garbage collector will do it eventually
+			}
+		}
+	}
+
+	int termCount(){
+		return termCount;
+	}
+
+	/**
+	 * @return the index of the first term that is not smaller than key
+	 */
+	int lowerBound(byte[] key){
+		int lo = 0;
+		int hi = termCount;
+		while (lo < hi){
+			int mid = (lo + hi) >>> 1;
+			if (compareTerm(mid, key) < 0){
+				lo = mid + 1;
+			}else{
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * compare term number i with key (unsigned byte order)
+	 */
+	int compareTerm(int i, byte[] key){
+		int start = baseTerms + map.getInt(baseTermOffsets + 4 * i);
+		int len = baseTerms + map.getInt(baseTermOffsets + 4 * (i + 1)) - start;
+		int n = Math.min(len, key.length);
+		for (int k = 0; k < n; k++){
+			int a = map.get(start + k) & 0xff;
+			int b = key[k] & 0xff;
+			if (a != b){
+				return a - b;
+			}
+		}
+		return len - key.length;
+	}
+
+	/**
+	 * @return true if term number i starts with the prefix
+	 */
+	boolean termStartsWith(int i, byte[] prefix){
+		int start = baseTerms + map.getInt(baseTermOffsets + 4 * i);
+		int len = baseTerms + map.getInt(baseTermOffsets + 4 * (i + 1)) - start;
+		if (len < prefix.length){
+			return false;
+		}
+		for (int k = 0; k < prefix.length; k++){
+			if (map.get(start + k) != prefix[k]){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	byte[] term(int i){
+		int start = baseTerms + map.getInt(baseTermOffsets + 4 * i);
+		int len = baseTerms + map.getInt(baseTermOffsets + 4 * (i + 1)) - start;
+		byte[] result = new byte[len];
+		for (int k = 0; k < len; k++){
+			result[k] = map.get(start + k);
+		}
+		return result;
+	}
+
+	/**
+	 * append the postings of term number i to the list
+	 */
+	void postings(int i, LongList out){
+		int first = map.getInt(basePostOffsets + 4 * i);
+		int last = map.getInt(basePostOffsets + 4 * (i + 1));
+		for (int k = first; k < last; k++){
+			out.add(map.getLong(basePostings + 8 * k));
+		}
+	}
+
+	/**
+	 * Streaming writer for new run files. Terms must be added in ascending
+	 * unsigned byte order, every term exactly once with all its postings.
+	 * Only the term dictionary is kept in memory, the postings will be
+	 * streamed into a temporary file.
+	 */
+	static class Writer {
+		private File file;
+		private File tmpPostings;
+		private DataOutputStream postings;
+		private ByteArrayOutputStream terms = new ByteArrayOutputStream();
+		private LongList termOffsets = new LongList(1024);
+		private LongList postOffsets = new LongList(1024);
+		private int postingCount = 0;
+		private long watermark = -1;
+
+		Writer(File file) throws IOException{
+			this.file = file;
+			this.tmpPostings = new File(file.getPath() + ".postings");
+			postings = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpPostings)));
+		}
+
+		void add(byte[] term, LongList positions) throws IOException{
+			termOffsets.add(terms.size());
+			postOffsets.add(postingCount);
+			terms.write(term, 0, term.length);
+			for (int i = 0; i < positions.size(); i++){
+				postings.writeLong(positions.get(i));
+			}
+			postingCount += positions.size();
+			watermark = Math.max(watermark, positions.last());
+		}
+
+		/**
+		 * Write the final file. It is first written under a temporary name
+		 * and then renamed, so the file will either be complete or missing.
+		 *
+		 * @param minWatermark the watermark to record if it is higher than
+		 * the highest position that has been added.
+		 */
+		IndexRun finish(long minWatermark) throws IOException{
+			postings.close();
+			termOffsets.add(terms.size());
+			postOffsets.add(postingCount);
+			int n = termOffsets.size() - 1;
+			File tmp = new File(file.getPath() + ".tmp");
+			FileOutputStream fos = new FileOutputStream(tmp);
+			try {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+				out.writeInt(MAGIC);
+				out.writeInt(n);
+				out.writeLong(Math.max(watermark, minWatermark));
+				for (int i = 0; i <= n; i++){
+					out.writeInt((int) termOffsets.get(i));
+				}
+				for (int i = 0; i <= n; i++){
+					out.writeInt((int) postOffsets.get(i));
+				}
+				terms.writeTo(out);
+				InputStream in = new FileInputStream(tmpPostings);
+				try {
+					byte[] b = new byte[8192];
+					int len;
+					while ((len = in.read(b)) > 0){
+						out.write(b, 0, len);
+					}
+				} finally {
+					in.close();
+				}
+				out.flush();
+				fos.getFD().sync();
+			} finally {
+				fos.close();
+				tmpPostings.delete();
+			}
+			if (!tmp.renameTo(file)){
+				throw new IOException("could not rename " + tmp + " to " + file);
+			}
+			return new IndexRun(file);
+		}
+	}
+}
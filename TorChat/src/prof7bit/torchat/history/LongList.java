@@ -0,0 +1,43 @@
+package prof7bit.torchat.history;
+
+import java.util.Arrays;
+
+/**
+ * Minimal growable array of primitive longs, used for posting lists
+ * to avoid boxing every single position into a Long object.
+ */
+class LongList {
+	private long[] items;
+	private int size = 0;
+
+	LongList(int capacity){
+		items = new long[Math.max(capacity, 4)];
+	}
+
+	void add(long value){
+		if (size == items.length){
+			items = Arrays.copyOf(items, size * 2);
+		}
+		items[size++] = value;
+	}
+
+	long get(int i){
+		return items[i];
+	}
+
+	long last(){
+		return items[size - 1];
+	}
+
+	int size(){
+		return size;
+	}
+
+	void sort(){
+		Arrays.sort(items, 0, size);
+	}
+
+	long[] toArray(){
+		return Arrays.copyOf(items, size);
+	}
+}
@@ -0,0 +1,489 @@
+package prof7bit.torchat.history;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import prof7bit.log.Log;
+
+/**
+ * Inverted full text index over the HistoryStore. It answers term queries
+ * and prefix queries with the positions of the matching history entries.
+ *
+ * New entries are added incrementally to a small in-memory delta (the index
+ * registers itself as a HistoryListener). When the delta has grown to its
+ * maximum size it is handed to a background thread which writes it as an
+ * immutable run file and also merges the run files. Merging is size-tiered:
+ * only MERGE_FACTOR runs of similar size (within TIER_RATIO) are merged, so
+ * every posting is rewritten only once per tier instead of every time, and
+ * the number of runs grows only logarithmically. Run files are memory
+ * mapped and searched in place, so the heap usage is bounded by the size
+ * of the delta.
+ *
+ * Every run file records the highest history position it contains, after a
+ * restart everything after this will be re-indexed from the history. The
+ * index can therefore be thrown away at any time, deleting its directory
+ * will make it rebuild itself entirely from the history.
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+public class SearchIndex implements HistoryListener {
+
+	/**
+	 * default number of postings the delta can hold before it is flushed
+	 */
+	public static final int DEFAULT_MAX_DELTA = 100000;
+
+	static final int MERGE_FACTOR = 4;
+	static final int TIER_RATIO = 2;
+	private static final int MAX_TERM_LENGTH = 64;
+	private static final String RUN_SUFFIX = ".run";
+
+	private File dir;
+	private HistoryStore store;
+	private int maxDelta;
+
+	// all of the following are guarded by this
+	private Delta delta = new Delta();
+	private LinkedList<Delta> frozen = new LinkedList<Delta>();
+	private List<IndexRun> runs = new ArrayList<IndexRun>();
+	private int nextRunNumber = 0;
+	private boolean closing = false;
+
+	private Compactor compactor;
+
+	/**
+	 * Open the index with the default delta size. See the other constructor.
+	 */
+	public SearchIndex(File dir, HistoryStore store) throws IOException{
+		this(dir, store, DEFAULT_MAX_DELTA);
+	}
+
+	/**
+	 * Open (or create) the index in the given directory and attach it to the
+	 * history store. Entries that have been added to the history since the
+	 * index was last written will be indexed in the background.
+	 *
+	 * @param dir the directory for the run files, will be created if needed
+	 * @param store the history store to be indexed
+	 * @param maxDelta maximum number of postings to keep in memory
+	 * @throws IOException if the run files can not be opened
+	 */
+	public SearchIndex(File dir, HistoryStore store, int maxDelta) throws IOException{
+		this.dir = dir;
+		this.store = store;
+		this.maxDelta = maxDelta;
+		if (!dir.isDirectory() && !dir.mkdirs()){
+			throw new IOException("could not create directory " + dir);
+		}
+		long watermark = openRuns();
+		compactor = new Compactor();
+		compactor.start();
+		store.addListener(this, watermark);
+	}
+
+	/**
+	 * Find all history entries containing the term.
+	 *
+	 * @param term the word to search for (case insensitive)
+	 * @return positions of the matching entries, the newest first
+	 */
+	public long[] search(String term){
+		return find(normalize(term), false);
+	}
+
+	/**
+	 * Find all history entries containing any word starting with the prefix.
+	 *
+	 * @param prefix the beginning of the word to search for (case insensitive)
+	 * @return positions of the matching entries, the newest first
+	 */
+	public long[] searchPrefix(String prefix){
+		return find(normalize(prefix), true);
+	}
+
+	/**
+	 * Detach from the history store, write the remaining delta
+	 * and stop the background thread.
+	 *
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void close() throws InterruptedException{
+		store.removeListener(this);
+		synchronized (this){
+			freezeDelta();
+			closing = true;
+			notifyAll();
+		}
+		compactor.join();
+		synchronized (this){
+			for (IndexRun run : runs){
+				run.release();
+			}
+			runs = new ArrayList<IndexRun>();
+		}
+	}
+
+	/**
+	 * Called by the writer thread of the history store
+	 */
+	@Override
+	public void onCommitted(HistoryEntry entry){
+		long pos = entry.getPosition();
+		String text = entry.getText();
+		synchronized (this){
+			int start = -1;
+			for (int i = 0; i <= text.length(); i++){
+				boolean isWordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+				if (isWordChar && start < 0){
+					start = i;
+				}
+				if (!isWordChar && start >= 0){
+					delta.add(normalize(text.substring(start, i)), pos);
+					start = -1;
+				}
+			}
+			delta.watermark = pos;
+			if (delta.postings >= maxDelta){
+				freezeDelta();
+			}
+		}
+	}
+
+	private String normalize(String term){
+		term = term.trim().toLowerCase();
+		if (term.length() > MAX_TERM_LENGTH){
+			term = term.substring(0, MAX_TERM_LENGTH);
+		}
+		return term;
+	}
+
+	/**
+	 * hand over the current delta to the compactor thread.
+	 * Must be called while holding the lock.
+	 */
+	private void freezeDelta(){
+		if (delta.watermark >= 0){
+			frozen.add(delta);
+			delta = new Delta();
+			notifyAll();
+		}
+	}
+
+	private long[] find(String term, boolean prefix){
+		LongList result = new LongList(64);
+		List<IndexRun> currentRuns;
+		synchronized (this){
+			for (Delta d : frozen){
+				d.find(term, prefix, result);
+			}
+			delta.find(term, prefix, result);
+			currentRuns = runs;
+			for (IndexRun run : currentRuns){
+				run.acquire();
+			}
+		}
+		byte[] key = term.getBytes(HistoryEntry.UTF8);
+		for (IndexRun run : currentRuns){
+			try {
+				int i = run.lowerBound(key);
+				if (prefix){
+					while (i < run.termCount() && run.termStartsWith(i, key)){
+						run.postings(i++, result);
+					}
+				}else{
+					if (i < run.termCount() && run.compareTerm(i, key) == 0){
+						run.postings(i, result);
+					}
+				}
+			} finally {
+				run.release();
+			}
+		}
+
+		// sort descending and remove duplicates
+		result.sort();
+		LongList unique = new LongList(result.size());
+		for (int i = result.size() - 1; i >= 0; i--){
+			if (unique.size() == 0 || unique.last() != result.get(i)){
+				unique.add(result.get(i));
+			}
+		}
+		return unique.toArray();
+	}
+
+	/**
+	 * open all existing run files and remove leftovers from interrupted
+	 * writes, return the highest history position that is indexed.
+	 */
+	private long openRuns() throws IOException{
+		long watermark = -1;
+		String[] names = dir.list();
+		Arrays.sort(names);
+		for (String name : names){
+			File f = new File(dir, name);
+			if (name.endsWith(RUN_SUFFIX)){
+				IndexRun run = new IndexRun(f);
+				runs.add(run);
+				watermark = Math.max(watermark, run.watermark);
+				int number = Integer.parseInt(name.substring(0, name.length() - RUN_SUFFIX.length()));
+				nextRunNumber = Math.max(nextRunNumber, number + 1);
+			}else{
+				f.delete();
+			}
+		}
+		return watermark;
+	}
+
+	private File newRunFile(){
+		synchronized (this){
+			return new File(dir, String.format("%08d", nextRunNumber++) + RUN_SUFFIX);
+		}
+	}
+
+	/**
+	 * write a frozen delta as a new run file
+	 */
+	private IndexRun writeDelta(Delta d) throws IOException{
+		List<byte[]> terms = new ArrayList<byte[]>(d.terms.size());
+		for (String term : d.terms.keySet()){
+			terms.add(term.getBytes(HistoryEntry.UTF8));
+		}
+		// String order is not necessarily the same as UTF-8 byte order
+		Comparator<byte[]> cmp = new UnsignedComparator();
+		byte[][] sorted = terms.toArray(new byte[terms.size()][]);
+		Arrays.sort(sorted, cmp);
+		IndexRun.Writer w = new IndexRun.Writer(newRunFile());
+		for (byte[] term : sorted){
+			w.add(term, d.terms.get(new String(term, HistoryEntry.UTF8)));
+		}
+		return w.finish(d.watermark);
+	}
+
+	/**
+	 * merge several run files into one new run file
+	 */
+	private IndexRun merge(List<IndexRun> sources) throws IOException{
+		IndexRun.Writer w = new IndexRun.Writer(newRunFile());
+		int[] cursor = new int[sources.size()];
+		byte[][] current = new byte[sources.size()][];
+		long watermark = -1;
+		for (int k = 0; k < sources.size(); k++){
+			IndexRun run = sources.get(k);
+			watermark = Math.max(watermark, run.watermark);
+			current[k] = run.termCount() > 0 ? run.term(0) : null;
+		}
+		Comparator<byte[]> cmp = new UnsignedComparator();
+		while (true){
+			byte[] smallest = null;
+			for (byte[] term : current){
+				if (term != null && (smallest == null || cmp.compare(term, smallest) < 0)){
+					smallest = term;
+				}
+			}
+			if (smallest == null){
+				break;
+			}
+			LongList postings = new LongList(16);
+			for (int k = 0; k < sources.size(); k++){
+				if (current[k] != null && cmp.compare(current[k], smallest) == 0){
+					IndexRun run = sources.get(k);
+					run.postings(cursor[k]++, postings);
+					current[k] = cursor[k] < run.termCount() ? run.term(cursor[k]) : null;
+				}
+			}
+			postings.sort();
+			w.add(smallest, postings);
+		}
+		return w.finish(watermark);
+	}
+
+	/**
+	 * Find MERGE_FACTOR runs of similar size: sorted by size, a tier is a
+	 * sequence of runs that are at most TIER_RATIO times the size of its
+	 * smallest one.
+	 *
+	 * @param sizes the sizes of the runs
+	 * @return the indexes of the runs to merge or null if there are none
+	 */
+	static int[] pickMerge(final long[] sizes){
+		Integer[] order = new Integer[sizes.length];
+		for (int i = 0; i < order.length; i++){
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>(){
+			@Override
+			public int compare(Integer a, Integer b){
+				return sizes[a] < sizes[b] ? -1 : sizes[a] > sizes[b] ? 1 : 0;
+			}
+		});
+		int first = 0;
+		for (int i = 0; i < order.length; i++){
+			if (sizes[order[i]] > TIER_RATIO * sizes[order[first]]){
+				first = i;
+			}
+			if (i - first + 1 == MERGE_FACTOR){
+				int[] result = new int[MERGE_FACTOR];
+				for (int k = 0; k < MERGE_FACTOR; k++){
+					result[k] = order[first + k];
+				}
+				return result;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Must be called while holding the lock.
+	 *
+	 * @return the runs that should be merged now or null
+	 */
+	private List<IndexRun> runsToMerge(){
+		long[] sizes = new long[runs.size()];
+		for (int i = 0; i < sizes.length; i++){
+			sizes[i] = runs.get(i).size();
+		}
+		int[] pick = pickMerge(sizes);
+		if (pick == null){
+			return null;
+		}
+		List<IndexRun> result = new ArrayList<IndexRun>(pick.length);
+		for (int i : pick){
+			result.add(runs.get(i));
+		}
+		return result;
+	}
+
+	/**
+	 * The in-memory part of the index
+	 */
+	private static class Delta {
+		TreeMap<String, LongList> terms = new TreeMap<String, LongList>();
+		int postings = 0;
+		long watermark = -1;
+
+		void add(String term, long pos){
+			LongList list = terms.get(term);
+			if (list == null){
+				list = new LongList(4);
+				terms.put(term, list);
+			}
+			if (list.size() == 0 || list.last() != pos){
+				list.add(pos);
+				postings++;
+			}
+		}
+
+		void find(String term, boolean prefix, LongList result){
+			if (prefix){
+				for (Map.Entry<String, LongList> e : terms.tailMap(term).entrySet()){
+					if (!e.getKey().startsWith(term)){
+						break;
+					}
+					addAll(e.getValue(), result);
+				}
+			}else{
+				LongList list = terms.get(term);
+				if (list != null){
+					addAll(list, result);
+				}
+			}
+		}
+
+		private void addAll(LongList list, LongList result){
+			for (int i = 0; i < list.size(); i++){
+				result.add(list.get(i));
+			}
+		}
+	}
+
+	private static class UnsignedComparator implements Comparator<byte[]> {
+		@Override
+		public int compare(byte[] a, byte[] b){
+			int n = Math.min(a.length, b.length);
+			for (int i = 0; i < n; i++){
+				int d = (a[i] & 0xff) - (b[i] & 0xff);
+				if (d != 0){
+					return d;
+				}
+			}
+			return a.length - b.length;
+		}
+	}
+
+	/**
+	 * Background thread that writes frozen deltas to new run files and
+	 * merges runs of similar size.
+	 */
+	private class Compactor extends Thread {
+
+		public Compactor(){
+			super("SearchIndex compactor");
+		}
+
+		@Override
+		public void run(){
+			while (true){
+				Delta d = null;
+				List<IndexRun> toMerge = null;
+				synchronized (SearchIndex.this){
+					// merge first, this keeps the number of runs bounded
+					while ((toMerge = runsToMerge()) == null && frozen.isEmpty() && !closing){
+						try {
+							SearchIndex.this.wait();
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					if (toMerge == null){
+						if (frozen.isEmpty()){
+							return;
+						}
+						d = frozen.getFirst();
+					}
+				}
+				try {
+					if (d != null){
+						IndexRun run = writeDelta(d);
+						synchronized (SearchIndex.this){
+							List<IndexRun> newRuns = new ArrayList<IndexRun>(runs);
+							newRuns.add(run);
+							runs = newRuns;
+							frozen.removeFirst();
+						}
+					}else{
+						IndexRun merged = merge(toMerge);
+						synchronized (SearchIndex.this){
+							List<IndexRun> newRuns = new ArrayList<IndexRun>();
+							newRuns.add(merged);
+							for (IndexRun run : runs){
+								if (!toMerge.contains(run)){
+									newRuns.add(run);
+								}
+							}
+							runs = newRuns;
+						}
+						// deleted when the last search has finished with them
+						for (IndexRun run : toMerge){
+							run.discard();
+						}
+					}
+				} catch (IOException e) {
+					Log.e(SearchIndex.this, "writing index failed", e);
+					try {
+						// don't spin if the disk is full or something
+						Thread.sleep(1000);
+					} catch (InterruptedException e1) {
+						return;
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package prof7bit.torchat.history;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * One segment file of the history store. Segment files are allocated with
+ * their full size when they are created and are then mapped into memory
+ * entirely. Records are appended one after the other, every record is
+ * prefixed with its payload length and a CRC32 of the payload. A length of
+ * zero marks the end of the data, the rest of the file is zero-filled.
+ *
+ * Only the writer thread of the HistoryStore will ever write to a segment,
+ * readers only use absolute reads or duplicates of the mapped buffer.
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+class Segment {
+
+	/**
+	 * size of the record header: payload length and CRC32
+	 */
+	static final int HEADER_SIZE = 8;
+
+	final int number;
+	final File file;
+	private MappedByteBuffer map;
+
+	/**
+	 * offset of the first free byte, only modified by the writer thread
+	 */
+	int end = 0;
+
+	/**
+	 * Open (or create) and map a segment file. New files will be allocated
+	 * with the given size, existing files will be mapped with their actual
+	 * size (which might differ if the store was created with different
+	 * settings).
+	 *
+	 * @param file the segment file
+	 * @param number the sequence number of this segment
+	 * @param size the size of new segment files
+	 * @throws IOException if the file can not be opened or mapped
+	 */
+	Segment(File file, int number, int size) throws IOException{
+		this.file = file;
+		this.number = number;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			long len = raf.length();
+			if (len == 0){
+				len = size;
+			}
+			map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, len);
+		} finally {
+			// the mapping stays valid after the file has been closed
+			raf.close();
+		}
+	}
+
+	int capacity(){
+		return map.capacity();
+	}
+
+	/**
+	 * @return true if a record with this payload length would still fit
+	 */
+	boolean fits(int lenPayload){
+		return end + HEADER_SIZE + lenPayload <= map.capacity();
+	}
+
+	/**
+	 * Append a record at the current end. The caller must have checked with
+	 * fits() whether there is enough space left.
+	 *
+	 * @return offset of the new record within this segment
+	 */
+	int append(byte[] payload){
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+		int offset = end;
+		ByteBuffer b = map.duplicate();
+		b.position(offset);
+		b.putInt(payload.length);
+		b.putInt((int) crc.getValue());
+		b.put(payload);
+		end = b.position();
+		return offset;
+	}
+
+	/**
+	 * flush all modified pages to the disk
+	 */
+	void force(){
+		map.force();
+	}
+
+	/**
+	 * Read the record at the given offset.
+	 */
+	HistoryEntry read(int offset){
+		ByteBuffer b = map.duplicate();
+		int len = b.getInt(offset);
+		b.position(offset + HEADER_SIZE);
+		return HistoryEntry.decode(HistoryStore.position(number, offset), b, len);
+	}
+
+	/**
+	 * Read the raw payload of the record at the given offset
+	 * or return null if there is no valid record at this place.
+	 */
+	byte[] readPayload(int offset){
+		if (offset + HEADER_SIZE > map.capacity()){
+			return null;
+		}
+		int len = map.getInt(offset);
+		if (len <= 0 || len > map.capacity() - offset - HEADER_SIZE){
+			return null;
+		}
+		byte[] payload = new byte[len];
+		ByteBuffer b = map.duplicate();
+		b.position(offset + HEADER_SIZE);
+		b.get(payload);
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, len);
+		if ((int) crc.getValue() != map.getInt(offset + 4)){
+			return null;
+		}
+		return payload;
+	}
+
+	/**
+	 * @return offset of the record following the one at the given offset
+	 */
+	int next(int offset){
+		return offset + HEADER_SIZE + map.getInt(offset);
+	}
+
+	/**
+	 * Unmap the file right now, the segment must not be used anymore.
+	 */
+	void close(){
+		IndexRun.unmap(map);
+		map = null;
+	}
+
+	/**
+	 * Find the end of the valid data by walking over all records and
+	 * verifying their checksums. If there is anything but zeros after the
+	 * last valid record then this is the remainder of a torn write that
+	 * happened during a crash, it will be wiped out. After this the end
+	 * member will point to the first free byte.
+	 */
+	void recover(){
+		int pos = 0;
+		while (readPayload(pos) != null){
+			pos = next(pos);
+		}
+		end = pos;
+		boolean torn = false;
+		for (int i = end; i < map.capacity(); i++){
+			if (map.get(i) != 0){
+				map.put(i, (byte) 0);
+				torn = true;
+			}
+		}
+		if (torn){
+			map.force();
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package prof7bit.torchat.android.service;
+
+import prof7bit.log.Log;
+import prof7bit.log.LogSink;
+
+/**
+ * Sends the output of the TorChat logging facade to the android log.
+ */
+public class AndroidLogSink implements LogSink {
+	
+	private String TAG;
+	
+	public AndroidLogSink(String tag){
+		TAG = tag;
+	}
+
+	@Override
+	public void write(int level, String line) {
+		switch(level){
+			case Log.DEBUG:
+				android.util.Log.d(TAG, line);
+				break;
+			case Log.INFO:
+				android.util.Log.i(TAG, line);
+				break;
+			case Log.WARN:
+				android.util.Log.w(TAG, line);
+				break;
+			default:
+				android.util.Log.e(TAG, line);
+				break;
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package prof7bit.torchat.android.service;
 import java.io.IOException;
 
+import prof7bit.log.Log;
 import prof7bit.torchat.android.R;
 import prof7bit.torchat.android.gui.TorChat;
 import prof7bit.torchat.core.Client;
@@ -57,6 +58,7 @@ public class Backend extends Service implements ClientHandler {
 		nMgr = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
 		
 		PrintlnRedirect.Install("TorChat");
+		Log.setSink(new AndroidLogSink("TorChat"));
 		
 		try {
 			client = new Client(this, 11009);
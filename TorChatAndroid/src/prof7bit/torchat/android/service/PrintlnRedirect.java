@@ -1,5 +1,6 @@
 package prof7bit.torchat.android.service;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
@@ -13,7 +14,7 @@ public class PrintlnRedirect extends OutputStream {
 		ERROR
 	}
 
-	private String buffer = "";
+	private ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
 	private String TAG;
 	private LogLevel level = LogLevel.DEBUG;
 
@@ -32,20 +33,21 @@ public class PrintlnRedirect extends OutputStream {
 	}
 	
 	@Override
-	public void write(int oneByte) throws IOException {
+	public synchronized void write(int oneByte) throws IOException {
 		
 		if (oneByte == 0x0a){
+			String line = buffer.toString("UTF-8");
 			switch(level){
 				case DEBUG:
-					Log.d(TAG, buffer);
+					Log.d(TAG, line);
 					break;
 				case ERROR:
-					Log.e(TAG, buffer);
+					Log.e(TAG, line);
 					break;
 			}
-			buffer = "";
+			buffer.reset();
 		}else{
-			buffer += (char)oneByte;
+			buffer.write(oneByte);
 		}
 	}
 }
@@ -0,0 +1,380 @@
+package prof7bit.reactor;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * End-to-end benchmark over real sockets on the loopback interface. One
+ * Reactor with a ListenPort plays the server and echoes everything back,
+ * another Reactor opens many connections to it and keeps a configurable
+ * number of messages in flight on each of them. Every echoed message gives
+ * one round trip time. With pipeline=1 this measures latency, with a deep
+ * pipeline and bigger messages it measures bulk throughput. No Tor needed.
+ * With transport=blocking it uses the BLOCKING backend (threads per
+ * connection) instead of the selector, with transport=memory it runs over
+ * a MemoryNetwork instead of sockets.
+ *
+ * Parameters are given as name=value on the command line, see DEFAULTS:
+ *
+ * java -cp bin prof7bit.reactor.LoopbackBench connections=5000 pipeline=16 size=1024
+ *
+ * Thousands of connections need a high enough limit of open files, each
+ * connection uses two sockets (ulimit -n).
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+public class LoopbackBench {
+
+	private static final String[][] DEFAULTS = {
+		{"connections", "1000", "number of concurrent connections"},
+		{"pipeline", "1", "messages in flight per connection"},
+		{"size", "64", "message size in bytes including the delimiter"},
+		{"warmup", "5", "seconds of warmup before measuring"},
+		{"duration", "10", "seconds to measure"},
+		{"batch", "200", "connections to open at once while ramping up"},
+		{"host", "127.0.0.1", "address to listen on and connect to"},
+		{"port", "23456", "port to listen on"},
+		{"transport", "tcp", "tcp (NIO reactor), blocking (threads) or memory (no sockets)"},
+	};
+
+	private int connections;
+	private int pipeline;
+	private int size;
+	private int warmup;
+	private int duration;
+	private int batch;
+	private String host;
+	private int port;
+	private MemoryNetwork memory = null;
+	private Backend backend = Backend.NIO;
+	private Dialer dialer;
+
+	private Reactor serverReactor;
+	private Reactor clientReactor;
+	private List<Pinger> pingers = new ArrayList<Pinger>();
+	private AtomicInteger connected = new AtomicInteger();
+	private AtomicInteger failed = new AtomicInteger();
+
+	/**
+	 * RTT in nanoseconds, only written by the client reactor thread
+	 * and replaced by a new one when the measurement starts.
+	 */
+	private volatile Histogram rtt = new Histogram();
+	
+	/**
+	 * origin of the time stamps in the messages, so they are never negative
+	 */
+	private final long epoch = System.nanoTime();
+
+	public static void main(String[] args) throws Exception {
+		LoopbackBench bench = new LoopbackBench();
+		bench.configure(args);
+		bench.run();
+	}
+
+	private void configure(String[] args){
+		String[] values = new String[DEFAULTS.length];
+		for (int i = 0; i < DEFAULTS.length; i++){
+			values[i] = DEFAULTS[i][1];
+		}
+		for (String arg : args){
+			int eq = arg.indexOf('=');
+			int i = eq < 0 ? -1 : find(arg.substring(0, eq));
+			if (i < 0){
+				usage("unknown argument: " + arg);
+			}
+			values[i] = arg.substring(eq + 1);
+		}
+		try {
+			connections = Integer.parseInt(values[find("connections")]);
+			pipeline = Integer.parseInt(values[find("pipeline")]);
+			size = Math.max(21, Integer.parseInt(values[find("size")]));
+			warmup = Integer.parseInt(values[find("warmup")]);
+			duration = Integer.parseInt(values[find("duration")]);
+			batch = Integer.parseInt(values[find("batch")]);
+			host = values[find("host")];
+			port = Integer.parseInt(values[find("port")]);
+			String transport = values[find("transport")];
+			if (transport.equals("memory")){
+				memory = new MemoryNetwork();
+				dialer = memory;
+			}else if (transport.equals("blocking")){
+				backend = Backend.BLOCKING;
+			}else if (!transport.equals("tcp")){
+				usage("unknown transport: " + transport);
+			}
+		} catch (NumberFormatException e) {
+			usage(e.getMessage());
+		}
+		for (int i = 0; i < DEFAULTS.length; i++){
+			System.out.println(DEFAULTS[i][0] + "=" + values[i]);
+		}
+	}
+
+	private static int find(String name){
+		for (int i = 0; i < DEFAULTS.length; i++){
+			if (DEFAULTS[i][0].equals(name)){
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static void usage(String error){
+		System.err.println(error);
+		System.err.println("usage: LoopbackBench [name=value ...]");
+		for (String[] d : DEFAULTS){
+			System.err.println(String.format("  %-12s %-10s %s", d[0], d[1], d[2]));
+		}
+		System.exit(1);
+	}
+
+	private void run() throws Exception {
+		serverReactor = new Reactor();
+		clientReactor = new Reactor();
+		ListenPortHandler acceptor = new ListenPortHandler(){
+			@Override
+			public TCPHandler onAccept(TCP tcp) {
+				return new Echo(tcp);
+			}
+		};
+		if (memory == null){
+			backend.listen(serverReactor, port, acceptor);
+			dialer = backend.dialer(null, 0, null);
+		}else{
+			memory.listen(serverReactor, host, acceptor);
+		}
+
+		rampUp();
+		System.out.println(String.format("connected: %d, failed: %d", connected.get(), failed.get()));
+
+		System.out.println("warming up for " + warmup + " s");
+		for (Pinger p : pingers){
+			p.start();
+		}
+		Thread.sleep(warmup * 1000L);
+
+		// start measuring: new histogram, take all counters
+		final Histogram measured = new Histogram();
+		clientReactor.invokeLater(new Runnable(){
+			@Override
+			public void run() {
+				rtt = measured;
+			}
+		});
+		long gcCount = gcCount();
+		long gcTime = gcTime();
+		long allocated = allocatedBytes();
+		long bytes = echoedBytes();
+		long t0 = System.nanoTime();
+		System.out.println("measuring for " + duration + " s");
+
+		Thread.sleep(duration * 1000L);
+
+		double seconds = (System.nanoTime() - t0) / 1e9;
+		bytes = echoedBytes() - bytes;
+		allocated = allocatedBytes() - allocated;
+		gcTime = gcTime() - gcTime;
+		gcCount = gcCount() - gcCount;
+		Histogram.Snapshot s = measured.snapshot();
+
+		clientReactor.close();
+		serverReactor.close();
+
+		System.out.println(String.format("round trips: %d (%.0f/s)", s.getCount(), s.getCount() / seconds));
+		System.out.println(String.format("throughput: %.2f MB/s each way", bytes / seconds / 1e6));
+		System.out.println(String.format("rtt us: mean=%.1f p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f",
+				s.getMean() / 1e3, s.getPercentile(50) / 1e3, s.getPercentile(90) / 1e3,
+				s.getPercentile(99) / 1e3, s.getPercentile(99.9) / 1e3, s.getMax() / 1e3));
+		System.out.println(String.format("gc: %d collections, %d ms (%.2f%%)",
+				gcCount, gcTime, gcTime / seconds / 10));
+		if (allocated >= 0){
+			System.out.println(String.format("allocation (reactor threads): %.1f MB/s, %.0f bytes/round trip",
+					allocated / seconds / 1e6, s.getCount() == 0 ? 0.0 : (double) allocated / s.getCount()));
+		}else{
+			System.out.println("allocation: not supported by this JVM");
+		}
+		System.out.println("client reactor:\n" + clientReactor.getStats());
+		System.out.println("server reactor:\n" + serverReactor.getStats());
+	}
+
+	/**
+	 * open the connections in batches, each batch must be
+	 * complete before the next one is started.
+	 */
+	private void rampUp() throws IOException, InterruptedException {
+		System.out.println("opening " + connections + " connections");
+		while (pingers.size() < connections){
+			int n = Math.min(batch, connections - pingers.size());
+			int target = pingers.size() + n;
+			for (int i = 0; i < n; i++){
+				pingers.add(new Pinger());
+			}
+			long deadline = System.currentTimeMillis() + 30000;
+			while (connected.get() + failed.get() < target){
+				if (System.currentTimeMillis() > deadline){
+					System.err.println("timeout while connecting, check ulimit -n and the listen backlog");
+					System.exit(1);
+				}
+				Thread.sleep(10);
+			}
+		}
+	}
+
+	private long echoedBytes(){
+		long sum = 0;
+		for (Pinger p : pingers){
+			sum += p.received;
+		}
+		return sum;
+	}
+
+	private static long gcCount(){
+		long sum = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()){
+			sum += Math.max(0, gc.getCollectionCount());
+		}
+		return sum;
+	}
+
+	private static long gcTime(){
+		long sum = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()){
+			sum += Math.max(0, gc.getCollectionTime());
+		}
+		return sum;
+	}
+
+	/**
+	 * @return bytes allocated by both reactor threads so far,
+	 * -1 if the JVM can't tell.
+	 */
+	private long allocatedBytes(){
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)){
+			return -1;
+		}
+		com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+		if (!sunBean.isThreadAllocatedMemorySupported()){
+			return -1;
+		}
+		return sunBean.getThreadAllocatedBytes(clientReactor.getId())
+				+ sunBean.getThreadAllocatedBytes(serverReactor.getId());
+	}
+
+	/**
+	 * Server side, sends back everything it receives. The received
+	 * buffer is not used anymore by TCP after onReceive() so it can
+	 * be sent directly without copying.
+	 */
+	private class Echo implements TCPHandler {
+		private TCP tcp;
+
+		Echo(TCP tcp){
+			this.tcp = tcp;
+		}
+
+		@Override
+		public void onConnect() {
+			// incoming, already connected
+		}
+
+		@Override
+		public void onDisconnect(Exception e) {
+			// nothing
+		}
+
+		@Override
+		public void onReceive(ByteBuffer buf) {
+			tcp.send(buf);
+		}
+	}
+
+	/**
+	 * Client side, keeps the pipeline full. Every message is a line that
+	 * starts with the send time in nanoseconds (20 decimal digits) and is
+	 * padded to the configured size. All fields are only accessed by the
+	 * client reactor thread, except received which is only read roughly.
+	 */
+	private class Pinger implements TCPHandler {
+		private TCP tcp;
+		private boolean isConnected = false;
+		private long lineTime = 0;
+		private int linePos = 0;
+		volatile long received = 0;
+
+		Pinger() throws IOException {
+			tcp = dialer.dial(clientReactor, host, port, this);
+		}
+
+		/**
+		 * fill the pipeline, can be called from any thread
+		 */
+		void start(){
+			clientReactor.invokeLater(new Runnable(){
+				@Override
+				public void run() {
+					if (isConnected){
+						for (int i = 0; i < pipeline; i++){
+							sendOne();
+						}
+					}
+				}
+			});
+		}
+
+		private void sendOne(){
+			byte[] msg = new byte[size];
+			long t = System.nanoTime() - epoch;
+			for (int i = 19; i >= 0; i--){
+				msg[i] = (byte) ('0' + t % 10);
+				t /= 10;
+			}
+			for (int i = 20; i < size - 1; i++){
+				msg[i] = 'x';
+			}
+			msg[size - 1] = '\n';
+			tcp.send(ByteBuffer.wrap(msg));
+		}
+
+		@Override
+		public void onConnect() {
+			isConnected = true;
+			connected.incrementAndGet();
+		}
+
+		@Override
+		public void onDisconnect(Exception e) {
+			if (!isConnected){
+				failed.incrementAndGet();
+			}
+			isConnected = false;
+		}
+
+		@Override
+		public void onReceive(ByteBuffer buf) {
+			byte[] b = buf.array();
+			int len = buf.limit();
+			received += len;
+			for (int i = 0; i < len; i++){
+				if (b[i] == '\n'){
+					rtt.record(System.nanoTime() - epoch - lineTime);
+					lineTime = 0;
+					linePos = 0;
+					sendOne();
+				}else{
+					if (linePos < 20){
+						lineTime = lineTime * 10 + (b[i] - '0');
+					}
+					linePos++;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package prof7bit.torchat.core;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import prof7bit.reactor.TCP;
+
+/**
+ * Finding and instantiating the Msg class for an incoming command. The
+ * unknown command is the slow path that has to go through the failing
+ * class lookup before falling back to MsgUnknown.
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(3)
+public class DispatchBench {
+
+	@Param({"ping", "status", "message", "no_such_command"})
+	public String command;
+
+	private Connection connection;
+
+	@Setup
+	public void setup(){
+		connection = new Connection((TCP) null);
+	}
+
+	@Benchmark
+	public Object getMsgInstanceFromCommand() throws Exception{
+		return connection.getMsgInstanceFromCommand(command);
+	}
+}
@@ -0,0 +1,85 @@
+package prof7bit.torchat.core;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import prof7bit.reactor.TCP;
+
+/**
+ * Connection.onReceive() splitting a stream of messages at the delimiters
+ * and dispatching every complete message. The stream is cut into chunks of
+ * the given size before, 498 is the payload of one Tor cell, 2048 is what
+ * TCP.doEventRead() reads at once and 65536 is a big socket buffer. 
+ * The score is the time for the whole stream of MESSAGES messages.
+ *
+ * "message" and "filedata" have no Msg class yet, their dispatch would go
+ * through a failing class lookup and a ClassNotFoundException and this
+ * would dominate the score (DispatchBench measures that). So the bodies
+ * are sent with the command COMMAND which dispatches cheaply and ignores
+ * its arguments, what remains is mostly the cost of the splitting.
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(3)
+public class FramingBench {
+
+	public static final int MESSAGES = 64;
+	public static final String COMMAND = "not_implemented";
+
+	@Param({"chat", "filedata"})
+	public String payload;
+
+	@Param({"498", "2048", "65536"})
+	public int chunkSize;
+
+	private ByteBuffer[] chunks;
+	private Connection connection;
+
+	@Setup
+	public void setup(){
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		for (int i = 0; i < MESSAGES; i++){
+			byte[] msg = Payloads.create(payload, COMMAND).encodeForSending().array();
+			stream.write(msg, 0, msg.length);
+		}
+		byte[] all = stream.toByteArray();
+		int n = (all.length + chunkSize - 1) / chunkSize;
+		chunks = new ByteBuffer[n];
+		for (int i = 0; i < n; i++){
+			int len = Math.min(chunkSize, all.length - i * chunkSize);
+			byte[] chunk = new byte[len];
+			System.arraycopy(all, i * chunkSize, chunk, 0, len);
+			chunks[i] = ByteBuffer.wrap(chunk);
+		}
+		
+		// an incoming connection without socket, nothing in 
+		// the path we measure here will ever touch the TCP.
+		connection = new Connection((TCP) null);
+	}
+
+	@Benchmark
+	public long onReceive(){
+		for (ByteBuffer chunk : chunks){
+			connection.onReceive(chunk);
+		}
+		return connection.getStats().getBytesInRaw();
+	}
+}
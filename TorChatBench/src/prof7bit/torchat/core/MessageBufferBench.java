@@ -0,0 +1,69 @@
+package prof7bit.torchat.core;
+
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Transfer-encoding and decoding of single messages and reading their
+ * fields, these run for every message that is sent or received.
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(3)
+public class MessageBufferBench {
+
+	@Param({"chat", "filedata"})
+	public String payload;
+
+	private MessageBuffer message;
+	private byte[] encoded;
+
+	@Setup
+	public void setup(){
+		message = Payloads.create(payload);
+		encoded = Payloads.encoded(message);
+	}
+
+	@Benchmark
+	public ByteBuffer encodeForSending(){
+		return message.encodeForSending();
+	}
+
+	@Benchmark
+	public MessageBuffer decodeFromReceived(){
+		return new MessageBuffer(encoded);
+	}
+
+	@Benchmark
+	public String readString() throws EOFException{
+		message.resetReadPos();
+		message.readCommand();
+		return message.readString();
+	}
+
+	@Benchmark
+	public byte[] readBytes() throws EOFException{
+		message.resetReadPos();
+		message.readBytes();
+		message.readBytes();
+		return message.readBytesUntilEnd();
+	}
+}
@@ -0,0 +1,61 @@
+package prof7bit.torchat.core;
+
+import java.util.Random;
+
+/**
+ * Deterministic test messages for the benchmarks. "chat" is a typical
+ * short chat message with some unicode and a line break, "filedata" is
+ * a file transfer block with random binary data that contains its share
+ * of bytes that need escaping.
+ *
+ * @author Bernd Kreuss <prof7bit@gmail.com>
+ */
+class Payloads {
+
+	static final int FILEDATA_BLOCK_SIZE = 8192;
+
+	/**
+	 * @param kind "chat" or "filedata"
+	 * @return a new message of this kind, not yet transfer-encoded
+	 */
+	static MessageBuffer create(String kind){
+		return create(kind, kind.equals("chat") ? "message" : kind);
+	}
+
+	/**
+	 * The same body as create(kind) but with another command in front of it
+	 *
+	 * @param kind "chat" or "filedata"
+	 * @param command the command
+	 * @return a new message, not yet transfer-encoded
+	 */
+	static MessageBuffer create(String kind, String command){
+		MessageBuffer mb = new MessageBuffer();
+		mb.writeString(command);
+		if (kind.equals("chat")){
+			mb.writeString("Hi there, are you coming over tonight? I'll bring the "
+					+ "beer \u00e0 la fran\u00e7aise.\nSee you later :-)");
+		}else if (kind.equals("filedata")){
+			byte[] data = new byte[FILEDATA_BLOCK_SIZE];
+			new Random(42).nextBytes(data);
+			mb.writeString("1234567890");
+			mb.writeDecimal(65536);
+			mb.writeString("d41d8cd98f00b204e9800998ecf8427e");
+			mb.writeBytes(data);
+		}else{
+			throw new IllegalArgumentException("unknown payload: " + kind);
+		}
+		return mb;
+	}
+
+	/**
+	 * @return the message transfer-encoded, without the trailing delimiter,
+	 * exactly as Connection.onCompleteMessage() would receive it.
+	 */
+	static byte[] encoded(MessageBuffer mb){
+		byte[] enc = mb.encodeForSending().array();
+		byte[] result = new byte[enc.length - 1];
+		System.arraycopy(enc, 0, result, 0, result.length);
+		return result;
+	}
+}
@@ -0,0 +1,176 @@
+package prof7bit.log;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class TestLog {
+
+	private static final int SHUTDOWN_RECORDS = 200;
+
+	@After
+	public void tearDown(){
+		Log.setSink(new StdoutSink());
+		Log.setLevel(Log.INFO);
+	}
+
+	@Test
+	public void testLevelGating(){
+		Collector sink = new Collector();
+		Log.setSink(sink);
+		Log.setLevel(Log.WARN);
+		Object arg = "argument";
+		long accepted = Log.getAccepted();
+		long before = allocatedBytes();
+		for (int i = 0; i < 100000; i++){
+			Log.d(this, "debug", arg);
+			Log.i(this, "info", arg, arg);
+		}
+		long allocated = allocatedBytes() - before;
+		assertEquals(accepted, Log.getAccepted());
+		if (before >= 0){
+			// nothing per call, only the measurement itself
+			assertTrue("allocated " + allocated, allocated < 1000);
+		}
+		assertTrue(Log.flush(1000));
+		assertEquals(0, sink.lines("TestLog").size());
+	}
+
+	@Test
+	public void testOrder(){
+		Collector sink = new Collector();
+		Log.setSink(sink);
+		for (int i = 0; i < 500; i++){
+			Log.i(TestLog.class, "record", i);
+		}
+		assertTrue(Log.flush(5000));
+		List<String> lines = sink.lines("TestLog record");
+		assertEquals(500, lines.size());
+		for (int i = 0; i < 500; i++){
+			assertTrue(lines.get(i), lines.get(i).endsWith(" TestLog record " + i));
+		}
+	}
+
+	@Test
+	public void testOverflow() throws Exception {
+		final CountDownLatch writing = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Collector collector = new Collector();
+		Log.setSink(new LogSink(){
+			@Override
+			public void write(int level, String line) {
+				writing.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					// go on
+				}
+				collector.write(level, line);
+			}
+		});
+
+		// the drainer is now stuck in the sink
+		Log.i(this, "first");
+		assertTrue(writing.await(1000, TimeUnit.MILLISECONDS));
+
+		// the ring fills up and the rest is dropped, without blocking
+		long dropped = Log.getDropped();
+		long start = System.nanoTime();
+		for (int i = 0; i < 3 * Log.CAPACITY; i++){
+			Log.i(this, "overflow", i);
+		}
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+		assertTrue(Log.getDropped() - dropped >= 2 * Log.CAPACITY - 16);
+
+		release.countDown();
+		assertTrue(Log.flush(5000));
+		assertEquals(1, collector.lines("records dropped").size());
+	}
+
+	@Test
+	public void testFlushOnShutdown() throws Exception {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), Exiting.class.getName());
+		pb.redirectErrorStream(true);
+		Process p = pb.start();
+		BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream(), "UTF-8"));
+		int n = 0;
+		String line;
+		while ((line = in.readLine()) != null){
+			if (line.contains("Exiting record")){
+				n++;
+			}
+		}
+		assertEquals(0, p.waitFor());
+		assertEquals(SHUTDOWN_RECORDS, n);
+	}
+
+	/**
+	 * logs to a slow sink and exits right away, the shutdown
+	 * hook must still write everything.
+	 */
+	public static class Exiting {
+		public static void main(String[] args){
+			Log.setSink(new LogSink(){
+				@Override
+				public void write(int level, String line) {
+					try {
+						Thread.sleep(2);
+					} catch (InterruptedException e) {
+						// go on
+					}
+					System.out.println(line);
+				}
+			});
+			for (int i = 0; i < SHUTDOWN_RECORDS; i++){
+				Log.i(Exiting.class, "record", i);
+			}
+		}
+	}
+
+	private static class Collector implements LogSink {
+		private List<String> lines = new ArrayList<String>();
+
+		@Override
+		public synchronized void write(int level, String line) {
+			lines.add(line);
+		}
+
+		synchronized List<String> lines(String containing){
+			List<String> result = new ArrayList<String>();
+			for (String l : lines){
+				if (l.contains(containing)){
+					result.add(l);
+				}
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * @return bytes allocated by the current thread so far, -1 if unsupported
+	 */
+	private static long allocatedBytes(){
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)){
+			return -1;
+		}
+		com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+		if (!sunBean.isThreadAllocatedMemorySupported()){
+			return -1;
+		}
+		return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+}
@@ -0,0 +1,137 @@
+package prof7bit.reactor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.ConnectException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestBlockingTCP {
+
+	private static final int TEST_PORT = 3459;
+	private static final int COUNT = 1000;
+
+	private Reactor reactor;
+	private Handle listener;
+
+	@Before
+	public void setUp() throws Exception {
+		reactor = new Reactor();
+		listener = Backend.BLOCKING.listen(reactor, TEST_PORT, new ListenPortHandler(){
+			@Override
+			public TCPHandler onAccept(final TCP tcp) {
+				return new TCPHandler(){
+					@Override
+					public void onConnect() {
+						// not fired for incoming connections
+					}
+
+					@Override
+					public void onDisconnect(Exception e) {
+						// nothing
+					}
+
+					@Override
+					public void onReceive(ByteBuffer buf) {
+						tcp.send(buf);
+					}
+				};
+			}
+		});
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		listener.close("test finished");
+		reactor.close();
+	}
+
+	@Test
+	public void testEchoAndClose() throws Exception {
+		final AtomicInteger received = new AtomicInteger();
+		final AtomicInteger wrongThread = new AtomicInteger();
+		final AtomicReference<Exception> reason = new AtomicReference<Exception>();
+		final CountDownLatch connected = new CountDownLatch(1);
+		final CountDownLatch echoed = new CountDownLatch(1);
+		final CountDownLatch closed = new CountDownLatch(1);
+
+		Dialer dialer = Backend.BLOCKING.dialer(null, 0, null);
+		TCP tcp = dialer.dial(reactor, "127.0.0.1", TEST_PORT, new TCPHandler(){
+			@Override
+			public void onConnect() {
+				if (!reactor.isReactorThread()){
+					wrongThread.incrementAndGet();
+				}
+				connected.countDown();
+			}
+
+			@Override
+			public void onDisconnect(Exception e) {
+				if (!reactor.isReactorThread()){
+					wrongThread.incrementAndGet();
+				}
+				reason.set(e);
+				closed.countDown();
+			}
+
+			@Override
+			public void onReceive(ByteBuffer buf) {
+				if (!reactor.isReactorThread()){
+					wrongThread.incrementAndGet();
+				}
+				if (received.addAndGet(buf.limit()) == COUNT * 4){
+					echoed.countDown();
+				}
+			}
+		});
+
+		// sent before the connection is established, will be queued
+		for (int i = 0; i < COUNT; i++){
+			ByteBuffer buf = ByteBuffer.allocate(4);
+			buf.putInt(0, i);
+			tcp.send(buf);
+		}
+
+		assertTrue(connected.await(1000, TimeUnit.MILLISECONDS));
+		assertTrue(echoed.await(2000, TimeUnit.MILLISECONDS));
+		tcp.close("done");
+		assertTrue(closed.await(1000, TimeUnit.MILLISECONDS));
+		assertTrue(reason.get() instanceof XConnectionClosedHere);
+		assertEquals(0, wrongThread.get());
+		assertEquals(0, tcp.getQueueDepth());
+	}
+
+	@Test
+	public void testRefused() throws Exception {
+		final AtomicReference<Exception> reason = new AtomicReference<Exception>();
+		final CountDownLatch closed = new CountDownLatch(1);
+		Dialer dialer = Backend.BLOCKING.dialer(null, 0, null);
+		dialer.dial(reactor, "127.0.0.1", TEST_PORT + 1, new TCPHandler(){
+			@Override
+			public void onConnect() {
+				// not expected
+			}
+
+			@Override
+			public void onDisconnect(Exception e) {
+				reason.set(e);
+				closed.countDown();
+			}
+
+			@Override
+			public void onReceive(ByteBuffer buf) {
+				// nothing
+			}
+		});
+		assertTrue(closed.await(2000, TimeUnit.MILLISECONDS));
+		assertTrue(reason.get() instanceof ConnectException);
+	}
+}
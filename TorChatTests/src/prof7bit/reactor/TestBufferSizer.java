@@ -0,0 +1,157 @@
+package prof7bit.reactor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestBufferSizer {
+
+	private static final int TEST_PORT = 3462;
+	private static final int CHUNK = 64 * 1024;
+	private static final int CHUNKS = 512;
+
+	private Reactor reactor;
+	private ListenPort listener;
+	private volatile TCP incoming = null;
+	private AtomicLong received = new AtomicLong();
+	private AtomicLong receivedOut = new AtomicLong();
+	private CountDownLatch doneOut = new CountDownLatch(1);
+	private CountDownLatch connected = new CountDownLatch(1);
+	private CountDownLatch done = new CountDownLatch(1);
+
+	private TCPHandler nothing = new TCPHandler(){
+		@Override
+		public void onConnect() {
+			connected.countDown();
+		}
+
+		@Override
+		public void onDisconnect(Exception e) {
+			// nothing
+		}
+
+		@Override
+		public void onReceive(ByteBuffer buf) {
+			if (receivedOut.addAndGet(buf.limit()) == (long) CHUNK * CHUNKS){
+				doneOut.countDown();
+			}
+		}
+	};
+
+	@Before
+	public void setUp() throws Exception {
+		BufferSizer.setTiming(50, 300);
+		reactor = new Reactor();
+		listener = new ListenPort(reactor, new ListenPortHandler(){
+			@Override
+			public TCPHandler onAccept(TCP tcp) {
+				incoming = tcp;
+				return new TCPHandler(){
+					@Override
+					public void onConnect() {
+						// nothing
+					}
+
+					@Override
+					public void onDisconnect(Exception e) {
+						// nothing
+					}
+
+					@Override
+					public void onReceive(ByteBuffer buf) {
+						if (received.addAndGet(buf.limit()) == (long) CHUNK * CHUNKS){
+							done.countDown();
+						}
+					}
+				};
+			}
+		});
+		listener.listen(TEST_PORT);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		reactor.close();
+		BufferSizer.setTiming(1000, 10000);
+	}
+
+	@Test
+	public void testGrowAndShrink() throws Exception {
+		TCP out = new TCP(reactor, "127.0.0.1", TEST_PORT, nothing);
+		assertTrue(connected.await(1000, TimeUnit.MILLISECONDS));
+		int sndMin = out.getSendBufferSize();
+		assertTrue(sndMin > 0);
+
+		// a chat connection does not grow
+		out.send(ByteBuffer.wrap("hello".getBytes()));
+		Thread.sleep(100);
+		out.send(ByteBuffer.wrap("hello".getBytes()));
+		Thread.sleep(100);
+		assertEquals(sndMin, out.getSendBufferSize());
+
+		// a bulk transfer over several windows does
+		received.set(0);
+		for (int i = 0; i < CHUNKS; i++){
+			out.send(ByteBuffer.allocate(CHUNK));
+			if (i % 16 == 0){
+				Thread.sleep(20);
+			}
+		}
+		assertTrue(done.await(10000, TimeUnit.MILLISECONDS));
+		int sndBulk = out.getSendBufferSize();
+		int rcvBulk = incoming.getReceiveBufferSize();
+		assertTrue(sndBulk > sndMin);
+		assertTrue(rcvBulk > sndMin);
+
+		// back to the minimum after being idle
+		Thread.sleep(1000);
+		assertEquals(sndMin, out.getSendBufferSize());
+		assertTrue(incoming.getReceiveBufferSize() < rcvBulk);
+		out.close("done");
+	}
+
+	@Test
+	public void testOutgoingReceiveSide() throws Exception {
+		TCP out = new TCP(reactor, "127.0.0.1", TEST_PORT, nothing);
+		assertTrue(connected.await(1000, TimeUnit.MILLISECONDS));
+		for (int i = 0; i < 100 && incoming == null; i++){
+			Thread.sleep(10);
+		}
+		int rcvMin = out.getReceiveBufferSize();
+
+		// the outgoing side receives a bulk transfer
+		for (int i = 0; i < CHUNKS; i++){
+			incoming.send(ByteBuffer.allocate(CHUNK));
+			if (i % 16 == 0){
+				Thread.sleep(20);
+			}
+		}
+		assertTrue(doneOut.await(10000, TimeUnit.MILLISECONDS));
+		assertTrue(out.getReceiveBufferSize() > rcvMin);
+		out.close("done");
+	}
+
+	@Test
+	public void testReceiveBufferOnlySetWhenConnected() throws Exception {
+		// SO_RCVBUF at SYN time decides the window scale, it must
+		// not be the small minimum when an outgoing connect starts
+		int unset = SocketChannel.open().socket().getReceiveBufferSize();
+		Socket socket = SocketChannel.open().socket();
+		BufferSizer sizer = new BufferSizer(new TCP(reactor){}, socket);
+		assertEquals(unset, socket.getReceiveBufferSize());
+		sizer.onConnect();
+		assertEquals(sizer.getReceiveBufferSize(), socket.getReceiveBufferSize());
+		assertTrue(socket.getReceiveBufferSize() < unset);
+		socket.close();
+	}
+}
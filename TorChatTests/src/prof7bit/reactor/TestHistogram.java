@@ -0,0 +1,62 @@
+package prof7bit.reactor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestHistogram {
+
+	@Test
+	public void testSmallValuesAreExact(){
+		Histogram h = new Histogram();
+		for (int i = 1; i <= 20; i++){
+			h.record(i);
+		}
+		Histogram.Snapshot s = h.snapshot();
+		assertEquals(20, s.getCount());
+		assertEquals(20, s.getMax());
+		assertEquals(10, s.getPercentile(50));
+		assertEquals(20, s.getPercentile(100));
+		assertEquals(10.5, s.getMean(), 0.0001);
+	}
+	
+	@Test
+	public void testRelativeError(){
+		Histogram h = new Histogram();
+		for (long v = 1; v < 1000000000L; v = v * 3 / 2 + 1){
+			h = new Histogram();
+			h.record(v);
+			h.record(Long.MAX_VALUE / 2);
+			long p = h.snapshot().getPercentile(50);
+			assertTrue("value " + v + " reported as " + p, p >= v && p <= v + v / 16);
+		}
+	}
+	
+	@Test
+	public void testBucketBoundaries(){
+		for (int i = 0; i < 900; i++){
+			long hi = Histogram.highestValue(i);
+			assertEquals(i, Histogram.index(hi));
+			assertEquals(i + 1, Histogram.index(hi + 1));
+		}
+		assertTrue(Histogram.index(Long.MAX_VALUE) < 976);
+	}
+	
+	@Test
+	public void testReactorStats() throws Exception {
+		Reactor r = new Reactor();
+		r.invokeLater(new Runnable(){
+			@Override
+			public void run(){
+				// nothing
+			}
+		});
+		Thread.sleep(100);
+		ReactorStats.Snapshot s = r.getStats();
+		r.close();
+		assertTrue(s.loops > 0);
+		assertTrue(s.wakeups > 0);
+		assertTrue(s.tasks.getMax() >= 1);
+	}
+}
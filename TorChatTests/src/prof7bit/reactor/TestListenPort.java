@@ -0,0 +1,144 @@
+package prof7bit.reactor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestListenPort {
+
+	private static final int TEST_PORT = 3460;
+	private static final int COUNT = 100;
+
+	private Reactor[] reactors;
+	private List<SocketChannel> clients = new ArrayList<SocketChannel>();
+	private ConcurrentHashMap<Thread, AtomicInteger> perThread = new ConcurrentHashMap<Thread, AtomicInteger>();
+	private CountDownLatch accepted = new CountDownLatch(COUNT);
+	private AtomicInteger wrongThread = new AtomicInteger();
+
+	private ListenPortHandler handler = new ListenPortHandler(){
+		@Override
+		public TCPHandler onAccept(TCP tcp) {
+			if (!tcp.getReactor().isReactorThread()){
+				wrongThread.incrementAndGet();
+			}
+			perThread.putIfAbsent(Thread.currentThread(), new AtomicInteger());
+			perThread.get(Thread.currentThread()).incrementAndGet();
+			accepted.countDown();
+			return new TCPHandler(){
+				@Override
+				public void onConnect() {
+					// nothing
+				}
+
+				@Override
+				public void onDisconnect(Exception e) {
+					// nothing
+				}
+
+				@Override
+				public void onReceive(ByteBuffer buf) {
+					// nothing
+				}
+			};
+		}
+	};
+
+	@Before
+	public void setUp() throws Exception {
+		reactors = new Reactor[] {new Reactor(), new Reactor(), new Reactor()};
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for (SocketChannel sc : clients){
+			sc.close();
+		}
+		for (Reactor r : reactors){
+			r.close();
+		}
+	}
+
+	@Test
+	public void testBatchAcceptWithWorkers() throws Exception {
+		ListenPort p = new ListenPort(reactors[0], handler);
+		p.setWorkers(reactors[1], reactors[2]);
+		p.setAcceptBudget(16);
+		p.listen(TEST_PORT, 256, false);
+		connectAll(TEST_PORT);
+
+		assertTrue(accepted.await(5000, TimeUnit.MILLISECONDS));
+		assertEquals(0, wrongThread.get());
+		assertEquals(2, perThread.size());
+		assertTrue(perThread.containsKey(reactors[1]));
+		assertTrue(perThread.containsKey(reactors[2]));
+		assertEquals(COUNT / 2, perThread.get(reactors[1]).get());
+	}
+
+	@Test
+	public void testSharded() throws Exception {
+		List<ListenPort> ports = ListenPort.listenSharded(reactors, handler, TEST_PORT + 1, 256);
+		assertTrue(ports.size() == 1 || ports.size() == reactors.length);
+		connectAll(TEST_PORT + 1);
+		assertTrue(accepted.await(5000, TimeUnit.MILLISECONDS));
+		assertEquals(0, wrongThread.get());
+	}
+
+	@Test
+	public void testBadConnectionDoesNotCloseListener() throws Exception {
+		final AtomicInteger n = new AtomicInteger();
+		ListenPort p = new ListenPort(reactors[0], handler){
+			@Override
+			TCP newTCP(Reactor r, SocketChannel sc) throws IOException {
+				if (n.incrementAndGet() == 3){
+					throw new IOException("connection reset by peer");
+				}
+				return super.newTCP(r, sc);
+			}
+		};
+		p.listen(TEST_PORT + 6, 256, false);
+		connectAll(TEST_PORT + 6);
+
+		// all but the bad one are accepted, the bad one is closed
+		for (int i = 0; i < 500 && accepted.getCount() > 1; i++){
+			Thread.sleep(10);
+		}
+		assertEquals(1, accepted.getCount());
+		boolean closed = false;
+		for (SocketChannel sc : clients){
+			sc.configureBlocking(false);
+			try {
+				closed |= sc.read(ByteBuffer.allocate(1)) == -1;
+			} catch (IOException e) {
+				closed = true;
+			}
+		}
+		assertTrue(closed);
+
+		// and the listener is still accepting
+		clients.add(SocketChannel.open(new InetSocketAddress("127.0.0.1", TEST_PORT + 6)));
+		assertTrue(accepted.await(1000, TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * open all connections at once with plain blocking sockets
+	 */
+	private void connectAll(int port) throws Exception {
+		for (int i = 0; i < COUNT; i++){
+			clients.add(SocketChannel.open(new InetSocketAddress("127.0.0.1", port)));
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package prof7bit.reactor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestMemoryTCP {
+
+	private static final int COUNT = 100000;
+
+	private Reactor client;
+	private Reactor server;
+	private MemoryNetwork net;
+
+	@Before
+	public void setUp() throws Exception {
+		client = new Reactor();
+		server = new Reactor();
+		net = new MemoryNetwork();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		client.close();
+		server.close();
+	}
+
+	@Test
+	public void testOrderAndRemoteClose() throws Exception {
+		final AtomicInteger received = new AtomicInteger();
+		final AtomicInteger outOfOrder = new AtomicInteger();
+		final AtomicInteger wrongThread = new AtomicInteger();
+		final AtomicInteger serverConnects = new AtomicInteger();
+		final AtomicReference<Exception> serverReason = new AtomicReference<Exception>();
+		final AtomicReference<Exception> clientReason = new AtomicReference<Exception>();
+		final AtomicInteger written = new AtomicInteger();
+		final CountDownLatch serverDone = new CountDownLatch(1);
+		final CountDownLatch clientDone = new CountDownLatch(1);
+		final CountDownLatch connected = new CountDownLatch(1);
+
+		net.listen(server, "server", new ListenPortHandler(){
+			@Override
+			public TCPHandler onAccept(TCP tcp) {
+				return new TCPHandler(){
+					@Override
+					public void onConnect() {
+						// accepted connections don't fire this
+						serverConnects.incrementAndGet();
+					}
+
+					@Override
+					public void onDisconnect(Exception e) {
+						serverReason.set(e);
+						serverDone.countDown();
+					}
+
+					@Override
+					public void onReceive(ByteBuffer buf) {
+						if (!server.isReactorThread()){
+							wrongThread.incrementAndGet();
+						}
+						if (buf.getInt(0) != received.getAndIncrement()){
+							outOfOrder.incrementAndGet();
+						}
+					}
+				};
+			}
+		});
+
+		TCP tcp = net.dial(client, "server", 11009, new TCPHandler(){
+			@Override
+			public void onConnect() {
+				if (!client.isReactorThread()){
+					wrongThread.incrementAndGet();
+				}
+				connected.countDown();
+			}
+
+			@Override
+			public void onDisconnect(Exception e) {
+				clientReason.set(e);
+				clientDone.countDown();
+			}
+
+			@Override
+			public void onReceive(ByteBuffer buf) {
+				// nothing
+			}
+		});
+
+		Runnable onWritten = new Runnable(){
+			@Override
+			public void run() {
+				if (!client.isReactorThread()){
+					wrongThread.incrementAndGet();
+				}
+				written.incrementAndGet();
+			}
+		};
+
+		// half of it before the connection is established
+		for (int i = 0; i < COUNT; i++){
+			ByteBuffer buf = ByteBuffer.allocate(4);
+			buf.putInt(0, i);
+			tcp.send(buf, onWritten);
+			if (i == COUNT / 2){
+				assertTrue(connected.await(1000, TimeUnit.MILLISECONDS));
+			}
+		}
+		tcp.close("done");
+
+		assertTrue(serverDone.await(5000, TimeUnit.MILLISECONDS));
+		assertTrue(clientDone.await(1000, TimeUnit.MILLISECONDS));
+		assertEquals(COUNT, received.get());
+		assertEquals(0, outOfOrder.get());
+		assertEquals(0, wrongThread.get());
+		assertEquals(0, serverConnects.get());
+		assertTrue(serverReason.get() instanceof XConnectionClosedRemote);
+		assertTrue(clientReason.get() instanceof XConnectionClosedHere);
+		assertTrue(written.get() <= COUNT);
+	}
+
+	@Test
+	public void testRefused() throws Exception {
+		final AtomicReference<Exception> reason = new AtomicReference<Exception>();
+		final CountDownLatch done = new CountDownLatch(1);
+		final AtomicInteger connects = new AtomicInteger();
+		TCP tcp = net.dial(client, "nobody", 11009, new TCPHandler(){
+			@Override
+			public void onConnect() {
+				connects.incrementAndGet();
+			}
+
+			@Override
+			public void onDisconnect(Exception e) {
+				reason.set(e);
+				done.countDown();
+			}
+
+			@Override
+			public void onReceive(ByteBuffer buf) {
+				// nothing
+			}
+		});
+		tcp.send(ByteBuffer.wrap(new byte[] {1, 2, 3}));
+		assertTrue(done.await(1000, TimeUnit.MILLISECONDS));
+		assertTrue(reason.get() instanceof XConnectionClosedRemote);
+		assertEquals(0, connects.get());
+		assertFalse(net.isListening("nobody"));
+	}
+}
@@ -0,0 +1,209 @@
+package prof7bit.reactor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import prof7bit.reactor.ProxyPool.Endpoint;
+
+public class TestProxyPool {
+
+	private static final int LIVE_PORT = 3463;
+	private static final int DEAD_PORT = 3464;
+	private static final int HUNG_PORT = 3465;
+
+	private Reactor reactor;
+	private ListenPort proxy;
+	private ListenPort hung;
+
+	/**
+	 * accepts every socks4a request
+	 */
+	private ListenPortHandler fakeTor = new ListenPortHandler(){
+		@Override
+		public TCPHandler onAccept(final TCP tcp) {
+			return new TCPHandler(){
+				private boolean replied = false;
+
+				@Override
+				public void onConnect() {
+					// nothing
+				}
+
+				@Override
+				public void onDisconnect(Exception e) {
+					// nothing
+				}
+
+				@Override
+				public void onReceive(ByteBuffer buf) {
+					if (!replied){
+						replied = true;
+						tcp.send(ByteBuffer.wrap(new byte[] {0, 0x5a, 0, 0, 0, 0, 0, 0}));
+					}
+				}
+			};
+		}
+	};
+
+	/**
+	 * accepts the connection but never answers
+	 */
+	private ListenPortHandler hungTor = new ListenPortHandler(){
+		@Override
+		public TCPHandler onAccept(TCP tcp) {
+			return new Result();
+		}
+	};
+
+	@Before
+	public void setUp() throws Exception {
+		reactor = new Reactor();
+		proxy = new ListenPort(reactor, fakeTor);
+		proxy.listen(LIVE_PORT);
+		hung = new ListenPort(reactor, hungTor);
+		hung.listen(HUNG_PORT);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		reactor.close();
+	}
+
+	@Test
+	public void testConsistentHashing() {
+		ProxyPool pool = new ProxyPool(Backend.NIO, "test");
+		Endpoint[] e = new Endpoint[3];
+		for (int i = 0; i < e.length; i++){
+			e[i] = pool.add(new Endpoint("tor" + i, null));
+		}
+		Map<String, Endpoint> before = new HashMap<String, Endpoint>();
+		Map<Endpoint, Integer> count = new HashMap<Endpoint, Integer>();
+		for (int i = 0; i < 3000; i++){
+			String address = "buddy" + i;
+			Endpoint s = pool.select(address, 0);
+			assertEquals(s, pool.select(address, 0));
+			before.put(address, s);
+			count.put(s, count.containsKey(s) ? count.get(s) + 1 : 1);
+		}
+		for (Endpoint x : e){
+			assertTrue(count.get(x) > 600);
+		}
+
+		// only the addresses of the removed endpoint move
+		pool.remove(e[1]);
+		for (Map.Entry<String, Endpoint> entry : before.entrySet()){
+			Endpoint s = pool.select(entry.getKey(), 0);
+			if (entry.getValue() == e[1]){
+				assertTrue(s != e[1]);
+			}else{
+				assertEquals(entry.getValue(), s);
+			}
+		}
+	}
+
+	@Test
+	public void testFailover() throws Exception {
+		ProxyPool pool = new ProxyPool(Backend.NIO, "test");
+		Endpoint live = pool.addProxy("127.0.0.1", LIVE_PORT);
+		Endpoint dead = pool.addProxy("127.0.0.1", DEAD_PORT);
+		String address = null;
+		for (int i = 0; address == null; i++){
+			if (pool.select("buddy" + i, reactor.now()) == dead){
+				address = "buddy" + i;
+			}
+		}
+
+		for (int i = 0; i < ProxyPool.FAIL_THRESHOLD; i++){
+			Result r = new Result();
+			pool.dial(reactor, address, 11009, r);
+			assertTrue(r.done.await(1000, TimeUnit.MILLISECONDS));
+			assertTrue(!r.connected);
+		}
+		assertEquals(ProxyPool.FAIL_THRESHOLD, dead.getFailures());
+		assertEquals(0, dead.getConnecting());
+		assertEquals(live, pool.select(address, reactor.now()));
+
+		Result r = new Result();
+		pool.dial(reactor, address, 11009, r);
+		assertTrue(r.done.await(1000, TimeUnit.MILLISECONDS));
+		assertTrue(r.connected);
+		assertEquals(1, live.getDials());
+		assertEquals(0, live.getFailures());
+
+		// back to its own proxy after the cooldown
+		assertEquals(dead, pool.select(address, reactor.now() + ProxyPool.COOLDOWN));
+	}
+
+	@Test
+	public void testSlowProxyIsProbed() {
+		ProxyPool pool = new ProxyPool(Backend.NIO, "test");
+		Endpoint slow = pool.add(new Endpoint("slow", null));
+		Endpoint fast = pool.add(new Endpoint("fast", null));
+		String address = null;
+		for (int i = 0; address == null; i++){
+			if (pool.select("buddy" + i, 0) == slow){
+				address = "buddy" + i;
+			}
+		}
+		slow.dialStarted(0);
+		slow.onSuccess(ProxyPool.DEFAULT_MAX_LATENCY * 2);
+		assertEquals(fast, pool.select(address, 1000));
+
+		// one probe per cooldown, not more
+		assertEquals(slow, pool.select(address, ProxyPool.COOLDOWN));
+		slow.dialStarted(ProxyPool.COOLDOWN);
+		assertEquals(fast, pool.select(address, ProxyPool.COOLDOWN + 1000));
+
+		// the probe was fast, the average recovers
+		for (int i = 0; i < 10; i++){
+			slow.onSuccess(100);
+		}
+		assertEquals(slow, pool.select(address, ProxyPool.COOLDOWN + 1000));
+	}
+
+	@Test
+	public void testDeadlineCountsAsFailure() throws Exception {
+		ProxyPool pool = new ProxyPool(Backend.NIO, "test");
+		Endpoint e = pool.addProxy("127.0.0.1", HUNG_PORT);
+		pool.setMaxLatency(50);
+		Result r = new Result();
+		TCP tcp = pool.dial(reactor, "buddy", 11009, r);
+		Thread.sleep(100);
+		tcp.close("connect timeout");
+		assertTrue(r.done.await(1000, TimeUnit.MILLISECONDS));
+		assertTrue(!r.connected);
+		assertEquals(1, e.getFailures());
+		assertEquals(0, e.getConnecting());
+	}
+
+	private static class Result implements TCPHandler {
+		final CountDownLatch done = new CountDownLatch(1);
+		volatile boolean connected = false;
+
+		@Override
+		public void onConnect() {
+			connected = true;
+			done.countDown();
+		}
+
+		@Override
+		public void onDisconnect(Exception e) {
+			done.countDown();
+		}
+
+		@Override
+		public void onReceive(ByteBuffer buf) {
+			// nothing
+		}
+	}
+}
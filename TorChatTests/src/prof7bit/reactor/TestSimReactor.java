@@ -0,0 +1,83 @@
+package prof7bit.reactor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class TestSimReactor {
+
+	private SimReactor sim = new SimReactor();
+	private SimNetwork net = new SimNetwork(sim, 100, 0);
+
+	@Test
+	public void testIdleTimeout() throws Exception {
+		Recorder server = new Recorder();
+		listen(server);
+		Recorder busy = new Recorder();
+		Recorder idle = new Recorder();
+		TCP a = net.dial(sim, "server", 11009, busy);
+		net.dial(sim, "server", 11009, idle);
+		sim.runFor(1000);
+
+		// existing connections are watched too
+		sim.setIdleTimeout(10000);
+		for (int i = 0; i < 10; i++){
+			a.send(ByteBuffer.wrap("ping".getBytes()));
+			sim.runFor(2000);
+		}
+		assertTrue(busy.closed == null);
+		assertTrue(idle.closed instanceof XConnectionIdleTimeout);
+		// both ends of the idle connection
+		assertEquals(2, sim.getIdleReaped());
+
+		sim.runFor(20000);
+		assertTrue(busy.closed instanceof XConnectionIdleTimeout);
+		assertEquals(4, sim.getIdleReaped());
+	}
+
+	@Test
+	public void testCloseClosesEverything() throws Exception {
+		Recorder server = new Recorder();
+		listen(server);
+		Recorder client = new Recorder();
+		net.dial(sim, "server", 11009, client);
+		sim.runFor(1000);
+		assertTrue(client.connected);
+		sim.close();
+		assertTrue(client.closed instanceof XConnectionClosedHere);
+		assertTrue(server.closed instanceof XConnectionClosedHere);
+		assertEquals(0, sim.getPending());
+	}
+
+	private void listen(final Recorder r){
+		net.listen("server", new ListenPortHandler(){
+			@Override
+			public TCPHandler onAccept(TCP tcp) {
+				return r;
+			}
+		});
+	}
+
+	private static class Recorder implements TCPHandler {
+		boolean connected = false;
+		Exception closed = null;
+
+		@Override
+		public void onConnect() {
+			connected = true;
+		}
+
+		@Override
+		public void onDisconnect(Exception e) {
+			closed = e;
+		}
+
+		@Override
+		public void onReceive(ByteBuffer buf) {
+			// nothing
+		}
+	}
+}
@@ -96,6 +96,75 @@ public class TestTCP implements ListenPortHandler, TCPHandler {
 		assertEquals("test reason", exDisA.getMessage());
 	}
 
+	@Test
+	public void testSelectorRebuild() {
+		try {
+			tcpOut = new TCP(reactor, "127.0.0.1", TEST_PORT, this);
+		} catch (IOException e) {
+			fail("TCP constructor exception");
+		}
+		latchConA.await(1000);
+		latchAcc.await(1000);
+		
+		// replace the selector while both connections and the
+		// listening port are registered, they must keep working
+		final Latch latchRebuilt = new Latch(1);
+		reactor.invokeLater(new Runnable(){
+			@Override
+			public void run() {
+				try {
+					reactor.rebuildSelector();
+				} catch (IOException e) {
+					fail("rebuild failed");
+				}
+				latchRebuilt.countDown();
+			}
+		});
+		latchRebuilt.await(1000);
+		assertEquals(1, reactor.getStats().selectorRebuilds);
+		
+		ByteBuffer bufSnd = ByteBuffer.wrap("after rebuild".getBytes());
+		tcpOut.send(bufSnd);
+		latchRcvA.await(1000);
+		bufSnd.position(0);
+		bufRcvA.position(0);
+		assertTrue(bufSnd.equals(bufRcvA));
+		
+		tcpOut.close("test reason");
+		latchDisB.await(1000);
+		assertTrue(exDisB instanceof XConnectionClosedRemote);
+	}
+
+	@Test
+	public void testIdleTimeout() {
+		reactor.setIdleTimeout(200);
+		try {
+			tcpOut = new TCP(reactor, "127.0.0.1", TEST_PORT, this);
+		} catch (IOException e) {
+			fail("TCP constructor exception");
+		}
+		latchConA.await(1000);
+		
+		// keep it busy for longer than the timeout, it must survive
+		for (int i = 0; i < 5; i++){
+			latchRcvA = new Latch(1);
+			tcpOut.send(ByteBuffer.wrap("keep alive".getBytes()));
+			latchRcvA.await(1000);
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				fail("interrupted");
+			}
+		}
+		assertEquals(1, latchDisA.getCount());
+		
+		// now stop sending, both ends must be reaped
+		latchDisA.await(1000);
+		latchDisB.await(1000);
+		assertTrue(exDisA instanceof XConnectionIdleTimeout);
+		assertTrue(exDisB instanceof XConnectionIdleTimeout);
+		assertEquals(2, reactor.getIdleReaped());
+	}
 	
 	
 	// handler for ListenPort
@@ -0,0 +1,38 @@
+package prof7bit.reactor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestWatchdog {
+
+	@Test
+	public void testStallIsReportedOnce() throws Exception {
+		Reactor r = new Reactor();
+		Watchdog w = new Watchdog(r, 50);
+		r.invokeLater(new Runnable(){
+			@Override
+			public void run(){
+				try {
+					Thread.sleep(300);
+				} catch (InterruptedException e) {
+					// ignore
+				}
+			}
+		});
+		Thread.sleep(500);
+		w.shutdown();
+		r.close();
+		
+		List<Watchdog.Stall> stalls = w.getStalls();
+		assertEquals(1, stalls.size());
+		assertEquals(1, w.getStallCount());
+		Watchdog.Stall s = stalls.get(0);
+		assertEquals("task", s.getEvent());
+		assertTrue(s.getDuration() >= 50);
+		assertTrue(s.toString().contains("Thread.sleep"));
+	}
+}
@@ -0,0 +1,135 @@
+package prof7bit.torchat.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import prof7bit.log.Log;
+
+public class TestAdmission {
+
+	private static final int TEST_PORT = 3461;
+	private static final String PING = "ping abcdefghijklmnop 4711\n";
+
+	private Client client;
+	private Admission admission;
+
+	@Before
+	public void setUp() throws Exception {
+		Log.setLevel(Log.WARN);
+		client = new Client(new ClientHandler(){}, TEST_PORT);
+		admission = client.getAdmission();
+		admission.setMaxUnauthenticated(2);
+		admission.setHandshakeTimeout(300);
+		admission.setPreAuthLimit(1000);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		client.close();
+		Log.setLevel(Log.INFO);
+	}
+
+	@Test
+	public void testLimitAndPing() throws Exception {
+		Socket a = connect();
+		Socket b = connect();
+		Socket c = connect();
+		assertTrue(isClosed(c));
+		assertEquals(1, admission.getShed());
+		assertEquals(2, admission.getUnauthenticated());
+
+		// a authenticates, now there is room for one more
+		send(a, PING + "status available\n");
+		waitFor(1);
+		Socket d = connect();
+		assertTrue(isOpen(d));
+		assertTrue(isOpen(a));
+		assertEquals(1, admission.getShed());
+		a.close();
+		b.close();
+		d.close();
+	}
+
+	@Test
+	public void testHandshakeTimeout() throws Exception {
+		Socket a = connect();
+		Thread.sleep(500);
+		assertTrue(isClosed(a));
+		assertEquals(1, admission.getTimedOut());
+		waitFor(0);
+	}
+
+	@Test
+	public void testPreAuthLimit() throws Exception {
+		Socket a = connect();
+		send(a, "ping " + new String(new char[2000]).replace('\0', 'x'));
+		assertTrue(isClosed(a));
+		assertEquals(1, admission.getOverflowed());
+		waitFor(0);
+	}
+
+	@Test
+	public void testNoPingFirst() throws Exception {
+		Socket a = connect();
+		send(a, "status available\n" + PING);
+		assertTrue(isClosed(a));
+		Socket b = connect();
+		send(b, "ping nonsense 4711\n");
+		assertTrue(isClosed(b));
+		assertEquals(2, admission.getViolations());
+		waitFor(0);
+	}
+
+	private Socket connect() throws IOException {
+		Socket s = new Socket("127.0.0.1", TEST_PORT);
+		s.setSoTimeout(1000);
+		return s;
+	}
+
+	private void send(Socket s, String data) throws IOException {
+		OutputStream out = s.getOutputStream();
+		out.write(data.getBytes("UTF-8"));
+		out.flush();
+	}
+
+	/**
+	 * @return true if the other side closes the socket within the timeout
+	 */
+	private boolean isClosed(Socket s) throws IOException {
+		InputStream in = s.getInputStream();
+		try {
+			while (true){
+				if (in.read() == -1){
+					return true;
+				}
+			}
+		} catch (SocketTimeoutException e) {
+			return false;
+		} catch (IOException e) {
+			// connection reset
+			return true;
+		}
+	}
+
+	private boolean isOpen(Socket s) throws IOException {
+		s.setSoTimeout(200);
+		return !isClosed(s);
+	}
+
+	private void waitFor(int unauthenticated) throws InterruptedException {
+		for (int i = 0; i < 100 && admission.getUnauthenticated() != unauthenticated; i++){
+			Thread.sleep(10);
+		}
+		assertEquals(unauthenticated, admission.getUnauthenticated());
+	}
+}
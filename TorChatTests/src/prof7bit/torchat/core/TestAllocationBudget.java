@@ -0,0 +1,260 @@
+package prof7bit.torchat.core;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import prof7bit.reactor.ListenPort;
+import prof7bit.reactor.ListenPortHandler;
+import prof7bit.reactor.Reactor;
+import prof7bit.reactor.TCP;
+import prof7bit.reactor.TCPHandler;
+
+/**
+ * Bytes allocated per message in steady state on the receive and on the
+ * send path. The budgets below are checked in on purpose, if a change makes
+ * one of these tests fail then either remove the new garbage from the hot
+ * path or, if it really can't be avoided, raise the budget in the same
+ * commit and explain why. Every allocation here is paid for every single
+ * message and causes GC pauses on Android.
+ *
+ * The messages go through a real loopback socket and everything is
+ * measured on the reactor thread, so doEventRead(), doEventWrite() and
+ * the select loop are included. The other end is a plain blocking socket
+ * in the test thread that does not allocate on the reactor.
+ */
+public class TestAllocationBudget {
+
+	/*
+	 * Bytes per message, measured on a 64 bit HotSpot JVM (OpenJDK 17) in
+	 * the full test run. Every budget is the measured value plus about 60
+	 * bytes, that is less than three more small objects per message.
+	 *
+	 * Most of it is MessageBuffer.trimAndNormalize() which compiles a regex
+	 * for every string that is read or written, about 800 bytes each, and
+	 * the reflective lookup in getMsgInstanceFromCommand(), about 360 bytes.
+	 * The 2048 byte read buffer in doEventRead() and the copy into bufTotal
+	 * are shared by all messages in the same read, 20 (chat) to 120 (status).
+	 */
+
+	// measured 2937: command, address and cookie (3 strings), reflection,
+	// message bytes. Alone the class measures 2601, the JIT can optimize
+	// more of the reactor loop when no other tests have run before.
+	private static final int BUDGET_RECEIVE_PING = 3000;
+
+	// measured 2043: command and status (2 strings), reflection, message bytes
+	private static final int BUDGET_RECEIVE_STATUS = 2100;
+
+	// measured 4513: command and text (2 strings, but 90 characters long),
+	// reflection, message bytes
+	private static final int BUDGET_RECEIVE_CHAT = 4580;
+
+	// measured 2096: serialize() with 2 strings and a 256 byte buffer (1880),
+	// encodeForSending() (120) and the send queue entry of the TCP
+	private static final int BUDGET_SEND_STATUS = 2160;
+
+	private static final int TEST_PORT = 3457;
+	private static final int WARMUP = 20000;
+	private static final int MEASURE = 20000;
+	private static final int BATCH = 100;
+
+	private Reactor reactor;
+	private Connection connection;
+	private CountDownLatch accepted;
+	private Socket client;
+	private AtomicLong drained = new AtomicLong();
+
+	@Before
+	public void setUp() throws Exception {
+		reactor = new Reactor();
+		accepted = new CountDownLatch(1);
+		ListenPort listener = new ListenPort(reactor, new ListenPortHandler(){
+			@Override
+			public TCPHandler onAccept(TCP tcp) {
+				connection = new Connection(tcp);
+				accepted.countDown();
+				return connection;
+			}
+		});
+		listener.listen(TEST_PORT);
+		client = new Socket("127.0.0.1", TEST_PORT);
+		assertTrue(accepted.await(1000, TimeUnit.MILLISECONDS));
+
+		// discard everything the connection sends back
+		final InputStream in = client.getInputStream();
+		Thread drain = new Thread("drain"){
+			@Override
+			public void run(){
+				byte[] buf = new byte[65536];
+				try {
+					int n;
+					while ((n = in.read(buf)) > 0){
+						drained.addAndGet(n);
+					}
+				} catch (IOException e) {
+					// closed
+				}
+			}
+		};
+		drain.setDaemon(true);
+		drain.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		client.close();
+		connection.close("test finished");
+		reactor.close();
+	}
+
+	@Test
+	public void testReceivePing() throws Exception {
+		checkReceive("ping", "ping abcdefghijklmnop 4711", BUDGET_RECEIVE_PING);
+	}
+
+	@Test
+	public void testReceiveStatus() throws Exception {
+		checkReceive("status", "status available", BUDGET_RECEIVE_STATUS);
+	}
+
+	@Test
+	public void testReceiveChat() throws Exception {
+		checkReceive("message", "message Hi there, are you coming over tonight? "
+				+ "I'll bring the beer.\\nSee you later :-)", BUDGET_RECEIVE_CHAT);
+	}
+
+	@Test
+	public void testSendStatus() throws Exception {
+		if (allocatedBytes() < 0){
+			return; // not supported by this JVM
+		}
+		final Msg_status msg = new Msg_status(connection, Msg_status.AWAY);
+		Runnable batch = new Runnable(){
+			@Override
+			public void run() {
+				for (int i = 0; i < BATCH; i++){
+					connection.send(msg.serialize());
+				}
+			}
+		};
+		sendOnReactor(batch, WARMUP);
+		long before = allocatedBytes();
+		sendOnReactor(batch, MEASURE);
+		long perMessage = (allocatedBytes() - before) / MEASURE;
+		assertTrue("send status: " + perMessage + " bytes per message, budget is "
+				+ BUDGET_SEND_STATUS, perMessage <= BUDGET_SEND_STATUS);
+	}
+
+	/**
+	 * send the messages in batches from the reactor thread and wait until
+	 * the other end has received all of them.
+	 */
+	private void sendOnReactor(Runnable batch, int count) throws Exception {
+		ConnectionStats stats = connection.getStats();
+		long messages = stats.getMessagesOut("status") + count;
+		long bytes = stats.getBytesOutWire();
+		long done = drained.get();
+		for (int i = 0; i < count / BATCH; i++){
+			reactor.invokeLater(batch);
+		}
+		waitFor(new Counter(){
+			@Override
+			long get(ConnectionStats stats){
+				return stats.getMessagesOut("status");
+			}
+		}, messages);
+		long expected = done + stats.getBytesOutWire() - bytes;
+		long deadline = System.currentTimeMillis() + 10000;
+		while (drained.get() < expected && System.currentTimeMillis() < deadline){
+			Thread.sleep(1);
+		}
+		assertTrue(drained.get() >= expected);
+		settle();
+	}
+
+	/**
+	 * write a stream of messages into the socket and measure what the
+	 * reactor thread allocates to receive them. The reactor reads in 2048
+	 * byte chunks, so messages are cut at arbitrary positions.
+	 */
+	private void checkReceive(String command, String line, int budget) throws Exception {
+		if (allocatedBytes() < 0){
+			return; // not supported by this JVM
+		}
+		byte[] msg = (line + "\n").getBytes("UTF-8");
+		byte[] stream = new byte[msg.length * 1000];
+		for (int i = 0; i < 1000; i++){
+			System.arraycopy(msg, 0, stream, i * msg.length, msg.length);
+		}
+
+		feed(command, stream, WARMUP / 1000);
+		long before = allocatedBytes();
+		feed(command, stream, MEASURE / 1000);
+		long perMessage = (allocatedBytes() - before) / MEASURE;
+		assertTrue("receive " + command + ": " + perMessage
+				+ " bytes per message, budget is " + budget, perMessage <= budget);
+	}
+
+	private void feed(String command, byte[] stream, int repeat) throws Exception {
+		final String c = command;
+		long expected = connection.getStats().getMessagesIn(command) + repeat * 1000;
+		OutputStream out = client.getOutputStream();
+		for (int r = 0; r < repeat; r++){
+			out.write(stream);
+		}
+		out.flush();
+		waitFor(new Counter(){
+			@Override
+			long get(ConnectionStats stats){
+				return stats.getMessagesIn(c);
+			}
+		}, expected);
+		settle();
+	}
+
+	private void waitFor(Counter counter, long value) throws InterruptedException{
+		long deadline = System.currentTimeMillis() + 10000;
+		while (counter.get(connection.getStats()) < value && System.currentTimeMillis() < deadline){
+			Thread.sleep(1);
+		}
+		assertTrue(counter.get(connection.getStats()) >= value);
+	}
+
+	/**
+	 * let the reactor finish the last event and go back to select()
+	 */
+	private void settle() throws InterruptedException{
+		Thread.sleep(50);
+	}
+
+	private abstract static class Counter {
+		abstract long get(ConnectionStats stats);
+	}
+
+	/**
+	 * @return bytes allocated by the reactor thread so far, -1 if unsupported
+	 */
+	private long allocatedBytes(){
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)){
+			return -1;
+		}
+		com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+		if (!sunBean.isThreadAllocatedMemorySupported()){
+			return -1;
+		}
+		return sunBean.getThreadAllocatedBytes(reactor.getId());
+	}
+}
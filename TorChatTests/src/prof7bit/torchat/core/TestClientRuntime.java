@@ -0,0 +1,141 @@
+package prof7bit.torchat.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.Socket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import prof7bit.log.Log;
+import prof7bit.reactor.Backend;
+import prof7bit.reactor.Dialer;
+import prof7bit.reactor.Reactor;
+import prof7bit.reactor.TCP;
+import prof7bit.reactor.TCPHandler;
+
+public class TestClientRuntime {
+
+	private static final int TEST_PORT = 3470;
+	private static final String PING = "ping abcdefghijklmnop 4711\n";
+
+	private ClientRuntime runtime;
+	private Client[] clients = new Client[4];
+
+	@Before
+	public void setUp() throws Exception {
+		Log.setLevel(Log.WARN);
+		runtime = new ClientRuntime(2, Backend.NIO);
+		for (int i = 0; i < clients.length; i++){
+			clients[i] = new Client(new ClientHandler(){}, TEST_PORT + i, runtime);
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		runtime.close();
+		Log.setLevel(Log.INFO);
+	}
+
+	@Test
+	public void testSharedReactorsSeparateStats() throws Exception {
+		assertEquals(4, runtime.getClients().size());
+		assertTrue(clients[0].getReactor() == clients[2].getReactor());
+		assertTrue(clients[1].getReactor() == clients[3].getReactor());
+		assertTrue(clients[0].getReactor() != clients[1].getReactor());
+
+		Socket s = new Socket("127.0.0.1", TEST_PORT + 2);
+		OutputStream out = s.getOutputStream();
+		out.write(PING.getBytes("UTF-8"));
+		out.flush();
+		for (int i = 0; i < 100 && clients[2].getStats().getMessagesIn("ping") == 0; i++){
+			Thread.sleep(10);
+		}
+		assertEquals(PING.length(), clients[2].getStats().getBytesInWire());
+		assertEquals(1, clients[2].getStats().getTop(10).size());
+		assertEquals(0, clients[0].getStats().getBytesInWire());
+		assertEquals(0, clients[0].getStats().getTop(10).size());
+		s.close();
+
+		// closing one client leaves the others and the reactors running
+		clients[2].close();
+		assertEquals(3, runtime.getClients().size());
+		assertTrue(clients[0].getReactor().isAlive());
+		assertTrue(isClosed(TEST_PORT + 2));
+		new Socket("127.0.0.1", TEST_PORT).close();
+
+		runtime.close();
+		assertEquals(0, runtime.getClients().size());
+		assertTrue(!clients[0].getReactor().isAlive());
+		assertTrue(!clients[1].getReactor().isAlive());
+	}
+
+	@Test
+	public void testCloseLeavesNothingBehind() throws Exception {
+		// every outgoing connection goes directly to client 0
+		runtime.setDialer(new Dialer(){
+			@Override
+			public TCP dial(Reactor r, String address, int port, TCPHandler handler) throws IOException {
+				return new TCP(r, "127.0.0.1", TEST_PORT, handler);
+			}
+		});
+		ConnectionManager manager = clients[2].createConnectionManager(null);
+		manager.addBuddy("abcdefghijklmnop");
+		Socket s = new Socket("127.0.0.1", TEST_PORT + 2);
+		for (int i = 0; i < 100 && (clients[2].getStats().getTop(10).size() < 2 || clients[0].getStats().getTop(10).size() < 1); i++){
+			Thread.sleep(10);
+		}
+		assertEquals(2, clients[2].getStats().getTop(10).size());
+		assertEquals(1, clients[0].getStats().getTop(10).size());
+		assertTrue(manager.getConnection("abcdefghijklmnop").isConnected());
+
+		clients[2].close();
+		assertTrue(isEmpty(clients[2].getStats()));
+		assertTrue(isEmpty(clients[0].getStats()));
+		assertEquals(0, clients[2].getAdmission().getUnauthenticated());
+		assertTrue(manager.getConnection("abcdefghijklmnop") == null);
+
+		// the incoming connection has been closed from our side
+		s.setSoTimeout(1000);
+		InputStream in = s.getInputStream();
+		assertEquals(-1, in.read());
+		s.close();
+
+		// and the closed manager does not dial anymore
+		manager.addBuddy("bcdefghijklmnopq");
+		Thread.sleep(50);
+		assertTrue(manager.getConnection("bcdefghijklmnopq") == null);
+		assertEquals(0, clients[0].getStats().getTop(10).size());
+	}
+
+	/**
+	 * connections are closed asynchronously by their reactor
+	 */
+	private boolean isEmpty(ConnectionStats group) throws Exception {
+		for (int i = 0; i < 100 && group.getTop(10).size() > 0; i++){
+			Thread.sleep(10);
+		}
+		return group.getTop(10).size() == 0;
+	}
+
+	/**
+	 * the port is closed asynchronously by its reactor
+	 */
+	private boolean isClosed(int port) throws Exception {
+		for (int i = 0; i < 100; i++){
+			try {
+				new Socket("127.0.0.1", port).close();
+			} catch (ConnectException e) {
+				return true;
+			}
+			Thread.sleep(10);
+		}
+		return false;
+	}
+}
@@ -0,0 +1,302 @@
+package prof7bit.torchat.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import prof7bit.log.Log;
+import prof7bit.reactor.Dialer;
+import prof7bit.reactor.Reactor;
+import prof7bit.reactor.SimReactor;
+import prof7bit.reactor.TCP;
+import prof7bit.reactor.TCPHandler;
+
+public class TestConnectionManager {
+
+	private SimReactor sim = new SimReactor();
+	private File dir;
+	private Outbox outbox;
+	private List<ConnectionManager> managers = new ArrayList<ConnectionManager>();
+
+	@Before
+	public void setUp() throws Exception {
+		Log.setLevel(Log.WARN);
+		dir = File.createTempFile("manager", "");
+		dir.delete();
+		dir.mkdir();
+		outbox = new Outbox(dir);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		// the stats of open connections would stay in the global list
+		for (ConnectionManager m : managers){
+			m.close();
+		}
+		sim.runFor(1);
+		sim.close();
+		outbox.close();
+		for (File f : dir.listFiles()){
+			f.delete();
+		}
+		dir.delete();
+		Log.setLevel(Log.INFO);
+	}
+
+	@Test
+	public void testSynchronousDialer() throws Exception {
+		InstantDialer dialer = new InstantDialer();
+		dialer.online.add("alice");
+		dialer.refused.add("bob");
+		dialer.refused.add("carol");
+		ConnectionManager manager = manager(outbox, 1, dialer);
+		assertTrue(manager.send("alice", new Msg_status(null, Msg_status.AWAY).serialize()));
+
+		manager.addBuddy("alice");
+		manager.addBuddy("bob");
+		manager.addBuddy("carol");
+		sim.runFor(1000);
+
+		// the outbox has been replayed over the TCP that connected in dial()
+		Connection c = manager.getConnection("alice");
+		assertTrue(c.isConnected());
+		assertEquals(1, dialer.sent);
+		assertEquals(0, outbox.getPending("alice").size());
+
+		// the one slot was released after the success and after each
+		// failure, otherwise bob and carol would never have been dialed
+		assertEquals(3, dialer.order.size());
+
+		// and the connect deadline does not close the live connection
+		sim.runFor(2 * ConnectionManager.CONNECT_TIMEOUT);
+		assertSame(c, manager.getConnection("alice"));
+		assertTrue(c.isConnected());
+	}
+
+	@Test
+	public void testBackoff(){
+		ConnectionManager manager = new ConnectionManager(sim, null, 1, new Random(1));
+		for (int failures = 0; failures < 40; failures++){
+			long lo = Long.MAX_VALUE;
+			long hi = 0;
+			Set<Long> distinct = new HashSet<Long>();
+			for (int i = 0; i < 1000; i++){
+				long b = manager.backoff(failures);
+				assertTrue(b >= ConnectionManager.BACKOFF_MIN);
+				assertTrue(b <= ConnectionManager.BACKOFF_MAX);
+				lo = Math.min(lo, b);
+				hi = Math.max(hi, b);
+				distinct.add(b);
+			}
+			// equal jitter: spread over half the delay, so at any level
+			// of backoff the retries of many buddies don't line up
+			assertTrue(distinct.size() > 900);
+			assertTrue(hi - lo > (hi / 2) * 9 / 10);
+			if (failures > 12){
+				assertTrue(hi > ConnectionManager.BACKOFF_MAX * 9 / 10);
+			}
+		}
+		assertTrue(manager.backoff(1) < ConnectionManager.BACKOFF_MIN * 4);
+	}
+
+	@Test
+	public void testRecentFirst() throws Exception {
+		InstantDialer dialer = new InstantDialer();
+		ConnectionManager manager = manager(null, 1, dialer);
+		manager.addBuddy("first");
+		manager.addBuddy("a");
+		manager.addBuddy("b");
+		manager.addBuddy("c");
+		sim.runFor(1000);
+		manager.touch("b");
+		sim.runFor(1000);
+		manager.touch("c");
+		sim.runFor(1000);
+		assertEquals("[first]", dialer.order.toString());
+
+		// every time the slot becomes free the most recent one is next
+		for (int i = 0; i < 3; i++){
+			dialer.last().fail();
+			sim.runFor(1000);
+		}
+		assertEquals("[first, c, b, a]", dialer.order.toString());
+	}
+
+	@Test
+	public void testMaxConnecting() throws Exception {
+		InstantDialer dialer = new InstantDialer();
+		ConnectionManager manager = manager(null, 2, dialer);
+		for (int i = 0; i < 5; i++){
+			manager.addBuddy("buddy" + i);
+		}
+		sim.runFor(1000);
+		assertEquals(2, dialer.order.size());
+
+		// success releases the slot
+		dialer.pending.get("buddy0").connect();
+		sim.runFor(1000);
+		assertEquals(3, dialer.order.size());
+		assertTrue(manager.getConnection("buddy0").isConnected());
+
+		// failure releases the slot
+		dialer.pending.get("buddy1").fail();
+		sim.runFor(1000);
+		assertEquals(4, dialer.order.size());
+
+		// and so does the timeout, everybody has had a turn now
+		// and buddy1 has been retried, but never more than 2 at once
+		sim.runFor(ConnectionManager.CONNECT_TIMEOUT);
+		assertEquals(5, new HashSet<String>(dialer.order.subList(0, 5)).size());
+		assertTrue(dialer.order.size() > 5);
+		assertEquals(2, dialer.maxConnecting);
+	}
+
+	@Test
+	public void testConnectTimeout() throws Exception {
+		PingTracker pings = new PingTracker();
+		InstantDialer dialer = new InstantDialer();
+		ConnectionManager manager = manager(null, 4, dialer);
+		manager.setPingTracker(pings, "me");
+
+		// rto 1000 (the minimum), 8 round trips are less than the minimum
+		pings.getEstimator("fast").sample(100);
+		assertEquals(ConnectionManager.MIN_CONNECT_TIMEOUT, manager.connectTimeout("fast"));
+
+		// rto 6000, 8 round trips are in range
+		pings.getEstimator("medium").sample(2000);
+		assertEquals(8 * 6000, manager.connectTimeout("medium"));
+
+		// rto 60000, 8 round trips are more than the maximum
+		pings.getEstimator("slow").sample(20000);
+		assertEquals(ConnectionManager.CONNECT_TIMEOUT, manager.connectTimeout("slow"));
+
+		// nothing known, be patient
+		assertEquals(ConnectionManager.CONNECT_TIMEOUT, manager.connectTimeout("unknown"));
+
+		// the deadline of the connect attempt is the one of the buddy
+		manager.addBuddy("fast");
+		manager.addBuddy("medium");
+		sim.runFor(ConnectionManager.MIN_CONNECT_TIMEOUT - 1);
+		assertFalse(dialer.pending.get("fast").closed);
+		sim.runFor(1);
+		assertTrue(dialer.pending.get("fast").closed);
+		sim.runFor(8 * 6000 - ConnectionManager.MIN_CONNECT_TIMEOUT - 1);
+		assertFalse(dialer.pending.get("medium").closed);
+		sim.runFor(1);
+		assertTrue(dialer.pending.get("medium").closed);
+	}
+
+	private ConnectionManager manager(Outbox outbox, int maxConnecting, Dialer dialer){
+		ConnectionManager m = new ConnectionManager(sim, outbox, maxConnecting, new Random(1));
+		m.setDialer(dialer);
+		managers.add(m);
+		return m;
+	}
+
+	/**
+	 * Connects or fails right inside dial(), like a direct connect to a
+	 * local address can do, for buddies in online and refused. For all
+	 * other buddies the connection stays pending until connect() or fail().
+	 */
+	private static class InstantDialer implements Dialer {
+		Set<String> online = new HashSet<String>();
+		Set<String> refused = new HashSet<String>();
+		Map<String, InstantTCP> pending = new HashMap<String, InstantTCP>();
+		List<String> order = new ArrayList<String>();
+		int connecting = 0;
+		int maxConnecting = 0;
+		int sent = 0;
+
+		@Override
+		public TCP dial(Reactor r, String address, int port, TCPHandler handler) throws IOException {
+			order.add(address);
+			InstantTCP tcp = new InstantTCP(r, this);
+			tcp.setEventHandler(handler);
+			if (online.contains(address)){
+				handler.onConnect();
+			}else if (refused.contains(address)){
+				tcp.close("connection refused");
+			}else{
+				pending.put(address, tcp);
+				tcp.connecting = true;
+				connecting++;
+				maxConnecting = Math.max(maxConnecting, connecting);
+			}
+			return tcp;
+		}
+
+		InstantTCP last(){
+			return pending.get(order.get(order.size() - 1));
+		}
+	}
+
+	/**
+	 * A TCP without socket that writes everything immediately
+	 */
+	private static class InstantTCP extends TCP {
+		private InstantDialer dialer;
+		private TCPHandler handler;
+		boolean connecting = false;
+		boolean closed = false;
+
+		InstantTCP(Reactor r, InstantDialer dialer){
+			super(r);
+			this.dialer = dialer;
+		}
+
+		@Override
+		public void send(ByteBuffer buf, Runnable onWritten){
+			dialer.sent++;
+			if (onWritten != null){
+				onWritten.run();
+			}
+		}
+
+		@Override
+		public void setEventHandler(TCPHandler handler){
+			super.setEventHandler(handler);
+			this.handler = handler;
+		}
+
+		void connect(){
+			done();
+			handler.onConnect();
+		}
+
+		void fail(){
+			close("connection refused");
+		}
+
+		private void done(){
+			if (connecting){
+				connecting = false;
+				dialer.connecting--;
+			}
+		}
+
+		@Override
+		public void close(IOException reason){
+			if (!closed){
+				closed = true;
+				done();
+				doEventClose(reason);
+			}
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package prof7bit.torchat.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestConnectionStats {
+
+	@Test
+	public void testCountersAndTop(){
+		long totalBefore = ConnectionStats.getTotal().getMessagesOut("status");
+		// other tests may have connections open, only look at our own group
+		ConnectionStats group = ConnectionStats.group("test");
+		ConnectionStats a = ConnectionStats.open("a", null, group);
+		ConnectionStats b = ConnectionStats.open("b", null, group);
+		
+		MessageBuffer mb = new MessageBuffer();
+		mb.writeString("status");
+		mb.writeString("available");
+		assertEquals(ConnectionStats.commandIndex("status"), ConnectionStats.commandIndex(mb));
+		a.addMessageOut(ConnectionStats.commandIndex(mb), mb.size(), mb.encodeForSending().limit());
+		
+		MessageBuffer other = new MessageBuffer();
+		other.writeString("statusx");
+		assertEquals(ConnectionStats.commandIndex("other"), ConnectionStats.commandIndex(other));
+		
+		b.addReceived(1000);
+		b.addMessageIn(ConnectionStats.commandIndex("foo"), 999);
+		
+		assertEquals(1, a.getMessagesOut("status"));
+		assertEquals(17, a.getBytesOutWire());
+		assertEquals(16, a.getBytesOutRaw());
+		assertEquals(1, b.getMessagesIn("other"));
+		assertEquals(totalBefore + 1, ConnectionStats.getTotal().getMessagesOut("status"));
+		
+		List<ConnectionStats> top = group.getTop(2);
+		assertEquals(b, top.get(0));
+		assertEquals(a, top.get(1));
+		
+		a.close();
+		b.close();
+		assertEquals(0, group.getTop(10).size());
+		assertFalse(ConnectionStats.top(Integer.MAX_VALUE).contains(a));
+		assertFalse(ConnectionStats.top(Integer.MAX_VALUE).contains(b));
+	}
+}
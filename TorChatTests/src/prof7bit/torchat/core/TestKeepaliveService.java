@@ -0,0 +1,180 @@
+package prof7bit.torchat.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import prof7bit.reactor.SimReactor;
+import prof7bit.reactor.TCP;
+import prof7bit.reactor.Timer;
+
+public class TestKeepaliveService {
+
+	private static final long INTERVAL = 100000;
+	private static final double GOLDEN_RATIO = 0.6180339887498949;
+
+	private List<Connection> connections = new ArrayList<Connection>();
+	private List<RecordingTCP> tcps = new ArrayList<RecordingTCP>();
+
+	@After
+	public void tearDown(){
+		// the stats of open connections would stay in the global list
+		for (Connection c : connections){
+			c.close("test finished");
+		}
+	}
+
+	@Test
+	public void testPhasesAreSpreadEvenly(){
+		SimReactor sim = new SimReactor();
+		KeepaliveService keepalive = new KeepaliveService(sim, INTERVAL);
+		int n = 100;
+		for (int i = 0; i < n; i++){
+			keepalive.add(connect(sim));
+		}
+		sim.runFor(INTERVAL - 1);
+
+		// every connection has sent exactly one keepalive at its
+		// offset of the golden ratio sequence
+		List<Long> times = new ArrayList<Long>();
+		for (int i = 0; i < n; i++){
+			RecordingTCP tcp = tcps.get(i);
+			assertEquals(1, tcp.sent.size());
+			assertEquals((long) ((i * GOLDEN_RATIO) % 1.0 * INTERVAL), (long) tcp.sent.get(0));
+			times.add(tcp.sent.get(0));
+		}
+
+		// no gap between two of them (also around the end of the interval)
+		// is much larger or smaller than the ideal spacing interval / n
+		Collections.sort(times);
+		times.add(times.get(0) + INTERVAL);
+		long ideal = INTERVAL / n;
+		for (int i = 1; i < times.size(); i++){
+			long gap = times.get(i) - times.get(i - 1);
+			assertTrue("gap " + gap, gap > ideal / 3 && gap < ideal * 3);
+		}
+	}
+
+	@Test
+	public void testNoDrift(){
+		// every timer fires 7 ms late, the phases must not accumulate that
+		SimReactor sim = new SimReactor(){
+			@Override
+			public Timer schedule(long delay, Runnable task){
+				return super.schedule(delay + 7, task);
+			}
+		};
+		KeepaliveService keepalive = new KeepaliveService(sim, INTERVAL);
+		for (int i = 0; i < 10; i++){
+			keepalive.add(connect(sim));
+		}
+		sim.runFor(50 * INTERVAL);
+		for (RecordingTCP tcp : tcps){
+			List<Long> sent = tcp.sent;
+			assertTrue(sent.size() >= 49);
+			long first = sent.get(0);
+			for (int k = 1; k < sent.size(); k++){
+				assertEquals(first + k * INTERVAL, (long) sent.get(k), 7);
+			}
+		}
+	}
+
+	@Test
+	public void testBatterySaverAlignsOnWindowBoundary(){
+		SimReactor sim = new SimReactor();
+		KeepaliveService keepalive = new KeepaliveService(sim, INTERVAL);
+		int n = 20;
+		for (int i = 0; i < n; i++){
+			keepalive.add(connect(sim));
+		}
+		keepalive.setBatterySaver(true);
+		sim.runFor(5 * INTERVAL + 1);
+
+		// one burst at every boundary, nothing in between
+		for (RecordingTCP tcp : tcps){
+			assertEquals(5, tcp.sent.size());
+			for (int k = 0; k < 5; k++){
+				assertEquals((k + 1) * INTERVAL, (long) tcp.sent.get(k));
+			}
+		}
+
+		// and back to the spread phases
+		keepalive.setBatterySaver(false);
+		sim.runFor(2 * INTERVAL);
+		for (RecordingTCP tcp : tcps){
+			assertTrue(tcp.sent.size() > 5);
+			for (int k = 5; k < tcp.sent.size(); k++){
+				assertTrue(tcp.sent.get(k) % INTERVAL != 0);
+			}
+		}
+	}
+
+	@Test
+	public void testSkipRecentlySent(){
+		SimReactor sim = new SimReactor();
+		KeepaliveService keepalive = new KeepaliveService(sim, INTERVAL);
+		Connection c0 = connect(sim);
+		Connection c1 = connect(sim);
+		keepalive.add(c0);
+		keepalive.add(c1);
+
+		// c0 has its phase at 0 and c1 at 0.618 of the interval
+		sim.runFor(INTERVAL / 4);
+		assertEquals(1, tcps.get(0).sent.size());
+		assertEquals(0, tcps.get(1).sent.size());
+
+		// c1 will be due within half an interval, c0 not
+		c0.send(new Msg_status(c0, Msg_status.AWAY).serialize());
+		c1.send(new Msg_status(c1, Msg_status.AWAY).serialize());
+		sim.runFor(INTERVAL);
+
+		// so c0 still gets its keepalive and c1 is skipped once
+		assertEquals("[0, 25000, 100000]", tcps.get(0).sent.toString());
+		assertEquals("[25000]", tcps.get(1).sent.toString());
+		sim.runFor(INTERVAL);
+		assertEquals("[25000, 161803]", tcps.get(1).sent.toString());
+	}
+
+	private Connection connect(SimReactor sim){
+		RecordingTCP tcp = new RecordingTCP(sim);
+		Connection c = new Connection(tcp);
+		tcp.setEventHandler(c);
+		c.onConnect();
+		tcps.add(tcp);
+		connections.add(c);
+		return c;
+	}
+
+	/**
+	 * A TCP without socket that records the time of every send()
+	 */
+	private static class RecordingTCP extends TCP {
+		List<Long> sent = new ArrayList<Long>();
+		boolean closed = false;
+
+		RecordingTCP(SimReactor sim){
+			super(sim);
+		}
+
+		@Override
+		public void send(ByteBuffer buf, Runnable onWritten){
+			sent.add(getReactor().now());
+		}
+
+		@Override
+		public void close(IOException reason){
+			if (!closed){
+				closed = true;
+				doEventClose(reason);
+			}
+		}
+	}
+}
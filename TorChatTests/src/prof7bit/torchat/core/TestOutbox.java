@@ -0,0 +1,103 @@
+package prof7bit.torchat.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestOutbox {
+
+	private File dir;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = File.createTempFile("outbox", "");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for (File f : dir.listFiles()){
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void testAddRemoveReopen() throws Exception {
+		Outbox outbox = new Outbox(dir);
+		outbox.add("alice", "message 1\n".getBytes());
+		outbox.add("alice", "message 2\n".getBytes());
+		outbox.add("alice", "message 3\n".getBytes());
+		List<Outbox.Entry> pending = outbox.getPending("alice");
+		assertEquals(3, pending.size());
+		assertEquals(0, outbox.getPending("bob").size());
+
+		// first one has been written
+		outbox.remove("alice", pending.get(0).getSeq());
+		outbox.close();
+
+		// after a restart only the remaining two must be there
+		outbox = new Outbox(dir);
+		pending = outbox.getPending("alice");
+		assertEquals(2, pending.size());
+		assertEquals("message 2\n", new String(pending.get(0).getData()));
+		assertEquals("message 3\n", new String(pending.get(1).getData()));
+
+		// removing everything must truncate the log file
+		outbox.remove("alice", pending.get(1).getSeq());
+		outbox.sync();
+		assertEquals(0, new File(dir, "alice.out").length());
+		assertEquals(0, new Outbox(dir).getPending("alice").size());
+	}
+
+	@Test
+	public void testTornRecord() throws Exception {
+		Outbox outbox = new Outbox(dir);
+		outbox.add("alice", "message 1\n".getBytes());
+		outbox.add("alice", "message 2\n".getBytes());
+		outbox.close();
+		File f = new File(dir, "alice.out");
+		long len = f.length();
+
+		// cut the last record in half as if we crashed while writing it
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		raf.setLength(len - 5);
+		raf.close();
+
+		outbox = new Outbox(dir);
+		List<Outbox.Entry> pending = outbox.getPending("alice");
+		assertEquals(1, pending.size());
+		assertEquals("message 1\n", new String(pending.get(0).getData()));
+		assertTrue(f.length() < len - 5);
+
+		// new records must go after the last valid one
+		outbox.add("alice", "message 3\n".getBytes());
+		outbox.sync();
+		pending = new Outbox(dir).getPending("alice");
+		assertEquals(2, pending.size());
+		assertEquals("message 3\n", new String(pending.get(1).getData()));
+	}
+
+	@Test
+	public void testBatchedTruncate() throws Exception {
+		Outbox outbox = new Outbox(dir);
+		for (int i = 0; i < 100; i++){
+			outbox.add("alice", ("message " + i + "\n").getBytes());
+			outbox.remove("alice", i);
+		}
+		outbox.add("alice", "last\n".getBytes());
+		outbox.close();
+		List<Outbox.Entry> pending = new Outbox(dir).getPending("alice");
+		assertEquals(1, pending.size());
+		assertEquals(100, pending.get(0).getSeq());
+		assertEquals("last\n", new String(pending.get(0).getData()));
+	}
+}
@@ -0,0 +1,132 @@
+package prof7bit.torchat.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import prof7bit.reactor.Capture;
+import prof7bit.reactor.CaptureReader;
+import prof7bit.reactor.ListenPort;
+import prof7bit.reactor.ListenPortHandler;
+import prof7bit.reactor.Reactor;
+import prof7bit.reactor.TCP;
+import prof7bit.reactor.TCPHandler;
+
+public class TestReplay {
+
+	private static final int TEST_PORT = 3458;
+	private static final String TRAFFIC = "ping abcdefghijklmnop 4711\nstatus away\nmessage hello\n";
+
+	private File file;
+	private Reactor reactor;
+
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("torchat", ".tcap");
+		reactor = new Reactor();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		TCP.setCapture(null);
+		reactor.close();
+		file.delete();
+	}
+
+	@Test
+	public void testCaptureAndReplay() throws Exception {
+		final CountDownLatch received = new CountDownLatch(TRAFFIC.length());
+		final CountDownLatch closed = new CountDownLatch(1);
+		Capture capture = new Capture(file);
+		TCP.setCapture(capture);
+		
+		ListenPort listener = new ListenPort(reactor, new ListenPortHandler(){
+			@Override
+			public TCPHandler onAccept(TCP tcp) {
+				return new Handler(){
+					@Override
+					public void onReceive(ByteBuffer buf) {
+						for (int i = 0; i < buf.limit(); i++){
+							received.countDown();
+						}
+					}
+					
+					@Override
+					public void onDisconnect(Exception e) {
+						closed.countDown();
+					}
+				};
+			}
+		});
+		listener.listen(TEST_PORT);
+		TCP out = new TCP(reactor, "127.0.0.1", TEST_PORT, new Handler());
+		out.send(ByteBuffer.wrap(TRAFFIC.getBytes()));
+		assertTrue(received.await(1000, TimeUnit.MILLISECONDS));
+		out.close("done");
+		assertTrue(closed.await(1000, TimeUnit.MILLISECONDS));
+		TCP.setCapture(null);
+		capture.close();
+		assertEquals(0, capture.getDropped());
+		
+		// outgoing side: OPEN, OUT, CLOSE, incoming side: OPEN, IN..., CLOSE
+		CaptureReader reader = new CaptureReader(file);
+		int in = 0;
+		int out_ = 0;
+		int open = 0;
+		int close = 0;
+		CaptureReader.Record r;
+		while ((r = reader.next()) != null){
+			switch (r.getType()){
+			case Capture.OPEN: open++; break;
+			case Capture.IN: in += r.getData().length; break;
+			case Capture.OUT: out_ += r.getData().length; break;
+			case Capture.CLOSE: close++; break;
+			}
+		}
+		reader.close();
+		assertEquals(2, open);
+		assertEquals(2, close);
+		assertEquals(TRAFFIC.length(), in);
+		assertEquals(TRAFFIC.length(), out_);
+		
+		long statusBefore = ConnectionStats.getTotal().getMessagesIn("status");
+		Replay replay = new Replay(reactor, file, false);
+		replay.start();
+		assertTrue(replay.await(1000));
+		assertEquals(TRAFFIC.length(), replay.getBytesIn());
+		assertEquals(1, replay.getConnectionCount());
+		assertEquals(statusBefore + 1, ConnectionStats.getTotal().getMessagesIn("status"));
+	}
+	
+	@Test
+	public void testEmptyCapture() throws Exception {
+		Capture capture = new Capture(file);
+		capture.close();
+		CaptureReader reader = new CaptureReader(file);
+		assertNull(reader.next());
+		reader.close();
+	}
+
+	private static class Handler implements TCPHandler {
+		@Override
+		public void onConnect() {
+		}
+
+		@Override
+		public void onDisconnect(Exception e) {
+		}
+
+		@Override
+		public void onReceive(ByteBuffer buf) {
+		}
+	}
+}
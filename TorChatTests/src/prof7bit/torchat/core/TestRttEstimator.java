@@ -0,0 +1,92 @@
+package prof7bit.torchat.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class TestRttEstimator {
+
+	private static final String BUDDY = "abcdefghijklmnop";
+
+	@Test
+	public void testRfc6298() {
+		RttEstimator e = new RttEstimator();
+		assertEquals(RttEstimator.INITIAL_RTO, e.getRto());
+		assertEquals(60000, e.timeout(4, 10000, 60000));
+
+		// first sample: srtt = r, rttvar = r/2, rto = srtt + 4 * rttvar
+		e.sample(2000);
+		assertEquals(2000, e.getSrtt());
+		assertEquals(1000, e.getRttvar());
+		assertEquals(6000, e.getRto());
+
+		// rttvar = 3/4 * 1000 + 1/4 * |2000 - 2800|, srtt = 7/8 * 2000 + 1/8 * 2800
+		e.sample(2800);
+		assertEquals(950, e.getRttvar());
+		assertEquals(2100, e.getSrtt());
+		assertEquals(5900, e.getRto());
+
+		// adaptive timeouts
+		assertEquals(23600, e.timeout(4, 10000, 60000));
+		assertEquals(10000, e.timeout(1, 10000, 60000));
+		assertEquals(300, e.timeout(4, 10000, 300));
+
+		e.backoff();
+		assertEquals(11800, e.getRto());
+		for (int i = 0; i < 10; i++){
+			e.backoff();
+		}
+		assertEquals(RttEstimator.MAX_RTO, e.getRto());
+	}
+
+	@Test
+	public void testPingTracker() {
+		PingTracker t = new PingTracker();
+		String c1 = t.ping(BUDDY, 1000);
+		String c2 = t.ping(BUDDY, 1100);
+		assertEquals(2, t.getPending());
+		assertEquals(BUDDY, t.pong(c2, 4100));
+		assertNull(t.pong(c2, 4200));
+		assertNull(t.pong("unknown", 4200));
+		assertEquals(3000, t.getEstimator(BUDDY).getSrtt());
+		assertEquals(3000, t.getOverall().getSrtt());
+
+		// c1 is still pending, the rto is now 9000, the next ping expires it
+		t.ping(BUDDY, 1000 + RttEstimator.INITIAL_RTO);
+		assertEquals(1, t.getPending());
+		assertEquals(1, t.getEstimator(BUDDY).getTimeouts());
+		assertEquals(18000, t.getEstimator(BUDDY).getRto());
+		assertNull(t.pong(c1, 40000));
+		assertEquals(1, t.getEstimator(BUDDY).getSamples());
+	}
+
+	@Test
+	public void testPingTrackerRtoPerBuddy() {
+		PingTracker t = new PingTracker();
+		t.getEstimator("slow").sample(20000);
+		t.getEstimator("fast").sample(100);
+		assertEquals(60000, t.getEstimator("slow").getRto());
+		assertEquals(RttEstimator.MIN_RTO, t.getEstimator("fast").getRto());
+
+		// the fast one times out behind the older slow one
+		String slow = t.ping("slow", 0);
+		String fast = t.ping("fast", 10);
+		assertNull(t.pong(fast, 5000));
+		assertEquals(1, t.getEstimator("fast").getTimeouts());
+		assertEquals(1, t.getEstimator("fast").getSamples());
+		assertEquals(1, t.getPending());
+
+		// the slow one is still in time
+		assertEquals("slow", t.pong(slow, 30000));
+		assertEquals(0, t.getEstimator("slow").getTimeouts());
+		assertEquals(2, t.getEstimator("slow").getSamples());
+
+		// a timeout is also noticed when the next ping is sent
+		fast = t.ping("fast", 40000);
+		t.ping("slow", 50000);
+		assertEquals(1, t.getPending());
+		assertEquals(2, t.getEstimator("fast").getTimeouts());
+		assertNull(t.pong(fast, 50001));
+	}
+}
@@ -0,0 +1,152 @@
+package prof7bit.torchat.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import prof7bit.log.Log;
+import prof7bit.reactor.ListenPortHandler;
+import prof7bit.reactor.SimNetwork;
+import prof7bit.reactor.SimReactor;
+import prof7bit.reactor.TCP;
+import prof7bit.reactor.TCPHandler;
+
+/**
+ * A whole day of thousands of buddies coming and going, with the ConnectionManager
+ * and the KeepaliveService running on a SimReactor in virtual time.
+ */
+public class TestSimulation {
+
+	private static final long HOUR = 3600 * 1000;
+	private static final long CHURN_INTERVAL = 10 * 60 * 1000;
+	private static final int MAX_CONNECTING = 8;
+
+	/**
+	 * longer than the default to keep the amount of simulated
+	 * traffic (and the run time of this test) reasonable
+	 */
+	private static final long KEEPALIVE_INTERVAL = 10 * 60 * 1000;
+
+	@Before
+	public void setUp(){
+		Log.setLevel(Log.WARN);
+	}
+
+	@After
+	public void tearDown(){
+		Log.setLevel(Log.INFO);
+	}
+
+	@Test
+	public void testDayWithTenThousandBuddies(){
+		runDay(10000, 42);
+	}
+
+	@Test
+	public void testDeterministic(){
+		long[] first = runDay(1000, 7);
+		long[] second = runDay(1000, 7);
+		for (int i = 0; i < first.length; i++){
+			assertEquals("result " + i + " is not deterministic", first[i], second[i]);
+		}
+	}
+
+	/**
+	 * @return some numbers that must be exactly the same in every run
+	 */
+	private long[] runDay(final int buddies, long seed){
+		final SimReactor sim = new SimReactor();
+		final SimNetwork net = new SimNetwork(sim, 250, 50000);
+		final Random random = new Random(seed);
+		final String[] addresses = new String[buddies];
+		final long[] onlineSince = new long[buddies];
+		final ListenPortHandler acceptor = new ListenPortHandler(){
+			@Override
+			public TCPHandler onAccept(TCP tcp) {
+				return new Connection(tcp);
+			}
+		};
+
+		// 20% of the buddies are online at the beginning
+		for (int i = 0; i < buddies; i++){
+			addresses[i] = String.format("buddy%05d", i);
+			onlineSince[i] = -1;
+			if (random.nextInt(5) == 0){
+				net.listen(addresses[i], acceptor);
+				onlineSince[i] = 0;
+			}
+		}
+
+		ConnectionManager manager = new ConnectionManager(sim, null, MAX_CONNECTING, new Random(seed));
+		KeepaliveService keepalive = new KeepaliveService(sim, KEEPALIVE_INTERVAL);
+		manager.setKeepaliveService(keepalive);
+		manager.setDialer(net);
+		for (String a : addresses){
+			manager.addBuddy(a);
+		}
+
+		// every 10 minutes 1% of the buddies change their online state
+		sim.schedule(CHURN_INTERVAL, new Runnable(){
+			@Override
+			public void run() {
+				for (int n = 0; n < buddies / 100; n++){
+					int i = random.nextInt(buddies);
+					if (onlineSince[i] < 0){
+						net.listen(addresses[i], acceptor);
+						onlineSince[i] = sim.now();
+					}else{
+						net.unlisten(addresses[i]);
+						onlineSince[i] = -1;
+					}
+				}
+				sim.schedule(CHURN_INTERVAL, this);
+			}
+		});
+
+		long statusBefore = ConnectionStats.getTotal().getMessagesIn("status");
+		sim.runFor(24 * HOUR);
+		long status = ConnectionStats.getTotal().getMessagesIn("status") - statusBefore;
+
+		// everybody who has been online long enough for the longest
+		// backoff plus the connect limit must be connected by now.
+		int online = 0;
+		int connected = 0;
+		for (int i = 0; i < buddies; i++){
+			if (onlineSince[i] >= 0){
+				online++;
+				Connection c = manager.getConnection(addresses[i]);
+				if (c != null && c.isConnected()){
+					connected++;
+				}else{
+					assertTrue(addresses[i] + " not connected",
+							sim.now() - onlineSince[i] < ConnectionManager.BACKOFF_MAX + 5 * 60 * 1000);
+				}
+			}
+		}
+
+		assertTrue(online > buddies / 10);
+		assertTrue(connected > online * 9 / 10);
+		assertTrue(net.getMaxConnecting() <= MAX_CONNECTING);
+
+		// offline buddies are retried at most every BACKOFF_MAX / 2
+		long maxAttempts = buddies * (24 * HOUR / (ConnectionManager.BACKOFF_MAX / 2) + 20);
+		assertTrue(net.getAttempts() < maxAttempts);
+
+		// one keepalive per interval and connection, roughly
+		long expected = connected * (24 * HOUR / KEEPALIVE_INTERVAL);
+		assertTrue("status messages: " + status, status > expected / 4 && status < expected * 2);
+
+		// closing the reactor closes every connection
+		sim.close();
+		for (ConnectionStats s : ConnectionStats.top(Integer.MAX_VALUE)){
+			assertTrue(s.getName(), !s.getName().startsWith("buddy"));
+		}
+		return new long[] {online, connected, net.getAttempts(), net.getFailures(),
+				net.getChunks(), net.getBytes(), status, sim.getExecuted()};
+	}
+}
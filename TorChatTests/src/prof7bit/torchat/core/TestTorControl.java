@@ -0,0 +1,228 @@
+package prof7bit.torchat.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import prof7bit.log.Log;
+import prof7bit.reactor.Dialer;
+import prof7bit.reactor.ListenPort;
+import prof7bit.reactor.ListenPortHandler;
+import prof7bit.reactor.MemoryNetwork;
+import prof7bit.reactor.Reactor;
+import prof7bit.reactor.TCP;
+import prof7bit.reactor.TCPHandler;
+
+public class TestTorControl {
+
+	private static final int TEST_PORT = 3480;
+	private static final String BUDDY = "abcdefghijklmnop";
+
+	private Reactor reactor;
+	private ListenPort fakeTor;
+	private volatile TCP server = null;
+	private List<String> commands = new CopyOnWriteArrayList<String>();
+	private Map<String, String> script = new HashMap<String, String>();
+	private List<String> events = new CopyOnWriteArrayList<String>();
+	private volatile Exception disconnected = null;
+
+	/**
+	 * records the commands and answers them from the script
+	 */
+	private ListenPortHandler scripted = new ListenPortHandler(){
+		@Override
+		public TCPHandler onAccept(final TCP tcp) {
+			server = tcp;
+			return new TCPHandler(){
+				private StringBuilder line = new StringBuilder();
+
+				@Override
+				public void onConnect() {
+					// nothing
+				}
+
+				@Override
+				public void onDisconnect(Exception e) {
+					// nothing
+				}
+
+				@Override
+				public void onReceive(ByteBuffer buf) {
+					for (int i = 0; i < buf.limit(); i++){
+						char c = (char) buf.get(i);
+						if (c == '\n'){
+							String cmd = line.toString().trim();
+							line.setLength(0);
+							commands.add(cmd);
+							String answer = script.get(cmd);
+							if (answer != null){
+								send(answer);
+							}
+						}else{
+							line.append(c);
+						}
+					}
+				}
+			};
+		}
+	};
+
+	/**
+	 * records the events
+	 */
+	private TorControlHandler recorder = new TorControlHandler(){
+		@Override
+		public void onBootstrap(int progress, String summary) {
+			events.add("bootstrap " + progress + " " + summary);
+		}
+
+		@Override
+		public void onReady(boolean ready) {
+			events.add("ready " + ready);
+		}
+
+		@Override
+		public void onHsDesc(String action, String address, String reason) {
+			events.add("hsdesc " + action + " " + address + " " + reason);
+		}
+
+		@Override
+		public void onCircuitBuilt(String id, String address, long millis) {
+			events.add("circ " + id + " " + address + " " + (millis >= 40));
+		}
+
+		@Override
+		public void onDisconnect(Exception e) {
+			disconnected = e;
+		}
+	};
+
+	@Before
+	public void setUp() throws Exception {
+		Log.setLevel(Log.WARN);
+		reactor = new Reactor();
+		fakeTor = new ListenPort(reactor, scripted);
+		fakeTor.listen(TEST_PORT);
+		script.put("AUTHENTICATE \"se\\\"cret\"", "250 OK\r\n");
+		script.put("SETEVENTS STATUS_CLIENT HS_DESC CIRC", "250 OK\r\n");
+		script.put("GETINFO status/bootstrap-phase",
+				"250-status/bootstrap-phase=NOTICE BOOTSTRAP PROGRESS=50 TAG=loading_descriptors SUMMARY=\"Loading relay descriptors\"\r\n250 OK\r\n");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		reactor.close();
+		Log.setLevel(Log.INFO);
+	}
+
+	@Test
+	public void testBootstrapAndEvents() throws Exception {
+		final AtomicInteger dials = new AtomicInteger();
+		final MemoryNetwork nobody = new MemoryNetwork();
+		ConnectionManager manager = new ConnectionManager(reactor, null);
+		manager.setDialer(new Dialer(){
+			@Override
+			public TCP dial(Reactor r, String address, int port, TCPHandler handler) throws IOException {
+				dials.incrementAndGet();
+				return nobody.dial(r, address, port, handler);
+			}
+		});
+
+		TorControl control = new TorControl(reactor);
+		control.addHandler(recorder);
+		control.setPassword("se\"cret");
+		manager.waitForTor(control);
+		manager.addBuddy(BUDDY);
+		control.connect("127.0.0.1", TEST_PORT);
+
+		waitFor(1);
+		assertEquals(3, commands.size());
+		assertEquals("bootstrap 50 Loading relay descriptors", events.get(0));
+		assertEquals(50, control.getProgress());
+		assertTrue(!control.isReady());
+		assertEquals(0, dials.get());
+
+		// the event arrives in two pieces
+		send("650 STATUS_CLIENT NOTICE BOOTSTRAP PROGRESS=100 ");
+		send("TAG=done SUMMARY=\"Done\"\r\n");
+		waitFor(3);
+		assertEquals("bootstrap 100 Done", events.get(1));
+		assertEquals("ready true", events.get(2));
+		assertTrue(control.isReady());
+		waitForDials(dials, 1);
+
+		// the failed buddy is now waiting for its retry, the
+		// descriptor tells us it is online, try again now
+		send("650 HS_DESC RECEIVED " + BUDDY + " NO_AUTH $AAAA~relay\r\n");
+		waitFor(4);
+		assertEquals("hsdesc RECEIVED " + BUDDY + " null", events.get(3));
+		waitForDials(dials, 2);
+
+		send("650 CIRC 7 LAUNCHED BUILD_FLAGS=IS_INTERNAL PURPOSE=HS_CLIENT_REND\r\n");
+		Thread.sleep(50);
+		send("650 CIRC 7 BUILT $A~a,$B~b PURPOSE=HS_CLIENT_REND REND_QUERY=" + BUDDY + "\r\n");
+		waitFor(5);
+		assertEquals("circ 7 " + BUDDY + " true", events.get(4));
+		assertEquals(1, control.getCircuitBuildTimes().getCount());
+
+		send("650 STATUS_CLIENT NOTICE CIRCUIT_NOT_ESTABLISHED REASON=CLOCK_JUMPED\r\n");
+		waitFor(6);
+		assertEquals("ready false", events.get(5));
+		send("650 STATUS_CLIENT NOTICE CIRCUIT_ESTABLISHED\r\n");
+		waitFor(7);
+		assertTrue(control.isReady());
+
+		// nothing known about Tor's state without the control connection
+		control.close();
+		for (int i = 0; i < 100 && disconnected == null; i++){
+			Thread.sleep(10);
+		}
+		assertTrue(disconnected != null);
+		assertTrue(!control.isReady());
+		assertEquals(0, control.getProgress());
+	}
+
+	@Test
+	public void testAuthenticationFailed() throws Exception {
+		script.clear();
+		script.put("AUTHENTICATE", "515 Authentication failed: Wrong length on authentication cookie.\r\n");
+		TorControl control = new TorControl(reactor);
+		control.addHandler(recorder);
+		control.connect("127.0.0.1", TEST_PORT);
+		for (int i = 0; i < 100 && disconnected == null; i++){
+			Thread.sleep(10);
+		}
+		assertTrue(disconnected instanceof XTorControlError);
+		assertEquals(515, ((XTorControlError) disconnected).getStatusCode());
+		assertEquals(1, commands.size());
+	}
+
+	private void send(String s){
+		server.send(ByteBuffer.wrap(s.getBytes()));
+	}
+
+	private void waitFor(int n) throws InterruptedException {
+		for (int i = 0; i < 100 && events.size() < n; i++){
+			Thread.sleep(10);
+		}
+		assertEquals(n, events.size());
+	}
+
+	private void waitForDials(AtomicInteger dials, int n) throws InterruptedException {
+		for (int i = 0; i < 100 && dials.get() < n; i++){
+			Thread.sleep(10);
+		}
+		assertEquals(n, dials.get());
+	}
+}
@@ -0,0 +1,215 @@
+package prof7bit.torchat.history;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import prof7bit.log.Log;
+
+public class TestHistoryStore {
+
+	private File dir;
+	private HistoryStore store;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = File.createTempFile("history", "");
+		dir.delete();
+		dir.mkdir();
+		store = new HistoryStore(dir, 4096);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		store.close();
+		deleteRecursive(dir);
+		Log.setLevel(Log.INFO);
+	}
+
+	@Test
+	public void testAppendAndPageBackwards() throws Exception {
+		for (int i = 0; i < 100; i++){
+			store.append("alice", i, i % 2 == 0, "message " + i);
+			store.append("bob", i, false, "other " + i);
+		}
+		store.sync();
+		assertEquals(100, store.count("alice"));
+		assertEquals(100, store.count("bob"));
+		assertEquals(0, store.count("nobody"));
+
+		// page backwards from the newest, 30 at a time
+		int end = store.count("alice");
+		int expected = 99;
+		while (end > 0){
+			List<HistoryEntry> page = store.getPage("alice", end, 30);
+			for (int i = page.size() - 1; i >= 0; i--){
+				HistoryEntry e = page.get(i);
+				assertEquals("alice", e.getBuddy());
+				assertEquals("message " + expected, e.getText());
+				assertEquals(expected, e.getTime());
+				assertEquals(expected % 2 == 0, e.isOutgoing());
+				expected--;
+			}
+			end -= page.size();
+		}
+		assertEquals(-1, expected);
+
+		// the 4k segments must have rolled over at least once
+		assertTrue(new File(dir, "00000001.seg").exists());
+	}
+
+	@Test
+	public void testWriteErrorsAreReported() throws Exception {
+		// a directory where the next segment should go
+		File blocker = new File(dir, "00000001.seg");
+		blocker.mkdir();
+		store.addListener(new HistoryListener(){
+			@Override
+			public void onCommitted(HistoryEntry entry) {
+				throw new RuntimeException("listener bug");
+			}
+		}, -1);
+		Log.setLevel(Log.OFF);
+		for (int i = 0; i < 300; i++){
+			store.append("alice", i, false, "message " + i);
+		}
+		try {
+			store.sync();
+			assertTrue(false);
+		} catch (IOException e) {
+			// expected
+		}
+		int count = store.count("alice");
+		assertTrue(count > 0 && count < 300);
+
+		// nothing is lost, the rest is written as soon as it can be
+		blocker.delete();
+		store.sync();
+		assertEquals(300, store.count("alice"));
+		assertEquals("message 299", store.getPage("alice", 300, 1).get(0).getText());
+
+		store.close();
+		try {
+			store.append("alice", 300, false, "too late");
+			assertTrue(false);
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		try {
+			store.sync();
+			assertTrue(false);
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testReopen() throws Exception {
+		store.append("alice", 1, true, "hello");
+		store.append("alice", 2, false, "w\u00f6rld\nline two");
+		store.close();
+
+		store = new HistoryStore(dir, 4096);
+		List<HistoryEntry> page = store.getPage("alice", 10, 10);
+		assertEquals(2, page.size());
+		assertEquals("hello", page.get(0).getText());
+		assertEquals("w\u00f6rld\nline two", page.get(1).getText());
+		assertEquals(page.get(1).getText(), store.read(page.get(1).getPosition()).getText());
+	}
+
+	@Test
+	public void testCloseRacingAppend() throws Exception {
+		store.append("alice", 0, true, "first");
+		store.sync();
+		long first = store.getPage("alice", 1, 1).get(0).getPosition();
+
+		// every append either throws or ends up on the disk
+		final HistoryStore racing = store;
+		final AtomicInteger accepted = new AtomicInteger(1);
+		final CountDownLatch started = new CountDownLatch(4);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++){
+			threads[t] = new Thread(){
+				@Override
+				public void run(){
+					started.countDown();
+					for (int i = 0; ; i++){
+						try {
+							racing.append("alice", i, false, "message " + i);
+						} catch (IllegalStateException e) {
+							return;
+						}
+						accepted.incrementAndGet();
+					}
+				}
+			};
+			threads[t].start();
+		}
+		started.await();
+		Thread.sleep(20);
+		store.close();
+		for (Thread t : threads){
+			t.join();
+		}
+		try {
+			store.read(first);
+			assertTrue(false);
+		} catch (IllegalStateException e) {
+			// expected, the segments are unmapped
+		}
+
+		store = new HistoryStore(dir, 4096);
+		assertEquals(accepted.get(), store.count("alice"));
+	}
+
+	@Test
+	public void testTornTailAndLostIndex() throws Exception {
+		store.append("alice", 1, true, "one");
+		store.append("alice", 2, true, "two");
+		store.sync();
+		long end = store.getPage("alice", 2, 1).get(0).getPosition() + 8 + 11 + 5 + 3;
+		store.close();
+
+		// simulate a crash: the last index entry got lost and
+		// there is a partially written record at the end
+		RandomAccessFile idx = new RandomAccessFile(new File(dir, "index/alice.idx"), "rw");
+		idx.setLength(12);
+		idx.close();
+		RandomAccessFile seg = new RandomAccessFile(new File(dir, "00000000.seg"), "rw");
+		seg.seek(end);
+		seg.writeInt(100);
+		seg.writeInt(12345);
+		seg.write("torn".getBytes());
+		seg.close();
+
+		store = new HistoryStore(dir, 4096);
+		assertEquals(2, store.count("alice"));
+		store.append("alice", 3, true, "three");
+		store.sync();
+		List<HistoryEntry> page = store.getPage("alice", 3, 3);
+		assertEquals("one", page.get(0).getText());
+		assertEquals("two", page.get(1).getText());
+		assertEquals("three", page.get(2).getText());
+	}
+
+	private void deleteRecursive(File f) throws IOException {
+		File[] children = f.listFiles();
+		if (children != null){
+			for (File c : children){
+				deleteRecursive(c);
+			}
+		}
+		assertFalse(f.exists() && !f.delete());
+	}
+}
@@ -0,0 +1,142 @@
+package prof7bit.torchat.history;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestSearchIndex {
+
+	private File dir;
+	private File indexDir;
+	private HistoryStore store;
+	private SearchIndex index;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = File.createTempFile("history", "");
+		dir.delete();
+		dir.mkdir();
+		indexDir = new File(dir, "search");
+		store = new HistoryStore(dir, 64 * 1024);
+		index = new SearchIndex(indexDir, store, 50);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		index.close();
+		store.close();
+		deleteRecursive(dir);
+	}
+
+	@Test
+	public void testTermAndPrefix() throws Exception {
+		fill(0, 300);
+		store.sync();
+		checkResults(300);
+	}
+
+	@Test
+	public void testReopenAndRebuild() throws Exception {
+		fill(0, 200);
+		store.sync();
+		index.close();
+
+		// more history is written while the index is closed
+		fill(200, 300);
+		store.sync();
+
+		index = new SearchIndex(indexDir, store, 50);
+		store.sync(); // catching up happens in the writer thread
+		checkResults(300);
+		index.close();
+
+		// throw away the index entirely, it must rebuild itself
+		deleteRecursive(indexDir);
+		index = new SearchIndex(indexDir, store, 50);
+		store.sync();
+		checkResults(300);
+	}
+
+	@Test
+	public void testSizeTieredMerge() throws Exception {
+		// three small ones are not enough and the big one is not similar
+		assertTrue(SearchIndex.pickMerge(new long[] {1000, 40000, 1100, 900}) == null);
+
+		int[] pick = SearchIndex.pickMerge(new long[] {1000, 40000, 1100, 900, 1500, 160000});
+		assertEquals(4, pick.length);
+		Arrays.sort(pick);
+		assertTrue(Arrays.equals(new int[] {0, 2, 3, 4}, pick));
+
+		// the runs of a larger tier are merged too
+		pick = SearchIndex.pickMerge(new long[] {40000, 100, 50000, 60000, 45000});
+		Arrays.sort(pick);
+		assertTrue(Arrays.equals(new int[] {0, 2, 3, 4}, pick));
+
+		// many small deltas must not end up as one huge number of runs
+		fill(0, 1000);
+		store.sync();
+		index.close();
+		int runs = indexDir.list().length;
+		assertTrue("runs: " + runs, runs < 4 * SearchIndex.MERGE_FACTOR);
+		index = new SearchIndex(indexDir, store, 50);
+		store.sync();
+		checkResults(1000);
+	}
+
+	/**
+	 * every 3rd message contains "Apple", every 5th "application"
+	 */
+	private void fill(int from, int to){
+		for (int i = from; i < to; i++){
+			StringBuilder text = new StringBuilder("message number " + i);
+			if (i % 3 == 0){
+				text.append(", I like Apple pie.");
+			}
+			if (i % 5 == 0){
+				text.append(" this is an application");
+			}
+			store.append("buddy" + (i % 7), i, false, text.toString());
+		}
+	}
+
+	private void checkResults(int count){
+		long[] apple = index.search("apple");
+		assertEquals((count + 2) / 3, apple.length);
+		for (int i = 1; i < apple.length; i++){
+			assertTrue(apple[i] < apple[i - 1]); // newest first
+		}
+		for (long pos : apple){
+			assertTrue(store.read(pos).getText().contains("Apple"));
+		}
+		assertEquals(store.read(apple[0]).getTime(), (count - 1) / 3 * 3);
+
+		// multiples of 3 or 5
+		int expected = 0;
+		for (int i = 0; i < count; i++){
+			if (i % 3 == 0 || i % 5 == 0){
+				expected++;
+			}
+		}
+		assertEquals(expected, index.searchPrefix("APP").length);
+		assertEquals(count, index.search("number").length);
+		assertEquals(1, index.search("42").length);
+		assertEquals(0, index.search("app").length);
+		assertEquals(0, index.searchPrefix("xyz").length);
+	}
+
+	private void deleteRecursive(File f){
+		File[] children = f.listFiles();
+		if (children != null){
+			for (File c : children){
+				deleteRecursive(c);
+			}
+		}
+		f.delete();
+	}
+}